@@ -0,0 +1,11 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+#run a file of commands (or - for stdin), printing one result line per command
+#Use your database name, port number and login, then the file and e.g. --workers 8 --rows
+#FULFILLMENT=false leaves the supply requests the file places to scripts/fulfillment.sh
+java -Damazon.fulfillment=${FULFILLMENT:-true} -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar BatchRunner $USER"_project_phase_3_DB" $PGPORT $USER "$@"
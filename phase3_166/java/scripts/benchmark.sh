@@ -0,0 +1,40 @@
+#!/bin/bash
+# Benchmarks the store operations against a throwaway Postgres (initdb and
+# pg_ctl on the PATH) loaded with generated data, e.g.
+#
+#   benchmark.sh --scale 100 --threads 1,8,32 --out bench.csv
+#   benchmark.sh --scale 100 --baseline bench.csv     fails on a regression
+#
+# --scale and --seed go to DataGenerator, every other option to Benchmark.
+# JAVA_OPTS go to the benchmark JVM, e.g. JAVA_OPTS=-Damazon.groupCommit=true
+# to measure placeOrder with group commit.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+SCALE=100
+SEED=166
+ARGS=()
+while [ $# -gt 0 ]; do
+   case "$1" in
+      --scale) SCALE=$2; shift 2 ;;
+      --seed) SEED=$2; shift 2 ;;
+      *) ARGS+=("$1"); shift ;;
+   esac
+done
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java || exit 2
+CP=$DIR/../classes:$DIR/../lib/pg73jdbc3.jar
+
+TMP=$(mktemp -d)
+PORT=${BENCH_PORT:-54330}
+initdb -D $TMP/db -A trust -U postgres > $TMP/initdb.log || exit 2
+pg_ctl -D $TMP/db -o "-p $PORT -k $TMP" -l $TMP/server.log -w start > /dev/null || exit 2
+trap "pg_ctl -D $TMP/db -m fast stop > /dev/null; rm -rf $TMP" EXIT
+PSQL="psql -X -q -v ON_ERROR_STOP=1 -h $TMP -p $PORT -U postgres postgres"
+$PSQL -f $DIR/../../sql/src/create_tables.sql > /dev/null || exit 2
+$PSQL -f $DIR/../../sql/src/create_indexes.sql > /dev/null || exit 2
+
+java -cp $CP DataGenerator $TMP/data --scale $SCALE --seed $SEED || exit 2
+java -cp $CP BulkLoader postgres $PORT postgres $TMP/data || exit 2
+$PSQL -c "ANALYZE" || exit 2
+
+java $JAVA_OPTS -cp $CP Benchmark postgres $PORT postgres "${ARGS[@]}"
@@ -0,0 +1,11 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+#load the CSV files of a data directory (default: phase3_166/data), emptying the tables first
+#Use your database name, port number and login
+#SHARD=<i> with SHARDS=host2:5432,... loads only the stores of shard i (see scripts/shards.sh)
+java -Damazon.shards=${SHARDS:-} -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar BulkLoader $USER"_project_phase_3_DB" $PGPORT $USER ${1:-$DIR/../../data} --truncate --threads ${LOAD_THREADS:-4} ${SHARD:+--shard $SHARD}
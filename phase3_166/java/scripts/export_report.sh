@@ -0,0 +1,10 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+#export orders, product updates and supply requests of a time range as gzip files
+#Use your database name, port number and login, then the output directory and e.g. --from 2024-01-01 --to 2024-02-01
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar ReportExporter $USER"_project_phase_3_DB" $PGPORT $USER "$@"
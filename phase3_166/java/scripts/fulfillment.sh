@@ -0,0 +1,10 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+#fulfill the pending supply requests when the server runs with FULFILLMENT=false; refused while it runs RESERVATIONS=true
+#Use your database name, port number and login, then e.g. --workers 8 --batch 1000 --poll-ms 500
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar SupplyFulfillment $USER"_project_phase_3_DB" $PGPORT $USER "$@"
@@ -0,0 +1,10 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+#write a synthetic dataset into a directory, then load it with bulk_load.sh <dir>
+#e.g. generate_data.sh /tmp/amazon_data --scale 1000 --seed 7
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar DataGenerator "$@"
@@ -0,0 +1,10 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+#move a v1 database to the v2 schema while the store runs: expand, backfill, deploy the v2 application, then contract
+#Use your database name, port number and login, then the phase, e.g. backfill --batch 5000 --pause-ms 100
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar SchemaMigrator $USER"_project_phase_3_DB" $PGPORT $USER "$@"
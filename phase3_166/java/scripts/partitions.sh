@@ -0,0 +1,10 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+#create the coming monthly partitions of Orders and ProductUpdates, e.g. daily from cron
+#Use your database name, port number and login, then e.g. --keep 24 --archive-dir archive to archive older months
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar PartitionManager $USER"_project_phase_3_DB" $PGPORT $USER "$@"
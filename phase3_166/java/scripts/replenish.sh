@@ -0,0 +1,10 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+#place supply requests for the products about to run out, e.g. --once from cron
+#Use your database name, port number and login, then e.g. --lead-days 3 --target-days 14 --units-per-area 10
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar ReplenishmentPlanner $USER"_project_phase_3_DB" $PGPORT $USER "$@"
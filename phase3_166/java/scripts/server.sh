@@ -0,0 +1,23 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+#run the multi-session server; clients connect with e.g. `nc localhost <listenPort>`
+#Use your database name, port number and login, then the listen port, pool size and max sessions
+#Metrics are served on http://localhost:$METRICS_PORT/metrics and written to $METRICS_DUMP every minute
+#GROUP_COMMIT=true batches the writes of concurrent orders and product updates into one commit
+#RESERVATIONS=true keeps the stock in memory, logged to $STOCK_WAL, and writes it back in batches
+#FULFILLMENT=false leaves the supply requests to scripts/fulfillment.sh
+#REPLENISH=true places supply requests for products about to run out
+#REPLICAS=localhost:5433 sends the read-only commands to streaming replicas, at most $REPLICA_MAX_LAG_MS behind
+#SHARDS=host2:5432,host3:5432 spreads the stores over this database and those by storeID; see scripts/shards.sh
+java -Damazon.metrics.port=${METRICS_PORT:-9167} -Damazon.metrics.dump=${METRICS_DUMP:-$DIR/../metrics.prom} \
+     -Damazon.groupCommit=${GROUP_COMMIT:-false} \
+     -Damazon.reservations=${RESERVATIONS:-false} -Damazon.reservations.wal=${STOCK_WAL:-$DIR/../stock.wal} \
+     -Damazon.fulfillment=${FULFILLMENT:-true} -Damazon.replenish=${REPLENISH:-false} \
+     -Damazon.replicas=${REPLICAS:-} -Damazon.replica.maxLagMs=${REPLICA_MAX_LAG_MS:-1000} \
+     -Damazon.shards=${SHARDS:-} \
+     -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar AmazonServer $USER"_project_phase_3_DB" $PGPORT $USER ${LISTEN_PORT:-9166} ${POOL_SIZE:-20} ${MAX_SESSIONS:-10000}
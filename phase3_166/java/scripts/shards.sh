@@ -0,0 +1,10 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+#prepare the shards of $SHARDS after loading each with scripts/bulk_load.sh --shard <i>: --sequences --sync-users
+#Use your database name, port number and login, then the options; this database is shard 0
+java -Damazon.shards=${SHARDS:-} -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar ShardMap $USER"_project_phase_3_DB" $PGPORT $USER "$@"
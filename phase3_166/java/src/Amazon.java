@@ -13,21 +13,28 @@
 
 import java.sql.DriverManager;
 import java.sql.Connection;
-import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
 import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.PrintStream;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
 import java.lang.Math;
+import java.math.BigDecimal;
 
 import java.time.LocalDateTime;
-import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;  
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -35,15 +42,21 @@ import java.time.format.DateTimeFormatter;
  *
  */
 public class Amazon {
-   private static String loggedInUserName;
-   private static String loggedInUserPassword;
    // reference to physical database connection.
    private Connection _connection = null;
 
-   // handling the keyboard inputs through a BufferedReader
-   // This variable can be global for convenience.
-   static BufferedReader in = new BufferedReader(
-                                new InputStreamReader(System.in));
+   // prepared statements of this connection, keyed by SQL text.
+   private final Map<String, PreparedStatement> _statements = new HashMap<String, PreparedStatement>();
+   // executions of each cached statement, until it is prepared on the server.
+   private final Map<String, Integer> _executions = new HashMap<String, Integer>();
+
+   // executions of a statement after which the DBMS keeps it prepared, so
+   // its plan is reused; set with -Damazon.prepareThreshold=<n>, 0 for never.
+   private static final int PREPARE_THRESHOLD = Integer.getInteger ("amazon.prepareThreshold", 5);
+
+   // retries of a transaction that failed on a serialization failure or
+   // deadlock; set with -Damazon.txRetries=<n>.
+   private static volatile int transactionRetries = Integer.getInteger ("amazon.txRetries", 3);
 
    /**
     * Creates a new instance of Amazon store
@@ -72,45 +85,277 @@ public class Amazon {
       }//end catch
    }//end Amazon
 
+   /**
+    * Creates a new instance of Amazon store over an open connection. This is
+    * how the connection pool creates its handles.
+    *
+    * @param connection the physical database connection
+    */
+   public Amazon(Connection connection) {
+      this._connection = connection;
+   }//end Amazon
+
+   // The physical connection, for tools that need driver specific calls.
+   public Connection getConnection (){
+      return this._connection;
+   }
+
    // Method to calculate euclidean distance between two latitude, longitude pairs. 
    public double calculateDistance (double lat1, double long1, double lat2, double long2){
       double t1 = (lat1 - lat2) * (lat1 - lat2);
       double t2 = (long1 - long2) * (long1 - long2);
       return Math.sqrt(t1 + t2); 
    }
+
+   /**
+    * Method to fetch the prepared statement for the given SQL text. Statements
+    * are prepared once per connection and cached by their SQL text.
+    *
+    * The bundled pg73jdbc3 driver fills the parameters in on the client and
+    * sends plain SQL, so caching alone saves no parsing or planning on the
+    * DBMS; see bindExecution for the statements it prepares on the server.
+    *
+    * @param sql the SQL text, using '?' for every parameter
+    * @return the cached prepared statement
+    * @throws java.sql.SQLException when the statement cannot be prepared
+    */
+   public PreparedStatement prepare (String sql) throws SQLException {
+      PreparedStatement stmt = this._statements.get (sql);
+      if (stmt == null){
+         stmt = this._connection.prepareStatement (sql);
+         this._statements.put (sql, stmt);
+      }//end if
+      return stmt;
+   }//end prepare
+
+   /**
+    * Method to fetch the cached statement for the given SQL text and bind
+    * the parameters to it. A query or DML statement run PREPARE_THRESHOLD
+    * times is switched to server side prepare (PGStatement.setUseServerPrepare):
+    * the driver then sends PREPARE once and EXECUTE for every later run, so
+    * the DBMS reuses the parsed statement and its plan.
+    *
+    * The driver declares the parameter types of the PREPARE from the setter
+    * of each value, e.g. text for a String, so the switch waits for a run
+    * without NULL values, whose type it cannot tell. A Double is declared
+    * float8 and a Timestamp timestamptz: compared with a numeric or timestamp
+    * column they would cast the column and lose its index, so only INSERTs
+    * bind them on the server. A String must only be bound where a text value
+    * is valid, or be CAST in the SQL.
+    *
+    * @param sql the SQL text, using '?' for every parameter
+    * @param params the parameter values
+    * @return the statement, ready to execute
+    * @throws java.sql.SQLException when the statement cannot be prepared
+    */
+   private PreparedStatement bindExecution (String sql, Object... params) throws SQLException {
+      PreparedStatement stmt = this.prepare (sql);
+      bind (stmt, params);
+      Integer executions = this._executions.get (sql);
+      if (executions == null || executions >= 0){
+         int n = executions == null ? 1 : executions + 1;
+         if (PREPARE_THRESHOLD > 0 && n >= PREPARE_THRESHOLD && serverPreparable (sql, params)
+             && stmt instanceof org.postgresql.PGStatement){
+            ((org.postgresql.PGStatement) stmt).setUseServerPrepare (true);
+            // prepared on the server from now on
+            n = -1;
+         }//end if
+         this._executions.put (sql, n);
+      }//end if
+      return stmt;
+   }//end bindExecution
+
+   // Whether a statement may be prepared on the server with these values; see bindExecution.
+   private static boolean serverPreparable (String sql, Object... params) {
+      String verb = sql.trim ().split ("[\\s(]", 2)[0].toUpperCase ();
+      if (!verb.equals ("SELECT") && !verb.equals ("INSERT") && !verb.equals ("UPDATE")
+          && !verb.equals ("DELETE") && !verb.equals ("WITH"))
+         return false;
+      for (Object param : params)
+         if (param == null || (!verb.equals ("INSERT") && (param instanceof Double || param instanceof Timestamp)))
+            return false;
+      return true;
+   }//end serverPreparable
+
+   // Typed bind-parameter helpers. Parameter indexes start at 1, like JDBC.
+   public static void bindInt (PreparedStatement stmt, int index, int value) throws SQLException {
+      stmt.setInt (index, value);
+   }
+
+   public static void bindLong (PreparedStatement stmt, int index, long value) throws SQLException {
+      stmt.setLong (index, value);
+   }
+
+   public static void bindDouble (PreparedStatement stmt, int index, double value) throws SQLException {
+      stmt.setDouble (index, value);
+   }
+
+   public static void bindString (PreparedStatement stmt, int index, String value) throws SQLException {
+      stmt.setString (index, value);
+   }
+
+   public static void bindTimestamp (PreparedStatement stmt, int index, Timestamp value) throws SQLException {
+      stmt.setTimestamp (index, value);
+   }
+
+   public static void bindBigDecimal (PreparedStatement stmt, int index, BigDecimal value) throws SQLException {
+      stmt.setBigDecimal (index, value);
+   }
+
+   /**
+    * Method to bind the given values, in order, to the parameters of a
+    * prepared statement using the typed helper matching each value.
+    *
+    * @param stmt the prepared statement
+    * @param params the parameter values (Integer, Long, Double, BigDecimal, String, Timestamp or null)
+    * @throws java.sql.SQLException when a value has an unsupported type
+    */
+   public static void bind (PreparedStatement stmt, Object... params) throws SQLException {
+      stmt.clearParameters ();
+      for (int i = 0; i < params.length; ++i){
+         Object param = params[i];
+         if (param instanceof Integer)
+            bindInt (stmt, i + 1, (Integer) param);
+         else if (param instanceof Long)
+            bindLong (stmt, i + 1, (Long) param);
+         else if (param instanceof Double)
+            bindDouble (stmt, i + 1, (Double) param);
+         else if (param instanceof String)
+            bindString (stmt, i + 1, (String) param);
+         else if (param instanceof Timestamp)
+            bindTimestamp (stmt, i + 1, (Timestamp) param);
+         else if (param instanceof BigDecimal)
+            bindBigDecimal (stmt, i + 1, (BigDecimal) param);
+         else if (param == null)
+            stmt.setNull (i + 1, Types.VARCHAR);
+         else
+            throw new SQLException ("Unsupported parameter type at index " + (i + 1) + ": " + param);
+      }//end for
+   }//end bind
+
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
     *
-    * @param sql the input SQL string
+    * @param sql the input SQL string, using '?' for every parameter
+    * @param params the parameter values
+    * @return the number of rows affected
     * @throws java.sql.SQLException when update failed
     */
-   public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the update instruction
-      stmt.executeUpdate (sql);
+   public int executeUpdate (String sql, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      try{
+         // fetches the cached statement and binds the parameters
+         PreparedStatement stmt = this.bindExecution (sql, params);
 
-      // close the instruction
-      stmt.close ();
+         // issues the update instruction
+         int rowCount = stmt.executeUpdate ();
+         Metrics.shared ().statement (System.nanoTime () - start, rowCount);
+         return rowCount;
+      }catch (SQLException e){
+         Metrics.shared ().statementFailed (System.nanoTime () - start, e);
+         throw e;
+      }//end try
    }//end executeUpdate
 
+   /**
+    * Method to execute one update SQL statement once per row of parameters,
+    * sent to the DBMS as one JDBC batch.
+    *
+    * @param sql the input SQL string, using '?' for every parameter
+    * @param rows the parameter values of each execution
+    * @return the number of rows affected by each execution
+    * @throws java.sql.SQLException when an update failed
+    */
+   public int[] executeBatch (String sql, List<Object[]> rows) throws SQLException {
+      long start = System.nanoTime ();
+      try{
+         PreparedStatement stmt = this.prepare (sql);
+         for (Object[] params : rows){
+            bind (stmt, params);
+            stmt.addBatch ();
+         }//end for
+         int[] counts = stmt.executeBatch ();
+         long rowCount = 0;
+         for (int count : counts)
+            rowCount += Math.max (0, count);
+         Metrics.shared ().statement (System.nanoTime () - start, rowCount);
+         return counts;
+      }catch (SQLException e){
+         Metrics.shared ().statementFailed (System.nanoTime () - start, e);
+         throw e;
+      }//end try
+   }//end executeBatch
+
+   /**
+    * Method to insert many rows with multi-row statements such as
+    * "INSERT INTO T (a, b) VALUES (?, ?), (?, ?), ...". The rows are sent in
+    * statements of 2^k rows, e.g. 128 + 64 + 8 for 200 rows, so only a few
+    * statement shapes are prepared and cached whatever the row counts.
+    *
+    * @param head the statement up to VALUES, e.g. "INSERT INTO T (a, b) VALUES "
+    * @param row the placeholders of one row, e.g. "(?, ?)"
+    * @param tail the rest of the statement, e.g. an ON CONFLICT clause, or ""
+    * @param rows the parameter values of each row
+    * @return the number of rows affected
+    * @throws java.sql.SQLException when an insert failed
+    */
+   public int executeUpdateRows (String head, String row, String tail, List<Object[]> rows) throws SQLException {
+      int affected = 0;
+      int done = 0;
+      while (done < rows.size ()){
+         int n = Integer.highestOneBit (rows.size () - done);
+         StringBuilder sql = new StringBuilder (head);
+         List<Object> params = new ArrayList<Object> ();
+         for (int i = 0; i < n; ++i){
+            sql.append (i == 0 ? "" : ", ").append (row);
+            for (Object param : rows.get (done + i))
+               params.add (param);
+         }//end for
+         affected += executeUpdate (sql.append (tail).toString (), params.toArray ());
+         done += n;
+      }//end while
+      return affected;
+   }//end executeUpdateRows
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and outputs the results to
     * standard out.
     *
-    * @param query the input query string
+    * @param query the input query string, using '?' for every parameter
+    * @param params the parameter values
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+      return executeQueryAndPrintResult (System.out, query, params);
+   }//end executeQueryAndPrintResult
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT).  This
+    * method issues the query to the DBMS and outputs the results to the
+    * given stream, e.g. the terminal of the session that asked for them.
+    *
+    * @param out the output stream
+    * @param query the input query string, using '?' for every parameter
+    * @param params the parameter values
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+   public int executeQueryAndPrintResult (PrintStream out, String query, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      ResultSet rs;
+      try{
+         // fetches the cached statement and binds the parameters
+         PreparedStatement stmt = this.bindExecution (query, params);
 
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
+         // issues the query instruction
+         rs = stmt.executeQuery ();
+      }catch (SQLException e){
+         Metrics.shared ().statementFailed (System.nanoTime () - start, e);
+         throw e;
+      }//end try
 
       /*
        ** obtains the metadata object for the returned result set.  The metadata
@@ -120,22 +365,30 @@ public class Amazon {
       int numCol = rsmd.getColumnCount ();
       int rowCount = 0;
 
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()){
-		 if(outputHeader){
-			for(int i = 1; i <= numCol; i++){
-			System.out.print(rsmd.getColumnName(i) + "\t");
-			}
-			System.out.println();
-			outputHeader = false;
-		 }
-         for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close ();
+      // iterates through the result set and output them to the stream, one
+      // buffered line per row instead of one write per value.
+      BufferedWriter writer = new BufferedWriter (new OutputStreamWriter (out), 1 << 16);
+      StringBuilder line = new StringBuilder ();
+      try{
+         while (rs.next()){
+            if(rowCount == 0){
+               for(int i = 1; i <= numCol; i++)
+                  line.append (rsmd.getColumnName(i)).append ('\t');
+               writer.append (line).append ('\n');
+            }
+            line.setLength (0);
+            for (int i=1; i<=numCol; ++i)
+               line.append (rs.getString (i)).append ('\t');
+            writer.append (line).append ('\n');
+            ++rowCount;
+         }//end while
+         writer.flush ();
+      }catch (IOException e){
+         throw new SQLException ("Failed to print the result: " + e.getMessage ());
+      }finally{
+         rs.close ();
+      }//end try
+      Metrics.shared ().statement (System.nanoTime () - start, rowCount);
       return rowCount;
    }//end executeQuery
 
@@ -144,16 +397,39 @@ public class Amazon {
     * method issues the query to the DBMS and returns the results as
     * a list of records. Each record in turn is a list of attribute values
     *
-    * @param query the input query string
+    * @param query the input query string, using '?' for every parameter
+    * @param params the parameter values
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException {
+      return executeQueryAndReturnResult ((List<String>) null, query, params);
+   }//end executeQueryAndReturnResult
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT).  This
+    * method issues the query to the DBMS and returns the results as
+    * a list of records, and adds the column names to the given list.
+    *
+    * @param columns the list receiving the column names, or null
+    * @param query the input query string, using '?' for every parameter
+    * @param params the parameter values
     * @return the query result as a list of records
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+   public List<List<String>> executeQueryAndReturnResult (List<String> columns, String query, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      ResultSet rs;
+      try{
+         // fetches the cached statement and binds the parameters
+         PreparedStatement stmt = this.bindExecution (query, params);
 
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
+         // issues the query instruction
+         rs = stmt.executeQuery ();
+      }catch (SQLException e){
+         Metrics.shared ().statementFailed (System.nanoTime () - start, e);
+         throw e;
+      }//end try
 
       /*
        ** obtains the metadata object for the returned result set.  The metadata
@@ -162,6 +438,9 @@ public class Amazon {
       ResultSetMetaData rsmd = rs.getMetaData ();
       int numCol = rsmd.getColumnCount ();
       int rowCount = 0;
+      if (columns != null)
+         for (int i = 1; i <= numCol; ++i)
+            columns.add (rsmd.getColumnName (i));
 
       // iterates through the result set and saves the data returned by the query.
       boolean outputHeader = false;
@@ -172,7 +451,8 @@ public class Amazon {
 			record.add(rs.getString (i));
         result.add(record);
       }//end while
-      stmt.close ();
+      rs.close ();
+      Metrics.shared ().statement (System.nanoTime () - start, result.size ());
       return result;
    }//end executeQueryAndReturnResult
 
@@ -180,16 +460,24 @@ public class Amazon {
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the number of results
     *
-    * @param query the input query string
+    * @param query the input query string, using '?' for every parameter
+    * @param params the parameter values
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
-
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
+   public int executeQuery (String query, Object... params) throws SQLException {
+       long start = System.nanoTime ();
+       ResultSet rs;
+       try{
+          // fetches the cached statement and binds the parameters
+          PreparedStatement stmt = this.bindExecution (query, params);
+
+          // issues the query instruction
+          rs = stmt.executeQuery ();
+       }catch (SQLException e){
+          Metrics.shared ().statementFailed (System.nanoTime () - start, e);
+          throw e;
+       }//end try
 
        int rowCount = 0;
 
@@ -197,10 +485,34 @@ public class Amazon {
        while (rs.next()){
           rowCount++;
        }//end while
-       stmt.close ();
+       rs.close ();
+       Metrics.shared ().statement (System.nanoTime () - start, rowCount);
        return rowCount;
    }
 
+   /**
+    * Method to open a streaming cursor over the rows of a query, for results
+    * too large to hold in memory; see RowCursor. The caller must close it.
+    *
+    * @param fetchSize the number of rows fetched per round trip, 0 for all at once
+    * @param query the input query string, using '?' for every parameter
+    * @param params the parameter values
+    * @return the open cursor, before the first row
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public RowCursor openCursor (int fetchSize, String query, Object... params) throws SQLException {
+      // counts the time to the first batch; the rows are read later
+      long start = System.nanoTime ();
+      try{
+         RowCursor cursor = new RowCursor (this._connection, query, fetchSize, params);
+         Metrics.shared ().statement (System.nanoTime () - start, 0);
+         return cursor;
+      }catch (SQLException e){
+         Metrics.shared ().statementFailed (System.nanoTime () - start, e);
+         throw e;
+      }//end try
+   }//end openCursor
+
    /**
     * Method to fetch the last value from sequence. This
     * method issues the query to the DBMS and returns the current
@@ -211,19 +523,110 @@ public class Amazon {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
-	Statement stmt = this._connection.createStatement ();
+	PreparedStatement stmt = this.prepare ("Select currval(?)");
+	bind (stmt, sequence);
 
-	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
+	ResultSet rs = stmt.executeQuery ();
+	int value = -1;
 	if (rs.next())
-		return rs.getInt(1);
-	return -1;
+		value = rs.getInt(1);
+	rs.close ();
+	return value;
    }
 
+   /**
+    * A unit of work run by inTransaction. It may be run more than once when
+    * the transaction is retried, so it must not have side effects outside
+    * the database.
+    */
+   public interface Transaction<T> {
+      T run (Amazon esql) throws SQLException;
+   }//end Transaction
+
+   /**
+    * Method to run a unit of work as one transaction. The transaction is
+    * rolled back when the work throws, and retried up to the configured
+    * number of times when it failed on a serialization failure or deadlock.
+    *
+    * @param work the statements to run
+    * @return the value returned by the work
+    * @throws java.sql.SQLException when the work failed and was not retried
+    */
+   public <T> T inTransaction (Transaction<T> work) throws SQLException {
+      for (int attempt = 0; ; ++attempt){
+         this._connection.setAutoCommit (false);
+         try{
+            T result = work.run (this);
+            this._connection.commit ();
+            return result;
+         }catch (SQLException e){
+            try{
+               this._connection.rollback ();
+            }catch (SQLException ignored){
+               // the connection is broken; the pool will discard it.
+            }//end try
+            if (attempt >= transactionRetries || !isRetryable (e))
+               throw e;
+         }finally{
+            this._connection.setAutoCommit (true);
+         }//end try
+      }//end for
+   }//end inTransaction
+
+   // serialization_failure and deadlock_detected can succeed when retried.
+   public static boolean isRetryable (SQLException e){
+      String state = e.getSQLState ();
+      return "40001".equals (state) || "40P01".equals (state);
+   }//end isRetryable
+
+   // Sets how many times a transaction is retried on serialization failure.
+   public static void setTransactionRetries (int retries){
+      transactionRetries = retries;
+   }//end setTransactionRetries
+
+   /**
+    * Method to check that the connection still answers queries. The pool
+    * runs this before reusing a connection that has been idle.
+    *
+    * @return true when the connection is usable
+    */
+   public boolean isHealthy () {
+      try{
+         return this.executeQuery ("SELECT 1") == 1;
+      }catch (SQLException e){
+         return false;
+      }//end try
+   }//end isHealthy
+
+   /**
+    * Method to put the connection back in autocommit mode, rolling back any
+    * transaction left open, before it is handed to the next session.
+    *
+    * @return false when the connection is broken and must be discarded
+    */
+   public boolean resetForReuse () {
+      try{
+         if (this._connection.isClosed ())
+            return false;
+         if (!this._connection.getAutoCommit ()){
+            this._connection.rollback ();
+            this._connection.setAutoCommit (true);
+         }//end if
+         return true;
+      }catch (SQLException e){
+         return false;
+      }//end try
+   }//end resetForReuse
+
    /**
     * Method to close the physical connection if it is open.
     */
    public void cleanup(){
       try{
+         for (PreparedStatement stmt : this._statements.values ())
+            stmt.close ();
+         this._statements.clear ();
+         this._executions.clear ();
          if (this._connection != null){
             this._connection.close ();
          }//end if
@@ -247,93 +650,146 @@ public class Amazon {
          return;
       }//end if
 
-      Greeting();
-      Amazon esql = null;
+      Terminal term = Terminal.console ();
+      Greeting(term);
+      ConnectionPool pool = null;
       try{
          // use postgres JDBC driver.
          Class.forName ("org.postgresql.Driver").newInstance ();
-         // instantiate the Amazon object and creates a physical
-         // connection.
+         // creates a pool holding the physical connection of this console
+         // session, and one for the supply fulfillment workers.
          String dbname = args[0];
          String dbport = args[1];
          String user = args[2];
-         esql = new Amazon (dbname, dbport, user, "");
+         System.out.print("Connecting to database...");
+         String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+         System.out.println ("Connection URL: " + url + "\n");
+         pool = new ConnectionPool (url, user, "", 2);
+         try{
+            pool.release (pool.borrow ());
+            System.out.println("Done");
+         }catch (Exception e){
+            System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
+            System.out.println("Make sure you started postgres on this machine");
+            System.exit(-1);
+         }//end catch
+
+         // the metrics endpoint and dump file, when configured
+         Metrics.start ();
+         // credits the supply requests the manager places to the stock
+         SupplyFulfillment.startIfEnabled (pool);
+         runSession (pool, term);
+      }catch(Exception e) {
+         System.err.println (e.getMessage ());
+      }finally{
+         // make sure to cleanup the created table and close the connection.
+         try{
+            if(pool != null) {
+               System.out.print("Disconnecting from database...");
+               if (SupplyFulfillment.shared () != null)
+                  SupplyFulfillment.shared ().stop ();
+               pool.close ();
+               System.out.println("Done\n\nBye !");
+            }//end if
+         }catch (Exception e) {
+            // ignored.
+         }//end try
+      }//end try
+   }//end main
 
+   /**
+    * Runs the menus of one interactive session until the user exits. Each
+    * menu choice first reads all of its input into a Command, then borrows a
+    * database handle from the pool only to run it, so idle sessions and
+    * sessions waiting on the user hold no connection.
+    *
+    * @param pool the connection pool
+    * @param term the terminal of the session
+    * @throws java.lang.Exception when the session's input is closed
+    */
+   public static void runSession (ConnectionPool pool, Terminal term) throws Exception {
          boolean keepon = true;
          while(keepon) {
             // These are sample SQL statements
-            System.out.println("MAIN MENU");
-            System.out.println("---------");
-            System.out.println("1. Create user");
-            System.out.println("2. Log in");
-            System.out.println("9. < EXIT");
-            String authorisedUser = null;
-            switch (readChoice()){
-               case 1: CreateUser(esql); break;
-
-               //LogIn() returns 1
-               case 2: authorisedUser = LogIn(esql); break;
-               case 9: keepon = false; break;
-               default : System.out.println("Unrecognized choice!"); break;
-            }//end switch
-            if (authorisedUser != null) {
+            term.println("MAIN MENU");
+            term.println("---------");
+            term.println("1. Create user");
+            term.println("2. Log in");
+            term.println("3. Resume a session");
+            term.println("9. < EXIT");
+            Session session = null;
+            int choice = readChoice(term);
+            try{
+               switch (choice){
+                  case 1: CreateUser(term).run(pool, null).print(term); break;
+
+                  //LogIn() returns the session of the user, or null
+                  case 2: session = LogIn(pool, term); break;
+                  case 3: session = Resume(term); break;
+                  case 9: keepon = false; break;
+                  default : term.println("Unrecognized choice!"); break;
+               }//end switch
+            }catch(NumberFormatException e){
+               term.err.println(e.getMessage());
+            }//end try
+            if (session != null) {
               boolean usermenu = true;
               while(usermenu) {
 
-               
-                System.out.println("MAIN MENU");
-                System.out.println("---------");
-                System.out.println("1. View Stores within 30 miles");
-                System.out.println("2. View Product List");
-                System.out.println("3. Place a Order");
-                System.out.println("4. View 5 recent orders");
+                
+                term.println("MAIN MENU");
+                term.println("---------");
+                term.println("1. View Stores within 30 miles");
+                term.println("2. View Product List");
+                term.println("3. Place a Order");
+                term.println("4. View 5 recent orders");
 
    //IF ADMIN OR MANAGER
-               if (esql.checkPerms(esql)==1){
+               if (session.hasManagerPerms()){
                 //the following functionalities basically used by managers
-                  System.out.println("5. Update Product");
-                  System.out.println("6. View 5 recent Product Updates Info");
-                  System.out.println("7. View 5 Popular Items");
-                  System.out.println("8. View 5 Popular Customers");
-                  System.out.println("9. Place Product Supply Request to Warehouse");
+                  term.println("5. Update Product");
+                  term.println("6. View 5 recent Product Updates Info");
+                  term.println("7. View 5 Popular Items");
+                  term.println("8. View 5 Popular Customers");
+                  term.println("9. Place Product Supply Request to Warehouse");
                }
-                System.out.println(".........................");
-                System.out.println("20. Log out");
-                switch (readChoice()){
-                   case 1: viewStores(esql); break;
-                   case 2: viewProducts(esql); break;
-                   case 3: placeOrder(esql); break;
-                   case 4: viewRecentOrders(esql); break;                   
-                   case 5: updateProduct(esql); break;
-                   case 6: viewRecentUpdates(esql); break;
-                   case 7: viewPopularProducts(esql); break;
-                   case 8: viewPopularCustomers(esql); break;
-                   case 9: placeProductSupplyRequests(esql); break;
-
-                   case 20: usermenu = false; break;
-                   default : System.out.println("Unrecognized choice!"); break;
+                term.println("10. Search Products in Stores near you");
+                term.println(".........................");
+                term.println("20. Log out");
+                choice = readChoice(term);
+                if (choice == 20){
+                   Authenticator.shared().revoke(session.getToken());
+                   usermenu = false;
+                   continue;
+                }
+                Command command = null;
+                try{
+                   switch (choice){
+                      case 1: command = Command.viewStores(); break;
+                      case 2: command = viewProducts(term); break;
+                      case 3: command = placeOrder(term); break;
+                      case 4: command = Command.viewRecentOrders(); break;
+                      case 5: command = updateProduct(session, term); break;
+                      case 6: command = Command.viewRecentUpdates(); break;
+                      case 7: command = Command.viewPopularProducts(); break;
+                      case 8: command = Command.viewPopularCustomers(); break;
+                      case 9: command = placeProductSupplyRequests(session, term); break;
+                      case 10: command = searchProducts(term); break;
+
+                      default : term.println("Unrecognized choice!"); break;
+                   }
+                }catch(NumberFormatException e){
+                   term.err.println(e.getMessage());
                 }
+                if (command != null)
+                   command.run(pool, session).print(term);
               }
             }
          }//end while
-      }catch(Exception e) {
-         System.err.println (e.getMessage ());
-      }finally{
-         // make sure to cleanup the created table and close the connection.
-         try{
-            if(esql != null) {
-               System.out.print("Disconnecting from database...");
-               esql.cleanup ();
-               System.out.println("Done\n\nBye !");
-            }//end if
-         }catch (Exception e) {
-            // ignored.
-         }//end try
-      }//end try
-   }//end main
+   }//end runSession
 
-   public static void Greeting(){
-      System.out.println(
+   public static void Greeting(Terminal term){
+      term.println(
          "\n\n*******************************************************\n" +
          "              User Interface      	               \n" +
          "*******************************************************\n");
@@ -343,16 +799,16 @@ public class Amazon {
     * Reads the users choice given from the keyboard
     * @int
     **/
-   public static int readChoice() {
+   public static int readChoice(Terminal term) throws IOException {
       int input;
       // returns only if a correct value is given.
       do {
-         System.out.print("Please make your choice: ");
+         term.print("Please make your choice: ");
          try { // read the integer, parse it and break.
-            input = Integer.parseInt(in.readLine());
+            input = Integer.parseInt(term.readLine().trim());
             break;
-         }catch (Exception e) {
-            System.out.println("Your input is invalid!");
+         }catch (NumberFormatException e) {
+            term.println("Your input is invalid!");
             continue;
          }//end try
       }while (true);
@@ -360,593 +816,155 @@ public class Amazon {
    }//end readChoice
 
    /*
-    * Creates a new user
+    * The menu choices below only read the user's input and build the
+    * Command to run; the operations themselves are in Operations.
     **/
 
-
-//
-//HELPER FUNCTION
-//Grab count of rows from ANY table.
-public static int GetNextUniqueNumber(Amazon esql, String table){
-   try{
-      String query = String.format("SELECT COUNT(*) FROM "+ table);
-       List <List<String>> count= esql.executeQueryAndReturnResult(query);
-      int next_count = Integer.parseInt(count.get(0).get(0))+1;
-      return next_count;
-   }
-   catch(Exception e){
-         System.err.println (e.getMessage ());
-         return -1;
-      }
-}
-
-//is manager or admin?
-public static int checkPerms(Amazon esql){
-try{
-        String queryManagerCheck = String.format("SELECT * FROM Users WHERE name = '%s' AND password = '%s' AND (type = 'manager' OR type= 'admin')", loggedInUserName, loggedInUserPassword);
-        int rowCountManagerCheck = esql.executeQuery(queryManagerCheck);
-
-        return rowCountManagerCheck;
-
-}
-//helper
-   catch(Exception e){
-         System.err.println (e.getMessage ());
-         return -1;
-      }
-   }
-
-public static int isAdmin(Amazon esql){
-try{
-        String queryManagerCheck = String.format("SELECT * FROM Users WHERE name = '%s' AND password = '%s' AND (type ='admin')", loggedInUserName, loggedInUserPassword);
-        int rowCountManagerCheck = esql.executeQuery(queryManagerCheck);
-
-        return rowCountManagerCheck;
-
-}
-   catch(Exception e){
-         System.err.println (e.getMessage ());
-         return -1;
-      }
-
-}
-
-public static int isManager(Amazon esql){
-try{
-        String queryManagerCheck = String.format("SELECT * FROM Users WHERE name = '%s' AND password = '%s' AND (type ='manager')", loggedInUserName, loggedInUserPassword);
-        int rowCountManagerCheck = esql.executeQuery(queryManagerCheck);
-
-        return rowCountManagerCheck;
-
-}
-
-//helper
-   catch(Exception e){
-         System.err.println (e.getMessage ());
-         return -1;
-      }
-   }
-
-public static String getUserType(Amazon esql){
-   try{
-         String type_query = String.format("SELECT u.type FROM Users u WHERE u.name = '%s' AND u.password = '%s'", loggedInUserName, loggedInUserPassword);
-         List<List<String>> u_types = esql.executeQueryAndReturnResult(type_query);
-         String u_type = u_types.get(0).get(0);
-         return u_type;
-   }
-   catch(Exception e){
-         System.err.println (e.getMessage ());
-         return null;
-      }
-   }
-   //helper
-public static int getUserID(Amazon esql){
-   try{
-         String id_query = String.format("SELECT u.userID FROM Users u WHERE u.name = '%s' AND u.password = '%s'", loggedInUserName, loggedInUserPassword);
-         List<List<String>> u_ids = esql.executeQueryAndReturnResult(id_query);
-         int u_id = Integer.parseInt(u_ids.get(0).get(0));
-         return u_id;
-   }
-   catch(Exception e){
-         System.err.println (e.getMessage ());
-         return -1;
-      }
-   }
-//helper function 
-   public static void CreateUser(Amazon esql){
-      try{
-         System.out.print("\tEnter name: ");
-         String name = in.readLine();
-         System.out.print("\tEnter password: ");
-         String password = in.readLine();
-         System.out.print("\tEnter latitude: ");   
-         String latitude = in.readLine();       //enter lat value between [0.0, 100.0]
-         System.out.print("\tEnter longitude: ");  //enter long value between [0.0, 100.0]
-         String longitude = in.readLine();
-         
-         String type="Customer";
-
-         //int userID = esql.CreateNewUserID(esql);
-         
-
-			String query = String.format("INSERT INTO USERS (name, password, latitude, longitude, type) VALUES ('%s','%s', %s, %s,'%s')", name, password, latitude, longitude, type);
-
-         esql.executeUpdate(query);
-         System.out.println ("User successfully created!");
-
-         //CREATE ID
-      }catch(Exception e){
-         System.err.println (e.getMessage ());
-      }
+   /*
+    * Creates a new user
+    **/
+   public static Command CreateUser(Terminal term) throws IOException {
+      term.print("\tEnter name: ");
+      String name = term.readLine();
+      term.print("\tEnter password: ");
+      String password = term.readLine();
+      term.print("\tEnter latitude: ");   
+      double latitude = Double.parseDouble(term.readLine());       //enter lat value between [0.0, 100.0]
+      term.print("\tEnter longitude: ");  //enter long value between [0.0, 100.0]
+      double longitude = Double.parseDouble(term.readLine());
+      return Command.createUser(name, password, latitude, longitude);
    }//end CreateUser
 
 
    /*
     * Check log in credentials for an existing user
-    * @return User login or null is the user does not exist
+    * @return Session of the user or null is the user does not exist
     **/
-   public static String LogIn(Amazon esql){
+   public static Session LogIn(ConnectionPool pool, Terminal term) throws IOException {
+      term.print("\tEnter name: ");
+      String name = term.readLine();
+      term.print("\tEnter password: ");
+      String password = term.readLine();
+
+      Amazon esql = null;
+      long start = System.nanoTime();
+      Object token = Metrics.shared().begin("login");
+      OperationResult.Status status = OperationResult.Status.OK;
       try{
-         System.out.print("\tEnter name: ");
-         String name = in.readLine();
-         System.out.print("\tEnter password: ");
-         String password = in.readLine();
-
-         String query = String.format("SELECT * FROM USERS WHERE name = '%s' AND password = '%s'", name, password);
-         int userNum = esql.executeQuery(query);
-         loggedInUserName=name;
-         loggedInUserPassword= password;
-	 if (userNum > 0)
-		return name;
-         return null;
-       
+         esql = pool.borrow();
+         // loads userID, type and coordinates in one query
+         Session session = Authenticator.shared().login(esql, name, password);
+         if (session == null){
+            status = OperationResult.Status.DENIED;
+            long wait = Authenticator.shared().retryAfterSeconds(name);
+            term.println(wait > 0 ? "Too many failed logins; try again in " + wait + " s." : "Wrong name or password.");
+         }else
+            term.println("Session token (to resume on another connection): " + Authenticator.shared().issueToken(session));
+         return session;
       }
-      catch(Exception e){
-         System.err.println (e.getMessage ());
+      catch(SQLException e){
+         status = OperationResult.Status.ERROR;
+         term.err.println(e.getMessage());
          return null;
+      }finally{
+         pool.release(esql);
+         Metrics.shared().end(token, System.nanoTime() - start, status);
       }
    }//end
 
-// Rest of the functions definition go in here
-
-   public static void viewStores(Amazon esql) {
-      try {
-         String query1 = String.format("SELECT latitude FROM USERS WHERE name = '%s' AND password = '%s'", loggedInUserName, loggedInUserPassword);
-         List<List<String>> lats = esql.executeQueryAndReturnResult(query1);
-         double userLatitude = Double.valueOf(lats.get(0).get(0));
-
-         String query2 = String.format("SELECT longitude FROM USERS WHERE name = '%s' AND password = '%s'", loggedInUserName, loggedInUserPassword);
-         List<List<String>>  longs = esql.executeQueryAndReturnResult(query2);
-         double userLongitude = Double.valueOf(longs.get(0).get(0));
-
-
-         String query = String.format("SELECT storeID, latitude, longitude FROM Store WHERE " +"(SQRT(POW(latitude - '%s', 2) + POW(longitude - '%s', 2)) < 30)", userLatitude, userLongitude);
-         int rowCount = esql.executeQueryAndPrintResult(query);
-
-    } catch (Exception e) {
-        System.err.println(e.getMessage());
-    }
+   /*
+    * Resumes the session of a token given at login, without the password
+    * @return Session of the user or null if the token is unknown or expired
+    **/
+   public static Session Resume(Terminal term) throws IOException {
+      term.print("\tEnter session token: ");
+      Session session = Authenticator.shared().resume(term.readLine().trim());
+      if (session == null)
+         term.println("Unknown or expired session token.");
+      return session;
+   }//end Resume
+
+   public static Command viewProducts(Terminal term) throws IOException {
+      term.print("\tEnter StoreID: ");
+      int storeID = Integer.parseInt(term.readLine());
+      return Command.viewProducts(storeID);
    }
 
-
-   public static void viewProducts(Amazon esql) {
-   try{
-         System.out.print("\tEnter StoreID: ");
-         String storeID = in.readLine();
-			String query = String.format("SELECT p.productName, p.numberOFUnits, p.pricePerUnit  FROM PRODUCT p, Store s WHERE p.storeID = s.storeID AND s.storeID = '%s'", storeID);
-         //String query = "SELECT * FROM Store";
-         //esql.executeUpdate(query);
-         esql.executeQueryAndPrintResult(query);
-         //System.out.print(row);
-      }catch(Exception e){
-         System.err.println (e.getMessage ());
-      }
+   public static Command searchProducts(Terminal term) throws IOException {
+      term.print("\tEnter Product Name or its first letters: ");
+      String text = term.readLine();
+      term.print("\tWithin how many miles? (blank for 30): ");
+      String radius = term.readLine().trim();
+      term.print("\tAt least how many units? (blank for 1): ");
+      String units = term.readLine().trim();
+      term.print("\tContinue after (blank for the first page): ");
+      String after = term.readLine().trim();
+      return Command.searchProducts(text, radius.isEmpty() ? Operations.ORDER_RADIUS : Double.parseDouble(radius),
+                                    units.isEmpty() ? 1 : Integer.parseInt(units), after.isEmpty() ? null : after);
    }
 
    //helper function
-   public static String getTime(){
-      String datetime = (ZonedDateTime.now().format(DateTimeFormatter.RFC_1123_DATE_TIME));
-      return datetime;
+   public static Timestamp getTime(){
+      return new Timestamp(System.currentTimeMillis());
    }
 
-   public static void placeOrder(Amazon esql) {
-         try{
-            //FIRST CHECK if store is within 30 miles.
-         System.out.print("\tEnter StoreID: ");
-         String storeID = in.readLine();
-         System.out.print("\tEnter Product Name: ");
-         String productName = in.readLine();
-         System.out.print("\tEnter Number of Units: ");
-         String numberOfUnits = in.readLine();
-
-         //get store longitude
-         String query1 = String.format("SELECT longitude FROM Store Where storeID = '%s' ", storeID);
-         List<List<String>> s_longitudes = esql.executeQueryAndReturnResult(query1); 
-         double store_longitude = Double.valueOf(s_longitudes.get(0).get(0));
-
-      //store latitude
-         String query2 = String.format("SELECT latitude FROM Store Where storeID = '%s'", storeID);
-         esql.executeQuery(query2);
-
-         List<List<String>> s_latitudes = esql.executeQueryAndReturnResult(query2); 
-         double store_latitude = Double.valueOf(s_latitudes.get(0).get(0));
-
-         //user longitude
-         String query3 = String.format("SELECT longitude FROM Users Where name = '%s' AND password = '%s'", loggedInUserName, loggedInUserPassword);
-         esql.executeQuery(query3); 
-         List<List<String>> u_longitudes = esql.executeQueryAndReturnResult(query3); 
-         double user_longitude = Double.valueOf(u_longitudes.get(0).get(0));
-
-         //user latitude
-         String query4 = String.format("SELECT latitude FROM Users Where name = '%s' AND password = '%s'", loggedInUserName, loggedInUserPassword);
-         List<List<String>> u_latitudes = esql.executeQueryAndReturnResult(query4); 
-         double user_latitude = Double.valueOf(u_latitudes.get(0).get(0));
-
-
-         double distance = esql.calculateDistance(user_latitude, user_longitude, store_latitude, store_longitude); 
-   
-         //System.out.println(new_order_number);
-
-         if (distance > 30){
-            System.out.println("That store is too far from you! (Must be within 30 miles from your location.)");
-            return;
-         }
-
-         int new_order_number = esql.GetNextUniqueNumber(esql, "Orders");
-         
-         //query the selected prpoduct.
-         String product_from_store = String.format("SELECT * FROM Product p WHERE p.storeID = '%s' AND p.productName ='%s' and P.numberOfUnits >= '%s'", storeID, productName, numberOfUnits);
-         List<List<String>> product = esql.executeQueryAndReturnResult(product_from_store);
-         
-         if (product.isEmpty()){
-            System.out.println("Product doesn't exist or you ordered too many.");
-            return;
-         } 
-
-         //PRODUCT EXISTS AND YOU CAN ORDER.
-         //if (distance<=30){
-         //CREATE ORDER.
-         int u_id = esql.getUserID(esql);
-         String datetime = getTime();
-         String query5 = String.format("INSERT INTO Orders (orderNumber, customerID, storeID, productName, unitsOrdered, orderTime) VALUES ('%s', '%s', '%s', '%s', '%s', '%s')", new_order_number, u_id, storeID, productName, numberOfUnits, datetime);
-         esql.executeUpdate(query5);
-
-         //now edit chosen store's product and decrase by numberofunits.
-         String updatequery = String.format("UPDATE Product SET numberOfUnits = numberOfUnits - '%s' WHERE storeID = '%s' AND productName ='%s' and numberOfUnits >= '%s'", numberOfUnits,storeID, productName, numberOfUnits);
-         esql.executeUpdate(updatequery);
-
-         System.out.println("Product ordered!");
-         
-      } catch(Exception e){
-         System.err.println (e.getMessage ());
-      }
+   public static Command placeOrder(Terminal term) throws IOException {
+      term.print("\tEnter StoreID: ");
+      int storeID = Integer.parseInt(term.readLine());
+      term.print("\tEnter Product Name: ");
+      String productName = term.readLine();
+      term.print("\tEnter Number of Units: ");
+      int numberOfUnits = Integer.parseInt(term.readLine());
+      return Command.placeOrder(storeID, productName, numberOfUnits);
    }
 
-//users can use this
-   public static void viewRecentOrders(Amazon esql) {
-      try{
-
-
-         
-         int u_id = esql.getUserID(esql);
-         //System.out.println(u_id);
-
-         if (esql.isManager(esql) == 1 ) {
-
-            String query = String.format("SELECT o.orderNumber, u.name AS customerName, o.storeID, o.productName, o.orderTime " +
-                             "FROM Orders o " +
-                             "JOIN Users u ON o.customerID = u.userID " +
-                             "JOIN Store s ON o.storeID = s.storeID " +
-                             "WHERE s.managerID = '%s' " +
-                             "ORDER BY o.orderTime DESC " +
-                             "LIMIT 5", u_id);
-
-            esql.executeQueryAndPrintResult(query);
-         }
-         else if (esql.isAdmin(esql) ==1){
-            String query = String.format("SELECT * FROM Orders o ORDER BY orderNumber DESC LIMIT 5", u_id);
-            esql.executeQueryAndPrintResult(query);
-      }
-         else{
-            String query = String.format("SELECT * FROM Orders o WHERE o.customerID = '%s' ORDER BY orderNumber DESC LIMIT 5", u_id);
-            esql.executeQueryAndPrintResult(query);
-         }
-         //view 5 recent orders.
-         
-      }
-      catch(Exception e){
-         System.err.println(e.getMessage());
-      }
+   //manager or admin
+   public static Command updateProduct(Session session, Terminal term) throws IOException {
+      //the operation turns other users away before it looks at its arguments
+      if (!session.hasManagerPerms())
+         return Command.updateProduct(0, "", null, null);
+
+      term.print("\tEnter StoreID: ");
+      int storeID = Integer.parseInt(term.readLine());
+      term.print("\tEnter Product Name: ");
+      String productName = term.readLine();
+
+      term.println("\tUpdate price? y/n: ");
+      Double newPrice = term.readLine().equals("y") ? readPrice(term) : null;
+      term.print("\tUpdate stock? y/n: ");
+      Integer newUnits = term.readLine().equals("y") ? readUnits(term) : null;
+      return Command.updateProduct(storeID, productName, newPrice, newUnits);
    }
 
-   
-
-   
-
-      //manager or admin
-   public static void updateProduct(Amazon esql) {
-      try{
-         //CHECK IF MANAGER
-      
-       if (esql.checkPerms(esql) <1){
-            System.out.println("User does not have permissions. Access denied.");
-            return;
-
-       }
-
-         System.out.print("\tEnter StoreID: ");
-         String storeID = in.readLine();
-
-         //grab id
-         int user_id = esql.getUserID(esql);
-
-         String user_type = esql.getUserType(esql);
-         //verify if its owned by manager.
-         String storeCheck = String.format("SELECT s.storeID FROM Store s WHERE s.storeID = '%s' AND s.managerID = '%s'", storeID, user_id);
-         int store_manager_check = esql.checkPerms(esql);
-         
-         
-         //if manager is not assigned to store AND IS NOT ADMIN. if admin, skip.
-         int user_perms =esql.isAdmin(esql);
-
-         //if NOT admin AND not assigned to store
-         if (user_perms < 1 && store_manager_check < 1){
-            System.out.println("You are not a verified manager for this store.");
-            return;
-         }
-         
-         System.out.print("\tEnter Product Name: ");
-         String productName = in.readLine();
-
-         String productquery = String.format("SELECT * FROM product p WHERE p.storeID = '%s'", storeID);
-         if (esql.executeQuery(productquery) < 1){
-            System.out.println("This product is not available at this location.");
-            return;
-         }
-
-         System.out.println("\tUpdate price? y/n: ");
-         String response1 =in.readLine();
-         
-
-         if (response1.equals("y")){
-            System.out.print("\tAssign new price: ");
-            String newPrice = in.readLine();
-
-            String updatePrice = String.format("UPDATE Product SET pricePerUnit = '%s' WHERE storeID = '%s' AND productName = '%s'", newPrice, storeID, productName);
-            esql.executeUpdate(updatePrice);
-         }
-         
-         System.out.print("\tUpdate stock? y/n: ");
-         String response2 = in.readLine();
-
-         if (response2.equals("y")){
-            System.out.print("\tAssign new numberofUnits:  ");
-            String newUnits = in.readLine();
-
-            String updateUnits = String.format("UPDATE Product SET numberOfUnits = '%s' WHERE storeID = '%s' AND productName = '%s'", newUnits, storeID, productName);
-            esql.executeUpdate(updateUnits);
-
-         }
-
-         int updateNumber = esql.GetNextUniqueNumber(esql, "ProductUpdates");
-         if (response1.equals("y") || response2.equals("y")){
-            String timestamp = esql.getTime();
-
-            String productUpdatequery = String.format("INSERT INTO ProductUpdates (updateNumber, managerID, storeID, productName, updatedOn) VALUES ('%s','%s','%s','%s', '%s')", updateNumber, user_id, storeID, productName, timestamp);
-             esql.executeUpdate(productUpdatequery);
-
-         }
-         //INSERT ProductUpdate log
-      }
-      catch(Exception e){
-         System.err.println(e.getMessage());
-      }
-   }
-   public static void viewRecentUpdates(Amazon esql) {
-         try{
-         //grab ID
-         //String debug  = String.format("SELECT * FROM USERS LIMIT 5");
-         //esql.executeQueryAndPrintResult(debug);
-         int u_id = esql.getUserID(esql);
-      
-         int store_manager_check = esql.checkPerms(esql);
-         
-         //if manager is not assigned to store AND IS NOT ADMIN. if admin, skip.
-         int user_perms =esql.isAdmin(esql);
-
-         
-         //if NOT admin AND not assigned to store
-         if (user_perms < 1 && store_manager_check < 1){
-            System.out.println("You are not a verified manager for this store.");
-            return;
-         }
-
-         String query;
-         //
-         if (user_perms < 1){
-
-         query = String.format("SELECT * FROM ProductUpdates pu WHERE pu.managerID = '%s' ORDER BY updateNumber DESC LIMIT 5", u_id);
-
-         }
-         else{
-            query = String.format("SELECT * FROM ProductUpdates pu ORDER BY updateNumber DESC LIMIT 5", u_id);
-         }
-         esql.executeQueryAndPrintResult(query);
-
-         
-      }
-      catch(Exception e){
-         System.err.println(e.getMessage());
-      }
+   //helper
+   private static double readPrice(Terminal term) throws IOException {
+      term.print("\tAssign new price: ");
+      return Double.parseDouble(term.readLine());
    }
 
-public static void viewPopularProducts(Amazon esql) {
-    try {
-      /*
-        String queryManagerCheck = String.format("SELECT * FROM Users WHERE name = '%s' AND password = '%s' AND type = 'manager'", loggedInUserName, loggedInUserPassword);
-        int rowCountManagerCheck = esql.executeQuery(queryManagerCheck);
-
-      */
-     //CHECK PERMS (is manager? is admin?)
-        if (esql.checkPerms(esql) < 1) {
-            System.out.println("User is not a manager. Access denied.");
-            return;
-        }
-        
-       
-
-         int manager_id = esql.getUserID(esql);
-
-         int user_perms =esql.isAdmin(esql);
-
-         String query;
-         if (user_perms < 1){
-            query = String.format(
-            "SELECT o.productname, COUNT(o.unitsOrdered) as orderCount " +
-            "FROM orders o " +
-            "WHERE o.storeid IN "+
-            "(SELECT s.storeid FROM store s WHERE s.managerid = '%s') GROUP BY o.productname ORDER BY orderCount DESC LIMIT 5"
-            , manager_id
-
-         );
-
-         }
-         else{
-            query = String.format(
-            "SELECT o.productname, COUNT(o.unitsOrdered) as orderCount " +
-            "FROM orders o " +
-            "GROUP BY o.productname ORDER BY orderCount DESC LIMIT 5"
-            , manager_id
-
-         );
-
-         }
-         
-         esql.executeQueryAndPrintResult(query);
-
-         //select o.productname, count() from orders o group by o.productname
-         
-
-    } catch (Exception e) {
-        System.err.println(e.getMessage());
-    }
-}
-
-
-public static void viewPopularCustomers(Amazon esql) {
-    try {
-        // Check if the user is a manager
-        /*
-        String queryManagerCheck = String.format("SELECT * FROM Users WHERE name = '%s' AND password = '%s' AND type = 'manager'", loggedInUserName, loggedInUserPassword);
-        int rowCountManagerCheck = esql.executeQuery(queryManagerCheck);
-
-         */
-        if (esql.checkPerms(esql) < 1) {
-            System.out.println("User is not a manager. Access denied.");
-            return;
-        }
-
-        int user_perms =esql.isAdmin(esql);
-
-        // Retrieve information about popular customers
-
-        //NOT ADMIN
-         String queryPopularCustomers;
-        if (user_perms < 1){
-        queryPopularCustomers = String.format("SELECT u.name AS customerName, COUNT(*) AS orderCount " +
-                "FROM Users u " +
-                "JOIN Orders o ON u.userID = o.customerID " +
-                "JOIN Store s ON o.storeID = s.storeID " +
-                "WHERE s.managerID = (SELECT userID FROM Users WHERE name = '%s' AND password = '%s' AND type = 'manager') " +
-                "GROUP BY u.name " +
-                "ORDER BY orderCount DESC " +
-                "LIMIT 5;", loggedInUserName, loggedInUserPassword);
-
-        }
-
-        else{ //IS ADMIN
-        queryPopularCustomers = String.format("SELECT u.name AS customerName, COUNT(*) AS orderCount " +
-                "FROM Users u " +
-                "JOIN Orders o ON u.userID = o.customerID " +
-                "JOIN Store s ON o.storeID = s.storeID " +
-                "GROUP BY u.name " +
-                "ORDER BY orderCount DESC " +
-                "LIMIT 5;", loggedInUserName, loggedInUserPassword);
-
-
-         
-        }
-        int rowCountPopularCustomers = esql.executeQueryAndPrintResult(queryPopularCustomers);
-
-
-        if (rowCountPopularCustomers < 1) {
-            System.out.println("No popular customers found.");
-        }
-
-    } catch (Exception e) {
-        System.err.println(e.getMessage());
-    }
-}
-
-
-   public static void placeProductSupplyRequests(Amazon esql) {
-      try{
-         /*
-         String queryManagerCheck = String.format("SELECT * FROM Users WHERE name = '%s' AND password = '%s' AND type = 'manager'", loggedInUserName, loggedInUserPassword);
-        int rowCountManagerCheck = esql.executeQuery(queryManagerCheck);
+   //helper
+   private static int readUnits(Terminal term) throws IOException {
+      term.print("\tAssign new numberofUnits:  ");
+      return Integer.parseInt(term.readLine());
+   }
 
-      */
-        if (esql.checkPerms(esql) < 1) {
-            System.out.println("User is not a manager. Access denied.");
-            return;
-        }
+   public static Command placeProductSupplyRequests(Session session, Terminal term) throws IOException {
+      //the operation turns other users away before it looks at its arguments
+      if (!session.hasManagerPerms())
+         return Command.placeProductSupplyRequest(0, "", 0, 0);
 
       //storeID, productName, number of units needed, and warehouseID
-         System.out.print("\tEnter StoreID: ");
-         String storeID = in.readLine();
-         
-         int user_id = esql.getUserID(esql);
-
-      
-         //check if storeid and manager is correct.
-         String storeCheck = String.format("SELECT s.storeID FROM Store s WHERE s.storeID = '%s' AND s.managerID = '%s'", storeID, user_id);
-         int store_manager_check = esql.executeQuery(storeCheck);
-         int user_perms =esql.isAdmin(esql);
-
-         //if NOT admin AND not assigned to store
-         if (user_perms < 1 && store_manager_check < 1){
-            System.out.println("You are not a verified manager for this store.");
-            return;
-         }
-         
-      
-         //
-
-         System.out.print("\tEnter Product Name: ");
-         String productName = in.readLine();
-
-         System.out.print("\tEnter warehouse ID: ");
-         String warehouseID = in.readLine();
-
-         System.out.print("\tRequest how many units?: ");
-         String unitsRequested = in.readLine();
-
-         String productUpdate = String.format("UPDATE Product SET numberOfUnits = numberOfUnits + '%s' WHERE storeID = '%s' AND productName = '%s'", unitsRequested,storeID, productName);
-         esql.executeUpdate(productUpdate);
-         
-      
-         int requestnumber = GetNextUniqueNumber(esql, "ProductSupplyRequests");
-         int manager_id = esql.getUserID(esql);
-         String requestUpdate = String.format("INSERT INTO ProductSupplyRequests (requestNumber, managerID, warehouseID, storeID, productName, unitsRequested) VALUES ('%s','%s','%s','%s','%s', '%s')", requestnumber, manager_id, warehouseID, storeID, productName, unitsRequested );
-         esql.executeUpdate(requestUpdate);
-      }
-
-      catch(Exception e){
-         System.err.println (e.getMessage ());
-      }
-   
+      term.print("\tEnter StoreID: ");
+      int storeID = Integer.parseInt(term.readLine());
+      term.print("\tEnter Product Name: ");
+      String productName = term.readLine();
+      term.print("\tEnter warehouse ID (blank for the nearest): ");
+      String warehouse = term.readLine().trim();
+      int warehouseID = warehouse.isEmpty() ? 0 : Integer.parseInt(warehouse);
+      term.print("\tRequest how many units?: ");
+      int unitsRequested = Integer.parseInt(term.readLine());
+      return Command.placeProductSupplyRequest(storeID, productName, warehouseID, unitsRequested);
    }
 
 
 }//end Amazon
-
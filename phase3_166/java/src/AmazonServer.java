@@ -0,0 +1,219 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class serves the Amazon store menus to many concurrent users. Every
+ * client connection on the listen port gets its own terminal and session,
+ * run by Amazon.runSession on its own thread, and all sessions share one
+ * bounded connection pool.
+ *
+ * Sessions run on virtual threads when the JVM provides them (Java 21 and
+ * later) and on a bounded pool of platform threads otherwise.
+ *
+ */
+public class AmazonServer {
+   private final ServerSocket listener;
+   private final ConnectionPool pool;
+   private final ExecutorService sessions;
+   private final Semaphore sessionSlots;
+   private final AtomicLong accepted = new AtomicLong();
+   private final AtomicLong rejected = new AtomicLong();
+
+   public AmazonServer(ServerSocket listener, ConnectionPool pool, int maxSessions) {
+      this.listener = listener;
+      this.pool = pool;
+      this.sessionSlots = new Semaphore(maxSessions);
+      this.sessions = newSessionExecutor(maxSessions);
+   }//end AmazonServer
+
+   // Virtual threads when available, else at most maxSessions platform threads.
+   static ExecutorService newSessionExecutor(int maxSessions) {
+      try {
+         return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      } catch (ReflectiveOperationException e) {
+         return Executors.newFixedThreadPool(maxSessions);
+      }
+   }//end newSessionExecutor
+
+   /**
+    * Accepts clients until the listener is closed. A client arriving while
+    * all session slots are taken is told so and disconnected.
+    */
+   public void serve() {
+      while (!this.listener.isClosed()) {
+         final Socket client;
+         try {
+            client = this.listener.accept();
+         } catch (IOException e) {
+            if (!this.listener.isClosed())
+               System.err.println("accept failed: " + e.getMessage());
+            continue;
+         }
+         if (!this.sessionSlots.tryAcquire()) {
+            this.rejected.incrementAndGet();
+            try {
+               client.getOutputStream().write("Server busy, try again later.\n".getBytes());
+               client.close();
+            } catch (IOException e) {
+               // ignored.
+            }
+            continue;
+         }
+         this.accepted.incrementAndGet();
+         this.sessions.execute(() -> handle(client));
+      }
+   }//end serve
+
+   // Runs the menus of one client and always frees its slot.
+   private void handle(Socket client) {
+      try {
+         Terminal term = new Terminal(client.getInputStream(), client.getOutputStream());
+         Amazon.Greeting(term);
+         Amazon.runSession(this.pool, term);
+      } catch (Exception e) {
+         // the client disconnected or its input was closed
+      } finally {
+         try {
+            client.close();
+         } catch (IOException e) {
+            // ignored.
+         }
+         this.sessionSlots.release();
+      }
+   }//end handle
+
+   // One line summary of the server, pool and cache metrics.
+   public String describe() {
+      return String.format("sessions accepted=%d rejected=%d freeSlots=%d | %s | %s",
+                           this.accepted.get(), this.rejected.get(), this.sessionSlots.availablePermits(),
+                           this.pool.describe(), ProductCache.shared().describe())
+             + " | " + Authenticator.shared().describe()
+             + (OrderBatcher.shared() == null ? "" : " | " + OrderBatcher.shared().describe())
+             + (StockReservations.shared() == null ? "" : " | " + StockReservations.shared().describe())
+             + (SupplyFulfillment.shared() == null ? "" : " | " + SupplyFulfillment.shared().describe())
+             + (ReplenishmentPlanner.shared() == null ? "" : " | " + ReplenishmentPlanner.shared().describe())
+             + (ReplicaRouter.shared() == null ? "" : " | " + ReplicaRouter.shared().describe())
+             + (ShardMap.shared() == null ? "" : " | " + ShardMap.shared().describe());
+   }//end describe
+
+   public void shutdown() {
+      try {
+         this.listener.close();
+      } catch (IOException e) {
+         // ignored.
+      }
+      this.sessions.shutdownNow();
+      try {
+         // the background writers finish their queued work while the pool is open;
+         // fulfillment and the planner first, since they add to the stock
+         if (ReplenishmentPlanner.shared() != null)
+            ReplenishmentPlanner.shared().stop();
+         if (SupplyFulfillment.shared() != null)
+            SupplyFulfillment.shared().stop();
+         if (OrderBatcher.shared() != null)
+            OrderBatcher.shared().stop();
+         if (StockReservations.shared() != null)
+            StockReservations.shared().stop();
+         // the replicas' pools and the lag checks
+         if (ReplicaRouter.shared() != null)
+            ReplicaRouter.shared().stop();
+      } catch (Exception e) {
+         System.err.println("Shutdown: " + e.getMessage());
+      }
+      // the pools of the shards after the first, and the gather threads
+      if (ShardMap.shared() != null)
+         ShardMap.shared().stop();
+      this.pool.close();
+   }//end shutdown
+
+   /**
+    * The main execution method
+    *
+    * @param args <dbname> <port> <user> <listenPort> [poolSize] [maxSessions]
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length < 4) {
+         System.err.println(
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            AmazonServer.class.getName() +
+            " <dbname> <port> <user> <listenPort> [poolSize] [maxSessions]");
+         return;
+      }
+
+      // use postgres JDBC driver.
+      Class.forName("org.postgresql.Driver");
+      String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+      int listenPort = Integer.parseInt(args[3]);
+      int poolSize = args.length > 4 ? Integer.parseInt(args[4]) : 20;
+      int maxSessions = args.length > 5 ? Integer.parseInt(args[5]) : 10000;
+
+      ConnectionPool pool = new ConnectionPool(url, args[2], "", poolSize, Math.min(2, poolSize),
+                                               30000, 300000, 5000);
+      final AmazonServer server = new AmazonServer(new ServerSocket(listenPort), pool, maxSessions);
+      // per operation latencies and statement counts, when configured
+      Metrics.start();
+      // group commit of orders and product updates, when enabled
+      OrderBatcher.startIfEnabled(pool);
+      // in-memory stock reservations, when enabled
+      StockReservations.startIfEnabled(pool);
+      // supply request fulfillment, when enabled; after the reservations,
+      // whose counters it credits
+      SupplyFulfillment.startIfEnabled(pool);
+      // low stock replenishment, when enabled
+      ReplenishmentPlanner.startIfEnabled(pool);
+      // read-only commands on replicas, when listed
+      ReplicaRouter.startIfEnabled(pool);
+      // stores spread over several databases, when listed; refused with
+      // group commit, stock reservations or the planner, so it starts after them
+      ShardMap.startIfEnabled(pool);
+
+      // reports the pool metrics once a minute
+      ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "metrics-reporter");
+         t.setDaemon(true);
+         return t;
+      });
+      reporter.scheduleAtFixedRate(() -> System.err.println(server.describe()), 60, 60, TimeUnit.SECONDS);
+      // keeps the monthly partitions of the coming months in place, on every shard
+      final List<PartitionManager> partitions = new ArrayList<PartitionManager>();
+      for (ConnectionPool shard : ShardMap.shared() == null ? Collections.singletonList(pool) : ShardMap.shared().getPools())
+         partitions.add(new PartitionManager(shard));
+      reporter.scheduleAtFixedRate(() -> {
+         for (PartitionManager shard : partitions) {
+            try {
+               shard.maintain(3);
+            } catch (Exception e) {
+               System.err.println("Partition maintenance failed: " + e.getMessage());
+            }
+         }
+      }, 0, 1, TimeUnit.HOURS);
+      Runtime.getRuntime().addShutdownHook(new Thread(server::shutdown));
+
+      System.out.println("Serving on port " + listenPort + " with a pool of " + poolSize + " connections");
+      server.serve();
+   }//end main
+}//end AmazonServer
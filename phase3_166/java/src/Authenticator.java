@@ -0,0 +1,209 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class logs users in and keeps their sessions:
+ *
+ *    login     checks the failed attempts of the name in memory first, then
+ *              loads the user by name (Session.load) and verifies the
+ *              password hash; nothing else reads the password afterwards
+ *    limits    after MAX_FAILURES failed attempts on a name, each further
+ *              failure locks the name out for twice as long as the last,
+ *              from 1 s up to LOCKOUT_MAX; a login succeeding clears it
+ *    tokens    each login gets a random token under which its session can
+ *              be resumed, e.g. on a new connection, until it is revoked
+ *              at logout or has gone unused for the session timeout; a
+ *              resumed session reloads its profile on its next command
+ *
+ * The failures and tokens are kept in this process only. The session
+ * timeout is -Damazon.auth.sessionMinutes (default 30).
+ *
+ */
+public class Authenticator {
+   private static final Authenticator SHARED = new Authenticator(Long.getLong("amazon.auth.sessionMinutes", 30L) * 60000);
+
+   private static final int MAX_FAILURES = 5;
+   private static final long LOCKOUT_MAX = 15 * 60 * 1000;
+   // failures are forgotten after this long without another
+   private static final long FAILURE_MEMORY = 60 * 60 * 1000;
+   // the tables are swept of expired entries when they grow past this
+   private static final int SWEEP_SIZE = 100000;
+   private static final int TOKEN_BYTES = 32;
+
+   /**
+    * The failed attempts on one name.
+    */
+   static class Failures {
+      int count;
+      long last;
+      long lockedUntil;
+   }//end Failures
+
+   /**
+    * A session resumable by its token.
+    */
+   static class Token {
+      final Session session;
+      volatile long lastUsed = System.currentTimeMillis();
+
+      Token(Session session) {
+         this.session = session;
+      }
+   }//end Token
+
+   private final long sessionMillis;
+   private final Map<String, Failures> failures = new ConcurrentHashMap<String, Failures>();
+   private final Map<String, Token> tokens = new ConcurrentHashMap<String, Token>();
+   private final SecureRandom random = new SecureRandom();
+
+   // login metrics
+   private final AtomicLong logins = new AtomicLong();
+   private final AtomicLong failed = new AtomicLong();
+   private final AtomicLong locked = new AtomicLong();
+   private final AtomicLong resumed = new AtomicLong();
+
+   public Authenticator(long sessionMillis) {
+      this.sessionMillis = sessionMillis;
+   }
+
+   // The authenticator of this process.
+   public static Authenticator shared() {
+      return SHARED;
+   }
+
+   /**
+    * Logs a user in, unless the name is locked out.
+    *
+    * @param esql the database handle
+    * @param name the login name
+    * @param password the password given
+    * @return the session, or null when the name is locked out or the
+    *         credentials do not match; retryAfterSeconds tells which
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public Session login(Amazon esql, String name, String password) throws SQLException {
+      if (retryAfterSeconds(name) > 0) {
+         this.locked.incrementAndGet();
+         return null;
+      }
+      Session session = Session.load(esql, name, password);
+      if (session == null) {
+         fail(name);
+         return null;
+      }
+      this.failures.remove(name);
+      this.logins.incrementAndGet();
+      return session;
+   }//end login
+
+   // The seconds until the name may try again, 0 when it may now.
+   public long retryAfterSeconds(String name) {
+      Failures f = this.failures.get(name);
+      if (f == null)
+         return 0;
+      synchronized (f) {
+         long wait = f.lockedUntil - System.currentTimeMillis();
+         return wait <= 0 ? 0 : (wait + 999) / 1000;
+      }
+   }//end retryAfterSeconds
+
+   private void fail(String name) {
+      this.failed.incrementAndGet();
+      if (this.failures.size() > SWEEP_SIZE)
+         sweep();
+      Failures f = this.failures.computeIfAbsent(name, k -> new Failures());
+      synchronized (f) {
+         long now = System.currentTimeMillis();
+         if (now - f.last > FAILURE_MEMORY)
+            f.count = 0;
+         f.count++;
+         f.last = now;
+         if (f.count > MAX_FAILURES)
+            f.lockedUntil = now + Math.min(LOCKOUT_MAX, 1000L << Math.min(20, f.count - MAX_FAILURES - 1));
+      }
+   }//end fail
+
+   /**
+    * Issues the token under which a session can be resumed.
+    *
+    * @param session the logged-in session
+    * @return the token
+    */
+   public String issueToken(Session session) {
+      if (this.tokens.size() > SWEEP_SIZE)
+         sweep();
+      byte[] bytes = new byte[TOKEN_BYTES];
+      this.random.nextBytes(bytes);
+      String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+      this.tokens.put(token, new Token(session));
+      session.setToken(token);
+      return token;
+   }//end issueToken
+
+   /**
+    * The session of a token, if it is still valid.
+    *
+    * @param token the token given at login
+    * @return the session, or null when the token is unknown or expired
+    */
+   public Session resume(String token) {
+      Token t = this.tokens.get(token);
+      long now = System.currentTimeMillis();
+      if (t == null || now - t.lastUsed > this.sessionMillis) {
+         if (t != null)
+            this.tokens.remove(token);
+         return null;
+      }
+      t.lastUsed = now;
+      this.resumed.incrementAndGet();
+      // the role or location may have been changed in Users while it was idle
+      t.session.invalidate();
+      return t.session;
+   }//end resume
+
+   // Ends the session of a token.
+   public void revoke(String token) {
+      if (token != null)
+         this.tokens.remove(token);
+   }
+
+   // Drops the expired tokens and the failures no longer remembered.
+   private void sweep() {
+      long now = System.currentTimeMillis();
+      for (Iterator<Token> it = this.tokens.values().iterator(); it.hasNext();)
+         if (now - it.next().lastUsed > this.sessionMillis)
+            it.remove();
+      for (Iterator<Failures> it = this.failures.values().iterator(); it.hasNext();) {
+         Failures f = it.next();
+         synchronized (f) {
+            if (now - f.last > FAILURE_MEMORY && f.lockedUntil < now)
+               it.remove();
+         }
+      }
+   }//end sweep
+
+   // One line summary of the login metrics.
+   public String describe() {
+      return String.format("auth logins=%d failed=%d lockedOut=%d resumed=%d tokens=%d watchedNames=%d",
+                           this.logins.get(), this.failed.get(), this.locked.get(), this.resumed.get(),
+                           this.tokens.size(), this.failures.size());
+   }//end describe
+}//end Authenticator
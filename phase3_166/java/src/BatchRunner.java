@@ -0,0 +1,284 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.sql.SQLException;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class runs a file of commands, one per line, e.g. to replay recorded
+ * traffic or to push a partner's bulk orders:
+ *
+ *    # a comment
+ *    login alice secret
+ *    placeOrder 3 Pepsi 2
+ *    placeOrder 4 "Hot and Sour Soup" 1
+ *    logout
+ *
+ * Commands run as the user of the last login line (see Command.parse for
+ * the others). The file is read, run and reported in a pipeline: a reader
+ * parses lines and hands them to a pool of workers, and a writer prints one
+ * result line per input line, in input order, as
+ *
+ *    <line number> TAB <status code> TAB <status> TAB <message>
+ *
+ * With more than one worker, consecutive commands run concurrently, so
+ * their effects may land in any order; a login waits for every earlier
+ * command to finish. Run with --workers 1 to keep the file's order.
+ *
+ */
+public class BatchRunner {
+   // a line of the file and its pending result.
+   private static class Entry {
+      final int lineNumber;
+      final Future<OperationResult> result;
+
+      Entry(int lineNumber, Future<OperationResult> result) {
+         this.lineNumber = lineNumber;
+         this.result = result;
+      }
+   }//end Entry
+
+   // marks the end of the file for the writer.
+   private static final Entry END = new Entry(-1, null);
+
+   private final ConnectionPool pool;
+   private final ExecutorService workers;
+   private final BlockingQueue<Entry> pending;
+   private final PrintStream out;
+   private final boolean printRows;
+   private final Map<OperationResult.Status, Integer> counts =
+      new EnumMap<OperationResult.Status, Integer>(OperationResult.Status.class);
+
+   // commands submitted and not yet finished, for the login barrier.
+   private int running = 0;
+
+   public BatchRunner(ConnectionPool pool, int workers, PrintStream out, boolean printRows) {
+      this.pool = pool;
+      this.workers = Executors.newFixedThreadPool(workers);
+      // bounds how far the reader runs ahead of the writer
+      this.pending = new ArrayBlockingQueue<Entry>(workers * 4);
+      this.out = out;
+      this.printRows = printRows;
+   }//end BatchRunner
+
+   /**
+    * Runs every line of the input and prints the results.
+    *
+    * @param in the command lines
+    * @return the number of results per status
+    * @throws java.lang.Exception when the input cannot be read
+    */
+   public Map<OperationResult.Status, Integer> run(BufferedReader in) throws Exception {
+      Thread writer = new Thread(this::writeResults, "batch-writer");
+      writer.start();
+      try {
+         Session session = null;
+         String line;
+         int lineNumber = 0;
+         while ((line = in.readLine()) != null) {
+            ++lineNumber;
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#"))
+               continue;
+
+            List<String> words;
+            try {
+               words = Command.split(trimmed);
+            } catch (IllegalArgumentException e) {
+               this.pending.put(new Entry(lineNumber, done(OperationResult.error(e))));
+               continue;
+            }
+            if (words.get(0).equals("login")) {
+               awaitIdle();
+               OperationResult result;
+               if (words.size() != 3) {
+                  session = null;
+                  result = OperationResult.fail(OperationResult.Status.INVALID, "login takes 2 arguments");
+               } else {
+                  try {
+                     session = logIn(words.get(1), words.get(2));
+                     result = session == null ? OperationResult.fail(OperationResult.Status.DENIED, "Login failed.")
+                                              : OperationResult.ok("Logged in as user " + session.getUserID() + ".");
+                  } catch (SQLException e) {
+                     session = null;
+                     result = OperationResult.error(e);
+                  }
+               }
+               this.pending.put(new Entry(lineNumber, done(result)));
+               continue;
+            }
+            if (words.get(0).equals("logout")) {
+               session = null;
+               this.pending.put(new Entry(lineNumber, done(OperationResult.ok(null))));
+               continue;
+            }
+
+            final Command command;
+            try {
+               command = Command.parse(trimmed);
+            } catch (IllegalArgumentException e) {
+               this.pending.put(new Entry(lineNumber, done(OperationResult.error(e))));
+               continue;
+            }
+            if (command.needsSession() && session == null) {
+               this.pending.put(new Entry(lineNumber, done(OperationResult.fail(OperationResult.Status.DENIED, "Not logged in."))));
+               continue;
+            }
+            final Session user = session;
+            started();
+            this.pending.put(new Entry(lineNumber, this.workers.submit(() -> {
+               try {
+                  return command.run(this.pool, user);
+               } finally {
+                  finished();
+               }
+            })));
+         }
+      } finally {
+         this.pending.put(END);
+         writer.join();
+         this.workers.shutdown();
+      }
+      return this.counts;
+   }//end run
+
+   // Prints the results in input order as they complete.
+   private void writeResults() {
+      try {
+         Entry entry;
+         while ((entry = this.pending.take()) != END) {
+            OperationResult result;
+            try {
+               result = entry.result.get();
+            } catch (Exception e) {
+               result = OperationResult.fail(OperationResult.Status.ERROR, String.valueOf(e.getCause()));
+            }
+            OperationResult.Status status = result.getStatus();
+            this.counts.merge(status, 1, Integer::sum);
+            this.out.println(entry.lineNumber + "\t" + status.code + "\t" + status + "\t"
+                             + (result.getMessage() == null ? "" : result.getMessage()));
+            if (this.printRows)
+               for (List<String> row : result.getRows())
+                  this.out.println("\t" + String.join("\t", row));
+         }
+         this.out.flush();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }//end writeResults
+
+   private Session logIn(String name, String password) throws SQLException {
+      Amazon esql = this.pool.borrow();
+      try {
+         return Authenticator.shared().login(esql, name, password);
+      } finally {
+         this.pool.release(esql);
+      }
+   }//end logIn
+
+   private static Future<OperationResult> done(OperationResult result) {
+      return CompletableFuture.completedFuture(result);
+   }
+
+   private synchronized void started() {
+      ++this.running;
+   }
+
+   private synchronized void finished() {
+      if (--this.running == 0)
+         notifyAll();
+   }
+
+   // Waits until every submitted command has finished.
+   private synchronized void awaitIdle() throws InterruptedException {
+      while (this.running > 0)
+         wait();
+   }
+
+   /**
+    * The main execution method
+    *
+    * @param args <dbname> <port> <user> <file | -> [--workers n] [--rows]
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length < 4) {
+         System.err.println(
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            BatchRunner.class.getName() +
+            " <dbname> <port> <user> <file | -> [--workers <n>] [--rows]");
+         return;
+      }
+      int workers = 8;
+      boolean rows = false;
+      for (int i = 4; i < args.length; ++i) {
+         if (args[i].equals("--workers"))
+            workers = Integer.parseInt(args[++i]);
+         else if (args[i].equals("--rows"))
+            rows = true;
+         else
+            throw new IllegalArgumentException("Unknown option " + args[i]);
+      }
+
+      // use postgres JDBC driver.
+      Class.forName("org.postgresql.Driver");
+      String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+      // three more connections for the group commit flusher, the stock
+      // reconciler and the supply fulfillment workers, when enabled
+      ConnectionPool pool = new ConnectionPool(url, args[2], "", workers + 3);
+      Metrics.start();
+      OrderBatcher.startIfEnabled(pool);
+      StockReservations.startIfEnabled(pool);
+      SupplyFulfillment.startIfEnabled(pool);
+      ReplicaRouter.startIfEnabled(pool);
+      ShardMap.startIfEnabled(pool);
+      Map<OperationResult.Status, Integer> counts;
+      long start = System.nanoTime();
+      try (BufferedReader in = args[3].equals("-") ? new BufferedReader(new InputStreamReader(System.in))
+                                                   : new BufferedReader(new FileReader(args[3]))) {
+         counts = new BatchRunner(pool, workers, System.out, rows).run(in);
+      } finally {
+         // the supply requests of the run are credited before it ends
+         if (SupplyFulfillment.shared() != null)
+            SupplyFulfillment.shared().stop();
+         // and the queued orders and stock changes written to the database
+         if (OrderBatcher.shared() != null)
+            OrderBatcher.shared().stop();
+         if (StockReservations.shared() != null)
+            StockReservations.shared().stop();
+         pool.close();
+      }
+
+      int total = 0;
+      for (int n : counts.values())
+         total += n;
+      double seconds = (System.nanoTime() - start) / 1e9;
+      System.err.printf("%d commands in %.2f s (%.0f/s): %s%n", total, seconds, total / Math.max(seconds, 1e-9), counts);
+      // malformed lines and database failures fail the run
+      if (counts.containsKey(OperationResult.Status.ERROR) || counts.containsKey(OperationResult.Status.INVALID))
+         System.exit(1);
+   }//end main
+}//end BatchRunner
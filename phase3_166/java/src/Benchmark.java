@@ -0,0 +1,483 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class benchmarks the customer and manager operations of Amazon against
+ * a loaded database. Every operation runs as the same Command the menus
+ * build, with arguments picked at random for the user, on a number of
+ * threads that share one connection pool; after a warmup period each thread
+ * runs the operation back to back for the measurement period.
+ *
+ * For every operation and thread count it reports the throughput and the
+ * latency percentiles, can write them to a CSV file, and can compare them
+ * with an earlier CSV file to fail a build on a regression.
+ *
+ */
+public class Benchmark {
+   // the command of one call, with arguments picked for the user.
+   interface Script {
+      Command next(Random rnd, Fixture user);
+   }
+
+   /**
+    * A benchmarked operation: whether it needs a manager and the script that
+    * picks the arguments of each call.
+    */
+   static class Workload {
+      final String name;
+      final boolean manager;
+      final Script script;
+
+      Workload(String name, boolean manager, Script script) {
+         this.name = name;
+         this.manager = manager;
+         this.script = script;
+      }
+   }//end Workload
+
+   /**
+    * A user to run operations as, with the stores its operations use: the
+    * stores within 30 miles of a customer, or the stores of a manager.
+    */
+   static class Fixture {
+      final Session session;
+      final int[] stores;
+
+      Fixture(Session session, int[] stores) {
+         this.session = session;
+         this.stores = stores;
+      }
+
+      int store(Random rnd) {
+         return this.stores[rnd.nextInt(this.stores.length)];
+      }
+   }//end Fixture
+
+   /**
+    * Latencies of one run, in nanoseconds.
+    */
+   static class Recorder {
+      private long[] samples = new long[1 << 12];
+      private int count = 0;
+      long errors = 0;
+
+      void record(long nanos) {
+         if (this.count == this.samples.length)
+            this.samples = Arrays.copyOf(this.samples, this.count * 2);
+         this.samples[this.count++] = nanos;
+      }
+
+      void addAll(Recorder other) {
+         for (int i = 0; i < other.count; ++i)
+            record(other.samples[i]);
+         this.errors += other.errors;
+      }
+
+      int count() {
+         return this.count;
+      }
+
+      // the latency below which the given fraction of the calls completed, in ms.
+      double percentile(double fraction) {
+         if (this.count == 0)
+            return 0;
+         Arrays.sort(this.samples, 0, this.count);
+         int index = (int) Math.min(this.count - 1, Math.ceil(fraction * this.count) - 1);
+         return this.samples[Math.max(0, index)] / 1e6;
+      }
+   }//end Recorder
+
+   /**
+    * The results of one operation at one thread count.
+    */
+   static class Result {
+      final String operation;
+      final int threads;
+      final long calls;
+      final long errors;
+      final double throughput;
+      final double p50;
+      final double p90;
+      final double p99;
+      final double p999;
+      final double max;
+
+      Result(String operation, int threads, long calls, long errors, double throughput,
+             double p50, double p90, double p99, double p999, double max) {
+         this.operation = operation;
+         this.threads = threads;
+         this.calls = calls;
+         this.errors = errors;
+         this.throughput = throughput;
+         this.p50 = p50;
+         this.p90 = p90;
+         this.p99 = p99;
+         this.p999 = p999;
+         this.max = max;
+      }
+
+      String key() {
+         return this.operation + "@" + this.threads;
+      }
+
+      static final String CSV_HEADER = "operation,threads,calls,errors,throughput,p50Ms,p90Ms,p99Ms,p999Ms,maxMs";
+
+      String toCsv() {
+         return String.format("%s,%d,%d,%d,%.1f,%.3f,%.3f,%.3f,%.3f,%.3f",
+                              this.operation, this.threads, this.calls, this.errors, this.throughput,
+                              this.p50, this.p90, this.p99, this.p999, this.max);
+      }
+
+      static Result fromCsv(String line) {
+         String[] f = line.split(",");
+         return new Result(f[0], Integer.parseInt(f[1]), Long.parseLong(f[2]), Long.parseLong(f[3]),
+                           Double.parseDouble(f[4]), Double.parseDouble(f[5]), Double.parseDouble(f[6]),
+                           Double.parseDouble(f[7]), Double.parseDouble(f[8]), Double.parseDouble(f[9]));
+      }
+   }//end Result
+
+   private final ConnectionPool pool;
+   private final List<Fixture> customers = new ArrayList<Fixture>();
+   private final List<Fixture> managers = new ArrayList<Fixture>();
+   private final List<String> products = new ArrayList<String>();
+   private int warehouses;
+   private final Map<String, Workload> workloads = new LinkedHashMap<String, Workload>();
+
+   public Benchmark(ConnectionPool pool) {
+      this.pool = pool;
+      add(new Workload("viewStores", false, (rnd, user) -> Command.viewStores()));
+      add(new Workload("viewProducts", false, (rnd, user) -> Command.viewProducts(user.store(rnd))));
+      // the first letters of a product, as typed into the search
+      add(new Workload("searchProducts", false, (rnd, user) -> {
+         String product = product(rnd);
+         return Command.searchProducts(product.substring(0, Math.min(3, product.length())), Operations.ORDER_RADIUS, 1, null);
+      }));
+      add(new Workload("placeOrder", false,
+         (rnd, user) -> Command.placeOrder(user.store(rnd), product(rnd), 1 + rnd.nextInt(3))));
+      add(new Workload("viewRecentOrders", false, (rnd, user) -> Command.viewRecentOrders()));
+      // restocks as it updates, so placeOrder keeps finding units
+      add(new Workload("updateProduct", true,
+         (rnd, user) -> Command.updateProduct(user.store(rnd), product(rnd), (double) (1 + rnd.nextInt(20)), 1000)));
+      add(new Workload("viewPopularProducts", true, (rnd, user) -> Command.viewPopularProducts()));
+      add(new Workload("viewPopularCustomers", true, (rnd, user) -> Command.viewPopularCustomers()));
+      // routed to the nearest warehouse, as managers do
+      add(new Workload("placeProductSupplyRequests", true,
+         (rnd, user) -> Command.placeProductSupplyRequest(user.store(rnd), product(rnd), 0, 1 + rnd.nextInt(100))));
+   }//end Benchmark
+
+   private void add(Workload workload) {
+      this.workloads.put(workload.name, workload);
+   }
+
+   private String product(Random rnd) {
+      return this.products.get(rnd.nextInt(this.products.size()));
+   }
+
+   /**
+    * Picks the users the operations run as: customers with a store within
+    * 30 miles, and managers with the stores they manage.
+    *
+    * @param maxUsers the largest number of customers and of managers
+    * @throws java.sql.SQLException when the database holds no usable users
+    */
+   public void loadFixtures(int maxUsers) throws SQLException {
+      Amazon esql = this.pool.borrow();
+      try {
+         List<List<String>> rows = esql.executeQueryAndReturnResult(
+            "SELECT userID, name, type, latitude, longitude FROM Users WHERE type = ?::user_type ORDER BY userID LIMIT ?",
+            "customer", maxUsers * 4);
+         for (List<String> row : rows) {
+            Session session = toSession(row);
+            List<StoreLocator.NearbyStore> near = StoreLocator.withinRadius(esql, session.getLatitude(), session.getLongitude(), 30);
+            if (near.isEmpty())
+               continue;
+            int[] stores = new int[Math.min(10, near.size())];
+            for (int i = 0; i < stores.length; ++i)
+               stores[i] = near.get(i).storeID;
+            this.customers.add(new Fixture(session, stores));
+            if (this.customers.size() == maxUsers)
+               break;
+         }
+
+         rows = esql.executeQueryAndReturnResult(
+            "SELECT u.userID, u.name, u.type, u.latitude, u.longitude, s.storeID FROM Users u " +
+            "JOIN Store s ON s.managerID = u.userID WHERE u.type = ?::user_type ORDER BY u.userID, s.storeID", "manager");
+         Map<Integer, List<Integer>> storesOf = new LinkedHashMap<Integer, List<Integer>>();
+         Map<Integer, Session> sessions = new HashMap<Integer, Session>();
+         for (List<String> row : rows) {
+            Session session = toSession(row);
+            if (!sessions.containsKey(session.getUserID())) {
+               if (sessions.size() == maxUsers)
+                  continue;
+               sessions.put(session.getUserID(), session);
+               storesOf.put(session.getUserID(), new ArrayList<Integer>());
+            }
+            storesOf.get(session.getUserID()).add(Integer.parseInt(row.get(5).trim()));
+         }
+         for (Map.Entry<Integer, List<Integer>> e : storesOf.entrySet()) {
+            int[] stores = new int[e.getValue().size()];
+            for (int i = 0; i < stores.length; ++i)
+               stores[i] = e.getValue().get(i);
+            this.managers.add(new Fixture(sessions.get(e.getKey()), stores));
+         }
+
+         for (List<String> row : esql.executeQueryAndReturnResult(
+                 "SELECT productName FROM Product WHERE storeID = (SELECT MIN(storeID) FROM Store)"))
+            this.products.add(row.get(0).trim());
+         this.warehouses = Integer.parseInt(esql.executeQueryAndReturnResult("SELECT COUNT(*) FROM Warehouse").get(0).get(0).trim());
+      } finally {
+         this.pool.release(esql);
+      }
+      if (this.customers.isEmpty() || this.managers.isEmpty() || this.products.isEmpty() || this.warehouses < 1)
+         throw new SQLException("The database needs customers near a store, managers with stores, products and warehouses");
+   }//end loadFixtures
+
+   private static Session toSession(List<String> row) {
+      return new Session(Integer.parseInt(row.get(0).trim()), row.get(1).trim(), row.get(2),
+                         Double.parseDouble(row.get(3)), Double.parseDouble(row.get(4)));
+   }
+
+   /**
+    * Runs one operation on the given number of threads: first for the warmup
+    * period, unmeasured, then for the measurement period.
+    *
+    * @param name the operation
+    * @param threads the number of concurrent callers
+    * @param warmupMillis the warmup period
+    * @param measureMillis the measurement period
+    * @return the throughput and latencies of the measurement period
+    * @throws java.lang.InterruptedException when interrupted while waiting for the threads
+    */
+   public Result run(String name, int threads, long warmupMillis, long measureMillis) throws InterruptedException {
+      final Workload workload = this.workloads.get(name);
+      if (workload == null)
+         throw new IllegalArgumentException("Unknown operation " + name + "; choose from " + this.workloads.keySet());
+      final List<Fixture> users = workload.manager ? this.managers : this.customers;
+      final Recorder[] recorders = new Recorder[threads];
+      final AtomicBoolean measuring = new AtomicBoolean(false);
+      final AtomicBoolean stop = new AtomicBoolean(false);
+      final CountDownLatch done = new CountDownLatch(threads);
+
+      for (int t = 0; t < threads; ++t) {
+         final Recorder recorder = recorders[t] = new Recorder();
+         final Random rnd = new Random(31L * t + name.hashCode());
+         Thread worker = new Thread(() -> {
+            try {
+               while (!stop.get()) {
+                  Fixture user = users.get(rnd.nextInt(users.size()));
+                  Command command = workload.script.next(rnd, user);
+                  long start = System.nanoTime();
+                  OperationResult result = command.run(this.pool, user.session);
+                  long elapsed = System.nanoTime() - start;
+                  if (measuring.get()) {
+                     recorder.record(elapsed);
+                     if (result.getStatus() == OperationResult.Status.ERROR)
+                        recorder.errors++;
+                  }
+               }
+            } finally {
+               done.countDown();
+            }
+         }, "bench-" + name + "-" + t);
+         worker.start();
+      }
+
+      Thread.sleep(warmupMillis);
+      measuring.set(true);
+      long start = System.nanoTime();
+      Thread.sleep(measureMillis);
+      measuring.set(false);
+      double seconds = (System.nanoTime() - start) / 1e9;
+      stop.set(true);
+      done.await();
+
+      Recorder all = new Recorder();
+      for (Recorder r : recorders)
+         all.addAll(r);
+      return new Result(name, threads, all.count(), all.errors, all.count() / seconds,
+                        all.percentile(0.50), all.percentile(0.90), all.percentile(0.99),
+                        all.percentile(0.999), all.percentile(1.0));
+   }//end run
+
+   public List<String> getOperations() {
+      return new ArrayList<String>(this.workloads.keySet());
+   }
+
+   // Reads a results file written by an earlier run, keyed by operation@threads.
+   static Map<String, Result> readResults(File file) throws IOException {
+      Map<String, Result> results = new HashMap<String, Result>();
+      try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+         String line = in.readLine();
+         while ((line = in.readLine()) != null)
+            if (!line.trim().isEmpty()) {
+               Result r = Result.fromCsv(line);
+               results.put(r.key(), r);
+            }
+      }
+      return results;
+   }//end readResults
+
+   /**
+    * Compares a run with a baseline run. A result regresses when its
+    * throughput dropped, or its p99 latency grew, by more than the tolerance.
+    *
+    * @return one line per regression
+    */
+   static List<String> regressions(List<Result> results, Map<String, Result> baseline, double tolerance) {
+      List<String> regressions = new ArrayList<String>();
+      for (Result r : results) {
+         Result b = baseline.get(r.key());
+         if (b == null)
+            continue;
+         if (r.throughput < b.throughput * (1 - tolerance))
+            regressions.add(String.format("%s: throughput %.1f/s, baseline %.1f/s", r.key(), r.throughput, b.throughput));
+         if (r.p99 > b.p99 * (1 + tolerance))
+            regressions.add(String.format("%s: p99 %.3f ms, baseline %.3f ms", r.key(), r.p99, b.p99));
+         if (r.errors > 0 && b.errors == 0)
+            regressions.add(String.format("%s: %d errors, baseline none", r.key(), r.errors));
+      }
+      return regressions;
+   }//end regressions
+
+   /**
+    * The main execution method
+    *
+    * @param args <dbname> <port> <user> [--threads 1,4,16] [--ops op,...] [--warmup s] [--duration s]
+    *             [--users n] [--out file.csv] [--baseline file.csv] [--tolerance 0.2]
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println(
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            Benchmark.class.getName() +
+            " <dbname> <port> <user> [--threads 1,4,16] [--ops <op,...>] [--warmup <s>] [--duration <s>]" +
+            " [--users <n>] [--out <file.csv>] [--baseline <file.csv>] [--tolerance <fraction>]");
+         return;
+      }
+      int[] threadCounts = { 1, 4, 16 };
+      String ops = null;
+      double warmup = 5;
+      double duration = 20;
+      int users = 100;
+      String outFile = null;
+      String baselineFile = null;
+      double tolerance = 0.2;
+      for (int i = 3; i + 1 < args.length; i += 2) {
+         String value = args[i + 1];
+         switch (args[i]) {
+            case "--threads":
+               String[] counts = value.split(",");
+               threadCounts = new int[counts.length];
+               for (int j = 0; j < counts.length; ++j)
+                  threadCounts[j] = Integer.parseInt(counts[j].trim());
+               break;
+            case "--ops": ops = value; break;
+            case "--warmup": warmup = Double.parseDouble(value); break;
+            case "--duration": duration = Double.parseDouble(value); break;
+            case "--users": users = Integer.parseInt(value); break;
+            case "--out": outFile = value; break;
+            case "--baseline": baselineFile = value; break;
+            case "--tolerance": tolerance = Double.parseDouble(value); break;
+            default: throw new IllegalArgumentException("Unknown option " + args[i]);
+         }
+      }
+
+      // use postgres JDBC driver.
+      Class.forName("org.postgresql.Driver");
+      String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+      int maxThreads = 1;
+      for (int t : threadCounts)
+         maxThreads = Math.max(maxThreads, t);
+      // two more connections for the group commit flusher and the stock
+      // reconciler, when enabled
+      ConnectionPool pool = new ConnectionPool(url, args[2], "", maxThreads + 2);
+      OrderBatcher.startIfEnabled(pool);
+      StockReservations.startIfEnabled(pool);
+      SupplyFulfillment.startIfEnabled(pool);
+      ReplicaRouter.startIfEnabled(pool);
+      ShardMap.startIfEnabled(pool);
+      List<Result> results = new ArrayList<Result>();
+      try {
+         Benchmark bench = new Benchmark(pool);
+         bench.loadFixtures(users);
+         List<String> operations = ops == null ? bench.getOperations() : Arrays.asList(ops.split(","));
+
+         System.out.println(String.format("%-28s %7s %9s %7s %11s %9s %9s %9s %9s %9s",
+                            "operation", "threads", "calls", "errors", "ops/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms"));
+         for (String op : operations) {
+            for (int threads : threadCounts) {
+               Result r = bench.run(op.trim(), threads, (long) (warmup * 1000), (long) (duration * 1000));
+               results.add(r);
+               System.out.println(String.format("%-28s %7d %9d %7d %11.1f %9.3f %9.3f %9.3f %9.3f %9.3f",
+                                  r.operation, r.threads, r.calls, r.errors, r.throughput,
+                                  r.p50, r.p90, r.p99, r.p999, r.max));
+            }
+         }
+         System.out.println(ProductCache.shared().describe());
+         if (OrderBatcher.shared() != null)
+            System.out.println(OrderBatcher.shared().describe());
+         if (StockReservations.shared() != null)
+            System.out.println(StockReservations.shared().describe());
+         if (SupplyFulfillment.shared() != null)
+            System.out.println(SupplyFulfillment.shared().describe());
+         if (ReplicaRouter.shared() != null)
+            System.out.println(ReplicaRouter.shared().describe());
+         if (ShardMap.shared() != null)
+            System.out.println(ShardMap.shared().describe());
+         // where the database time went, warmups included
+         System.out.print(Metrics.shared().summary());
+      } finally {
+         // the writes of the run reach the database before the pool closes
+         if (SupplyFulfillment.shared() != null)
+            SupplyFulfillment.shared().stop();
+         if (OrderBatcher.shared() != null)
+            OrderBatcher.shared().stop();
+         if (StockReservations.shared() != null)
+            StockReservations.shared().stop();
+         pool.close();
+      }
+
+      if (outFile != null) {
+         try (PrintWriter out = new PrintWriter(outFile)) {
+            out.println(Result.CSV_HEADER);
+            for (Result r : results)
+               out.println(r.toCsv());
+         }
+      }
+      if (baselineFile != null) {
+         List<String> regressions = regressions(results, readResults(new File(baselineFile)), tolerance);
+         for (String line : regressions)
+            System.out.println("REGRESSION " + line);
+         if (!regressions.isEmpty())
+            System.exit(1);
+         System.out.println("No regression against " + baselineFile);
+      }
+   }//end main
+}//end Benchmark
@@ -0,0 +1,548 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntPredicate;
+
+/**
+ * This class loads the CSV files of a data directory (see phase3_166/data)
+ * into the database. Tables without a foreign key between them are loaded in
+ * parallel, each on its own connection, and the files are streamed so their
+ * size is not limited by memory.
+ *
+ * Secondary indexes are dropped before the load and rebuilt, in parallel,
+ * after it; the serial sequences are then moved past the largest loaded key.
+ *
+ * With a JDBC driver that has a CopyManager (PostgreSQL 8.4 and later) each
+ * file is sent with COPY FROM STDIN. The bundled pg73jdbc3 driver has none,
+ * so with it rows are sent as batched multi-row INSERTs instead.
+ *
+ * With --shard i only the rows of the stores of shard i (ShardMap) are
+ * loaded into Product, Orders, ProductSupplyRequests and ProductUpdates;
+ * Users, Store and Warehouse are loaded whole into every shard.
+ *
+ */
+public class BulkLoader {
+   // Tables in foreign key order; the tables of one level load in parallel.
+   private static final String[][] LEVELS = {
+      { "Users", "Warehouse" },
+      { "Store" },
+      { "Product" },
+      { "Orders", "ProductSupplyRequests", "ProductUpdates" }
+   };
+
+   // serial columns, reset to max(id) + 1 after the load.
+   private static final String[][] SERIALS = {
+      { "Users", "userID" },
+      { "Product", "productID" },
+      { "Orders", "orderNumber" },
+      { "ProductSupplyRequests", "requestNumber" },
+      { "ProductUpdates", "updateNumber" }
+   };
+
+   // the tables split over the shards by storeID (ShardMap); the others are copied whole.
+   private static final List<String> STORE_TABLES = Arrays.asList("Product", "Orders", "ProductSupplyRequests", "ProductUpdates");
+
+   // months of Orders and ProductUpdates partitions created ahead after a load.
+   private static final int PARTITIONS_AHEAD = 3;
+
+   // rows per transaction when loading with INSERT.
+   private static final int ROWS_PER_COMMIT = 10000;
+
+   private static final boolean COPY_SUPPORTED = classExists("org.postgresql.copy.CopyManager");
+
+   private final ConnectionPool pool;
+   private final File dataDir;
+   // the stores whose rows of the store tables are loaded, null for all
+   private IntPredicate stores;
+   // the orders of an appending load, counted for the popularity counters
+   private PopularityRollup.LoadedOrders loadedOrders;
+
+   public BulkLoader(ConnectionPool pool, File dataDir) {
+      this.pool = pool;
+      this.dataDir = dataDir;
+   }//end BulkLoader
+
+   // Loads only the rows of these stores into the store tables, e.g. those of one shard.
+   public void setStores(IntPredicate stores) {
+      this.stores = stores;
+   }
+
+   // The CSV file of a table, e.g. data/productSupplyRequests.csv.
+   static File csvFile(File dataDir, String table) {
+      String name;
+      if (table.equals("Store"))
+         name = "stores";
+      else if (table.equals("Product"))
+         name = "products";
+      else if (table.equals("Warehouse"))
+         name = "warehouse";
+      else
+         name = Character.toLowerCase(table.charAt(0)) + table.substring(1);
+      return new File(dataDir, name + ".csv");
+   }//end csvFile
+
+   /**
+    * Loads every table whose CSV file exists in the data directory.
+    *
+    * @param truncate empty all tables before loading
+    * @return the number of rows loaded
+    * @throws java.lang.Exception when a table failed to load
+    */
+   public long load(boolean truncate) throws Exception {
+      long start = System.nanoTime();
+      List<String> indexes;
+      this.loadedOrders = truncate ? null : new PopularityRollup.LoadedOrders();
+      Amazon esql = this.pool.borrow();
+      try {
+         if (truncate)
+            esql.executeUpdate("TRUNCATE Users, Store, Product, Warehouse, Orders, ProductSupplyRequests, ProductUpdates CASCADE");
+         indexes = dropSecondaryIndexes(esql);
+      } finally {
+         this.pool.release(esql);
+      }
+
+      long total = 0;
+      ExecutorService workers = Executors.newFixedThreadPool(this.pool.getMaxSize());
+      try {
+         for (String[] level : LEVELS) {
+            List<Future<Long>> loads = new ArrayList<Future<Long>>();
+            for (final String table : level) {
+               final File file = csvFile(this.dataDir, table);
+               if (!file.exists()) {
+                  System.out.println(table + ": skipped, " + file + " not found");
+                  continue;
+               }
+               loads.add(workers.submit(() -> loadTable(table, file)));
+            }
+            total += sum(loads);
+         }
+
+         // loaded orders and updates land in the default partitions; move them
+         // to monthly ones before the indexes are built
+         long partitionStart = System.nanoTime();
+         int partitions = new PartitionManager(this.pool).maintain(PARTITIONS_AHEAD);
+         System.out.printf("Created %d partitions in %.2f s%n", partitions, seconds(partitionStart));
+
+         long indexStart = System.nanoTime();
+         List<Future<Long>> builds = new ArrayList<Future<Long>>();
+         for (final String definition : indexes)
+            builds.add(workers.submit(() -> buildIndex(definition)));
+         sum(builds);
+         if (!indexes.isEmpty())
+            System.out.printf("Rebuilt %d indexes in %.2f s%n", indexes.size(), seconds(indexStart));
+      } finally {
+         workers.shutdown();
+      }
+
+      resetSequences();
+      // the loaded orders did not go through placeOrder. Only a truncating
+      // load recounts them all: a rebuild drops the counts of the orders
+      // PartitionManager archived
+      long rollupStart = System.nanoTime();
+      esql = this.pool.borrow();
+      try {
+         if (truncate)
+            PopularityRollup.rebuild(esql);
+         else if (!this.loadedOrders.isEmpty())
+            PopularityRollup.recordLoaded(esql, this.loadedOrders);
+      } finally {
+         this.pool.release(esql);
+      }
+      System.out.printf("%s the popularity counters in %.2f s%n", truncate ? "Rebuilt" : "Updated", seconds(rollupStart));
+      double elapsed = seconds(start);
+      System.out.printf("Loaded %d rows in %.2f s (%.0f rows/s)%n", total, elapsed, total / elapsed);
+      return total;
+   }//end load
+
+   /**
+    * Drops the indexes that are neither unique nor back a constraint; the
+    * unique ones still check the rows as they are loaded.
+    *
+    * @return the definitions to recreate them with
+    */
+   private static List<String> dropSecondaryIndexes(Amazon esql) throws SQLException {
+      // indexes of partitions go away with the index of their parent table
+      List<List<String>> rows = esql.executeQueryAndReturnResult(
+         "SELECT i.indexname, i.indexdef FROM pg_indexes i " +
+         "JOIN pg_class ic ON ic.relname = i.indexname AND ic.relnamespace = 'public'::regnamespace " +
+         "JOIN pg_index x ON x.indexrelid = ic.oid WHERE i.schemaname = 'public' AND NOT x.indisunique " +
+         "AND NOT EXISTS (SELECT 1 FROM pg_constraint c WHERE c.conname = i.indexname) " +
+         "AND NOT EXISTS (SELECT 1 FROM pg_inherits h JOIN pg_class c ON c.oid = h.inhrelid WHERE c.relname = i.indexname)");
+      List<String> definitions = new ArrayList<String>();
+      for (List<String> row : rows) {
+         esql.executeUpdate("DROP INDEX " + row.get(0));
+         // a partitioned table's index is shown ON ONLY the parent
+         definitions.add(row.get(1).replace(" ON ONLY ", " ON "));
+      }
+      return definitions;
+   }//end dropSecondaryIndexes
+
+   private long buildIndex(String definition) throws SQLException {
+      Amazon esql = this.pool.borrow();
+      try {
+         esql.executeUpdate(definition);
+         return 0;
+      } finally {
+         this.pool.release(esql);
+      }
+   }//end buildIndex
+
+   // Moves every serial sequence past the largest key now in its table.
+   private void resetSequences() throws SQLException {
+      Amazon esql = this.pool.borrow();
+      try {
+         for (String[] serial : SERIALS)
+            esql.executeQuery("SELECT setval(pg_get_serial_sequence('" + serial[0].toLowerCase() + "', '" +
+                              serial[1].toLowerCase() + "'), COALESCE(MAX(" + serial[1] + "), 0) + 1, false) FROM " + serial[0]);
+      } finally {
+         this.pool.release(esql);
+      }
+   }//end resetSequences
+
+   /**
+    * Loads one CSV file. The header line names the columns, so the file
+    * may list them in any order and omit those with defaults.
+    *
+    * @return the number of rows loaded
+    */
+   long loadTable(String table, File file) throws Exception {
+      long start = System.nanoTime();
+      long rows;
+      Amazon esql = this.pool.borrow();
+      try (BufferedReader reader = new BufferedReader(
+              new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), 1 << 16)) {
+         // the sample data writes dates as month/day/year
+         esql.executeUpdate("SET DateStyle = 'ISO, MDY'");
+         String header = reader.readLine();
+         if (header == null)
+            return 0;
+         String[] columns = header.trim().split(",");
+         BufferedReader lines = reader;
+         List<String> names = Arrays.asList(header.trim().toLowerCase().split(","));
+         int storeColumn = names.indexOf("storeid");
+         if (this.stores != null && STORE_TABLES.contains(table) && storeColumn >= 0)
+            lines = new BufferedReader(new StoreFilter(reader, storeColumn, this.stores), 1 << 16);
+         if (table.equals("Orders") && this.loadedOrders != null)
+            lines = new BufferedReader(new OrderCounter(lines, names, this.loadedOrders), 1 << 16);
+         if (COPY_SUPPORTED)
+            rows = copyIn(esql.getConnection(), "COPY " + table + " (" + header.trim() + ") FROM STDIN WITH (FORMAT csv)", lines);
+         else
+            rows = insertRows(esql, table, columns, lines);
+      } finally {
+         // the connection goes back to the pool with the server's DateStyle,
+         // after rolling back what a failed load left open
+         try {
+            if (esql.resetForReuse())
+               esql.executeUpdate("RESET DateStyle");
+         } finally {
+            this.pool.release(esql);
+         }
+      }
+      double elapsed = seconds(start);
+      System.out.printf("%s: %d rows in %.2f s (%.0f rows/s)%n", table, rows, elapsed, rows / elapsed);
+      return rows;
+   }//end loadTable
+
+   // COPY FROM STDIN through the driver's CopyManager, found by reflection.
+   private static long copyIn(Connection connection, String sql, Reader reader) throws Exception {
+      try {
+         Class<?> base = Class.forName("org.postgresql.core.BaseConnection");
+         Class<?> manager = Class.forName("org.postgresql.copy.CopyManager");
+         Object copy = manager.getConstructor(base).newInstance(connection.unwrap(base));
+         return (Long) manager.getMethod("copyIn", String.class, Reader.class).invoke(copy, sql, reader);
+      } catch (InvocationTargetException e) {
+         throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+      }
+   }//end copyIn
+
+   /**
+    * Sends the rows as multi-row INSERTs, each value cast from text to the
+    * type of its column the way COPY would parse it.
+    */
+   private static long insertRows(Amazon esql, String table, String[] columns, BufferedReader reader) throws Exception {
+      Map<String, String> types = columnTypes(esql, table);
+      StringBuilder row = new StringBuilder("(");
+      for (int i = 0; i < columns.length; ++i) {
+         String type = types.get(columns[i].trim().toLowerCase());
+         if (type == null)
+            throw new SQLException(table + " has no column " + columns[i]);
+         row.append(i == 0 ? "" : ", ").append("CAST(? AS ").append(type).append(")");
+      }
+      row.append(")");
+
+      // stays well below the 32767 bind parameters of one statement
+      int rowsPerStatement = Math.max(1, Math.min(1000, 30000 / columns.length));
+      String insert = "INSERT INTO " + table + " (" + String.join(", ", columns) + ") VALUES ";
+      String fullSql = insert + repeat(row.toString(), rowsPerStatement);
+
+      Connection connection = esql.getConnection();
+      connection.setAutoCommit(false);
+      List<Object> params = new ArrayList<Object>(rowsPerStatement * columns.length);
+      long rows = 0;
+      int pending = 0;
+      String line;
+      while ((line = reader.readLine()) != null) {
+         if (line.isEmpty())
+            continue;
+         List<String> fields = parseCsvLine(line);
+         if (fields.size() != columns.length)
+            throw new SQLException(table + ": expected " + columns.length + " fields but got " + fields.size() + ": " + line);
+         params.addAll(fields);
+         ++pending;
+         if (pending == rowsPerStatement) {
+            esql.executeUpdate(fullSql, params.toArray());
+            params.clear();
+            rows += pending;
+            pending = 0;
+            if (rows % ROWS_PER_COMMIT < rowsPerStatement)
+               connection.commit();
+         }
+      }
+      if (pending > 0) {
+         esql.executeUpdate(insert + repeat(row.toString(), pending), params.toArray());
+         rows += pending;
+      }
+      connection.commit();
+      connection.setAutoCommit(true);
+      return rows;
+   }//end insertRows
+
+   // The declared type of every column of a table, e.g. "character varying(30)".
+   private static Map<String, String> columnTypes(Amazon esql, String table) throws SQLException {
+      List<List<String>> rows = esql.executeQueryAndReturnResult(
+         "SELECT lower(a.attname), format_type(a.atttypid, a.atttypmod) FROM pg_attribute a " +
+         "WHERE a.attrelid = CAST(? AS regclass) AND a.attnum > 0 AND NOT a.attisdropped", table.toLowerCase());
+      Map<String, String> types = new HashMap<String, String>();
+      for (List<String> row : rows)
+         types.put(row.get(0), row.get(1));
+      return types;
+   }//end columnTypes
+
+   /**
+    * Splits one CSV line. Quoted fields may hold commas and doubled quotes;
+    * an empty unquoted field is NULL, as in COPY's CSV format.
+    */
+   static List<String> parseCsvLine(String line) {
+      List<String> fields = new ArrayList<String>();
+      StringBuilder field = new StringBuilder();
+      boolean quoted = false;
+      boolean wasQuoted = false;
+      for (int i = 0; i < line.length(); ++i) {
+         char c = line.charAt(i);
+         if (quoted) {
+            if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+               field.append('"');
+               ++i;
+            } else if (c == '"') {
+               quoted = false;
+            } else {
+               field.append(c);
+            }
+         } else if (c == '"') {
+            quoted = true;
+            wasQuoted = true;
+         } else if (c == ',') {
+            fields.add(field.length() == 0 && !wasQuoted ? null : field.toString());
+            field.setLength(0);
+            wasQuoted = false;
+         } else if (c != '\r') {
+            field.append(c);
+         }
+      }
+      fields.add(field.length() == 0 && !wasQuoted ? null : field.toString());
+      return fields;
+   }//end parseCsvLine
+
+   /**
+    * The lines of a CSV file whose storeID is one of the given stores.
+    */
+   static class StoreFilter extends Reader {
+      private final BufferedReader in;
+      private final int column;
+      private final IntPredicate stores;
+      // the line being read, with its newline
+      private String line = "";
+      private int position = 0;
+
+      StoreFilter(BufferedReader in, int column, IntPredicate stores) {
+         this.in = in;
+         this.column = column;
+         this.stores = stores;
+      }
+
+      public int read(char[] buffer, int offset, int length) throws IOException {
+         while (this.position == this.line.length()) {
+            String next = this.in.readLine();
+            if (next == null)
+               return -1;
+            String storeID = next.isEmpty() ? null : parseCsvLine(next).get(this.column);
+            if (storeID != null && this.stores.test(Integer.parseInt(storeID.trim()))) {
+               this.line = next + "\n";
+               this.position = 0;
+            }
+         }
+         int n = Math.min(length, this.line.length() - this.position);
+         this.line.getChars(this.position, this.position + n, buffer, offset);
+         this.position += n;
+         return n;
+      }
+
+      public void close() throws IOException {
+         this.in.close();
+      }
+   }//end StoreFilter
+
+   /**
+    * Passes the lines of an orders file through, counting each order in
+    * the LoadedOrders of the load.
+    */
+   static class OrderCounter extends Reader {
+      private final BufferedReader in;
+      private final int storeColumn;
+      private final int productColumn;
+      private final int customerColumn;
+      private final PopularityRollup.LoadedOrders orders;
+      // the line being read, with its newline
+      private String line = "";
+      private int position = 0;
+
+      OrderCounter(BufferedReader in, List<String> columns, PopularityRollup.LoadedOrders orders) throws SQLException {
+         this.in = in;
+         this.storeColumn = columns.indexOf("storeid");
+         this.productColumn = columns.indexOf("productid");
+         this.customerColumn = columns.indexOf("customerid");
+         if (this.storeColumn < 0 || this.productColumn < 0 || this.customerColumn < 0)
+            throw new SQLException("Orders: the file must have storeID, productID and customerID columns");
+         this.orders = orders;
+      }
+
+      public int read(char[] buffer, int offset, int length) throws IOException {
+         while (this.position == this.line.length()) {
+            String next = this.in.readLine();
+            if (next == null)
+               return -1;
+            if (next.isEmpty())
+               continue;
+            List<String> fields = parseCsvLine(next);
+            this.orders.add(Integer.parseInt(fields.get(this.storeColumn).trim()),
+                            Integer.parseInt(fields.get(this.productColumn).trim()),
+                            Integer.parseInt(fields.get(this.customerColumn).trim()));
+            this.line = next + "\n";
+            this.position = 0;
+         }
+         int n = Math.min(length, this.line.length() - this.position);
+         this.line.getChars(this.position, this.position + n, buffer, offset);
+         this.position += n;
+         return n;
+      }
+
+      public void close() throws IOException {
+         this.in.close();
+      }
+   }//end OrderCounter
+
+   private static String repeat(String row, int times) {
+      StringBuilder sql = new StringBuilder(row.length() * times + 2 * times);
+      for (int i = 0; i < times; ++i)
+         sql.append(i == 0 ? "" : ", ").append(row);
+      return sql.toString();
+   }
+
+   private static long sum(List<Future<Long>> futures) throws Exception {
+      long total = 0;
+      try {
+         for (Future<Long> future : futures)
+            total += future.get();
+      } catch (ExecutionException e) {
+         throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+      }
+      return total;
+   }
+
+   private static double seconds(long startNanos) {
+      return Math.max(1e-9, (System.nanoTime() - startNanos) / 1e9);
+   }
+
+   private static boolean classExists(String name) {
+      try {
+         Class.forName(name);
+         return true;
+      } catch (ClassNotFoundException e) {
+         return false;
+      }
+   }
+
+   /**
+    * The main execution method
+    *
+    * @param args <dbname> <port> <user> [dataDir] [--truncate] [--threads <n>] [--shard <i>]
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println(
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            BulkLoader.class.getName() +
+            " <dbname> <port> <user> [dataDir] [--truncate] [--threads <n>] [--shard <i>]");
+         System.err.println("   --shard <i>  load the stores of shard i of -Damazon.shards only, then run ShardMap --sequences");
+         return;
+      }
+      File dataDir = new File("data");
+      boolean truncate = false;
+      int threads = 4;
+      int shard = -1;
+      for (int i = 3; i < args.length; ++i) {
+         if (args[i].equals("--truncate"))
+            truncate = true;
+         else if (args[i].equals("--threads"))
+            threads = Integer.parseInt(args[++i]);
+         else if (args[i].equals("--shard"))
+            shard = Integer.parseInt(args[++i]);
+         else
+            dataDir = new File(args[i]);
+      }
+
+      // use postgres JDBC driver.
+      Class.forName("org.postgresql.Driver");
+      String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+      ConnectionPool pool = new ConnectionPool(url, args[2], "", threads);
+      try {
+         System.out.println("Loading " + dataDir + (COPY_SUPPORTED ? " with COPY" : " with batched INSERTs"));
+         BulkLoader loader = new BulkLoader(pool, dataDir);
+         if (shard >= 0)
+            loader.setStores(ShardMap.storesOf(shard));
+         loader.load(truncate);
+      } finally {
+         pool.close();
+      }
+   }//end main
+}//end BulkLoader
@@ -0,0 +1,429 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class is one store operation with all of its arguments, ready to run.
+ * The console builds commands from the user's answers and the batch runner
+ * parses them from lines such as
+ *
+ *    placeOrder 3 "Hot and Sour Soup" 2
+ *
+ * so all input is read before a database connection is borrowed.
+ *
+ */
+public abstract class Command {
+   private final String text;
+
+   protected Command(String text) {
+      this.text = text;
+   }//end Command
+
+   /**
+    * Runs the operation on the given handle.
+    *
+    * @param esql the database handle
+    * @param session the session of the user, null only for createUser
+    * @return the result of the operation
+    * @throws java.sql.SQLException when the database failed
+    */
+   public abstract OperationResult execute(Amazon esql, Session session) throws SQLException;
+
+   // whether the command runs as a logged in user.
+   public boolean needsSession() {
+      return true;
+   }
+
+   // whether the command only reads, so the session has no write to see afterwards.
+   public boolean isReadOnly() {
+      return false;
+   }
+
+   // whether the command may run on a replica (ReplicaRouter).
+   public boolean readsReplica() {
+      return isReadOnly();
+   }
+
+   // the store the command works on, which picks its shard (ShardMap); null for none.
+   public Integer getStoreID() {
+      return null;
+   }
+
+   /**
+    * A command that reads the stores of every shard (ShardMap).
+    */
+   public abstract static class Sharded extends Command {
+      protected Sharded(String text) {
+         super(text);
+      }//end Sharded
+
+      /**
+       * Runs the command on every shard and merges their results.
+       *
+       * @param shards the shards
+       * @param session the session of the user
+       * @return the merged result
+       * @throws java.sql.SQLException when the database failed
+       */
+      public abstract OperationResult gather(ShardMap shards, Session session) throws SQLException;
+   }//end Sharded
+
+   /**
+    * Borrows a handle, runs the command and releases the handle. Database
+    * failures are returned as results with status ERROR. With shards a
+    * store's command runs on the store's shard, and one that spans stores
+    * on all of them. A read-only command runs on a replica when one is fresh
+    * enough, and on the primary again should the replica fail.
+    *
+    * @param pool the connection pool of the primary, the first shard
+    * @param session the session of the user
+    * @return the result of the operation
+    */
+   public OperationResult run(ConnectionPool pool, Session session) {
+      long start = System.nanoTime();
+      // the wait for a connection and every statement count for this operation
+      Object token = Metrics.shared().begin(getName());
+      OperationResult result = null;
+      try {
+         ShardMap shards = ShardMap.shared();
+         if (shards != null && this instanceof Sharded) {
+            if (session != null && session.isStale())
+               refresh(pool, session);
+            result = ((Sharded) this).gather(shards, session);
+            return result;
+         }
+         ConnectionPool primary = shards == null || getStoreID() == null ? pool : shards.poolOf(getStoreID());
+         //the replicas are those of the first shard.
+         ReplicaRouter router = primary == pool ? ReplicaRouter.shared() : null;
+         ConnectionPool replica = router != null && readsReplica() ? router.route(session) : null;
+         if (replica != null) {
+            try {
+               result = runOn(replica, session, null);
+               return result;
+            } catch (SQLException e) {
+               router.failed(replica);
+            }
+         }
+         result = runOn(primary, session, isReadOnly() ? null : router);
+         return result;
+      } catch (SQLException e) {
+         result = OperationResult.error(e);
+         return result;
+      } finally {
+         Metrics.shared().end(token, System.nanoTime() - start,
+                              result == null ? OperationResult.Status.ERROR : result.getStatus());
+      }
+   }//end run
+
+   // Reloads an invalidated profile from the first shard, before the shards are read at once.
+   private static void refresh(ConnectionPool pool, Session session) throws SQLException {
+      Amazon esql = pool.borrow();
+      try {
+         session.refresh(esql);
+      } finally {
+         pool.release(esql);
+      }
+   }//end refresh
+
+   // Runs the command on a handle of the pool; router, if given, learns of a successful write.
+   private OperationResult runOn(ConnectionPool pool, Session session, ReplicaRouter router) throws SQLException {
+      Amazon esql = null;
+      try {
+         esql = pool.borrow();
+         if (session != null)
+            // reloads the profile only if it was invalidated
+            session.refresh(esql);
+         OperationResult result = execute(esql, session);
+         if (router != null && session != null && result.isOk())
+            router.noteWrite(esql, session);
+         return result;
+      } finally {
+         pool.release(esql);
+      }
+   }//end runOn
+
+   // The operation name, e.g. placeOrder.
+   public String getName() {
+      int space = this.text.indexOf(' ');
+      return space < 0 ? this.text : this.text.substring(0, space);
+   }
+
+   public String toString() {
+      return this.text;
+   }
+
+   public static Command createUser(final String name, final String password, final double latitude, final double longitude) {
+      // the text is logged and shown in batch reports, so the password is left out of it
+      return new Command("createUser " + quote(name) + " *** " + latitude + " " + longitude) {
+         public OperationResult execute(Amazon esql, Session session) throws SQLException {
+            return Operations.createUser(esql, name, password, latitude, longitude);
+         }
+         public boolean needsSession() {
+            return false;
+         }
+      };
+   }
+
+   public static Command viewStores() {
+      return new Command("viewStores") {
+         public OperationResult execute(Amazon esql, Session session) throws SQLException {
+            return Operations.viewStores(esql, session);
+         }
+         public boolean isReadOnly() {
+            return true;
+         }
+      };
+   }
+
+   public static Command viewProducts(final int storeID) {
+      return new Command("viewProducts " + storeID) {
+         public OperationResult execute(Amazon esql, Session session) throws SQLException {
+            return Operations.viewProducts(esql, session, storeID);
+         }
+         public Integer getStoreID() {
+            return storeID;
+         }
+         public boolean isReadOnly() {
+            return true;
+         }
+         // served from the ProductCache, which a stale replica must not fill
+         public boolean readsReplica() {
+            return false;
+         }
+      };
+   }
+
+   // after is the cursor shown after the previous page, or null for the first page.
+   public static Command searchProducts(final String text, final double radius, final int minUnits, final String after) {
+      return new Command.Sharded("searchProducts " + quote(text) + " " + radius + " " + minUnits + (after == null ? "" : " " + after)) {
+         public OperationResult execute(Amazon esql, Session session) throws SQLException {
+            return Operations.searchProducts(esql, session, text, radius, minUnits, after);
+         }
+         public boolean isReadOnly() {
+            return true;
+         }
+         public OperationResult gather(ShardMap shards, Session session) throws SQLException {
+            return Operations.searchProducts(shards, session, text, radius, minUnits, after);
+         }
+      };
+   }
+
+   public static Command placeOrder(final int storeID, final String productName, final int units) {
+      return new Command("placeOrder " + storeID + " " + quote(productName) + " " + units) {
+         public OperationResult execute(Amazon esql, Session session) throws SQLException {
+            return Operations.placeOrder(esql, session, storeID, productName, units);
+         }
+         public Integer getStoreID() {
+            return storeID;
+         }
+      };
+   }
+
+   public static Command viewRecentOrders() {
+      return new Command.Sharded("viewRecentOrders") {
+         public OperationResult execute(Amazon esql, Session session) throws SQLException {
+            return Operations.viewRecentOrders(esql, session);
+         }
+         public boolean isReadOnly() {
+            return true;
+         }
+         public OperationResult gather(ShardMap shards, Session session) throws SQLException {
+            return Operations.viewRecentOrders(shards, session);
+         }
+      };
+   }
+
+   // newPrice and newUnits are null when they are left unchanged.
+   public static Command updateProduct(final int storeID, final String productName, final Double newPrice, final Integer newUnits) {
+      return new Command("updateProduct " + storeID + " " + quote(productName) + " " + (newPrice == null ? "-" : newPrice)
+                         + " " + (newUnits == null ? "-" : newUnits)) {
+         public OperationResult execute(Amazon esql, Session session) throws SQLException {
+            return Operations.updateProduct(esql, session, storeID, productName, newPrice, newUnits);
+         }
+         public Integer getStoreID() {
+            return storeID;
+         }
+      };
+   }
+
+   public static Command viewRecentUpdates() {
+      return new Command.Sharded("viewRecentUpdates") {
+         public OperationResult execute(Amazon esql, Session session) throws SQLException {
+            return Operations.viewRecentUpdates(esql, session);
+         }
+         public boolean isReadOnly() {
+            return true;
+         }
+         public OperationResult gather(ShardMap shards, Session session) throws SQLException {
+            return Operations.viewRecentUpdates(shards, session);
+         }
+      };
+   }
+
+   public static Command viewPopularProducts() {
+      return new Command.Sharded("viewPopularProducts") {
+         public OperationResult execute(Amazon esql, Session session) throws SQLException {
+            return Operations.viewPopularProducts(esql, session);
+         }
+         public boolean isReadOnly() {
+            return true;
+         }
+         public OperationResult gather(ShardMap shards, Session session) throws SQLException {
+            return Operations.viewPopularProducts(shards, session);
+         }
+      };
+   }
+
+   public static Command viewPopularCustomers() {
+      return new Command.Sharded("viewPopularCustomers") {
+         public OperationResult execute(Amazon esql, Session session) throws SQLException {
+            return Operations.viewPopularCustomers(esql, session);
+         }
+         public boolean isReadOnly() {
+            return true;
+         }
+         public OperationResult gather(ShardMap shards, Session session) throws SQLException {
+            return Operations.viewPopularCustomers(shards, session);
+         }
+      };
+   }
+
+   public static Command placeProductSupplyRequest(final int storeID, final String productName, final int warehouseID, final int units) {
+      return new Command("placeProductSupplyRequest " + storeID + " " + quote(productName) + " " + warehouseID + " " + units) {
+         public OperationResult execute(Amazon esql, Session session) throws SQLException {
+            return Operations.placeProductSupplyRequest(esql, session, storeID, productName, warehouseID, units);
+         }
+         public Integer getStoreID() {
+            return storeID;
+         }
+      };
+   }
+
+   /**
+    * Parses one command line: the operation name, then its arguments
+    * separated by blanks, with double quotes around arguments holding blanks.
+    * updateProduct takes '-' for a price or stock left unchanged, and
+    * placeProductSupplyRequest warehouse 0 for the nearest warehouse.
+    * searchProducts takes the text, radius and fewest units, then the
+    * cursor of the page to continue after, if any.
+    *
+    * @param line the command line
+    * @return the command
+    * @throws java.lang.IllegalArgumentException when the line is not a valid command
+    */
+   public static Command parse(String line) {
+      List<String> words = split(line);
+      if (words.isEmpty())
+         throw new IllegalArgumentException("Empty command");
+      String name = words.get(0);
+      switch (name) {
+         case "createUser":
+            arity(words, 4);
+            return createUser(words.get(1), words.get(2), Double.parseDouble(words.get(3)), Double.parseDouble(words.get(4)));
+         case "viewStores":
+            arity(words, 0);
+            return viewStores();
+         case "viewProducts":
+            arity(words, 1);
+            return viewProducts(Integer.parseInt(words.get(1)));
+         case "searchProducts":
+            if (words.size() != 4 && words.size() != 5)
+               throw new IllegalArgumentException("searchProducts takes 3 or 4 arguments");
+            return searchProducts(words.get(1), Double.parseDouble(words.get(2)), Integer.parseInt(words.get(3)),
+                                  words.size() == 5 ? words.get(4) : null);
+         case "placeOrder":
+            arity(words, 3);
+            return placeOrder(Integer.parseInt(words.get(1)), words.get(2), Integer.parseInt(words.get(3)));
+         case "viewRecentOrders":
+            arity(words, 0);
+            return viewRecentOrders();
+         case "updateProduct":
+            arity(words, 4);
+            return updateProduct(Integer.parseInt(words.get(1)), words.get(2),
+                                 words.get(3).equals("-") ? null : Double.valueOf(words.get(3)),
+                                 words.get(4).equals("-") ? null : Integer.valueOf(words.get(4)));
+         case "viewRecentUpdates":
+            arity(words, 0);
+            return viewRecentUpdates();
+         case "viewPopularProducts":
+            arity(words, 0);
+            return viewPopularProducts();
+         case "viewPopularCustomers":
+            arity(words, 0);
+            return viewPopularCustomers();
+         case "placeProductSupplyRequest":
+            arity(words, 4);
+            return placeProductSupplyRequest(Integer.parseInt(words.get(1)), words.get(2),
+                                             Integer.parseInt(words.get(3)), Integer.parseInt(words.get(4)));
+         default:
+            throw new IllegalArgumentException("Unknown command " + name);
+      }
+   }//end parse
+
+   private static void arity(List<String> words, int n) {
+      if (words.size() != n + 1)
+         throw new IllegalArgumentException(words.get(0) + " takes " + n + " argument" + (n == 1 ? "" : "s"));
+   }
+
+   /**
+    * Splits a line into words at blanks; a word in double quotes may hold
+    * blanks, and "" inside it stands for one quote.
+    *
+    * @param line the line
+    * @return the words
+    * @throws java.lang.IllegalArgumentException when a quote is not closed
+    */
+   public static List<String> split(String line) {
+      List<String> words = new ArrayList<String>();
+      int i = 0;
+      int n = line.length();
+      while (true) {
+         while (i < n && Character.isWhitespace(line.charAt(i)))
+            ++i;
+         if (i == n)
+            return words;
+         StringBuilder word = new StringBuilder();
+         if (line.charAt(i) == '"') {
+            ++i;
+            while (true) {
+               if (i == n)
+                  throw new IllegalArgumentException("Unclosed quote in word " + (words.size() + 1));
+               char c = line.charAt(i++);
+               if (c == '"') {
+                  if (i < n && line.charAt(i) == '"') {
+                     word.append('"');
+                     ++i;
+                  } else {
+                     break;
+                  }
+               } else {
+                  word.append(c);
+               }
+            }
+         } else {
+            while (i < n && !Character.isWhitespace(line.charAt(i)))
+               word.append(line.charAt(i++));
+         }
+         words.add(word.toString());
+      }
+   }//end split
+
+   static String quote(String word) {
+      if (!word.isEmpty() && word.indexOf(' ') < 0 && word.indexOf('"') < 0 && word.indexOf('\t') < 0)
+         return word;
+      return '"' + word.replace("\"", "\"\"") + '"';
+   }
+}//end Command
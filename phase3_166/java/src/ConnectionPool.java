@@ -0,0 +1,280 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class is a bounded pool of database handles. Every handle is an Amazon
+ * object owning one physical connection and its prepared statement cache, so
+ * a handle is used by one session at a time and returned after each menu
+ * operation.
+ *
+ * Idle handles are health checked before reuse once they have been idle
+ * longer than the validation interval, and a background evictor closes
+ * handles that stay idle past the idle timeout.
+ *
+ */
+public class ConnectionPool {
+   private final String url;
+   private final String user;
+   private final String passwd;
+   private final int maxSize;
+   private final int minIdle;
+   private final long borrowTimeoutMillis;
+   private final long idleTimeoutMillis;
+   private final long validationIntervalMillis;
+
+   // bounds the number of handles borrowed at once; idle ones never exceed it.
+   private final Semaphore permits;
+   // most recently released handle first, so the hot ones stay warm.
+   private final LinkedBlockingDeque<Amazon> idle = new LinkedBlockingDeque<Amazon>();
+   private final ConcurrentHashMap<Amazon, Long> lastReleased = new ConcurrentHashMap<Amazon, Long>();
+   private final ScheduledExecutorService evictor;
+   private volatile boolean closed = false;
+
+   // pool metrics
+   private final AtomicLong created = new AtomicLong();
+   private final AtomicLong destroyed = new AtomicLong();
+   private final AtomicLong borrows = new AtomicLong();
+   private final AtomicLong timeouts = new AtomicLong();
+   private final AtomicLong failedValidations = new AtomicLong();
+   private final AtomicLong evictions = new AtomicLong();
+   private final AtomicLong totalWaitNanos = new AtomicLong();
+   private final AtomicLong maxWaitNanos = new AtomicLong();
+
+   /**
+    * Creates a new pool. No connection is opened until the first borrow.
+    *
+    * @param url the JDBC connection URL
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param maxSize the maximum number of open connections
+    * @param minIdle the number of idle connections the evictor keeps open
+    * @param borrowTimeoutMillis how long borrow waits for a free connection
+    * @param idleTimeoutMillis how long a connection may stay idle before it is closed
+    * @param validationIntervalMillis idle time after which a connection is checked before reuse
+    */
+   public ConnectionPool(String url, String user, String passwd, int maxSize, int minIdle,
+                         long borrowTimeoutMillis, long idleTimeoutMillis, long validationIntervalMillis) {
+      this.url = url;
+      this.user = user;
+      this.passwd = passwd;
+      this.maxSize = maxSize;
+      this.minIdle = minIdle;
+      this.borrowTimeoutMillis = borrowTimeoutMillis;
+      this.idleTimeoutMillis = idleTimeoutMillis;
+      this.validationIntervalMillis = validationIntervalMillis;
+      this.permits = new Semaphore(maxSize, true);
+
+      this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "pool-evictor");
+         t.setDaemon(true);
+         return t;
+      });
+      long period = Math.max(1000, idleTimeoutMillis / 2);
+      this.evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+   }//end ConnectionPool
+
+   // A pool with the default timeouts.
+   public ConnectionPool(String url, String user, String passwd, int maxSize) {
+      this(url, user, passwd, maxSize, 0, 30000, 300000, 5000);
+   }//end ConnectionPool
+
+   /**
+    * Takes a handle out of the pool, opening a new connection when no idle
+    * one is available and the pool is below its maximum size.
+    *
+    * @return a healthy database handle, to be given back with release
+    * @throws java.sql.SQLException when no connection frees up within the
+    *         borrow timeout or a new connection cannot be opened
+    */
+   public Amazon borrow() throws SQLException {
+      if (this.closed)
+         throw new SQLException("Connection pool is closed");
+
+      long start = System.nanoTime();
+      try {
+         if (!this.permits.tryAcquire(this.borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+            this.timeouts.incrementAndGet();
+            throw new SQLException("Timed out after " + this.borrowTimeoutMillis + " ms waiting for a database connection");
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while waiting for a database connection");
+      }
+      recordWait(System.nanoTime() - start);
+      this.borrows.incrementAndGet();
+
+      try {
+         Amazon esql;
+         while ((esql = this.idle.pollFirst()) != null) {
+            Long released = this.lastReleased.remove(esql);
+            boolean recent = released != null && System.currentTimeMillis() - released < this.validationIntervalMillis;
+            if (recent || esql.isHealthy())
+               return esql;
+            this.failedValidations.incrementAndGet();
+            destroy(esql);
+         }
+         esql = new Amazon(DriverManager.getConnection(this.url, this.user, this.passwd));
+         this.created.incrementAndGet();
+         return esql;
+      } catch (SQLException e) {
+         this.permits.release();
+         throw e;
+      } catch (RuntimeException e) {
+         this.permits.release();
+         throw e;
+      }
+   }//end borrow
+
+   /**
+    * Gives a borrowed handle back to the pool. Handles whose connection broke
+    * while borrowed are closed instead of reused.
+    *
+    * @param esql the handle returned by borrow
+    */
+   public void release(Amazon esql) {
+      if (esql == null)
+         return;
+      if (this.closed || !esql.resetForReuse()) {
+         destroy(esql);
+      } else {
+         this.lastReleased.put(esql, System.currentTimeMillis());
+         this.idle.offerFirst(esql);
+      }
+      this.permits.release();
+   }//end release
+
+   // Closes handles idle past the idle timeout, keeping minIdle open.
+   private void evictIdle() {
+      long now = System.currentTimeMillis();
+      List<Amazon> expired = new ArrayList<Amazon>();
+      int keep = this.minIdle;
+      // the oldest idle handles are at the tail of the deque
+      Iterator<Amazon> it = this.idle.descendingIterator();
+      while (it.hasNext() && this.idle.size() - expired.size() > keep) {
+         Amazon esql = it.next();
+         Long released = this.lastReleased.get(esql);
+         if (released != null && now - released > this.idleTimeoutMillis)
+            expired.add(esql);
+      }
+      for (Amazon esql : expired) {
+         if (this.idle.remove(esql)) {
+            this.lastReleased.remove(esql);
+            this.evictions.incrementAndGet();
+            destroy(esql);
+         }
+      }
+   }//end evictIdle
+
+   private void destroy(Amazon esql) {
+      this.lastReleased.remove(esql);
+      esql.cleanup();
+      this.destroyed.incrementAndGet();
+   }
+
+   private void recordWait(long nanos) {
+      Metrics.shared().connectionWait(nanos);
+      this.totalWaitNanos.addAndGet(nanos);
+      long max;
+      while (nanos > (max = this.maxWaitNanos.get()) && !this.maxWaitNanos.compareAndSet(max, nanos))
+         ;
+   }
+
+   /**
+    * Closes every idle connection and stops the evictor. Handles still
+    * borrowed are closed when they are released.
+    */
+   public void close() {
+      this.closed = true;
+      this.evictor.shutdownNow();
+      Amazon esql;
+      while ((esql = this.idle.pollFirst()) != null)
+         destroy(esql);
+   }//end close
+
+   // A pool with the login and timeouts of this one on another server, e.g. a replica.
+   public ConnectionPool withUrl(String url, int maxSize) {
+      return new ConnectionPool(url, this.user, this.passwd, maxSize, this.minIdle, this.borrowTimeoutMillis,
+                                this.idleTimeoutMillis, this.validationIntervalMillis);
+   }//end withUrl
+
+   public String getUrl() {
+      return this.url;
+   }
+
+   public int getMaxSize() {
+      return this.maxSize;
+   }
+
+   public int getActive() {
+      return this.maxSize - this.permits.availablePermits();
+   }
+
+   public int getIdle() {
+      return this.idle.size();
+   }
+
+   public long getCreated() {
+      return this.created.get();
+   }
+
+   public long getDestroyed() {
+      return this.destroyed.get();
+   }
+
+   public long getBorrows() {
+      return this.borrows.get();
+   }
+
+   public long getTimeouts() {
+      return this.timeouts.get();
+   }
+
+   public long getFailedValidations() {
+      return this.failedValidations.get();
+   }
+
+   public long getEvictions() {
+      return this.evictions.get();
+   }
+
+   public double getAverageWaitMillis() {
+      long n = this.borrows.get();
+      return n == 0 ? 0.0 : this.totalWaitNanos.get() / 1e6 / n;
+   }
+
+   public double getMaxWaitMillis() {
+      return this.maxWaitNanos.get() / 1e6;
+   }
+
+   // One line summary of the pool metrics.
+   public String describe() {
+      return String.format("pool active=%d idle=%d max=%d created=%d destroyed=%d borrows=%d timeouts=%d " +
+                           "failedValidations=%d evictions=%d avgWaitMs=%.3f maxWaitMs=%.3f",
+                           getActive(), getIdle(), this.maxSize, getCreated(), getDestroyed(), getBorrows(),
+                           getTimeouts(), getFailedValidations(), getEvictions(), getAverageWaitMillis(), getMaxWaitMillis());
+   }//end describe
+}//end ConnectionPool
@@ -0,0 +1,455 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class writes a synthetic dataset for the schema of create_tables.sql,
+ * as CSV files with the same names and headers as phase3_166/data, so
+ * BulkLoader can load them. The same seed and sizes always give the same
+ * files, whatever the number of threads.
+ *
+ * The data is skewed the way real traffic is: product popularity and
+ * customer activity follow Zipf distributions, stores and users cluster
+ * around city centers, and orders arrive in daily cycles with flash-sale
+ * bursts. Order numbers increase with order time.
+ *
+ * Every table is generated in chunks of rows on all cores; each chunk has its
+ * own random stream derived from the seed, and the chunks are written in
+ * order, to a file or to standard output (for COPY ... FROM STDIN).
+ *
+ */
+public class DataGenerator {
+   // the product names of the sample data come first in the catalog.
+   private static final String[] SAMPLE_PRODUCTS = {
+      "7up", "Pepsi", "Lemonade", "Brisk", "Orange Juice",
+      "Egg", "Donuts", "Ice Cream", "Pudding", "Hot and Sour Soup"
+   };
+   private static final int CHUNK_ROWS = 100000;
+   // orders are spread over this period, starting at the sample data's first order.
+   private static final long START_EPOCH = LocalDateTime.of(2016, 9, 10, 0, 0).toEpochSecond(ZoneOffset.UTC);
+   private static final long ORDER_PERIOD_SECONDS = 3L * 365 * 24 * 3600;
+   // relative order rate per hour of the day: quiet at night, peaks at noon and evening.
+   private static final double[] HOURLY_RATE = {
+      0.2, 0.1, 0.1, 0.1, 0.1, 0.2, 0.4, 0.7, 0.9, 1.0, 1.1, 1.3,
+      1.5, 1.3, 1.1, 1.0, 1.1, 1.3, 1.6, 1.8, 1.6, 1.2, 0.8, 0.4
+   };
+
+   // sizes of the dataset
+   long users = 100;
+   long stores = 20;
+   int productsPerStore = 10;
+   long orders = 500;
+   long warehouses = 5;
+   long supplyRequests = 10;
+   long productUpdates = 50;
+   long seed = 166;
+   int threads = Runtime.getRuntime().availableProcessors();
+
+   // derived layout
+   private long managers;
+   private int cities;
+   private double[] cityLatitude;
+   private double[] cityLongitude;
+   private double[] hourlyCdf;
+
+   /**
+    * Generates one chunk of rows of a table.
+    */
+   interface ChunkWriter {
+      void write(long firstRow, long rows, SplittableRandom rnd, StringBuilder out);
+   }
+
+   // Sizes scaled from the sample data.
+   void scale(double factor) {
+      this.users = Math.max(10, Math.round(100 * factor));
+      this.stores = Math.max(1, Math.round(20 * factor));
+      this.orders = Math.round(500 * factor);
+      this.warehouses = Math.max(1, Math.round(5 * Math.sqrt(factor)));
+      this.supplyRequests = Math.round(10 * factor);
+      this.productUpdates = Math.round(50 * factor);
+   }//end scale
+
+   private void layout() {
+      // about one manager for three stores, as in the sample data
+      this.managers = Math.max(1, Math.min(this.users - 2, (this.stores * 3 + 9) / 10));
+      this.cities = (int) Math.max(1, Math.min(1000, this.stores / 50));
+      SplittableRandom rnd = new SplittableRandom(this.seed);
+      this.cityLatitude = new double[this.cities];
+      this.cityLongitude = new double[this.cities];
+      for (int c = 0; c < this.cities; ++c) {
+         this.cityLatitude[c] = 5 + rnd.nextDouble() * 90;
+         this.cityLongitude[c] = 5 + rnd.nextDouble() * 90;
+      }
+      this.hourlyCdf = new double[24];
+      double sum = 0;
+      for (int h = 0; h < 24; ++h)
+         this.hourlyCdf[h] = (sum += HOURLY_RATE[h]);
+      for (int h = 0; h < 24; ++h)
+         this.hourlyCdf[h] /= sum;
+   }//end layout
+
+   /**
+    * Writes every table into the output directory.
+    *
+    * @param dir the output directory
+    * @throws java.lang.Exception when a file cannot be written
+    */
+   public void generateAll(File dir) throws Exception {
+      dir.mkdirs();
+      for (String table : new String[] { "Users", "Warehouse", "Store", "Product", "Orders",
+                                         "ProductSupplyRequests", "ProductUpdates" }) {
+         long start = System.nanoTime();
+         File file = BulkLoader.csvFile(dir, table);
+         long rows;
+         try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+            rows = generate(table, out);
+         }
+         double elapsed = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+         System.err.printf("%s: %d rows in %.2f s (%.0f rows/s)%n", file, rows, elapsed, rows / elapsed);
+      }
+   }//end generateAll
+
+   /**
+    * Writes one table, header first, as CSV.
+    *
+    * @param table the table name, as in create_tables.sql
+    * @param out where the CSV goes
+    * @return the number of rows written
+    * @throws java.lang.Exception when the output cannot be written
+    */
+   public long generate(String table, OutputStream out) throws Exception {
+      if (this.hourlyCdf == null)
+         layout();
+      switch (table.toLowerCase()) {
+         case "users":
+            return writeChunks(1, out, "userID,name,password,latitude,longitude,type", this.users, this::users);
+         case "warehouse":
+            return writeChunks(2, out, "wareHouseID,area,latitude,longitude", this.warehouses, this::warehouses);
+         case "store":
+            return writeChunks(3, out, "storeID,latitude,longitude,managerID,dateEstablished", this.stores, this::stores);
+         case "product":
+            return writeChunks(4, out, "productID,storeID,productName,numberOfUnits,pricePerUnit",
+                               this.stores * this.productsPerStore, this::products);
+         case "orders":
+            return writeChunks(5, out, "orderNumber,customerID,storeID,productID,unitsOrdered,orderTime", this.orders, this::orders);
+         case "productsupplyrequests":
+            return writeChunks(6, out, "requestNumber,managerID,warehouseID,storeID,productName,unitsRequested,status,requestedOn,fulfilledOn",
+                               this.supplyRequests, this::supplyRequests);
+         case "productupdates":
+            return writeChunks(7, out, "updateNumber,managerID,storeID,productID,updatedOn", this.productUpdates, this::productUpdates);
+         default:
+            throw new IllegalArgumentException("Unknown table " + table);
+      }
+   }//end generate
+
+   /**
+    * Generates the chunks of a table on the worker threads and writes them
+    * in order, keeping at most two chunks per thread in memory.
+    */
+   private long writeChunks(int tableID, OutputStream out, String header, long rows, ChunkWriter writer) throws Exception {
+      out.write((header + "\n").getBytes(StandardCharsets.UTF_8));
+      ExecutorService workers = Executors.newFixedThreadPool(this.threads);
+      try {
+         ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<Future<byte[]>>();
+         long chunks = (rows + CHUNK_ROWS - 1) / CHUNK_ROWS;
+         for (long c = 0; c < chunks; ++c) {
+            final long first = c * CHUNK_ROWS;
+            final long count = Math.min(CHUNK_ROWS, rows - first);
+            // a stream of its own per chunk keeps the output independent of the thread count
+            final SplittableRandom rnd = new SplittableRandom(this.seed * 1000003L + tableID * 7919L + c);
+            inFlight.add(workers.submit(() -> {
+               StringBuilder sb = new StringBuilder((int) count * 64);
+               writer.write(first, count, rnd, sb);
+               return sb.toString().getBytes(StandardCharsets.UTF_8);
+            }));
+            if (inFlight.size() >= 2 * this.threads)
+               out.write(inFlight.poll().get());
+         }
+         while (!inFlight.isEmpty())
+            out.write(inFlight.poll().get());
+      } finally {
+         workers.shutdownNow();
+      }
+      out.flush();
+      return rows;
+   }//end writeChunks
+
+   // userID 1 is the admin, then the managers, then the customers.
+   private void users(long first, long rows, SplittableRandom rnd, StringBuilder out) {
+      for (long i = first; i < first + rows; ++i) {
+         long userID = i + 1;
+         String type = userID == 1 ? "admin" : userID <= 1 + this.managers ? "manager" : "customer";
+         int city = rnd.nextInt(this.cities);
+         out.append(userID).append(",User").append(userID).append(",pw").append(userID % 100000).append(',');
+         appendCoordinate(out, this.cityLatitude[city] + gaussian(rnd) * 8).append(',');
+         appendCoordinate(out, this.cityLongitude[city] + gaussian(rnd) * 8).append(',');
+         out.append(type).append('\n');
+      }
+   }
+
+   private void warehouses(long first, long rows, SplittableRandom rnd, StringBuilder out) {
+      for (long i = first; i < first + rows; ++i) {
+         out.append(i + 1).append(',').append(10000 + rnd.nextInt(70000)).append(',');
+         appendCoordinate(out, rnd.nextDouble() * 100).append(',');
+         appendCoordinate(out, rnd.nextDouble() * 100).append('\n');
+      }
+   }
+
+   // Stores cluster tightly around the city centers; managers take stores round robin.
+   private void stores(long first, long rows, SplittableRandom rnd, StringBuilder out) {
+      for (long i = first; i < first + rows; ++i) {
+         long storeID = i + 1;
+         int city = (int) (i % this.cities);
+         out.append(storeID).append(',');
+         appendCoordinate(out, this.cityLatitude[city] + gaussian(rnd) * 3).append(',');
+         appendCoordinate(out, this.cityLongitude[city] + gaussian(rnd) * 3).append(',');
+         out.append(2 + i % this.managers).append(',');
+         out.append(1 + rnd.nextInt(12)).append('/').append(1 + rnd.nextInt(28)).append('/').append(1950 + rnd.nextInt(66)).append('\n');
+      }
+   }
+
+   // Every store stocks the first productsPerStore products of the catalog.
+   private void products(long first, long rows, SplittableRandom rnd, StringBuilder out) {
+      for (long i = first; i < first + rows; ++i) {
+         long storeID = i / this.productsPerStore + 1;
+         int product = (int) (i % this.productsPerStore);
+         out.append(productID(storeID, product)).append(',').append(storeID).append(',').append(productName(product)).append(',')
+            .append(rnd.nextInt(101)).append(',').append(1 + rnd.nextInt(20)).append('\n');
+      }
+   }
+
+   /**
+    * Orders have Zipfian products and customers. Every chunk covers its own
+    * slice of the order period, so order numbers and times increase
+    * together; within a slice orders follow the daily cycle, and about a
+    * third fall into one flash-sale hour.
+    */
+   private void orders(long first, long rows, SplittableRandom rnd, StringBuilder out) {
+      ZipfSampler productRank = new ZipfSampler(this.productsPerStore, 1.1);
+      ZipfSampler customerRank = new ZipfSampler(Math.max(1, this.users - 1 - this.managers), 0.8);
+      long sliceStart = START_EPOCH + ORDER_PERIOD_SECONDS * first / Math.max(1, this.orders);
+      long sliceLength = Math.max(1, ORDER_PERIOD_SECONDS * rows / Math.max(1, this.orders));
+      long flashSale = sliceStart + (long) (rnd.nextDouble() * Math.max(0, sliceLength - 3600));
+
+      long[] times = new long[(int) rows];
+      for (int i = 0; i < rows; ++i) {
+         if (rnd.nextDouble() < 0.3) {
+            times[i] = flashSale + rnd.nextInt(3600);
+         } else {
+            long day = sliceStart + (long) (rnd.nextDouble() * sliceLength) / 86400 * 86400;
+            times[i] = Math.min(sliceStart + sliceLength - 1, Math.max(sliceStart, day + hourOfDay(rnd) * 3600L + rnd.nextInt(3600)));
+         }
+      }
+      Arrays.sort(times);
+
+      for (int i = 0; i < rows; ++i) {
+         long customerID = 2 + this.managers + customerRank.sample(rnd) - 1;
+         long storeID = 1 + rnd.nextLong(this.stores);
+         out.append(first + i + 1).append(',').append(customerID).append(',').append(storeID).append(',')
+            .append(productID(storeID, (int) productRank.sample(rnd) - 1)).append(',')
+            .append(1 + rnd.nextInt(10)).append(',');
+         appendTimestamp(out, times[i]).append('\n');
+      }
+   }
+
+   private void supplyRequests(long first, long rows, SplittableRandom rnd, StringBuilder out) {
+      for (long i = first; i < first + rows; ++i) {
+         long storeID = 1 + rnd.nextLong(this.stores);
+         out.append(i + 1).append(',').append(managerOf(storeID)).append(',')
+            .append(1 + rnd.nextLong(this.warehouses)).append(',').append(storeID).append(',')
+            .append(productName(rnd.nextInt(this.productsPerStore))).append(',')
+            .append(1 + rnd.nextInt(100)).append(",fulfilled,");
+         // history: fulfilled within two days of the request
+         long requestedOn = START_EPOCH + ORDER_PERIOD_SECONDS * i / Math.max(1, this.supplyRequests) + rnd.nextInt(3600);
+         appendTimestamp(out, requestedOn).append(',');
+         appendTimestamp(out, requestedOn + 3600 + rnd.nextInt(2 * 24 * 3600)).append('\n');
+      }
+   }
+
+   private void productUpdates(long first, long rows, SplittableRandom rnd, StringBuilder out) {
+      for (long i = first; i < first + rows; ++i) {
+         long storeID = 1 + rnd.nextLong(this.stores);
+         out.append(i + 1).append(',').append(managerOf(storeID)).append(',').append(storeID).append(',')
+            .append(productID(storeID, rnd.nextInt(this.productsPerStore))).append(',');
+         appendTimestamp(out, START_EPOCH + ORDER_PERIOD_SECONDS * i / Math.max(1, this.productUpdates) + rnd.nextInt(3600))
+            .append('\n');
+      }
+   }
+
+   // Products are numbered store by store, in the order of products().
+   private long productID(long storeID, int product) {
+      return (storeID - 1) * this.productsPerStore + product + 1;
+   }
+
+   private long managerOf(long storeID) {
+      return 2 + (storeID - 1) % this.managers;
+   }
+
+   static String productName(int index) {
+      return index < SAMPLE_PRODUCTS.length ? SAMPLE_PRODUCTS[index] : "Product " + (index + 1);
+   }
+
+   private int hourOfDay(SplittableRandom rnd) {
+      double u = rnd.nextDouble();
+      int h = 0;
+      while (h < 23 && this.hourlyCdf[h] < u)
+         ++h;
+      return h;
+   }
+
+   private static double gaussian(SplittableRandom rnd) {
+      // Box-Muller; SplittableRandom has no nextGaussian
+      return Math.sqrt(-2 * Math.log(1 - rnd.nextDouble())) * Math.cos(2 * Math.PI * rnd.nextDouble());
+   }
+
+   // A coordinate in [0, 99.999999] with six decimals, as decimal(8,6) holds.
+   private static StringBuilder appendCoordinate(StringBuilder out, double value) {
+      long micros = Math.round(Math.min(99.999999, Math.max(0, value)) * 1000000);
+      String frac = Long.toString(1000000 + micros % 1000000).substring(1);
+      return out.append(micros / 1000000).append('.').append(frac);
+   }
+
+   private static StringBuilder appendTimestamp(StringBuilder out, long epochSecond) {
+      LocalDateTime t = LocalDateTime.ofEpochSecond(epochSecond, 0, ZoneOffset.UTC);
+      out.append(t.getYear()).append('-');
+      pad(out, t.getMonthValue()).append('-');
+      pad(out, t.getDayOfMonth()).append(' ');
+      pad(out, t.getHour()).append(':');
+      pad(out, t.getMinute()).append(':');
+      return pad(out, t.getSecond());
+   }
+
+   private static StringBuilder pad(StringBuilder out, int value) {
+      return out.append(value < 10 ? "0" : "").append(value);
+   }
+
+   /**
+    * Draws ranks 1..n with probability proportional to 1/rank^s, in constant
+    * time and memory, by rejection-inversion (Hormann and Derflinger, 1996).
+    */
+   static class ZipfSampler {
+      private final long n;
+      private final double s;
+      private final double hIntegralX1;
+      private final double hIntegralN;
+      private final double threshold;
+
+      ZipfSampler(long n, double s) {
+         this.n = n;
+         this.s = s;
+         this.hIntegralX1 = hIntegral(1.5) - 1;
+         this.hIntegralN = hIntegral(n + 0.5);
+         this.threshold = 2 - hIntegralInverse(hIntegral(2.5) - h(2));
+      }
+
+      long sample(SplittableRandom rnd) {
+         while (true) {
+            double u = this.hIntegralN + rnd.nextDouble() * (this.hIntegralX1 - this.hIntegralN);
+            double x = hIntegralInverse(u);
+            long k = Math.max(1, Math.min(this.n, (long) (x + 0.5)));
+            if (k - x <= this.threshold || u >= hIntegral(k + 0.5) - h(k))
+               return k;
+         }
+      }
+
+      private double h(double x) {
+         return Math.exp(-this.s * Math.log(x));
+      }
+
+      private double hIntegral(double x) {
+         double logX = Math.log(x);
+         return helper2((1 - this.s) * logX) * logX;
+      }
+
+      private double hIntegralInverse(double x) {
+         double t = Math.max(-1, x * (1 - this.s));
+         return Math.exp(helper1(t) * x);
+      }
+
+      // log1p(x) / x, stable near 0
+      private static double helper1(double x) {
+         return Math.abs(x) > 1e-8 ? Math.log1p(x) / x : 1 - x * (0.5 - x * (1.0 / 3 - 0.25 * x));
+      }
+
+      // expm1(x) / x, stable near 0
+      private static double helper2(double x) {
+         return Math.abs(x) > 1e-8 ? Math.expm1(x) / x : 1 + x * 0.5 * (1 + x * (1.0 / 3) * (1 + 0.25 * x));
+      }
+   }//end ZipfSampler
+
+   /**
+    * The main execution method
+    *
+    * @param args <outDir | --stdout table> [--scale f] [--seed n] [--threads n] [--users n] [--stores n]
+    *             [--products-per-store n] [--orders n] [--warehouses n] [--supply-requests n] [--updates n]
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length < 1) {
+         System.err.println(
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            DataGenerator.class.getName() +
+            " <outDir | --stdout <table>> [--scale <f>] [--seed <n>] [--threads <n>] [--users <n>] [--stores <n>]" +
+            " [--products-per-store <n>] [--orders <n>] [--warehouses <n>] [--supply-requests <n>] [--updates <n>]");
+         return;
+      }
+      DataGenerator generator = new DataGenerator();
+      String outDir = null;
+      String stdoutTable = null;
+      // --scale first, so explicit sizes override it
+      for (int i = 0; i + 1 < args.length; ++i)
+         if (args[i].equals("--scale"))
+            generator.scale(Double.parseDouble(args[i + 1]));
+      for (int i = 0; i < args.length; ++i) {
+         String arg = args[i];
+         if (!arg.startsWith("--")) {
+            outDir = arg;
+            continue;
+         }
+         String value = args[++i];
+         switch (arg) {
+            case "--scale": break;
+            case "--stdout": stdoutTable = value; break;
+            case "--seed": generator.seed = Long.parseLong(value); break;
+            case "--threads": generator.threads = Integer.parseInt(value); break;
+            case "--users": generator.users = Long.parseLong(value); break;
+            case "--stores": generator.stores = Long.parseLong(value); break;
+            case "--products-per-store": generator.productsPerStore = Integer.parseInt(value); break;
+            case "--orders": generator.orders = Long.parseLong(value); break;
+            case "--warehouses": generator.warehouses = Long.parseLong(value); break;
+            case "--supply-requests": generator.supplyRequests = Long.parseLong(value); break;
+            case "--updates": generator.productUpdates = Long.parseLong(value); break;
+            default: throw new IllegalArgumentException("Unknown option " + arg);
+         }
+      }
+
+      if (stdoutTable != null)
+         generator.generate(stdoutTable, new BufferedOutputStream(System.out, 1 << 16));
+      else
+         generator.generateAll(new File(outDir));
+   }//end main
+}//end DataGenerator
@@ -0,0 +1,102 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class counts latencies in nanoseconds in buckets laid out like an
+ * HdrHistogram: exact below 128, then 64 buckets per power of two, so a
+ * percentile read off it is within 1/64 (1.6%) of the true value for any
+ * latency from a nanosecond to centuries, in a fixed 30 KB.
+ *
+ * Recording is a few atomic increments and never blocks, so it is safe on
+ * the hot path of every thread; a percentile read while others record may
+ * miss their last few values.
+ *
+ */
+public class Histogram {
+   // values below 2^SUB_BITS have a bucket each
+   private static final int SUB_BITS = 7;
+   private static final int SUB_COUNT = 1 << SUB_BITS;
+   private static final int HALF_COUNT = SUB_COUNT / 2;
+   private static final int BUCKETS = SUB_COUNT + (63 - SUB_BITS) * HALF_COUNT;
+
+   private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+   private final AtomicLong count = new AtomicLong();
+   private final AtomicLong sum = new AtomicLong();
+   private final AtomicLong max = new AtomicLong();
+
+   // Counts one value; negative values count as 0.
+   public void record(long value) {
+      if (value < 0)
+         value = 0;
+      this.counts.incrementAndGet(bucket(value));
+      this.count.incrementAndGet();
+      this.sum.addAndGet(value);
+      long m;
+      while (value > (m = this.max.get()) && !this.max.compareAndSet(m, value))
+         ;
+   }//end record
+
+   static int bucket(long value) {
+      if (value < SUB_COUNT)
+         return (int) value;
+      int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+      return SUB_COUNT + (shift - 1) * HALF_COUNT + (int) ((value >> shift) - HALF_COUNT);
+   }//end bucket
+
+   // The largest value counted in a bucket.
+   static long highestValue(int bucket) {
+      if (bucket < SUB_COUNT)
+         return bucket;
+      int shift = (bucket - SUB_COUNT) / HALF_COUNT + 1;
+      long sub = (bucket - SUB_COUNT) % HALF_COUNT + HALF_COUNT;
+      return ((sub + 1) << shift) - 1;
+   }//end highestValue
+
+   public long getCount() {
+      return this.count.get();
+   }
+
+   public long getSum() {
+      return this.sum.get();
+   }
+
+   public long getMax() {
+      return this.max.get();
+   }
+
+   public double getMean() {
+      long n = this.count.get();
+      return n == 0 ? 0.0 : (double) this.sum.get() / n;
+   }
+
+   /**
+    * Returns the value below which the given fraction of the values lie,
+    * e.g. 0.99 for the 99th percentile, or 0 when nothing was counted.
+    */
+   public long getPercentile(double fraction) {
+      long n = this.count.get();
+      if (n == 0)
+         return 0;
+      long rank = Math.max(1, (long) Math.ceil(fraction * n));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; ++i) {
+         seen += this.counts.get(i);
+         if (seen >= rank)
+            return Math.min(highestValue(i), this.max.get());
+      }
+      return this.max.get();
+   }//end getPercentile
+}//end Histogram
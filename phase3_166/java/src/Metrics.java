@@ -0,0 +1,283 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class collects the metrics of the store operations of this process:
+ *
+ *    per operation   calls, latency histogram, results by status, SQL
+ *                    statements run, their latency histogram and the rows
+ *                    they returned or changed
+ *    per SQLState    the number of statements that failed with it
+ *    pool            the time spent waiting for a connection
+ *
+ * Command.run marks the operation a thread runs; the query helpers of
+ * Amazon report every statement, which counts for the operation of the
+ * thread running it ("none" outside an operation, e.g. maintenance).
+ *
+ * The metrics are served in the Prometheus text format on
+ * http://host:port/metrics when -Damazon.metrics.port is set, and written
+ * to the file -Damazon.metrics.dump every -Damazon.metrics.dumpSeconds
+ * (default 60) when it is set; see start.
+ *
+ */
+public class Metrics {
+   private static final Metrics SHARED = new Metrics();
+   private static final String NONE = "none";
+
+   /**
+    * The metrics of one operation, e.g. placeOrder.
+    */
+   static class OperationStats {
+      final Histogram latency = new Histogram();
+      final Histogram statementLatency = new Histogram();
+      final AtomicLong statements = new AtomicLong();
+      final AtomicLong rows = new AtomicLong();
+      final Map<OperationResult.Status, AtomicLong> results = new ConcurrentHashMap<OperationResult.Status, AtomicLong>();
+   }//end OperationStats
+
+   private final Map<String, OperationStats> operations = new ConcurrentHashMap<String, OperationStats>();
+   private final Map<String, AtomicLong> sqlStates = new ConcurrentHashMap<String, AtomicLong>();
+   private final Histogram connectionWait = new Histogram();
+   private final ThreadLocal<OperationStats> current = new ThreadLocal<OperationStats>();
+
+   // The metrics of this process.
+   public static Metrics shared() {
+      return SHARED;
+   }
+
+   private OperationStats stats(String operation) {
+      OperationStats stats = this.operations.get(operation);
+      if (stats == null) {
+         this.operations.putIfAbsent(operation, new OperationStats());
+         stats = this.operations.get(operation);
+      }
+      return stats;
+   }//end stats
+
+   /**
+    * Marks the start of an operation on this thread; its statements count
+    * for it until end is called with the returned token.
+    *
+    * @param operation the operation name, e.g. placeOrder
+    * @return the token to pass to end
+    */
+   public Object begin(String operation) {
+      OperationStats outer = this.current.get();
+      this.current.set(stats(operation));
+      return outer;
+   }//end begin
+
+   /**
+    * Counts a finished operation.
+    *
+    * @param token the token returned by begin
+    * @param nanos the time the operation took
+    * @param status how it ended
+    */
+   public void end(Object token, long nanos, OperationResult.Status status) {
+      OperationStats stats = this.current.get();
+      if (stats != null) {
+         stats.latency.record(nanos);
+         AtomicLong counter = stats.results.get(status);
+         if (counter == null) {
+            stats.results.putIfAbsent(status, new AtomicLong());
+            counter = stats.results.get(status);
+         }
+         counter.incrementAndGet();
+      }
+      if (token == null)
+         this.current.remove();
+      else
+         this.current.set((OperationStats) token);
+   }//end end
+
+   // Counts a statement of the current operation.
+   public void statement(long nanos, long rows) {
+      OperationStats stats = this.current.get();
+      if (stats == null)
+         stats = stats(NONE);
+      stats.statementLatency.record(nanos);
+      stats.statements.incrementAndGet();
+      stats.rows.addAndGet(rows);
+   }//end statement
+
+   // Counts a failed statement of the current operation by its SQLState.
+   public void statementFailed(long nanos, SQLException e) {
+      statement(nanos, 0);
+      String state = e.getSQLState() == null ? "unknown" : e.getSQLState();
+      AtomicLong counter = this.sqlStates.get(state);
+      if (counter == null) {
+         this.sqlStates.putIfAbsent(state, new AtomicLong());
+         counter = this.sqlStates.get(state);
+      }
+      counter.incrementAndGet();
+   }//end statementFailed
+
+   // Counts the time a borrow waited for a pooled connection.
+   public void connectionWait(long nanos) {
+      this.connectionWait.record(nanos);
+   }
+
+   /**
+    * Renders every metric in the Prometheus text format, latencies in
+    * seconds.
+    */
+   public String render() {
+      StringBuilder out = new StringBuilder(4096);
+      Map<String, OperationStats> operations = new TreeMap<String, OperationStats>(this.operations);
+      out.append("# TYPE amazon_operation_seconds summary\n");
+      for (Map.Entry<String, OperationStats> e : operations.entrySet())
+         summary(out, "amazon_operation_seconds", "operation=\"" + e.getKey() + "\"", e.getValue().latency);
+      out.append("# TYPE amazon_operation_results_total counter\n");
+      for (Map.Entry<String, OperationStats> e : operations.entrySet())
+         for (Map.Entry<OperationResult.Status, AtomicLong> r : new TreeMap<OperationResult.Status, AtomicLong>(e.getValue().results).entrySet())
+            out.append("amazon_operation_results_total{operation=\"").append(e.getKey()).append("\",status=\"")
+               .append(r.getKey()).append("\"} ").append(r.getValue().get()).append('\n');
+      out.append("# TYPE amazon_statement_seconds summary\n");
+      for (Map.Entry<String, OperationStats> e : operations.entrySet())
+         summary(out, "amazon_statement_seconds", "operation=\"" + e.getKey() + "\"", e.getValue().statementLatency);
+      out.append("# TYPE amazon_statement_rows_total counter\n");
+      for (Map.Entry<String, OperationStats> e : operations.entrySet())
+         out.append("amazon_statement_rows_total{operation=\"").append(e.getKey()).append("\"} ")
+            .append(e.getValue().rows.get()).append('\n');
+      out.append("# TYPE amazon_statement_errors_total counter\n");
+      for (Map.Entry<String, AtomicLong> e : new TreeMap<String, AtomicLong>(this.sqlStates).entrySet())
+         out.append("amazon_statement_errors_total{sqlstate=\"").append(e.getKey()).append("\"} ")
+            .append(e.getValue().get()).append('\n');
+      out.append("# TYPE amazon_connection_wait_seconds summary\n");
+      summary(out, "amazon_connection_wait_seconds", null, this.connectionWait);
+      return out.toString();
+   }//end render
+
+   private static void summary(StringBuilder out, String name, String labels, Histogram h) {
+      String prefix = labels == null ? "" : labels + ",";
+      for (double q : new double[] { 0.5, 0.9, 0.99, 0.999 })
+         out.append(name).append("{").append(prefix).append("quantile=\"").append(q).append("\"} ")
+            .append(h.getPercentile(q) / 1e9).append('\n');
+      String tail = labels == null ? " " : "{" + labels + "} ";
+      out.append(name).append("_sum").append(tail).append(h.getSum() / 1e9).append('\n');
+      out.append(name).append("_count").append(tail).append(h.getCount()).append('\n');
+   }//end summary
+
+   /**
+    * A table of the operations for people: calls, latency percentiles in
+    * ms, statements and rows per call, and the total statement time, the
+    * database time each operation burns.
+    */
+   public String summary() {
+      StringBuilder out = new StringBuilder();
+      out.append(String.format("%-28s %8s %9s %9s %9s %9s %8s %10s%n", "operation", "calls", "p50 ms", "p99 ms",
+                               "max ms", "stmt/call", "rows/call", "db s"));
+      for (Map.Entry<String, OperationStats> e : new TreeMap<String, OperationStats>(this.operations).entrySet()) {
+         OperationStats s = e.getValue();
+         long calls = s.latency.getCount();
+         double perCall = Math.max(1, calls);
+         out.append(String.format("%-28s %8d %9.2f %9.2f %9.2f %9.1f %8.1f %10.2f%n", e.getKey(), calls,
+                                  s.latency.getPercentile(0.5) / 1e6, s.latency.getPercentile(0.99) / 1e6,
+                                  s.latency.getMax() / 1e6, s.statements.get() / perCall, s.rows.get() / perCall,
+                                  s.statementLatency.getSum() / 1e9));
+      }
+      out.append(String.format("connection wait p50=%.2f ms p99=%.2f ms max=%.2f ms; errors by SQLState %s%n",
+                               this.connectionWait.getPercentile(0.5) / 1e6, this.connectionWait.getPercentile(0.99) / 1e6,
+                               this.connectionWait.getMax() / 1e6, new TreeMap<String, AtomicLong>(this.sqlStates)));
+      return out.toString();
+   }//end summary
+
+   /**
+    * Serves render on http://host:port/metrics.
+    *
+    * @param port the port to listen on
+    * @return the running server
+    * @throws java.io.IOException when the port cannot be bound
+    */
+   public HttpServer serve(int port) throws IOException {
+      HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+      server.createContext("/metrics", exchange -> {
+         byte[] body = render().getBytes(StandardCharsets.UTF_8);
+         exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+         exchange.sendResponseHeaders(200, body.length);
+         try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+         }
+      });
+      server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+         Thread t = new Thread(r, "metrics-http");
+         t.setDaemon(true);
+         return t;
+      }));
+      server.start();
+      return server;
+   }//end serve
+
+   // Writes render to the file, through a temporary file so readers never see half of it.
+   public void dump(File file) throws IOException {
+      File tmp = new File(file.getPath() + ".tmp");
+      try (Writer out = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+         out.write(render());
+      }
+      if (!tmp.renameTo(file))
+         throw new IOException("Could not rename " + tmp + " to " + file);
+   }//end dump
+
+   /**
+    * Starts the endpoint and the periodic dump configured by the system
+    * properties amazon.metrics.port, amazon.metrics.dump and
+    * amazon.metrics.dumpSeconds; does nothing when neither is set.
+    */
+   public static void start() {
+      Integer port = Integer.getInteger("amazon.metrics.port");
+      if (port != null) {
+         try {
+            SHARED.serve(port);
+            System.out.println("Metrics on http://localhost:" + port + "/metrics");
+         } catch (IOException e) {
+            System.err.println("Metrics endpoint not started: " + e.getMessage());
+         }
+      }
+      String dump = System.getProperty("amazon.metrics.dump");
+      if (dump != null) {
+         final File file = new File(dump);
+         long seconds = Long.getLong("amazon.metrics.dumpSeconds", 60L);
+         ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-dump");
+            t.setDaemon(true);
+            return t;
+         });
+         dumper.scheduleAtFixedRate(() -> {
+            try {
+               SHARED.dump(file);
+            } catch (IOException e) {
+               System.err.println("Metrics dump failed: " + e.getMessage());
+            }
+         }, seconds, seconds, TimeUnit.SECONDS);
+      }
+   }//end start
+}//end Metrics
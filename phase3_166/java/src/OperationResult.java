@@ -0,0 +1,153 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class is what a store operation returns: a status, the message shown
+ * to the user, the rows of a listing with their column names, and the number
+ * of the order or request an operation created. The console prints it on
+ * the session's terminal; the batch runner prints its status code.
+ *
+ */
+public class OperationResult {
+   /**
+    * How an operation ended, with the code the batch runner reports.
+    */
+   public enum Status {
+      OK(0),
+      INVALID(1),
+      NOT_FOUND(2),
+      DENIED(3),
+      TOO_FAR(4),
+      UNAVAILABLE(5),
+      ERROR(9);
+
+      public final int code;
+
+      Status(int code) {
+         this.code = code;
+      }
+   }//end Status
+
+   private final Status status;
+   private final String message;
+   private final List<String> columns;
+   private final List<List<String>> rows;
+   private final Integer key;
+
+   public OperationResult(Status status, String message, List<String> columns, List<List<String>> rows, Integer key) {
+      this.status = status;
+      this.message = message;
+      this.columns = columns == null ? Collections.<String>emptyList() : columns;
+      this.rows = rows == null ? Collections.<List<String>>emptyList() : rows;
+      this.key = key;
+   }//end OperationResult
+
+   public static OperationResult ok(String message) {
+      return new OperationResult(Status.OK, message, null, null, null);
+   }
+
+   // A successful operation that created the order or request with this number.
+   public static OperationResult created(int key, String message) {
+      return new OperationResult(Status.OK, message, null, null, key);
+   }
+
+   public static OperationResult rows(List<String> columns, List<List<String>> rows) {
+      return new OperationResult(Status.OK, null, columns, rows, null);
+   }
+
+   public static OperationResult fail(Status status, String message) {
+      return new OperationResult(status, message, null, null, null);
+   }
+
+   public static OperationResult error(Exception e) {
+      return fail(e instanceof SQLException ? Status.ERROR : Status.INVALID, e.getMessage());
+   }
+
+   /**
+    * Runs a query and returns its rows with their column names.
+    *
+    * @param esql the database handle
+    * @param query the query, using '?' for every parameter
+    * @param params the parameter values
+    * @return the rows, with status OK
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public static OperationResult query(Amazon esql, String query, Object... params) throws SQLException {
+      List<String> columns = new ArrayList<String>();
+      List<List<String>> rows = esql.executeQueryAndReturnResult(columns, query, params);
+      return rows(columns, rows);
+   }//end query
+
+   // The same result with another message, e.g. for an empty listing.
+   public OperationResult withMessage(String message) {
+      return new OperationResult(this.status, message, this.columns, this.rows, this.key);
+   }
+
+   public Status getStatus() {
+      return this.status;
+   }
+
+   public boolean isOk() {
+      return this.status == Status.OK;
+   }
+
+   public String getMessage() {
+      return this.message;
+   }
+
+   public List<String> getColumns() {
+      return this.columns;
+   }
+
+   public List<List<String>> getRows() {
+      return this.rows;
+   }
+
+   // The number of the created order or request, or null.
+   public Integer getKey() {
+      return this.key;
+   }
+
+   /**
+    * Prints the result as the menus always have: the rows under a header
+    * line, tab separated, then the message; errors go to the error stream.
+    *
+    * @param term the terminal of the session
+    */
+   public void print(Terminal term) {
+      if (!this.rows.isEmpty()) {
+         // one write for the whole listing, not one flush per line
+         StringBuilder text = new StringBuilder();
+         for (String column : this.columns)
+            text.append(column).append('\t');
+         text.append('\n');
+         for (List<String> row : this.rows) {
+            for (String value : row)
+               text.append(value).append('\t');
+            text.append('\n');
+         }
+         term.print(text.toString());
+      }
+      if (this.message == null)
+         return;
+      if (this.status == Status.ERROR)
+         term.err.println(this.message);
+      else
+         term.println(this.message);
+   }//end print
+}//end OperationResult
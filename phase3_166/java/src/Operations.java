@@ -0,0 +1,409 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class holds the store operations behind the menus. Every operation
+ * takes a database handle, the session of the user and typed arguments, and
+ * returns an OperationResult; none of them reads input or prints, so the
+ * console, the batch runner and the benchmark all call the same code.
+ *
+ * Failures the user can fix (a bad argument, a missing product, a store out
+ * of reach) are returned as results; database failures are thrown.
+ *
+ */
+public class Operations {
+   // the largest distance between a customer and a store they can order from.
+   public static final double ORDER_RADIUS = 30;
+
+   // the time the "5 latest" queries look back first, so they only read the
+   // monthly partitions of Orders and ProductUpdates that cover it.
+   private static final long RECENT_WINDOW = 31L * 24 * 3600 * 1000;
+
+   private static final String STORE_CHECK = "SELECT s.storeID FROM Store s WHERE s.storeID = ? AND s.managerID = ?";
+
+   // orders and updates refer to their product by productID; these show its name.
+   private static final String ORDER_COLUMNS =
+      "SELECT o.orderNumber, o.customerID, o.storeID, p.productName, o.unitsOrdered, o.orderTime " +
+      "FROM Orders o JOIN Product p ON o.productID = p.productID ";
+   private static final String UPDATE_COLUMNS =
+      "SELECT pu.updateNumber, pu.managerID, pu.storeID, p.productName, pu.updatedOn " +
+      "FROM ProductUpdates pu JOIN Product p ON pu.productID = p.productID ";
+
+   public static OperationResult createUser(Amazon esql, String name, String password, double latitude, double longitude) throws SQLException {
+      String type = "customer";
+      //only the salted hash of the password is kept.
+      String query = "INSERT INTO USERS (name, password, latitude, longitude, type) VALUES (?, ?, ?, ?, ?::user_type)";
+      try {
+         esql.executeUpdate(query, name, PasswordHasher.hash(password), latitude, longitude, type);
+      } catch (SQLException e) {
+         //names are unique: users_name_idx.
+         if (!"23505".equals(e.getSQLState()))
+            throw e;
+         return OperationResult.fail(OperationResult.Status.INVALID, "The name " + name + " is taken.");
+      }
+      ShardMap shards = ShardMap.shared();
+      if (shards != null)
+         //every shard keeps a copy of Users for the foreign keys of its orders.
+         shards.copyUser(esql, name);
+      return OperationResult.ok("User successfully created!");
+   }//end createUser
+
+   public static OperationResult viewStores(Amazon esql, Session session) throws SQLException {
+      //bounding box lookup on the Store(latitude, longitude) index
+      List<StoreLocator.NearbyStore> stores = StoreLocator.withinRadius(esql, session.getLatitude(), session.getLongitude(), ORDER_RADIUS);
+      List<List<String>> rows = new ArrayList<List<String>>(stores.size());
+      for (StoreLocator.NearbyStore store : stores)
+         rows.add(Arrays.asList(String.valueOf(store.storeID), String.valueOf(store.latitude),
+                                String.valueOf(store.longitude), String.format("%.2f", store.distance)));
+      return OperationResult.rows(Arrays.asList("storeid", "latitude", "longitude", "distance"), rows);
+   }//end viewStores
+
+   // Served from the product cache; stock counts are at most its stock TTL old.
+   public static OperationResult viewProducts(Amazon esql, Session session, int storeID) throws SQLException {
+      return ProductCache.shared().products(esql, storeID);
+   }//end viewProducts
+
+   /**
+    * Finds where products named like text can be bought: in the stores
+    * within radius of the user, at most ORDER_RADIUS since farther stores
+    * cannot be ordered from, with at least minUnits units, cheapest first,
+    * a page at a time (ProductSearch).
+    *
+    * @param text the start of the product name, or a name like it
+    * @param after the cursor shown after the previous page, or null for the first page
+    */
+   public static OperationResult searchProducts(Amazon esql, Session session, String text, double radius, int minUnits,
+                                                String after) throws SQLException {
+      OperationResult invalid = checkSearch(text, radius, after);
+      if (invalid != null)
+         return invalid;
+      ProductSearch.Cursor cursor = after == null ? null : ProductSearch.Cursor.parse(after);
+      return ProductSearch.page(ProductSearch.search(esql, session.getLatitude(), session.getLongitude(), text,
+         Math.min(radius, ORDER_RADIUS), Math.max(1, minUnits), cursor, ProductSearch.PAGE_SIZE + 1));
+   }//end searchProducts
+
+   // The failure of a search with bad arguments, or null.
+   private static OperationResult checkSearch(String text, double radius, String after) {
+      if (text.trim().isEmpty())
+         return OperationResult.fail(OperationResult.Status.INVALID, "Enter the product name or its first letters.");
+      if (!(radius > 0))
+         return OperationResult.fail(OperationResult.Status.INVALID, "The search radius must be positive.");
+      try {
+         if (after != null)
+            ProductSearch.Cursor.parse(after);
+      } catch (IllegalArgumentException e) {
+         return OperationResult.fail(OperationResult.Status.INVALID, e.getMessage());
+      }
+      return null;
+   }//end checkSearch
+
+   /**
+    * Orders units of a product from a store within 30 miles of the user. The
+    * stock decrement and the order are one transaction.
+    */
+   public static OperationResult placeOrder(Amazon esql, Session session, final int storeID, final String productName,
+                                            final int numberOfUnits) throws SQLException {
+      if (numberOfUnits < 1)
+         return OperationResult.fail(OperationResult.Status.INVALID, "You must order at least one unit.");
+
+      //get store latitude and longitude
+      String query1 = "SELECT latitude, longitude FROM Store Where storeID = ?";
+      List<List<String>> s_coords = esql.executeQueryAndReturnResult(query1, storeID);
+      if (s_coords.isEmpty())
+         return OperationResult.fail(OperationResult.Status.NOT_FOUND, "That store does not exist.");
+      double store_latitude = Double.valueOf(s_coords.get(0).get(0));
+      double store_longitude = Double.valueOf(s_coords.get(0).get(1));
+
+      double distance = esql.calculateDistance(session.getLatitude(), session.getLongitude(), store_latitude, store_longitude);
+      if (distance > ORDER_RADIUS)
+         return OperationResult.fail(OperationResult.Status.TOO_FAR,
+                                     "That store is too far from you! (Must be within 30 miles from your location.)");
+
+      //a product the store does not sell needs no transaction.
+      if (!ProductCache.shared().hasProduct(esql, storeID, productName))
+         return OperationResult.fail(OperationResult.Status.UNAVAILABLE, "Product doesn't exist or you ordered too many.");
+
+      //decrement the stock and create the order in one transaction.
+      final int u_id = session.getUserID();
+      StockReservations reservations = StockReservations.shared();
+      if (reservations != null)
+         //or reserve the units in memory; the order row is written later.
+         return reservations.placeOrder(esql, u_id, storeID, productName, numberOfUnits);
+      OrderBatcher batcher = OrderBatcher.shared();
+      if (batcher != null)
+         //or in the next group commit, which updates the cache itself.
+         return batcher.placeOrder(u_id, storeID, productName, numberOfUnits);
+      OperationResult result = esql.inTransaction(new Amazon.Transaction<OperationResult>() {
+         public OperationResult run(Amazon tx) throws SQLException {
+            //another process may keep the stock in memory (StockReservations).
+            if (!StockReservations.stockInDatabase(tx))
+               return OperationResult.fail(OperationResult.Status.UNAVAILABLE, StockReservations.STOCK_ELSEWHERE);
+
+            //the decrement only matches while enough units are left, so
+            //concurrent orders for the same product can never oversell it.
+            String updatequery = "UPDATE Product SET numberOfUnits = numberOfUnits - ? WHERE storeID = ? AND productName = ? and numberOfUnits >= ? " +
+                                 "RETURNING productID";
+            List<List<String>> product = tx.executeQueryAndReturnResult(updatequery, numberOfUnits, storeID, productName, numberOfUnits);
+            if (product.isEmpty())
+               return OperationResult.fail(OperationResult.Status.UNAVAILABLE, "Product doesn't exist or you ordered too many.");
+
+            //CREATE ORDER; the orderNumber comes from its serial.
+            String query5 = "INSERT INTO Orders (customerID, storeID, productID, unitsOrdered, orderTime) VALUES (?, ?, ?, ?, ?) RETURNING orderNumber";
+            List<List<String>> order = tx.executeQueryAndReturnResult(query5, u_id, storeID, Integer.valueOf(product.get(0).get(0).trim()),
+                                                                      numberOfUnits, Amazon.getTime());
+
+            //count it on the popularity dashboards, in the same transaction.
+            PopularityRollup.recordOrder(tx, storeID, productName, u_id);
+            int orderNumber = Integer.parseInt(order.get(0).get(0).trim());
+            return OperationResult.created(orderNumber, "Product ordered! Your order number is " + orderNumber + ".");
+         }
+      });
+
+      if (result.isOk())
+         ProductCache.shared().adjustUnits(storeID, productName, -numberOfUnits);
+      return result;
+   }//end placeOrder
+
+   // The 5 latest orders of the customer, of the manager's stores, or of all stores for the admin.
+   public static OperationResult viewRecentOrders(Amazon esql, Session session) throws SQLException {
+      int u_id = session.getUserID();
+      if (session.isManager()) {
+         String query = "SELECT o.orderNumber, u.name AS customerName, o.storeID, p.productName, o.orderTime " +
+                          "FROM Orders o " +
+                          "JOIN Product p ON o.productID = p.productID " +
+                          "JOIN Users u ON o.customerID = u.userID " +
+                          "JOIN Store s ON o.storeID = s.storeID " +
+                          "WHERE s.managerID = ? AND o.orderTime >= ? " +
+                          "ORDER BY o.orderTime DESC " +
+                          "LIMIT 5";
+         return recent(esql, query, u_id);
+      }
+      else if (session.isAdmin()) {
+         String query = ORDER_COLUMNS + "WHERE o.orderTime >= ? ORDER BY o.orderTime DESC, o.orderNumber DESC LIMIT 5";
+         return recent(esql, query);
+      }
+      else {
+         String query = ORDER_COLUMNS + "WHERE o.customerID = ? AND o.orderTime >= ? " +
+                        "ORDER BY o.orderTime DESC, o.orderNumber DESC LIMIT 5";
+         return recent(esql, query, u_id);
+      }
+   }//end viewRecentOrders
+
+   /**
+    * Sets the price and/or the stock of a product of the manager's store, and
+    * logs the change in ProductUpdates, in one transaction.
+    *
+    * @param newPrice the new price, or null to keep it
+    * @param newUnits the new number of units, or null to keep it
+    */
+   public static OperationResult updateProduct(Amazon esql, Session session, final int storeID, final String productName,
+                                               final Double newPrice, final Integer newUnits) throws SQLException {
+      if (!session.hasManagerPerms())
+         return OperationResult.fail(OperationResult.Status.DENIED, "User does not have permissions. Access denied.");
+
+      //verify if its owned by manager; an admin may update any store.
+      final int user_id = session.getUserID();
+      if (!session.isAdmin() && esql.executeQuery(STORE_CHECK, storeID, user_id) < 1)
+         return OperationResult.fail(OperationResult.Status.DENIED, "You are not a verified manager for this store.");
+
+      if (!ProductCache.shared().hasProduct(esql, storeID, productName))
+         return OperationResult.fail(OperationResult.Status.NOT_FOUND, "This product is not available at this location.");
+
+      if (newPrice == null && newUnits == null)
+         return OperationResult.ok(null);
+
+      //with stock reservations the units are set in memory and logged.
+      final StockReservations reservations = StockReservations.shared();
+      OrderBatcher batcher = OrderBatcher.shared();
+      if (batcher != null && reservations == null)
+         return batcher.updateProduct(user_id, storeID, productName, newPrice, newUnits);
+      if (newUnits != null && reservations != null && reservations.getUnits(storeID, productName) == null)
+         return OperationResult.fail(OperationResult.Status.UNAVAILABLE,
+                                     "The units of this product are not kept in memory yet; they can be set after the server restarts.");
+
+      //apply the changes and INSERT the ProductUpdate log in one transaction.
+      boolean updated;
+      try {
+         updated = esql.inTransaction(new Amazon.Transaction<Boolean>() {
+            public Boolean run(Amazon tx) throws SQLException {
+               //the units are not ours to set while another process keeps the stock in memory.
+               if (newUnits != null && reservations == null && !StockReservations.stockInDatabase(tx))
+                  return false;
+               if (newPrice != null) {
+                  String updatePriceQuery = "UPDATE Product SET pricePerUnit = ? WHERE storeID = ? AND productName = ?";
+                  tx.executeUpdate(updatePriceQuery, newPrice, storeID, productName);
+               }
+               if (newUnits != null && reservations == null) {
+                  String updateUnitsQuery = "UPDATE Product SET numberOfUnits = ? WHERE storeID = ? AND productName = ?";
+                  tx.executeUpdate(updateUnitsQuery, newUnits, storeID, productName);
+               }
+               //the updateNumber comes from its serial.
+               String productUpdatequery = "INSERT INTO ProductUpdates (managerID, storeID, productID, updatedOn) " +
+                                           "SELECT ?, storeID, productID, ? FROM Product WHERE storeID = ? AND productName = ?";
+               tx.executeUpdate(productUpdatequery, user_id, Amazon.getTime(), storeID, productName);
+               //the units are logged durably before the commit; a failure rolls the price back.
+               if (newUnits != null && reservations != null
+                   && reservations.setUnits(storeID, productName, newUnits) != StockReservations.Change.APPLIED)
+                  throw new SQLException("The units of " + productName + " were not set: the stock log failed");
+               return true;
+            }
+         });
+      } finally {
+         //a logged SET stands even when the commit fails.
+         ProductCache.shared().invalidate(storeID);
+      }
+      if (!updated)
+         return OperationResult.fail(OperationResult.Status.UNAVAILABLE, StockReservations.STOCK_ELSEWHERE);
+      return OperationResult.ok("Product updated.");
+   }//end updateProduct
+
+   public static OperationResult viewRecentUpdates(Amazon esql, Session session) throws SQLException {
+      if (!session.hasManagerPerms())
+         return OperationResult.fail(OperationResult.Status.DENIED, "You are not a verified manager for this store.");
+
+      if (!session.isAdmin()) {
+         String query = UPDATE_COLUMNS + "WHERE pu.managerID = ? AND pu.updatedOn >= ? " +
+                        "ORDER BY pu.updatedOn DESC, pu.updateNumber DESC LIMIT 5";
+         return recent(esql, query, session.getUserID());
+      }
+      String query = UPDATE_COLUMNS + "WHERE pu.updatedOn >= ? ORDER BY pu.updatedOn DESC, pu.updateNumber DESC LIMIT 5";
+      return recent(esql, query);
+   }//end viewRecentUpdates
+
+   /**
+    * Runs a "5 latest" query of Orders or ProductUpdates over the partitions
+    * of the last RECENT_WINDOW only, and over all of them when those hold
+    * fewer than 5 rows. The time bound is the query's last parameter.
+    */
+   private static OperationResult recent(Amazon esql, String query, Object... params) throws SQLException {
+      Object[] bound = Arrays.copyOf(params, params.length + 1);
+      bound[params.length] = new Timestamp(System.currentTimeMillis() - RECENT_WINDOW);
+      OperationResult result = OperationResult.query(esql, query, bound);
+      if (result.getRows().size() >= 5)
+         return result;
+      bound[params.length] = new Timestamp(0);
+      return OperationResult.query(esql, query, bound);
+   }//end recent
+
+   public static OperationResult viewPopularProducts(Amazon esql, Session session) throws SQLException {
+      return viewPopularProducts(esql, session, 5);
+   }//end viewPopularProducts
+
+   // Read from the counters of PopularityRollup, not from Orders.
+   private static OperationResult viewPopularProducts(Amazon esql, Session session, int limit) throws SQLException {
+      if (!session.hasManagerPerms())
+         return OperationResult.fail(OperationResult.Status.DENIED, "User is not a manager. Access denied.");
+
+      if (!session.isAdmin())
+         return OperationResult.query(esql, PopularityRollup.MANAGER_PRODUCTS, session.getUserID(), limit);
+      return OperationResult.query(esql, PopularityRollup.ALL_PRODUCTS, limit);
+   }//end viewPopularProducts
+
+   public static OperationResult viewPopularCustomers(Amazon esql, Session session) throws SQLException {
+      OperationResult result = viewPopularCustomers(esql, session, 5);
+      return result.isOk() && result.getRows().isEmpty() ? result.withMessage("No popular customers found.") : result;
+   }//end viewPopularCustomers
+
+   // Read from the counters of PopularityRollup, not from Orders.
+   private static OperationResult viewPopularCustomers(Amazon esql, Session session, int limit) throws SQLException {
+      if (!session.hasManagerPerms())
+         return OperationResult.fail(OperationResult.Status.DENIED, "User is not a manager. Access denied.");
+
+      if (!session.isAdmin())
+         return OperationResult.query(esql, PopularityRollup.MANAGER_CUSTOMERS, session.getUserID(), limit);
+      else //IS ADMIN
+         return OperationResult.query(esql, PopularityRollup.ALL_CUSTOMERS, limit);
+   }//end viewPopularCustomers
+
+   /*
+    * The same dashboards with the stores spread over shards (ShardMap): each
+    * runs on every shard and the results are merged.
+    */
+
+   public static OperationResult viewRecentOrders(ShardMap shards, final Session session) throws SQLException {
+      return ShardMap.latest(shards.each(esql -> viewRecentOrders(esql, session)), "ordertime", "ordernumber", 5);
+   }//end viewRecentOrders
+
+   public static OperationResult viewRecentUpdates(ShardMap shards, final Session session) throws SQLException {
+      return ShardMap.latest(shards.each(esql -> viewRecentUpdates(esql, session)), "updatedon", "updatenumber", 5);
+   }//end viewRecentUpdates
+
+   public static OperationResult viewPopularProducts(ShardMap shards, final Session session) throws SQLException {
+      return shards.topK(5, (esql, limit) -> viewPopularProducts(esql, session, limit));
+   }//end viewPopularProducts
+
+   public static OperationResult viewPopularCustomers(ShardMap shards, final Session session) throws SQLException {
+      OperationResult result = shards.topK(5, (esql, limit) -> viewPopularCustomers(esql, session, limit));
+      return result.isOk() && result.getRows().isEmpty() ? result.withMessage("No popular customers found.") : result;
+   }//end viewPopularCustomers
+
+   public static OperationResult searchProducts(ShardMap shards, final Session session, final String text, final double radius,
+                                                final int minUnits, final String after) throws SQLException {
+      OperationResult invalid = checkSearch(text, radius, after);
+      if (invalid != null)
+         return invalid;
+      final ProductSearch.Cursor cursor = after == null ? null : ProductSearch.Cursor.parse(after);
+      List<OperationResult> results = shards.each(esql -> ProductSearch.search(esql, session.getLatitude(), session.getLongitude(),
+         text, Math.min(radius, ORDER_RADIUS), Math.max(1, minUnits), cursor, ProductSearch.PAGE_SIZE + 1));
+      return ProductSearch.page(ShardMap.lowest(results, "priceperunit", "productid", ProductSearch.PAGE_SIZE + 1));
+   }//end searchProducts
+
+   /**
+    * Requests units of a product for the manager's store from a warehouse,
+    * the one nearest the store when warehouseID is 0. The request is only
+    * recorded as pending; SupplyFulfillment adds the units to the stock when
+    * it fulfills it.
+    */
+   public static OperationResult placeProductSupplyRequest(Amazon esql, Session session, final int storeID, final String productName,
+                                                           final int warehouseID, final int unitsRequested) throws SQLException {
+      if (!session.hasManagerPerms())
+         return OperationResult.fail(OperationResult.Status.DENIED, "User is not a manager. Access denied.");
+
+      //check if storeid and manager is correct.
+      final int user_id = session.getUserID();
+      if (!session.isAdmin() && esql.executeQuery(STORE_CHECK, storeID, user_id) < 1)
+         return OperationResult.fail(OperationResult.Status.DENIED, "You are not a verified manager for this store.");
+
+      if (unitsRequested < 1)
+         return OperationResult.fail(OperationResult.Status.INVALID, "You must request at least one unit.");
+
+      //route the request to the nearest warehouse unless one was named.
+      Integer warehouse = warehouseID;
+      if (warehouseID < 1) {
+         warehouse = SupplyFulfillment.route(esql, storeID);
+         if (warehouse == null)
+            return OperationResult.fail(OperationResult.Status.NOT_FOUND, "No warehouse can supply this store.");
+      }
+
+      //record the pending request, if the store sells the product; the requestNumber comes from its serial.
+      String requestUpdate = "INSERT INTO ProductSupplyRequests (managerID, warehouseID, storeID, productName, unitsRequested, status, requestedOn) "
+                           + "SELECT ?, ?, storeID, productName, ?, ?, ? FROM Product WHERE storeID = ? AND productName = ? RETURNING requestNumber";
+      List<List<String>> request = esql.executeQueryAndReturnResult(requestUpdate, user_id, warehouse, unitsRequested,
+                                                                    SupplyFulfillment.PENDING, Amazon.getTime(), storeID, productName);
+      if (request.isEmpty())
+         return OperationResult.fail(OperationResult.Status.NOT_FOUND, "This product is not available at this location.");
+      int requestNumber = Integer.parseInt(request.get(0).get(0).trim());
+
+      SupplyFulfillment fulfillment = SupplyFulfillment.shared();
+      if (fulfillment != null)
+         fulfillment.wake(warehouse);
+      return OperationResult.created(requestNumber, "Supply request " + requestNumber + " placed with warehouse " + warehouse
+                                     + "; the units are added to the stock when it is fulfilled.");
+   }//end placeProductSupplyRequest
+}//end Operations
@@ -0,0 +1,443 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class group commits the writes of placeOrder and updateProduct: the
+ * sessions queue their orders and product updates, and one flusher thread
+ * writes everything queued in one transaction with one commit, so a flash
+ * sale pays one WAL flush per batch instead of one per order. Each caller
+ * still waits for, and gets, the result of its own request.
+ *
+ * A batch is flushed as soon as the flusher is free, with whatever queued
+ * meanwhile; with a max delay it first waits up to that long for more
+ * requests, up to the max batch size. A batch is written with:
+ *
+ *    one SELECT ... FOR UPDATE locking the stock rows of its products,
+ *    in key order, and one StockReservations.stockInDatabase check,
+ *    after which the requests are applied in arrival order in memory,
+ *    each order accepted only while enough units are left, and no stock
+ *    changed while another process keeps it in memory
+ *    one JDBC batch setting each touched product's final stock (and one
+ *    for prices)
+ *    one nextval query numbering the accepted orders, and multi-row
+ *    INSERTs of the orders and of the ProductUpdates audit rows
+ *    one multi-row upsert per popularity counter table
+ *
+ * If a batch fails as a whole, e.g. on a constraint one request violates,
+ * its requests are written again one at a time, so only that request
+ * fails. The flusher keeps one connection of the pool for itself.
+ *
+ * Group commit is off unless started: -Damazon.groupCommit=true, with
+ * -Damazon.groupCommit.maxBatch (default 256) and
+ * -Damazon.groupCommit.maxDelayMs (default 0); see startIfEnabled.
+ *
+ */
+public class OrderBatcher {
+   private static volatile OrderBatcher shared;
+
+   /**
+    * A queued write and the result its caller waits for.
+    */
+   abstract static class Request {
+      final int storeID;
+      final String productName;
+      final String key;
+      final Timestamp time = Amazon.getTime();
+      final CompletableFuture<OperationResult> result = new CompletableFuture<OperationResult>();
+
+      Request(int storeID, String productName) {
+         this.storeID = storeID;
+         this.productName = productName;
+         this.key = ProductKey.of(storeID, productName);
+      }
+   }//end Request
+
+   static class Order extends Request {
+      final int customerID;
+      final int units;
+
+      Order(int customerID, int storeID, String productName, int units) {
+         super(storeID, productName);
+         this.customerID = customerID;
+         this.units = units;
+      }
+   }//end Order
+
+   static class Update extends Request {
+      final int managerID;
+      final Double newPrice;
+      final Integer newUnits;
+
+      Update(int managerID, int storeID, String productName, Double newPrice, Integer newUnits) {
+         super(storeID, productName);
+         this.managerID = managerID;
+         this.newPrice = newPrice;
+         this.newUnits = newUnits;
+      }
+   }//end Update
+
+   private final ConnectionPool pool;
+   private final int maxBatch;
+   private final long maxDelayNanos;
+   private final BlockingQueue<Request> queue;
+   private final Thread flusher;
+   private volatile boolean running = true;
+   private Amazon esql;
+
+   // batching metrics
+   private final AtomicLong batches = new AtomicLong();
+   private final AtomicLong requests = new AtomicLong();
+   private final AtomicLong retriedBatches = new AtomicLong();
+   private final Histogram batchSizes = new Histogram();
+
+   public OrderBatcher(ConnectionPool pool, int maxBatch, long maxDelayMillis) {
+      this.pool = pool;
+      this.maxBatch = maxBatch;
+      this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+      // callers block once this many requests wait, holding back a flood
+      this.queue = new ArrayBlockingQueue<Request>(maxBatch * 8);
+      this.flusher = new Thread(this::flushLoop, "order-batcher");
+      this.flusher.setDaemon(true);
+      this.flusher.start();
+   }//end OrderBatcher
+
+   // The batcher of this process, or null when group commit is off.
+   public static OrderBatcher shared() {
+      return shared;
+   }
+
+   /**
+    * Starts the process' batcher when -Damazon.groupCommit=true.
+    *
+    * @param pool the pool the flusher takes its connection from
+    */
+   public static synchronized void startIfEnabled(ConnectionPool pool) {
+      if (shared != null || !Boolean.getBoolean("amazon.groupCommit"))
+         return;
+      shared = new OrderBatcher(pool, Integer.getInteger("amazon.groupCommit.maxBatch", 256),
+                                Long.getLong("amazon.groupCommit.maxDelayMs", 0L));
+   }//end startIfEnabled
+
+   /**
+    * Queues an order and waits for its batch to commit. The caller has
+    * checked the store's distance and that it sells the product.
+    *
+    * @return the result of placeOrder
+    * @throws java.sql.SQLException when the batch failed to commit
+    */
+   public OperationResult placeOrder(int customerID, int storeID, String productName, int units) throws SQLException {
+      return submit(new Order(customerID, storeID, productName, units));
+   }//end placeOrder
+
+   /**
+    * Queues a product update and its audit row, and waits for its batch to
+    * commit. The caller has checked the manager's permissions.
+    *
+    * @return the result of updateProduct
+    * @throws java.sql.SQLException when the batch failed to commit
+    */
+   public OperationResult updateProduct(int managerID, int storeID, String productName, Double newPrice,
+                                        Integer newUnits) throws SQLException {
+      return submit(new Update(managerID, storeID, productName, newPrice, newUnits));
+   }//end updateProduct
+
+   private OperationResult submit(Request request) throws SQLException {
+      try {
+         if (!this.running)
+            throw new SQLException("Order batcher is stopped");
+         this.queue.put(request);
+         // a put racing stop() may land after the flusher's last look at the
+         // queue; unless the flusher took the request, nothing will write it
+         if (!this.running && this.queue.remove(request))
+            throw new SQLException("Order batcher is stopped");
+         return request.result.get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while waiting for the order batch");
+      } catch (ExecutionException e) {
+         Throwable cause = e.getCause();
+         if (cause instanceof SQLException)
+            throw (SQLException) cause;
+         throw new SQLException(cause.toString());
+      }
+   }//end submit
+
+   // Takes the next batch off the queue and writes it, until stopped.
+   private void flushLoop() {
+      List<Request> batch = new ArrayList<Request>(this.maxBatch);
+      while (this.running || !this.queue.isEmpty()) {
+         try {
+            Request first = this.queue.poll(100, TimeUnit.MILLISECONDS);
+            if (first == null)
+               continue;
+            batch.add(first);
+            this.queue.drainTo(batch, this.maxBatch - batch.size());
+            long deadline = System.nanoTime() + this.maxDelayNanos;
+            while (batch.size() < this.maxBatch) {
+               long wait = deadline - System.nanoTime();
+               Request next = wait > 0 ? this.queue.poll(wait, TimeUnit.NANOSECONDS) : null;
+               if (next == null)
+                  break;
+               batch.add(next);
+               this.queue.drainTo(batch, this.maxBatch - batch.size());
+            }
+         } catch (InterruptedException e) {
+            // stop() interrupts the wait; what was taken is still written
+         }
+         if (!batch.isEmpty()) {
+            flush(batch);
+            batch.clear();
+         }
+      }
+      if (this.esql != null)
+         this.pool.release(this.esql);
+   }//end flushLoop
+
+   /**
+    * Writes a batch and completes the results of its requests; a batch
+    * that failed is written again one request at a time.
+    */
+   private void flush(List<Request> batch) {
+      this.batches.incrementAndGet();
+      this.requests.addAndGet(batch.size());
+      this.batchSizes.record(batch.size());
+      List<OperationResult> results;
+      try {
+         results = write(batch);
+      } catch (SQLException e) {
+         if (batch.size() > 1) {
+            this.retriedBatches.incrementAndGet();
+            for (Request request : batch) {
+               List<Request> single = new ArrayList<Request>(1);
+               single.add(request);
+               flush(single);
+            }
+         } else {
+            batch.get(0).result.completeExceptionally(e);
+         }
+         return;
+      } catch (RuntimeException e) {
+         // a bug must not leave the callers waiting forever
+         for (Request request : batch)
+            request.result.completeExceptionally(e);
+         return;
+      }
+
+      // the cache learns of the committed changes before the callers return
+      for (int i = 0; i < batch.size(); ++i) {
+         Request request = batch.get(i);
+         OperationResult result = results.get(i);
+         if (result.isOk()) {
+            if (request instanceof Order)
+               ProductCache.shared().adjustUnits(request.storeID, request.productName, -((Order) request).units);
+            else
+               ProductCache.shared().invalidate(request.storeID);
+         }
+         request.result.complete(result);
+      }
+   }//end flush
+
+   // Writes a batch in one transaction; the results are in the order of the batch.
+   private List<OperationResult> write(final List<Request> batch) throws SQLException {
+      long start = System.nanoTime();
+      Object token = Metrics.shared().begin("orderBatch");
+      OperationResult.Status status = OperationResult.Status.ERROR;
+      try {
+         if (this.esql == null)
+            this.esql = this.pool.borrow();
+         List<OperationResult> results = this.esql.inTransaction(new Amazon.Transaction<List<OperationResult>>() {
+            public List<OperationResult> run(Amazon tx) throws SQLException {
+               return apply(tx, batch);
+            }
+         });
+         status = OperationResult.Status.OK;
+         return results;
+      } catch (SQLException e) {
+         // a broken connection is replaced on the next batch
+         if (this.esql != null && !this.esql.resetForReuse()) {
+            this.pool.release(this.esql);
+            this.esql = null;
+         }
+         throw e;
+      } finally {
+         Metrics.shared().end(token, System.nanoTime() - start, status);
+      }
+   }//end write
+
+   /**
+    * The statements of one batch. This runs again when the transaction is
+    * retried, so it only computes results and never completes them.
+    */
+   private static List<OperationResult> apply(Amazon tx, List<Request> batch) throws SQLException {
+      // lock the stock rows in key order and read them
+      Map<String, Request> products = new TreeMap<String, Request>();
+      for (Request request : batch)
+         products.put(request.key, request);
+      Map<String, Integer> stock = new HashMap<String, Integer>();
+      Map<String, Integer> productIDs = new HashMap<String, Integer>();
+      List<Object[]> keys = new ArrayList<Object[]>();
+      for (Request request : products.values())
+         keys.add(new Object[] { request.storeID, request.productName });
+      for (List<String> row : lockProducts(tx, keys)) {
+         String key = ProductKey.of(Integer.parseInt(row.get(0).trim()), row.get(1));
+         stock.put(key, Integer.parseInt(row.get(2).trim()));
+         productIDs.put(key, Integer.valueOf(row.get(3).trim()));
+      }
+
+      // the stock is not ours to change while another process keeps it in memory
+      boolean stockHere = StockReservations.stockInDatabase(tx);
+
+      // apply the requests in arrival order
+      List<OperationResult> results = new ArrayList<OperationResult>(batch.size());
+      Map<String, Request> newStock = new TreeMap<String, Request>();
+      Map<String, Update> newPrices = new TreeMap<String, Update>();
+      List<Order> orders = new ArrayList<Order>();
+      List<Update> updates = new ArrayList<Update>();
+      for (Request request : batch) {
+         Integer units = stock.get(request.key);
+         if (request instanceof Order) {
+            Order order = (Order) request;
+            if (!stockHere) {
+               results.add(OperationResult.fail(OperationResult.Status.UNAVAILABLE, StockReservations.STOCK_ELSEWHERE));
+               continue;
+            }
+            if (units == null || units < order.units) {
+               results.add(OperationResult.fail(OperationResult.Status.UNAVAILABLE,
+                                                "Product doesn't exist or you ordered too many."));
+               continue;
+            }
+            stock.put(order.key, units - order.units);
+            newStock.put(order.key, order);
+            orders.add(order);
+            results.add(null);
+         } else {
+            Update update = (Update) request;
+            if (units == null) {
+               results.add(OperationResult.fail(OperationResult.Status.NOT_FOUND,
+                                                "This product is not available at this location."));
+               continue;
+            }
+            if (update.newUnits != null && !stockHere) {
+               results.add(OperationResult.fail(OperationResult.Status.UNAVAILABLE, StockReservations.STOCK_ELSEWHERE));
+               continue;
+            }
+            if (update.newUnits != null) {
+               stock.put(update.key, update.newUnits);
+               newStock.put(update.key, update);
+            }
+            if (update.newPrice != null)
+               newPrices.put(update.key, update);
+            updates.add(update);
+            results.add(OperationResult.ok("Product updated."));
+         }
+      }
+
+      // the final stock and price of every product the batch changed
+      if (!newStock.isEmpty()) {
+         List<Object[]> rows = new ArrayList<Object[]>();
+         for (Map.Entry<String, Request> e : newStock.entrySet())
+            rows.add(new Object[] { stock.get(e.getKey()), e.getValue().storeID, e.getValue().productName });
+         tx.executeBatch("UPDATE Product SET numberOfUnits = ? WHERE storeID = ? AND productName = ?", rows);
+      }
+      if (!newPrices.isEmpty()) {
+         List<Object[]> rows = new ArrayList<Object[]>();
+         for (Update update : newPrices.values())
+            rows.add(new Object[] { update.newPrice, update.storeID, update.productName });
+         tx.executeBatch("UPDATE Product SET pricePerUnit = ? WHERE storeID = ? AND productName = ?", rows);
+      }
+
+      if (!orders.isEmpty()) {
+         // number the orders up front, so the insert needs no RETURNING
+         List<List<String>> numbers = tx.executeQueryAndReturnResult(
+            "SELECT nextval(pg_get_serial_sequence('orders', 'ordernumber')) FROM generate_series(1, ?)", orders.size());
+         List<Object[]> rows = new ArrayList<Object[]>();
+         List<Object[]> counted = new ArrayList<Object[]>();
+         int next = 0;
+         for (int i = 0; i < batch.size(); ++i) {
+            if (results.get(i) != null)
+               continue;
+            Order order = (Order) batch.get(i);
+            int orderNumber = Integer.parseInt(numbers.get(next++).get(0).trim());
+            rows.add(new Object[] { orderNumber, order.customerID, order.storeID, productIDs.get(order.key), order.units, order.time });
+            counted.add(new Object[] { order.storeID, order.productName, order.customerID });
+            results.set(i, OperationResult.created(orderNumber, "Product ordered! Your order number is " + orderNumber + "."));
+         }
+         tx.executeUpdateRows("INSERT INTO Orders (orderNumber, customerID, storeID, productID, unitsOrdered, orderTime) VALUES ",
+                              "(?, ?, ?, ?, ?, ?)", "", rows);
+         PopularityRollup.recordOrders(tx, counted);
+      }
+
+      if (!updates.isEmpty()) {
+         List<Object[]> rows = new ArrayList<Object[]>();
+         for (Update update : updates)
+            rows.add(new Object[] { update.managerID, update.storeID, productIDs.get(update.key), update.time });
+         tx.executeUpdateRows("INSERT INTO ProductUpdates (managerID, storeID, productID, updatedOn) VALUES ",
+                              "(?, ?, ?, ?)", "", rows);
+      }
+      return results;
+   }//end apply
+
+   // SELECT ... FOR UPDATE of the given (storeID, productName) keys, in statements of 2^k keys.
+   private static List<List<String>> lockProducts(Amazon tx, List<Object[]> keys) throws SQLException {
+      List<List<String>> rows = new ArrayList<List<String>>();
+      int done = 0;
+      while (done < keys.size()) {
+         int n = Integer.highestOneBit(keys.size() - done);
+         StringBuilder sql = new StringBuilder(
+            "SELECT storeID, productName, numberOfUnits, productID FROM Product WHERE (storeID, productName) IN (");
+         List<Object> params = new ArrayList<Object>();
+         for (int i = 0; i < n; ++i) {
+            sql.append(i == 0 ? "(?, ?)" : ", (?, ?)");
+            params.add(keys.get(done + i)[0]);
+            params.add(keys.get(done + i)[1]);
+         }
+         sql.append(") ORDER BY storeID, productName FOR UPDATE");
+         rows.addAll(tx.executeQueryAndReturnResult(sql.toString(), params.toArray()));
+         done += n;
+      }
+      return rows;
+   }//end lockProducts
+
+   /**
+    * Stops taking requests, writes those queued and gives the flusher's
+    * connection back.
+    */
+   public void stop() throws InterruptedException {
+      this.running = false;
+      this.flusher.interrupt();
+      this.flusher.join();
+   }//end stop
+
+   // One line summary of the batching metrics.
+   public String describe() {
+      long n = Math.max(1, this.batches.get());
+      return String.format("orderBatcher batches=%d requests=%d avgBatch=%.1f p99Batch=%d maxBatch=%d retriedBatches=%d queued=%d",
+                           this.batches.get(), this.requests.get(), (double) this.requests.get() / n,
+                           this.batchSizes.getPercentile(0.99), this.batchSizes.getMax(), this.retriedBatches.get(),
+                           this.queue.size());
+   }//end describe
+}//end OrderBatcher
@@ -0,0 +1,294 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This class manages the monthly partitions of Orders (by orderTime) and
+ * ProductUpdates (by updatedOn).
+ *
+ * Each table has a partition per month, named e.g. orders_p2024_01, and a
+ * default partition that catches rows of months without one, e.g. a bulk
+ * load of old data. maintain creates the partitions of the coming months
+ * ahead of time, and moves the rows of the default partition into
+ * partitions of their own, so the default partition stays empty: AmazonServer
+ * runs it every hour, BulkLoader after every load.
+ *
+ * archive keeps a number of months and archives the partitions before
+ * them: a partition is written with ResultWriter to a gzip compressed CSV
+ * file in the archive directory while still attached, then detached and
+ * dropped in one step once the file holds all its rows. An archive file can
+ * be loaded back with BulkLoader.
+ *
+ * The DDL waits at most LOCK_TIMEOUT for its locks, so maintenance never
+ * queues the store's queries behind a long running one; it is retried on
+ * the next run.
+ *
+ */
+public class PartitionManager {
+   private static final String LOCK_TIMEOUT = "5s";
+
+   /**
+    * A partitioned table: its name, the partition key and the primary key.
+    */
+   static class Table {
+      final String name;
+      final String timeColumn;
+      final String keyColumn;
+
+      Table(String name, String timeColumn, String keyColumn) {
+         this.name = name;
+         this.timeColumn = timeColumn;
+         this.keyColumn = keyColumn;
+      }
+
+      // e.g. orders_p2024_01
+      String partition(YearMonth month) {
+         return String.format("%s_p%04d_%02d", this.name.toLowerCase(), month.getYear(), month.getMonthValue());
+      }
+
+      String defaultPartition() {
+         return this.name.toLowerCase() + "_default";
+      }
+   }//end Table
+
+   static final Table ORDERS = new Table("Orders", "orderTime", "orderNumber");
+   static final Table PRODUCT_UPDATES = new Table("ProductUpdates", "updatedOn", "updateNumber");
+   static final Table[] TABLES = { ORDERS, PRODUCT_UPDATES };
+
+   private final ConnectionPool pool;
+
+   public PartitionManager(ConnectionPool pool) {
+      this.pool = pool;
+   }//end PartitionManager
+
+   /**
+    * Creates the partitions of this month and the next monthsAhead months,
+    * and of every month with rows in a default partition, moving those rows.
+    *
+    * @param monthsAhead the number of months to create ahead
+    * @return the number of partitions created
+    * @throws java.sql.SQLException when a partition could not be created
+    */
+   public int maintain(int monthsAhead) throws SQLException {
+      int created = 0;
+      Amazon esql = this.pool.borrow();
+      try {
+         for (Table table : TABLES) {
+            List<List<String>> months = esql.executeQueryAndReturnResult(
+               "SELECT DISTINCT to_char(" + table.timeColumn + ", 'YYYY-MM') FROM " + table.defaultPartition());
+            for (List<String> row : months)
+               if (createPartition(esql, table, YearMonth.parse(row.get(0).trim())))
+                  ++created;
+            YearMonth now = YearMonth.now();
+            for (int i = 0; i <= monthsAhead; ++i)
+               if (createPartition(esql, table, now.plusMonths(i)))
+                  ++created;
+         }
+      } finally {
+         this.pool.release(esql);
+      }
+      return created;
+   }//end maintain
+
+   /**
+    * Creates the partition of a month unless it exists. The partition is
+    * built as a plain table, filled with the month's rows of the default
+    * partition, which stays locked against writes until the commit so no
+    * row lands between the copy and the delete, and attached with a CHECK
+    * constraint that spares the attach a scan of it; Postgres then adds
+    * the indexes and foreign keys of the parent table.
+    *
+    * @return true when the partition was created
+    */
+   private boolean createPartition(Amazon esql, final Table table, YearMonth month) throws SQLException {
+      final String name = table.partition(month);
+      final Timestamp from = Timestamp.valueOf(month.atDay(1).atStartOfDay());
+      final Timestamp to = Timestamp.valueOf(month.plusMonths(1).atDay(1).atStartOfDay());
+      if (exists(esql, name))
+         return false;
+
+      String range = table.timeColumn + " >= '" + from + "' AND " + table.timeColumn + " < '" + to + "'";
+      ddl(esql,
+          // readers go on; the attach takes the ACCESS EXCLUSIVE lock later
+          "LOCK TABLE " + table.defaultPartition() + " IN SHARE ROW EXCLUSIVE MODE",
+          "CREATE TABLE " + name + " (LIKE " + table.name + " INCLUDING DEFAULTS)",
+          "INSERT INTO " + name + " SELECT * FROM " + table.defaultPartition() + " WHERE " + range,
+          "DELETE FROM " + table.defaultPartition() + " WHERE " + range,
+          "ALTER TABLE " + name + " ADD CONSTRAINT " + name + "_range CHECK (" + range + ")",
+          "ALTER TABLE " + table.name + " ATTACH PARTITION " + name + " FOR VALUES FROM ('" + from + "') TO ('" + to + "')",
+          // the partition bound now says the same
+          "ALTER TABLE " + name + " DROP CONSTRAINT " + name + "_range");
+      System.out.println("Created partition " + name);
+      return true;
+   }//end createPartition
+
+   /**
+    * Archives the partitions of the months before the last monthsToKeep
+    * months into archiveDir, e.g. archiveDir/orders_p2022_01.csv.gz.
+    *
+    * @param monthsToKeep the number of months to keep, this one included
+    * @param archiveDir the directory of the archive files
+    * @return the number of partitions archived
+    * @throws java.lang.Exception when a partition could not be archived
+    */
+   public int archive(int monthsToKeep, File archiveDir) throws Exception {
+      YearMonth oldestKept = YearMonth.now().minusMonths(monthsToKeep - 1);
+      int archived = 0;
+      archiveDir.mkdirs();
+      Amazon esql = this.pool.borrow();
+      try {
+         for (Table table : TABLES) {
+            for (String name : partitions(esql, table)) {
+               YearMonth month = monthOf(table, name);
+               if (month == null || !month.isBefore(oldestKept))
+                  continue;
+               archivePartition(esql, table, name, new File(archiveDir, name + ".csv.gz"));
+               ++archived;
+            }
+         }
+      } finally {
+         this.pool.release(esql);
+      }
+      return archived;
+   }//end archive
+
+   /**
+    * Writes the rows of a partition to a file, then detaches and drops it
+    * in one transaction once the file is complete. The detach locks the
+    * partition, so the rows are counted again under that lock: should the
+    * count differ from the rows written, nothing is detached or dropped and
+    * the next run writes the file again. The partition's rows stay visible
+    * to every query until it is dropped.
+    */
+   private void archivePartition(Amazon esql, final Table table, final String name, final File file) throws Exception {
+      final File tmp = new File(file.getPath() + ".tmp");
+      final long written;
+      try (OutputStream out = new GZIPOutputStream(new FileOutputStream(tmp), 1 << 16);
+           RowCursor rows = esql.openCursor(10000, "SELECT * FROM " + name + " ORDER BY " +
+                                            table.timeColumn + ", " + table.keyColumn)) {
+         written = new ResultWriter(out, ResultWriter.Format.CSV).writeAll(rows);
+      }
+
+      esql.inTransaction(new Amazon.Transaction<Void>() {
+         public Void run(Amazon tx) throws SQLException {
+            tx.executeUpdate("SET LOCAL lock_timeout = '" + LOCK_TIMEOUT + "'");
+            // a partition left detached by an older version is archived all the same
+            if (isAttached(tx, table, name))
+               tx.executeUpdate("ALTER TABLE " + table.name + " DETACH PARTITION " + name);
+            long count = Long.parseLong(tx.executeQueryAndReturnResult("SELECT COUNT(*) FROM " + name).get(0).get(0).trim());
+            if (written != count)
+               throw new SQLException(name + ": wrote " + written + " of " + count + " rows to " + tmp);
+            // the transaction may be retried after the rename
+            if (!tmp.renameTo(file) && !file.exists())
+               throw new SQLException("Could not rename " + tmp + " to " + file);
+            tx.executeUpdate("DROP TABLE " + name);
+            return null;
+         }
+      });
+      System.out.println("Archived partition " + name + ": " + written + " rows to " + file);
+   }//end archivePartition
+
+   // Runs DDL statements in one transaction that waits at most LOCK_TIMEOUT for a lock.
+   private static void ddl(Amazon esql, final String... statements) throws SQLException {
+      esql.inTransaction(new Amazon.Transaction<Void>() {
+         public Void run(Amazon tx) throws SQLException {
+            tx.executeUpdate("SET LOCAL lock_timeout = '" + LOCK_TIMEOUT + "'");
+            for (String statement : statements)
+               tx.executeUpdate(statement);
+            return null;
+         }
+      });
+   }//end ddl
+
+   // The monthly partitions of a table, attached or detached, oldest first.
+   private static List<String> partitions(Amazon esql, Table table) throws SQLException {
+      List<String> names = new ArrayList<String>();
+      for (List<String> row : esql.executeQueryAndReturnResult(
+              "SELECT relname FROM pg_class WHERE relkind IN ('r', 'p') AND relname LIKE ? ORDER BY relname",
+              table.name.toLowerCase() + "\\_p%"))
+         names.add(row.get(0).trim());
+      return names;
+   }//end partitions
+
+   // The month of a partition name, or null for another table.
+   private static YearMonth monthOf(Table table, String name) {
+      String prefix = table.name.toLowerCase() + "_p";
+      if (!name.startsWith(prefix) || name.length() != prefix.length() + 7)
+         return null;
+      try {
+         return YearMonth.parse(name.substring(prefix.length()).replace('_', '-'));
+      } catch (java.time.format.DateTimeParseException e) {
+         return null;
+      }
+   }//end monthOf
+
+   private static boolean exists(Amazon esql, String name) throws SQLException {
+      return esql.executeQuery("SELECT 1 FROM pg_class WHERE relname = ?", name) > 0;
+   }
+
+   private static boolean isAttached(Amazon esql, Table table, String name) throws SQLException {
+      return esql.executeQuery("SELECT 1 FROM pg_inherits h JOIN pg_class c ON c.oid = h.inhrelid " +
+                               "JOIN pg_class p ON p.oid = h.inhparent WHERE c.relname = ? AND p.relname = ?",
+                               name, table.name.toLowerCase()) > 0;
+   }
+
+   /**
+    * The main execution method: creates the coming partitions, then archives
+    * the old ones when --keep is given. Run it e.g. daily from cron.
+    *
+    * @param args <dbname> <port> <user> [--ahead n] [--keep months] [--archive-dir dir]
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println(
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            PartitionManager.class.getName() +
+            " <dbname> <port> <user> [--ahead <months>] [--keep <months>] [--archive-dir <dir>]");
+         return;
+      }
+      int ahead = 3;
+      int keep = 0;
+      File archiveDir = new File("archive");
+      for (int i = 3; i + 1 < args.length; i += 2) {
+         String value = args[i + 1];
+         switch (args[i]) {
+            case "--ahead": ahead = Integer.parseInt(value); break;
+            case "--keep": keep = Integer.parseInt(value); break;
+            case "--archive-dir": archiveDir = new File(value); break;
+            default: throw new IllegalArgumentException("Unknown option " + args[i]);
+         }
+      }
+
+      // use postgres JDBC driver.
+      Class.forName("org.postgresql.Driver");
+      ConnectionPool pool = new ConnectionPool("jdbc:postgresql://localhost:" + args[1] + "/" + args[0], args[2], "", 1);
+      try {
+         PartitionManager manager = new PartitionManager(pool);
+         System.out.println(manager.maintain(ahead) + " partitions created");
+         if (keep > 0)
+            System.out.println(manager.archive(keep, archiveDir) + " partitions archived to " + archiveDir);
+      } finally {
+         pool.close();
+      }
+   }//end main
+}//end PartitionManager
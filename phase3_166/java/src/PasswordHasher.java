@@ -0,0 +1,107 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.Semaphore;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * This class hashes the passwords kept in Users.password with
+ * PBKDF2-HMAC-SHA256 and a random salt per user, stored as
+ *
+ *    pbkdf2_sha256$<iterations>$<salt>$<hash>
+ *
+ * with the salt and hash in base64, so the cost can be raised later and
+ * each stored hash still names its own.
+ *
+ * The cost is -Damazon.auth.iterations (default 100000), kept within
+ * [10000, 1000000]. At most one hash per processor is computed at once, so
+ * a flood of logins queues here instead of starving the other sessions of
+ * CPU.
+ *
+ * Rows loaded with plain text passwords still verify: verify compares them
+ * in constant time and needsRehash tells the caller to replace them.
+ *
+ */
+public class PasswordHasher {
+   private static final String SCHEME = "pbkdf2_sha256";
+   private static final int MIN_ITERATIONS = 10000;
+   private static final int MAX_ITERATIONS = 1000000;
+   private static final int SALT_BYTES = 16;
+   private static final int HASH_BITS = 256;
+
+   private static final int ITERATIONS =
+      Math.max(MIN_ITERATIONS, Math.min(MAX_ITERATIONS, Integer.getInteger("amazon.auth.iterations", 100000)));
+   private static final Semaphore SLOTS = new Semaphore(Runtime.getRuntime().availableProcessors());
+   private static final SecureRandom RANDOM = new SecureRandom();
+
+   /**
+    * Hashes a password with a new salt at the configured cost.
+    *
+    * @param password the password
+    * @return the stored form of the hash
+    */
+   public static String hash(String password) {
+      byte[] salt = new byte[SALT_BYTES];
+      RANDOM.nextBytes(salt);
+      Base64.Encoder b64 = Base64.getEncoder();
+      return SCHEME + "$" + ITERATIONS + "$" + b64.encodeToString(salt) + "$"
+             + b64.encodeToString(pbkdf2(password, salt, ITERATIONS));
+   }//end hash
+
+   /**
+    * Checks a password against its stored form, hashed or plain text.
+    *
+    * @param password the password given
+    * @param stored the stored form, or null to spend the time of a check on
+    *        a missing user, so its absence does not show in the latency
+    * @return true when the password matches
+    */
+   public static boolean verify(String password, String stored) {
+      if (stored == null) {
+         pbkdf2(password, new byte[SALT_BYTES], ITERATIONS);
+         return false;
+      }
+      String[] parts = stored.trim().split("\\$");
+      if (parts.length != 4 || !parts[0].equals(SCHEME))
+         return MessageDigest.isEqual(stored.trim().getBytes(StandardCharsets.UTF_8), password.getBytes(StandardCharsets.UTF_8));
+      int iterations = Integer.parseInt(parts[1]);
+      Base64.Decoder b64 = Base64.getDecoder();
+      byte[] expected = b64.decode(parts[3]);
+      return MessageDigest.isEqual(expected, pbkdf2(password, b64.decode(parts[2]), iterations));
+   }//end verify
+
+   // Whether a verified stored form is plain text or below the configured cost.
+   public static boolean needsRehash(String stored) {
+      String[] parts = stored.trim().split("\\$");
+      return parts.length != 4 || !parts[0].equals(SCHEME) || Integer.parseInt(parts[1]) != ITERATIONS;
+   }//end needsRehash
+
+   private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+      PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+      SLOTS.acquireUninterruptibly();
+      try {
+         return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+      } catch (GeneralSecurityException e) {
+         throw new IllegalStateException("PBKDF2WithHmacSHA256 is not available", e);
+      } finally {
+         SLOTS.release();
+         spec.clearPassword();
+      }
+   }//end pbkdf2
+}//end PasswordHasher
@@ -0,0 +1,278 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This class keeps the order counts behind "View 5 Popular Items" and "View
+ * 5 Popular Customers" in rollup tables, so the dashboards read a few
+ * counters instead of grouping all of Orders:
+ *
+ *    ProductPopularity (storeID, productName)   orders per product per store
+ *    CustomerPopularity (storeID, customerID)   orders per customer per store
+ *    GlobalProductPopularity (productName, slot) orders per product, split
+ *                                               over SLOTS rows by store
+ *    GlobalCustomerPopularity (customerID)      orders per customer
+ *
+ * Freshness and consistency: placeOrder bumps every counter in the same
+ * transaction that inserts the order, so a committed order is counted
+ * exactly once and a rolled back one never; a dashboard sees the counts of
+ * exactly the orders committed before its query started. The counters only
+ * grow: orders removed from Orders other than through rebuild keep their
+ * count, e.g. the partitions PartitionManager archives; rebuild recounts
+ * the orders still in Orders only. Orders loaded without placeOrder
+ * (BulkLoader) are counted by the loader: an appending load adds the counts
+ * of the rows it loaded (LoadedOrders), and only a load that truncated
+ * Orders runs rebuild.
+ *
+ * Cost: an order adds one statement to its transaction. The admin views
+ * read the global tables, whose size is the catalog and customer count;
+ * a manager's views sum the rows of the manager's stores only. Neither
+ * depends on the number of orders.
+ *
+ */
+public class PopularityRollup {
+   // every global product counter is split into this many rows, so orders
+   // of one product at different stores rarely wait on the same row lock.
+   static final int SLOTS = 16;
+
+   // one statement, one round trip: the four upserts as data-modifying CTEs.
+   private static final String RECORD_ORDER =
+      "WITH p AS (INSERT INTO ProductPopularity (storeID, productName, orderCount) VALUES (?, ?, 1) " +
+      "ON CONFLICT (storeID, productName) DO UPDATE SET orderCount = ProductPopularity.orderCount + 1 RETURNING 1), " +
+      "c AS (INSERT INTO CustomerPopularity (storeID, customerID, orderCount) VALUES (?, ?, 1) " +
+      "ON CONFLICT (storeID, customerID) DO UPDATE SET orderCount = CustomerPopularity.orderCount + 1 RETURNING 1), " +
+      "gp AS (INSERT INTO GlobalProductPopularity (productName, slot, orderCount) VALUES (?, ?, 1) " +
+      "ON CONFLICT (productName, slot) DO UPDATE SET orderCount = GlobalProductPopularity.orderCount + 1 RETURNING 1), " +
+      "gc AS (INSERT INTO GlobalCustomerPopularity (customerID, orderCount) VALUES (?, 1) " +
+      "ON CONFLICT (customerID) DO UPDATE SET orderCount = GlobalCustomerPopularity.orderCount + 1 RETURNING 1) " +
+      "SELECT 1";
+
+   static final String MANAGER_PRODUCTS =
+      "SELECT pp.productname, SUM(pp.orderCount) AS orderCount " +
+      "FROM ProductPopularity pp JOIN Store s ON s.storeID = pp.storeID " +
+      "WHERE s.managerID = ? GROUP BY pp.productname ORDER BY orderCount DESC LIMIT ?";
+
+   static final String ALL_PRODUCTS =
+      "SELECT productname, SUM(orderCount) AS orderCount " +
+      "FROM GlobalProductPopularity GROUP BY productname ORDER BY orderCount DESC LIMIT ?";
+
+   static final String MANAGER_CUSTOMERS =
+      "SELECT u.name AS customerName, SUM(cp.orderCount) AS orderCount " +
+      "FROM CustomerPopularity cp JOIN Store s ON s.storeID = cp.storeID JOIN Users u ON u.userID = cp.customerID " +
+      "WHERE s.managerID = ? GROUP BY cp.customerID, u.name ORDER BY orderCount DESC LIMIT ?";
+
+   static final String ALL_CUSTOMERS =
+      "SELECT u.name AS customerName, g.orderCount " +
+      "FROM GlobalCustomerPopularity g JOIN Users u ON u.userID = g.customerID " +
+      "ORDER BY g.orderCount DESC LIMIT ?";
+
+   /**
+    * Counts one order. Call it inside the transaction that inserts the order.
+    *
+    * @param tx the handle of the order transaction
+    * @param storeID the store of the order
+    * @param productName the product ordered
+    * @param customerID the customer who ordered
+    * @throws java.sql.SQLException when failed to update the counters
+    */
+   public static void recordOrder(Amazon tx, int storeID, String productName, int customerID) throws SQLException {
+      tx.executeQuery(RECORD_ORDER, storeID, productName, storeID, customerID,
+                      productName, storeID % SLOTS, customerID);
+   }//end recordOrder
+
+   /**
+    * Counts many orders at once, e.g. a group commit of OrderBatcher: the
+    * counts are summed per counter first, then every table gets one
+    * multi-row upsert, its rows in key order so concurrent batches lock
+    * them in the same order.
+    *
+    * @param tx the handle of the order transaction
+    * @param orders the orders, each { storeID, productName, customerID }
+    * @throws java.sql.SQLException when failed to update the counters
+    */
+   public static void recordOrders(Amazon tx, List<Object[]> orders) throws SQLException {
+      Map<String, Object[]> products = new TreeMap<String, Object[]>();
+      Map<String, Object[]> customers = new TreeMap<String, Object[]>();
+      Map<String, Object[]> globalProducts = new TreeMap<String, Object[]>();
+      Map<String, Object[]> globalCustomers = new TreeMap<String, Object[]>();
+      for (Object[] order : orders) {
+         int storeID = (Integer) order[0];
+         String productName = ProductKey.name((String) order[1]);
+         int customerID = (Integer) order[2];
+         count(products, String.format("%010d %s", storeID, productName), storeID, productName);
+         count(customers, String.format("%010d %010d", storeID, customerID), storeID, customerID);
+         count(globalProducts, String.format("%s %02d", productName, storeID % SLOTS), productName, storeID % SLOTS);
+         count(globalCustomers, String.format("%010d", customerID), customerID);
+      }
+      tx.executeUpdateRows("INSERT INTO ProductPopularity (storeID, productName, orderCount) VALUES ", "(?, ?, ?)",
+                           " ON CONFLICT (storeID, productName) DO UPDATE SET orderCount = ProductPopularity.orderCount + EXCLUDED.orderCount",
+                           new ArrayList<Object[]>(products.values()));
+      tx.executeUpdateRows("INSERT INTO CustomerPopularity (storeID, customerID, orderCount) VALUES ", "(?, ?, ?)",
+                           " ON CONFLICT (storeID, customerID) DO UPDATE SET orderCount = CustomerPopularity.orderCount + EXCLUDED.orderCount",
+                           new ArrayList<Object[]>(customers.values()));
+      tx.executeUpdateRows("INSERT INTO GlobalProductPopularity (productName, slot, orderCount) VALUES ", "(?, ?, ?)",
+                           " ON CONFLICT (productName, slot) DO UPDATE SET orderCount = GlobalProductPopularity.orderCount + EXCLUDED.orderCount",
+                           new ArrayList<Object[]>(globalProducts.values()));
+      tx.executeUpdateRows("INSERT INTO GlobalCustomerPopularity (customerID, orderCount) VALUES ", "(?, ?)",
+                           " ON CONFLICT (customerID) DO UPDATE SET orderCount = GlobalCustomerPopularity.orderCount + EXCLUDED.orderCount",
+                           new ArrayList<Object[]>(globalCustomers.values()));
+   }//end recordOrders
+
+   /**
+    * The orders of a load, counted per product and per customer of each
+    * store as the loader streams them, for recordLoaded.
+    */
+   static class LoadedOrders {
+      // { storeID, productID, count }
+      private final Map<String, Object[]> products = new TreeMap<String, Object[]>();
+      // { storeID, customerID, count }
+      private final Map<String, Object[]> customers = new TreeMap<String, Object[]>();
+      // { customerID, count }
+      private final Map<String, Object[]> globalCustomers = new TreeMap<String, Object[]>();
+
+      // keyed like recordOrders', so the rows are written in key order too
+      void add(int storeID, int productID, int customerID) {
+         count(this.products, String.format("%010d %010d", storeID, productID), storeID, productID);
+         count(this.customers, String.format("%010d %010d", storeID, customerID), storeID, customerID);
+         count(this.globalCustomers, String.format("%010d", customerID), customerID);
+      }
+
+      boolean isEmpty() {
+         return this.products.isEmpty();
+      }
+   }//end LoadedOrders
+
+   /**
+    * Adds the counts of loaded orders to the counters in one transaction.
+    * The loaded rows refer to their products by productID, so the product
+    * counters join Product for the names.
+    *
+    * @param esql the database handle
+    * @param orders the loaded orders
+    * @throws java.sql.SQLException when failed to update the counters
+    */
+   public static void recordLoaded(Amazon esql, final LoadedOrders orders) throws SQLException {
+      final String values = "(CAST(? AS integer), CAST(? AS integer), CAST(? AS integer))";
+      esql.inTransaction(new Amazon.Transaction<Void>() {
+         public Void run(Amazon tx) throws SQLException {
+            for (List<Object[]> rows : chunks(orders.products)) {
+               tx.executeUpdateRows("INSERT INTO ProductPopularity (storeID, productName, orderCount) " +
+                                    "SELECT v.storeID, p.productName, v.n FROM (VALUES ", values,
+                                    ") v (storeID, productID, n), Product p WHERE p.productID = v.productID" +
+                                    " ON CONFLICT (storeID, productName) DO UPDATE SET orderCount = ProductPopularity.orderCount + EXCLUDED.orderCount",
+                                    rows);
+               // the products of stores in one slot may share a name
+               tx.executeUpdateRows("INSERT INTO GlobalProductPopularity (productName, slot, orderCount) " +
+                                    "SELECT p.productName, MOD(v.storeID, " + SLOTS + "), SUM(v.n) FROM (VALUES ", values,
+                                    ") v (storeID, productID, n), Product p WHERE p.productID = v.productID" +
+                                    " GROUP BY p.productName, MOD(v.storeID, " + SLOTS + ")" +
+                                    " ON CONFLICT (productName, slot) DO UPDATE SET orderCount = GlobalProductPopularity.orderCount + EXCLUDED.orderCount",
+                                    rows);
+            }
+            for (List<Object[]> rows : chunks(orders.customers))
+               tx.executeUpdateRows("INSERT INTO CustomerPopularity (storeID, customerID, orderCount) VALUES ", "(?, ?, ?)",
+                                    " ON CONFLICT (storeID, customerID) DO UPDATE SET orderCount = CustomerPopularity.orderCount + EXCLUDED.orderCount",
+                                    rows);
+            for (List<Object[]> rows : chunks(orders.globalCustomers))
+               tx.executeUpdateRows("INSERT INTO GlobalCustomerPopularity (customerID, orderCount) VALUES ", "(?, ?)",
+                                    " ON CONFLICT (customerID) DO UPDATE SET orderCount = GlobalCustomerPopularity.orderCount + EXCLUDED.orderCount",
+                                    rows);
+            return null;
+         }
+      });
+   }//end recordLoaded
+
+   // The counter rows in pieces of at most 1000, each well below the bind parameter limit of a statement.
+   private static List<List<Object[]>> chunks(Map<String, Object[]> counters) {
+      List<Object[]> rows = new ArrayList<Object[]>(counters.values());
+      List<List<Object[]>> chunks = new ArrayList<List<Object[]>>();
+      for (int i = 0; i < rows.size(); i += 1000)
+         chunks.add(rows.subList(i, Math.min(rows.size(), i + 1000)));
+      return chunks;
+   }//end chunks
+
+   // Adds one to the counter row of a key, whose last value is the count.
+   private static void count(Map<String, Object[]> counters, String key, Object... columns) {
+      Object[] row = counters.get(key);
+      if (row == null) {
+         row = Arrays.copyOf(columns, columns.length + 1);
+         row[columns.length] = 0;
+         counters.put(key, row);
+      }
+      row[columns.length] = (Integer) row[columns.length] + 1;
+   }//end count
+
+   /**
+    * Recounts every counter from Orders in one transaction. Orders is locked
+    * against new orders meanwhile, so the counts match it exactly.
+    *
+    * @param esql the database handle
+    * @throws java.sql.SQLException when failed to rebuild the counters
+    */
+   public static void rebuild(Amazon esql) throws SQLException {
+      esql.inTransaction(new Amazon.Transaction<Void>() {
+         public Void run(Amazon tx) throws SQLException {
+            tx.executeUpdate("LOCK TABLE Orders IN SHARE MODE");
+            tx.executeUpdate("TRUNCATE ProductPopularity, CustomerPopularity, GlobalProductPopularity, GlobalCustomerPopularity");
+            tx.executeUpdate("INSERT INTO ProductPopularity (storeID, productName, orderCount) " +
+                             "SELECT o.storeID, p.productName, COUNT(*) FROM Orders o JOIN Product p ON o.productID = p.productID " +
+                             "GROUP BY o.storeID, p.productName");
+            tx.executeUpdate("INSERT INTO CustomerPopularity (storeID, customerID, orderCount) " +
+                             "SELECT storeID, customerID, COUNT(*) FROM Orders GROUP BY storeID, customerID");
+            tx.executeUpdate("INSERT INTO GlobalProductPopularity (productName, slot, orderCount) " +
+                             "SELECT productName, MOD(storeID, " + SLOTS + "), SUM(orderCount) FROM ProductPopularity " +
+                             "GROUP BY productName, MOD(storeID, " + SLOTS + ")");
+            tx.executeUpdate("INSERT INTO GlobalCustomerPopularity (customerID, orderCount) " +
+                             "SELECT customerID, SUM(orderCount) FROM CustomerPopularity GROUP BY customerID");
+            return null;
+         }
+      });
+   }//end rebuild
+
+   /**
+    * The main execution method: recounts the counters from Orders.
+    *
+    * @param args <dbname> <port> <user>
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length != 3) {
+         System.err.println(
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            PopularityRollup.class.getName() +
+            " <dbname> <port> <user>");
+         return;
+      }
+      // use postgres JDBC driver.
+      Class.forName("org.postgresql.Driver");
+      ConnectionPool pool = new ConnectionPool("jdbc:postgresql://localhost:" + args[1] + "/" + args[0], args[2], "", 1);
+      try {
+         Amazon esql = pool.borrow();
+         try {
+            long start = System.nanoTime();
+            rebuild(esql);
+            System.out.printf("Rebuilt the popularity counters in %.2f s%n", (System.nanoTime() - start) / 1e9);
+         } finally {
+            pool.release(esql);
+         }
+      } finally {
+         pool.close();
+      }
+   }//end main
+}//end PopularityRollup
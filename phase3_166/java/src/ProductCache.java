@@ -0,0 +1,269 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class caches the product list of each store, shared by every session
+ * of the process, for viewProducts and the product checks of placeOrder and
+ * updateProduct.
+ *
+ * Products and prices only change through updateProduct, which invalidates
+ * the store, so they are kept until evicted or until the catalog TTL (for
+ * changes made by other processes) runs out. A store loaded while it was
+ * invalidated is not cached, since the load may predate the change. Stock counts change with every
+ * order and must stay authoritative: they are reloaded once older than the
+ * short stock TTL, and this process' own orders and supply requests adjust
+ * them as they commit. A count shown may therefore miss other processes'
+ * writes of the last stock TTL; placeOrder never relies on it, since its
+ * conditional decrement checks the stock in the database.
+ *
+ * Stores are evicted least recently used first once the cache holds more
+ * than its maximum number of products. Settings: -Damazon.productCache.size
+ * (products, default 100000), -Damazon.productCache.stockTtlMs (default 1000)
+ * and -Damazon.productCache.catalogTtlMs (default 300000).
+ *
+ */
+public class ProductCache {
+   private static final String CATALOG_QUERY =
+      "SELECT p.productName, p.numberOFUnits, p.pricePerUnit  FROM PRODUCT p WHERE p.storeID = ?";
+   private static final String STOCK_QUERY =
+      "SELECT p.productName, p.numberOFUnits FROM PRODUCT p WHERE p.storeID = ?";
+   private static final List<String> COLUMNS = Arrays.asList("productname", "numberofunits", "priceperunit");
+
+   private static final ProductCache SHARED = new ProductCache(
+      Integer.getInteger("amazon.productCache.size", 100000),
+      Long.getLong("amazon.productCache.stockTtlMs", 1000L),
+      Long.getLong("amazon.productCache.catalogTtlMs", 300000L));
+
+   /**
+    * A product of a cached store. The name and price are kept as the
+    * database returned them, so listings look the same with or without
+    * the cache.
+    */
+   private static class Product {
+      final String name;
+      final String price;
+      int units;
+
+      Product(String name, int units, String price) {
+         this.name = name;
+         this.units = units;
+         this.price = price;
+      }
+   }//end Product
+
+   // The products of one store, by name without trailing blanks.
+   private static class StoreCatalog {
+      final Map<String, Product> products = new LinkedHashMap<String, Product>();
+      final long loadedAt;
+      long stockLoadedAt;
+
+      StoreCatalog(long now) {
+         this.loadedAt = now;
+         this.stockLoadedAt = now;
+      }
+   }//end StoreCatalog
+
+   private final int maxProducts;
+   private final long stockTtlMillis;
+   private final long catalogTtlMillis;
+   // least recently used store first
+   private final LinkedHashMap<Integer, StoreCatalog> stores = new LinkedHashMap<Integer, StoreCatalog>(16, 0.75f, true);
+   private int size = 0;
+   // the invalidations of each store, and the clears of all, so far
+   private final Map<Integer, Long> generations = new HashMap<Integer, Long>();
+   private long clears = 0;
+
+   // cache metrics
+   private final AtomicLong hits = new AtomicLong();
+   private final AtomicLong misses = new AtomicLong();
+   private final AtomicLong stockRefreshes = new AtomicLong();
+   private final AtomicLong invalidations = new AtomicLong();
+   private final AtomicLong evictions = new AtomicLong();
+
+   public ProductCache(int maxProducts, long stockTtlMillis, long catalogTtlMillis) {
+      this.maxProducts = maxProducts;
+      this.stockTtlMillis = stockTtlMillis;
+      this.catalogTtlMillis = catalogTtlMillis;
+   }//end ProductCache
+
+   // The cache of this process.
+   public static ProductCache shared() {
+      return SHARED;
+   }
+
+   /**
+    * Lists the products of a store, with stock counts at most the stock TTL old.
+    *
+    * @param esql the database handle used on a miss
+    * @param storeID the store
+    * @return the rows of viewProducts
+    * @throws java.sql.SQLException when failed to load the store
+    */
+   public OperationResult products(Amazon esql, int storeID) throws SQLException {
+      // the in-memory stock, when reserved there, is ahead of the database
+      StockReservations reservations = StockReservations.shared();
+      StoreCatalog catalog = catalog(esql, storeID, reservations == null);
+      List<List<String>> rows = new ArrayList<List<String>>();
+      synchronized (this) {
+         for (Product p : catalog.products.values()) {
+            Integer units = reservations == null ? null : reservations.getUnits(storeID, p.name);
+            rows.add(Arrays.asList(p.name, String.valueOf(units == null ? p.units : units), p.price));
+         }
+      }
+      return OperationResult.rows(COLUMNS, rows);
+   }//end products
+
+   /**
+    * Checks that a store sells a product. Stock counts are not refreshed.
+    *
+    * @param esql the database handle used on a miss
+    * @param storeID the store
+    * @param productName the product name
+    * @return true when the store lists the product
+    * @throws java.sql.SQLException when failed to load the store
+    */
+   public boolean hasProduct(Amazon esql, int storeID, String productName) throws SQLException {
+      StoreCatalog catalog = catalog(esql, storeID, false);
+      synchronized (this) {
+         return catalog.products.containsKey(ProductKey.name(productName));
+      }
+   }//end hasProduct
+
+   /**
+    * Applies a committed stock change, e.g. -3 after an order of 3 units.
+    * Nothing happens when the store is not cached.
+    */
+   public synchronized void adjustUnits(int storeID, String productName, int delta) {
+      StoreCatalog catalog = this.stores.get(storeID);
+      Product p = catalog == null ? null : catalog.products.get(ProductKey.name(productName));
+      if (p != null)
+         p.units += delta;
+   }//end adjustUnits
+
+   // Drops a store, e.g. after its prices changed.
+   public synchronized void invalidate(int storeID) {
+      this.generations.merge(storeID, 1L, Long::sum);
+      StoreCatalog catalog = this.stores.remove(storeID);
+      if (catalog != null) {
+         this.size -= catalog.products.size();
+         this.invalidations.incrementAndGet();
+      }
+   }//end invalidate
+
+   public synchronized void clear() {
+      ++this.clears;
+      this.stores.clear();
+      this.size = 0;
+   }//end clear
+
+   /**
+    * Returns the cached catalog of a store, loading it on a miss or once the
+    * catalog TTL ran out, and reloading its stock counts when they are older
+    * than the stock TTL and fresh counts are needed. The queries run
+    * outside the lock, so a slow store never blocks the others.
+    */
+   private StoreCatalog catalog(Amazon esql, int storeID, boolean freshStock) throws SQLException {
+      long now = System.currentTimeMillis();
+      StoreCatalog catalog;
+      long generation;
+      synchronized (this) {
+         generation = generation(storeID);
+         catalog = this.stores.get(storeID);
+         if (catalog != null && now - catalog.loadedAt > this.catalogTtlMillis) {
+            this.stores.remove(storeID);
+            this.size -= catalog.products.size();
+            catalog = null;
+         }
+      }
+
+      if (catalog == null) {
+         this.misses.incrementAndGet();
+         catalog = new StoreCatalog(now);
+         for (List<String> row : esql.executeQueryAndReturnResult(CATALOG_QUERY, storeID))
+            catalog.products.put(ProductKey.name(row.get(0)), new Product(row.get(0), Integer.parseInt(row.get(1).trim()), row.get(2)));
+         put(storeID, catalog, generation);
+         return catalog;
+      }
+
+      this.hits.incrementAndGet();
+      if (freshStock && now - catalog.stockLoadedAt > this.stockTtlMillis) {
+         this.stockRefreshes.incrementAndGet();
+         List<List<String>> rows = esql.executeQueryAndReturnResult(STOCK_QUERY, storeID);
+         synchronized (this) {
+            for (List<String> row : rows) {
+               Product p = catalog.products.get(ProductKey.name(row.get(0)));
+               if (p != null)
+                  p.units = Integer.parseInt(row.get(1).trim());
+            }
+            catalog.stockLoadedAt = now;
+         }
+      }
+      return catalog;
+   }//end catalog
+
+   // The number of times a store was invalidated or the cache cleared.
+   private long generation(int storeID) {
+      Long invalidations = this.generations.get(storeID);
+      return this.clears + (invalidations == null ? 0 : invalidations);
+   }//end generation
+
+   // Caches a loaded store, unless it was invalidated since generation was read.
+   private synchronized void put(int storeID, StoreCatalog catalog, long generation) {
+      if (generation(storeID) != generation)
+         return;
+      StoreCatalog old = this.stores.put(storeID, catalog);
+      if (old != null)
+         this.size -= old.products.size();
+      this.size += catalog.products.size();
+      Iterator<Map.Entry<Integer, StoreCatalog>> it = this.stores.entrySet().iterator();
+      while (this.size > this.maxProducts && it.hasNext()) {
+         Map.Entry<Integer, StoreCatalog> eldest = it.next();
+         if (eldest.getValue() == catalog)
+            continue;
+         this.size -= eldest.getValue().products.size();
+         it.remove();
+         this.evictions.incrementAndGet();
+      }
+   }//end put
+
+   public long getHits() {
+      return this.hits.get();
+   }
+
+   public long getMisses() {
+      return this.misses.get();
+   }
+
+   public double getHitRatio() {
+      long total = this.hits.get() + this.misses.get();
+      return total == 0 ? 0.0 : (double) this.hits.get() / total;
+   }
+
+   // One line summary of the cache metrics.
+   public synchronized String describe() {
+      return String.format("productCache stores=%d products=%d max=%d hits=%d misses=%d hitRatio=%.3f " +
+                           "stockRefreshes=%d invalidations=%d evictions=%d",
+                           this.stores.size(), this.size, this.maxProducts, getHits(), getMisses(), getHitRatio(),
+                           this.stockRefreshes.get(), this.invalidations.get(), this.evictions.get());
+   }//end describe
+}//end ProductCache
@@ -0,0 +1,43 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+/**
+ * This class gives a product the key it is kept under in memory, by
+ * ProductCache, PopularityRollup, OrderBatcher, StockReservations,
+ * SupplyFulfillment and ReplenishmentPlanner.
+ *
+ * A v1 database keeps product names in char(30) columns, which read back
+ * with trailing blanks, while v2 names are varchar(30); the key drops the
+ * blanks so a product has one key however its name was read. This only
+ * bridges the migration: once SchemaMigrator contract has rtrimmed the
+ * columns of every database, name returns its argument unchanged and goes,
+ * and of becomes the storeID and the name alone.
+ *
+ */
+public class ProductKey {
+   private ProductKey() {
+   }
+
+   // A product name without the blanks of a v1 char(30) column.
+   static String name(String productName) {
+      int end = productName.length();
+      while (end > 0 && productName.charAt(end - 1) == ' ')
+         --end;
+      return productName.substring(0, end);
+   }//end name
+
+   // The key of a product of a store, ordered by storeID, then name.
+   static String of(int storeID, String productName) {
+      return String.format("%010d %s", storeID, name(productName));
+   }//end of
+}//end ProductKey
@@ -0,0 +1,147 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class finds where a product can be bought near a location: the
+ * products whose name starts with or resembles a text, in the stores within
+ * a radius, with enough units, cheapest first. A page is one statement:
+ *
+ *    names   the distinct product names, read off product_search_idx with
+ *            one index probe per name (a loose index scan), then matched by
+ *            case-insensitive prefix or by trigram similarity (pg_trgm's %
+ *            operator). Every store sells the same names, so they are
+ *            matched once each rather than once per Product row
+ *    stores  per matching name, its cheapest products with enough units in
+ *            the stores of StoreLocator's bounding box and radius. With the
+ *            box inlined the planner either walks product_search_idx in
+ *            price order, checking each row's store, or reads the products
+ *            of the stores in the box by primary key, whichever it finds
+ *            cheaper for the box
+ *    page    the cheapest of those after the cursor of the previous page
+ *
+ * Pages are keyed by (pricePerUnit, productID), so a later page costs the
+ * same as the first. Stock is read from Product, so with stock reservations
+ * it may be up to one write-back behind.
+ *
+ */
+public class ProductSearch {
+   // the rows of one page.
+   public static final int PAGE_SIZE = 10;
+
+   private static final String QUERY =
+      "WITH RECURSIVE catalog(productName) AS ( " +
+      "(SELECT productName FROM Product ORDER BY productName LIMIT 1) " +
+      "UNION ALL " +
+      "SELECT (SELECT p.productName FROM Product p WHERE p.productName > c.productName ORDER BY p.productName LIMIT 1) " +
+      "FROM catalog c WHERE c.productName IS NOT NULL), " +
+      "names AS (SELECT productName FROM catalog WHERE lower(productName) LIKE ? OR lower(productName) % ?) " +
+      "SELECT m.productID, m.storeID, m.productName, m.pricePerUnit, m.numberOfUnits, m.distance " +
+      "FROM names n CROSS JOIN LATERAL (" +
+      "SELECT p.productID, p.storeID, p.productName, p.pricePerUnit, p.numberOfUnits, " +
+      "round(CAST(SQRT(POW(s.latitude - ?, 2) + POW(s.longitude - ?, 2)) AS numeric), 2) AS distance " +
+      "FROM Product p JOIN Store s ON s.storeID = p.storeID " +
+      "WHERE p.productName = n.productName AND p.numberOfUnits >= ? AND (p.pricePerUnit, p.productID) > (?, ?) " +
+      "AND s.latitude BETWEEN ? AND ? AND s.longitude BETWEEN ? AND ? " +
+      "AND (SQRT(POW(s.latitude - ?, 2) + POW(s.longitude - ?, 2)) < ?) " +
+      "ORDER BY p.pricePerUnit, p.productID LIMIT ?) m " +
+      "ORDER BY m.pricePerUnit, m.productID LIMIT ?";
+
+   /**
+    * Where a page starts: after the product with this price and productID.
+    * It is shown as price:productID, e.g. 2.50:1234.
+    */
+   public static class Cursor {
+      // before every product: prices are not negative
+      static final Cursor FIRST = new Cursor(BigDecimal.ONE.negate(), 0);
+
+      public final BigDecimal price;
+      public final int productID;
+
+      public Cursor(BigDecimal price, int productID) {
+         this.price = price;
+         this.productID = productID;
+      }
+
+      /**
+       * Parses a cursor shown after a page.
+       *
+       * @param text the cursor, e.g. 2.50:1234
+       * @return the cursor
+       * @throws java.lang.IllegalArgumentException when it is not a cursor
+       */
+      public static Cursor parse(String text) {
+         int colon = text.indexOf(':');
+         if (colon < 0)
+            throw new IllegalArgumentException("A page cursor looks like 2.50:1234, not " + text);
+         return new Cursor(new BigDecimal(text.substring(0, colon).trim()), Integer.parseInt(text.substring(colon + 1).trim()));
+      }
+
+      public String toString() {
+         return this.price.toPlainString() + ":" + this.productID;
+      }
+   }//end Cursor
+
+   /**
+    * Finds the cheapest products named like text near a location.
+    *
+    * @param esql the database handle
+    * @param latitude the latitude of the location
+    * @param longitude the longitude of the location
+    * @param text the start of the product name, or a name like it
+    * @param radius the search radius
+    * @param minUnits the fewest units a product must have in stock
+    * @param after the cursor of the previous page, or null for the first
+    * @param limit the rows wanted
+    * @return at most limit products, cheapest first
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public static OperationResult search(Amazon esql, double latitude, double longitude, String text, double radius,
+                                        int minUnits, Cursor after, int limit) throws SQLException {
+      String lower = text.trim().toLowerCase();
+      // the text is matched literally; backslash is LIKE's escape character
+      String prefix = lower.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%";
+      Cursor from = after == null ? Cursor.FIRST : after;
+      return OperationResult.query(esql, QUERY, prefix, lower,
+         latitude, longitude, minUnits, from.price, from.productID,
+         latitude - radius, latitude + radius, longitude - radius, longitude + radius,
+         latitude, longitude, radius, limit, limit);
+   }//end search
+
+   /**
+    * Cuts a search of PAGE_SIZE + 1 rows to a page; the extra row only
+    * tells that there is a next page, whose cursor is then the message.
+    *
+    * @param result the result of the search
+    * @return the page
+    */
+   public static OperationResult page(OperationResult result) {
+      if (!result.isOk())
+         return result;
+      List<List<String>> rows = result.getRows();
+      if (rows.isEmpty())
+         return result.withMessage("No products found.");
+      if (rows.size() <= PAGE_SIZE)
+         return result;
+      List<String> columns = result.getColumns();
+      List<String> last = rows.get(PAGE_SIZE - 1);
+      Cursor next = new Cursor(new BigDecimal(last.get(columns.indexOf("priceperunit")).trim()),
+                               Integer.parseInt(last.get(columns.indexOf("productid")).trim()));
+      return OperationResult.rows(columns, new ArrayList<List<String>>(rows.subList(0, PAGE_SIZE)))
+                            .withMessage("More products: search again starting after " + next);
+   }//end page
+}//end ProductSearch
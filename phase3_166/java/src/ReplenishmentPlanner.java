@@ -0,0 +1,495 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class places supply requests for products about to run out, before
+ * a customer finds the shelf empty.
+ *
+ * The planner never scans Product. Each cycle it reads the orders placed
+ * since the last cycle off the index on Orders(orderTime, orderNumber) and
+ * folds them into the depletion rate of their products: an exponentially
+ * decayed rate of units per day, with a time constant of the rate window
+ * (default 7 days), so old sales count less and less. The first cycle
+ * reads three windows back, far enough for the rates to reach 95% of
+ * their steady value. Only the products these orders touched are then
+ * planned, a chunk of keys at a time: their stock, their store and the
+ * units already requested and still pending. A product whose stock and
+ * pending units cover less than the lead time at its rate gets a request
+ * for enough units to last the target days.
+ *
+ * Each request goes to the warehouse nearest the store that has capacity
+ * left. The capacity of a warehouse is proportional to its area: it may
+ * hold area * unitsPerArea units pending at once. A product that no
+ * warehouse can take stays to be planned again the next cycle. The
+ * requests of a cycle are inserted in bulk and SupplyFulfillment, when it
+ * runs in this process, is told of their warehouses.
+ *
+ * Orders are read again for a few minutes behind the watermark, since an
+ * order's time is taken before it commits; the order numbers seen there
+ * are remembered so none is counted twice. Only one planner may run
+ * against a database.
+ *
+ * The planner is off unless started: -Damazon.replenish=true, with
+ * -Damazon.replenish.intervalSeconds (default 60), leadDays (3),
+ * targetDays (14), rateWindowDays (7) and unitsPerArea (10) under the
+ * same prefix; see startIfEnabled. main runs it as a process of its own,
+ * one per shard when the stores are sharded (ShardMap refuses the server's).
+ *
+ */
+public class ReplenishmentPlanner {
+   private static volatile ReplenishmentPlanner shared;
+
+   private static final long DAY_MILLIS = 24L * 3600 * 1000;
+   // orders are read again this far behind the watermark
+   private static final long OVERLAP_MILLIS = 5 * 60 * 1000;
+   // the most keys planned by one query
+   private static final int CHUNK = 1024;
+   // rates below this many units a day are forgotten
+   private static final double MIN_RATE = 0.01;
+
+   private static final String NEW_ORDERS =
+      "SELECT o.orderNumber, o.storeID, p.productName, o.unitsOrdered, o.orderTime FROM Orders o " +
+      "JOIN Product p ON o.productID = p.productID WHERE o.orderTime > ? ORDER BY o.orderTime, o.orderNumber";
+   private static final String WAREHOUSES = "SELECT WarehouseID, area, latitude, longitude FROM Warehouse";
+   private static final String WAREHOUSE_PENDING =
+      "SELECT warehouseID, SUM(unitsRequested) FROM ProductSupplyRequests WHERE status = 'pending' GROUP BY warehouseID";
+   private static final String INSERT_REQUESTS =
+      "INSERT INTO ProductSupplyRequests (managerID, warehouseID, storeID, productName, unitsRequested, status, requestedOn) VALUES ";
+
+   /**
+    * A product with orders: its decayed depletion rate, in units a day, as
+    * of the time of its last order.
+    */
+   static class Sku {
+      final int storeID;
+      final String productName;
+      double rate;
+      long last;
+
+      Sku(int storeID, String productName) {
+         this.storeID = storeID;
+         this.productName = productName;
+      }
+
+      // Counts an order of the given units at the given time.
+      void order(int units, long time, double tauMillis) {
+         if (time > this.last) {
+            this.rate *= Math.exp(-(time - this.last) / tauMillis);
+            this.last = time;
+         }
+         this.rate += units * DAY_MILLIS / tauMillis;
+      }
+
+      // The rate at the given time.
+      double rateAt(long time, double tauMillis) {
+         return time <= this.last ? this.rate : this.rate * Math.exp(-(time - this.last) / tauMillis);
+      }
+   }//end Sku
+
+   /**
+    * A warehouse and the units it can still take.
+    */
+   static class Warehouse {
+      final int warehouseID;
+      final double latitude;
+      final double longitude;
+      long free;
+
+      Warehouse(int warehouseID, double latitude, double longitude, long free) {
+         this.warehouseID = warehouseID;
+         this.latitude = latitude;
+         this.longitude = longitude;
+         this.free = free;
+      }
+   }//end Warehouse
+
+   private final ConnectionPool pool;
+   private final int leadDays;
+   private final int targetDays;
+   private final double tauMillis;
+   private final int unitsPerArea;
+   private final Map<String, Sku> skus = new HashMap<String, Sku>();
+   // the products to plan, in the order their orders came
+   private final Map<String, Sku> dirty = new LinkedHashMap<String, Sku>();
+   // the orders read within OVERLAP_MILLIS of the watermark, oldest first
+   private final ArrayDeque<long[]> recentOrders = new ArrayDeque<long[]>();
+   private final Set<Integer> recentNumbers = new HashSet<Integer>();
+   private long watermark;
+   private ScheduledExecutorService scheduler;
+
+   // planning metrics
+   private final AtomicLong cycles = new AtomicLong();
+   private final AtomicLong ordersRead = new AtomicLong();
+   private final AtomicLong skusPlanned = new AtomicLong();
+   private final AtomicLong requestsPlaced = new AtomicLong();
+   private final AtomicLong unitsRequested = new AtomicLong();
+   private final AtomicLong deferred = new AtomicLong();
+   private volatile long lastCycleMillis;
+
+   /**
+    * @param pool the pool each cycle borrows its connection from
+    * @param leadDays the days of stock below which a product is restocked
+    * @param targetDays the days of stock a request brings a product to
+    * @param rateWindowDays the time constant of the depletion rates
+    * @param unitsPerArea the units pending at a warehouse per unit of its area
+    */
+   public ReplenishmentPlanner(ConnectionPool pool, int leadDays, int targetDays, int rateWindowDays, int unitsPerArea) {
+      this.pool = pool;
+      this.leadDays = leadDays;
+      this.targetDays = targetDays;
+      this.tauMillis = (double) rateWindowDays * DAY_MILLIS;
+      this.unitsPerArea = unitsPerArea;
+      this.watermark = System.currentTimeMillis() - 3L * rateWindowDays * DAY_MILLIS;
+   }//end ReplenishmentPlanner
+
+   // The planner of this process, or null when it is off.
+   public static ReplenishmentPlanner shared() {
+      return shared;
+   }
+
+   /**
+    * Starts the process' planner when -Damazon.replenish=true.
+    *
+    * @param pool the pool each cycle borrows its connection from
+    */
+   public static synchronized void startIfEnabled(ConnectionPool pool) {
+      if (shared != null || !Boolean.getBoolean("amazon.replenish"))
+         return;
+      shared = new ReplenishmentPlanner(pool, Integer.getInteger("amazon.replenish.leadDays", 3),
+                                        Integer.getInteger("amazon.replenish.targetDays", 14),
+                                        Integer.getInteger("amazon.replenish.rateWindowDays", 7),
+                                        Integer.getInteger("amazon.replenish.unitsPerArea", 10));
+      shared.start(Long.getLong("amazon.replenish.intervalSeconds", 60L));
+   }//end startIfEnabled
+
+   // Runs a cycle now and then every intervalSeconds after the last one ended.
+   public void start(long intervalSeconds) {
+      this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "replenishment-planner");
+         t.setDaemon(true);
+         return t;
+      });
+      this.scheduler.scheduleWithFixedDelay(() -> {
+         try {
+            cycle();
+         } catch (Exception e) {
+            System.err.println("Replenishment planning failed: " + e.getMessage());
+         }
+      }, 0, intervalSeconds, TimeUnit.SECONDS);
+   }//end start
+
+   /**
+    * Reads the new orders, plans the products they touched and places the
+    * requests.
+    *
+    * @return the number of requests placed
+    * @throws java.sql.SQLException when the database could not be read or written
+    */
+   public synchronized int cycle() throws SQLException {
+      long start = System.nanoTime();
+      Object token = Metrics.shared().begin("replenishmentPlan");
+      OperationResult.Status status = OperationResult.Status.ERROR;
+      Amazon esql = this.pool.borrow();
+      try {
+         readOrders(esql);
+         int placed = plan(esql);
+         forgetIdle();
+         this.cycles.incrementAndGet();
+         status = OperationResult.Status.OK;
+         return placed;
+      } finally {
+         this.pool.release(esql);
+         this.lastCycleMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+         Metrics.shared().end(token, System.nanoTime() - start, status);
+      }
+   }//end cycle
+
+   // Folds the orders since the watermark into the rates and marks their products.
+   private void readOrders(Amazon esql) throws SQLException {
+      long from = this.watermark - OVERLAP_MILLIS;
+      long newest = this.watermark;
+      try (RowCursor rows = esql.openCursor(10000, NEW_ORDERS, new Timestamp(from))) {
+         while (rows.next()) {
+            int orderNumber = rows.getInt(1);
+            long time = rows.getTimestamp(5).getTime();
+            if (!this.recentNumbers.add(orderNumber))
+               continue;
+            this.recentOrders.add(new long[] { time, orderNumber });
+            String key = ProductKey.of(rows.getInt(2), rows.getString(3));
+            Sku sku = this.skus.get(key);
+            if (sku == null) {
+               sku = new Sku(rows.getInt(2), rows.getString(3));
+               this.skus.put(key, sku);
+            }
+            sku.order(rows.getInt(4), time, this.tauMillis);
+            this.dirty.put(key, sku);
+            newest = Math.max(newest, time);
+            this.ordersRead.incrementAndGet();
+            forgetOrdersBefore(newest - OVERLAP_MILLIS);
+         }
+      }
+      this.watermark = newest;
+   }//end readOrders
+
+   // Forgets the order numbers read before the overlap, which are never read again.
+   private void forgetOrdersBefore(long time) {
+      while (!this.recentOrders.isEmpty() && this.recentOrders.peek()[0] <= time)
+         this.recentNumbers.remove((int) this.recentOrders.poll()[1]);
+   }//end forgetOrdersBefore
+
+   /**
+    * Plans the marked products a chunk at a time and places their requests.
+    *
+    * @return the number of requests placed
+    */
+   private int plan(Amazon esql) throws SQLException {
+      if (this.dirty.isEmpty())
+         return 0;
+      Map<Integer, Warehouse> warehouses = loadWarehouses(esql);
+      StockReservations reservations = StockReservations.shared();
+      long now = System.currentTimeMillis();
+      List<Object[]> requests = new ArrayList<Object[]>();
+      Set<Integer> used = new TreeSet<Integer>();
+      Map<Integer, int[]> routes = new HashMap<Integer, int[]>();
+      Map<String, Sku> remaining = new LinkedHashMap<String, Sku>();
+
+      List<Sku> chunk = new ArrayList<Sku>(CHUNK);
+      Iterator<Sku> it = this.dirty.values().iterator();
+      while (it.hasNext()) {
+         chunk.add(it.next());
+         if (chunk.size() < CHUNK && it.hasNext())
+            continue;
+         for (List<String> row : stock(esql, chunk)) {
+            int storeID = Integer.parseInt(row.get(0).trim());
+            String key = ProductKey.of(storeID, row.get(1));
+            Sku sku = this.skus.get(key);
+            if (sku == null)
+               continue;
+            this.skusPlanned.incrementAndGet();
+            int units = Integer.parseInt(row.get(2).trim());
+            if (reservations != null) {
+               Integer reserved = reservations.getUnits(storeID, sku.productName);
+               if (reserved != null)
+                  units = reserved;
+            }
+            long pending = Long.parseLong(row.get(6).trim());
+            double rate = sku.rateAt(now, this.tauMillis);
+            if (units + pending >= rate * this.leadDays)
+               continue;
+            long wanted = (long) Math.ceil(rate * this.targetDays) - units - pending;
+            if (wanted < 1)
+               continue;
+
+            // the nearest warehouse of the store that can take it
+            int[] order = routes.get(storeID);
+            if (order == null) {
+               order = nearestFirst(warehouses, Double.parseDouble(row.get(4)), Double.parseDouble(row.get(5)));
+               routes.put(storeID, order);
+            }
+            Warehouse chosen = null;
+            for (int warehouseID : order) {
+               Warehouse w = warehouses.get(warehouseID);
+               if (w.free >= wanted) {
+                  chosen = w;
+                  break;
+               }
+            }
+            if (chosen == null) {
+               this.deferred.incrementAndGet();
+               remaining.put(key, sku);
+               continue;
+            }
+            chosen.free -= wanted;
+            used.add(chosen.warehouseID);
+            requests.add(new Object[] { Integer.parseInt(row.get(3).trim()), chosen.warehouseID, storeID, sku.productName,
+                                        (int) Math.min(Integer.MAX_VALUE, wanted), SupplyFulfillment.PENDING,
+                                        new Timestamp(now) });
+            this.unitsRequested.addAndGet(wanted);
+         }
+         chunk.clear();
+      }
+
+      if (!requests.isEmpty())
+         esql.executeUpdateRows(INSERT_REQUESTS, "(?, ?, ?, ?, ?, ?, ?)", "", requests);
+      this.requestsPlaced.addAndGet(requests.size());
+      this.dirty.clear();
+      this.dirty.putAll(remaining);
+
+      SupplyFulfillment fulfillment = SupplyFulfillment.shared();
+      if (fulfillment != null)
+         for (int warehouseID : used)
+            fulfillment.wake(warehouseID);
+      return requests.size();
+   }//end plan
+
+   /**
+    * The stock of a chunk of products, with their store's manager and
+    * location and their pending requested units.
+    */
+   private static List<List<String>> stock(Amazon esql, List<Sku> chunk) throws SQLException {
+      List<List<String>> rows = new ArrayList<List<String>>();
+      int done = 0;
+      while (done < chunk.size()) {
+         int n = Integer.highestOneBit(chunk.size() - done);
+         StringBuilder sql = new StringBuilder(
+            "SELECT p.storeID, p.productName, p.numberOfUnits, s.managerID, s.latitude, s.longitude, " +
+            "(SELECT COALESCE(SUM(r.unitsRequested), 0) FROM ProductSupplyRequests r " +
+            "WHERE r.storeID = p.storeID AND r.productName = p.productName AND r.status = 'pending') " +
+            "FROM Product p JOIN Store s ON s.storeID = p.storeID WHERE (p.storeID, p.productName) IN (");
+         List<Object> params = new ArrayList<Object>();
+         for (int i = 0; i < n; ++i) {
+            sql.append(i == 0 ? "(?, ?)" : ", (?, ?)");
+            params.add(chunk.get(done + i).storeID);
+            params.add(chunk.get(done + i).productName);
+         }
+         rows.addAll(esql.executeQueryAndReturnResult(sql.append(")").toString(), params.toArray()));
+         done += n;
+      }
+      return rows;
+   }//end stock
+
+   // Every warehouse with the units it can still take: its capacity less its pending units.
+   private Map<Integer, Warehouse> loadWarehouses(Amazon esql) throws SQLException {
+      Map<Integer, Long> pending = new HashMap<Integer, Long>();
+      for (List<String> row : esql.executeQueryAndReturnResult(WAREHOUSE_PENDING))
+         pending.put(Integer.parseInt(row.get(0).trim()), Long.parseLong(row.get(1).trim()));
+      Map<Integer, Warehouse> warehouses = new HashMap<Integer, Warehouse>();
+      for (List<String> row : esql.executeQueryAndReturnResult(WAREHOUSES)) {
+         int warehouseID = Integer.parseInt(row.get(0).trim());
+         // a warehouse without an area takes nothing
+         long capacity = row.get(1) == null ? 0 : Long.parseLong(row.get(1).trim()) * this.unitsPerArea;
+         Long held = pending.get(warehouseID);
+         warehouses.put(warehouseID, new Warehouse(warehouseID, Double.parseDouble(row.get(2)), Double.parseDouble(row.get(3)),
+                                                   capacity - (held == null ? 0 : held)));
+      }
+      return warehouses;
+   }//end loadWarehouses
+
+   // The warehouse IDs by their distance from a store, nearest first, ties by ID.
+   private static int[] nearestFirst(Map<Integer, Warehouse> warehouses, final double latitude, final double longitude) {
+      List<Warehouse> sorted = new ArrayList<Warehouse>(warehouses.values());
+      sorted.sort((a, b) -> {
+         int c = Double.compare(distance(a, latitude, longitude), distance(b, latitude, longitude));
+         return c != 0 ? c : Integer.compare(a.warehouseID, b.warehouseID);
+      });
+      int[] order = new int[sorted.size()];
+      for (int i = 0; i < order.length; ++i)
+         order[i] = sorted.get(i).warehouseID;
+      return order;
+   }//end nearestFirst
+
+   // The same euclidean distance as Amazon.calculateDistance.
+   private static double distance(Warehouse w, double latitude, double longitude) {
+      double t1 = (w.latitude - latitude) * (w.latitude - latitude);
+      double t2 = (w.longitude - longitude) * (w.longitude - longitude);
+      return Math.sqrt(t1 + t2);
+   }//end distance
+
+   // Drops the products whose rate has decayed to nothing.
+   private void forgetIdle() {
+      long now = System.currentTimeMillis();
+      Iterator<Map.Entry<String, Sku>> it = this.skus.entrySet().iterator();
+      while (it.hasNext()) {
+         Map.Entry<String, Sku> e = it.next();
+         if (e.getValue().rateAt(now, this.tauMillis) < MIN_RATE && !this.dirty.containsKey(e.getKey()))
+            it.remove();
+      }
+   }//end forgetIdle
+
+   // Stops the cycles, once the current one is done.
+   public void stop() throws InterruptedException {
+      if (this.scheduler != null) {
+         this.scheduler.shutdown();
+         this.scheduler.awaitTermination(1, TimeUnit.MINUTES);
+      }
+   }//end stop
+
+   // One line summary of the planning metrics.
+   public String describe() {
+      return String.format("replenishment cycles=%d lastCycleMs=%d ordersRead=%d skusTracked=%d skusPlanned=%d " +
+                           "requests=%d units=%d deferred=%d",
+                           this.cycles.get(), this.lastCycleMillis, this.ordersRead.get(), this.skus.size(),
+                           this.skusPlanned.get(), this.requestsPlaced.get(), this.unitsRequested.get(), this.deferred.get());
+   }//end describe
+
+   /**
+    * Runs the planner as a process of its own: one cycle with --once,
+    * otherwise every --interval-seconds until it is killed.
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println(
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            ReplenishmentPlanner.class.getName() +
+            " <dbname> <port> <user> [--once] [--interval-seconds N] [--lead-days N] [--target-days N]" +
+            " [--rate-window-days N] [--units-per-area N]");
+         return;
+      }
+      boolean once = false;
+      long interval = 60;
+      int lead = 3;
+      int target = 14;
+      int window = 7;
+      int perArea = 10;
+      for (int i = 3; i < args.length; ++i) {
+         switch (args[i]) {
+            case "--once": once = true; break;
+            case "--interval-seconds": interval = Long.parseLong(args[++i]); break;
+            case "--lead-days": lead = Integer.parseInt(args[++i]); break;
+            case "--target-days": target = Integer.parseInt(args[++i]); break;
+            case "--rate-window-days": window = Integer.parseInt(args[++i]); break;
+            case "--units-per-area": perArea = Integer.parseInt(args[++i]); break;
+            default: throw new IllegalArgumentException("Unknown option " + args[i]);
+         }
+      }
+
+      // use postgres JDBC driver.
+      Class.forName("org.postgresql.Driver");
+      String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+      ConnectionPool pool = new ConnectionPool(url, args[2], "", 1);
+      try {
+         Metrics.start();
+         shared = new ReplenishmentPlanner(pool, lead, target, window, perArea);
+         if (once) {
+            System.out.println("Placed " + shared.cycle() + " supply requests");
+            System.out.println(shared.describe());
+            return;
+         }
+         shared.start(interval);
+         while (true) {
+            Thread.sleep(60000);
+            System.err.println(shared.describe());
+         }
+      } finally {
+         pool.close();
+      }
+   }//end main
+}//end ReplenishmentPlanner
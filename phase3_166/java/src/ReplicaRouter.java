@@ -0,0 +1,260 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class sends the read-only commands (Command.readsReplica: the store
+ * list, the recent orders and updates and the popularity dashboards) to
+ * streaming replicas of the primary, so they do not take connections and
+ * CPU from checkout. Every other command runs on the primary.
+ *
+ *    staleness  every check interval the primary's WAL position is sampled,
+ *               then each replica's replayed position; a replica holds
+ *               everything committed before the last sample it has
+ *               replayed, so its staleness is the age of that sample
+ *    bound      a replica staler than -Damazon.replica.maxLagMs, or whose
+ *               last check failed, gets no reads until it catches up
+ *    own writes after a session's write succeeds its WAL position is kept
+ *               in the session (Session.noteWriteLsn), and its reads only
+ *               go to replicas that have replayed that far
+ *
+ * A read goes to the least busy replica that qualifies, otherwise to the
+ * primary, and so does a read whose replica fails. viewProducts stays on
+ * the primary: it is served from the process' ProductCache, whose
+ * invalidation would not hold for stores filled from a stale replica.
+ *
+ * -Damazon.replicas lists the replicas as host:port, using the primary's
+ * database and login, or as full JDBC URLs, separated by commas; e.g. two
+ * local instances: -Damazon.replicas=localhost:5433. The check interval is
+ * -Damazon.replica.checkMs (default 200), the staleness bound
+ * -Damazon.replica.maxLagMs (default 1000).
+ *
+ */
+public class ReplicaRouter {
+   private static volatile ReplicaRouter shared;
+
+   /**
+    * A replica, its pool and its last check.
+    */
+   static class Replica {
+      final String url;
+      final ConnectionPool pool;
+      volatile boolean up = false;
+      volatile long replayLsn = 0;
+      volatile long staleMillis = Long.MAX_VALUE;
+      final AtomicLong reads = new AtomicLong();
+
+      Replica(String url, ConnectionPool pool) {
+         this.url = url;
+         this.pool = pool;
+      }
+   }//end Replica
+
+   private final ConnectionPool primary;
+   private final List<Replica> replicas = new ArrayList<Replica>();
+   private final long maxLagMillis;
+   // the primary's WAL position over time, oldest first: { time, lsn }
+   private final ArrayDeque<long[]> samples = new ArrayDeque<long[]>();
+   private final long sampleWindowMillis;
+   private final ScheduledExecutorService checker;
+
+   // routing metrics
+   private final AtomicLong primaryReads = new AtomicLong();
+   private final AtomicLong staleFallbacks = new AtomicLong();
+   private final AtomicLong ownWriteFallbacks = new AtomicLong();
+   private final AtomicLong failures = new AtomicLong();
+
+   /**
+    * Opens a pool per replica, of the primary pool's size, and starts the
+    * checks.
+    *
+    * @param primary the primary's pool
+    * @param urls the replicas' JDBC URLs
+    * @param maxLagMillis the staleness bound of the replicas read from
+    * @param checkMillis the interval of the checks
+    */
+   public ReplicaRouter(ConnectionPool primary, List<String> urls, long maxLagMillis, long checkMillis) {
+      this.primary = primary;
+      this.maxLagMillis = maxLagMillis;
+      this.sampleWindowMillis = Math.max(60000, 4 * maxLagMillis);
+      for (String url : urls)
+         this.replicas.add(new Replica(url, primary.withUrl(url, primary.getMaxSize())));
+
+      this.checker = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "replica-checker");
+         t.setDaemon(true);
+         return t;
+      });
+      check();
+      this.checker.scheduleWithFixedDelay(this::check, checkMillis, checkMillis, TimeUnit.MILLISECONDS);
+   }//end ReplicaRouter
+
+   // The router of this process, or null when there are no replicas.
+   public static ReplicaRouter shared() {
+      return shared;
+   }
+
+   /**
+    * Starts routing reads when -Damazon.replicas names replicas.
+    *
+    * @param pool the primary's pool
+    */
+   public static synchronized void startIfEnabled(ConnectionPool pool) {
+      String list = System.getProperty("amazon.replicas", "").trim();
+      if (shared != null || list.isEmpty())
+         return;
+      List<String> urls = new ArrayList<String>();
+      for (String replica : list.split(",")) {
+         replica = replica.trim();
+         if (!replica.isEmpty())
+            // host:port stands for the primary's URL with that server
+            urls.add(replica.startsWith("jdbc:") ? replica : pool.getUrl().replaceFirst("//[^/]*/", "//" + replica + "/"));
+      }
+      shared = new ReplicaRouter(pool, urls, Long.getLong("amazon.replica.maxLagMs", 1000L),
+                                 Long.getLong("amazon.replica.checkMs", 200L));
+   }//end startIfEnabled
+
+   /**
+    * Picks the pool a read-only command of a session runs on.
+    *
+    * @param session the session, or null
+    * @return the pool of a replica fresh enough for the session, or null
+    *         for the primary
+    */
+   public ConnectionPool route(Session session) {
+      // a session whose profile must be reloaded reads it from the primary
+      long needed = session == null ? 0 : session.isStale() ? Long.MAX_VALUE : session.getWriteLsn();
+      Replica best = null;
+      boolean fresh = false;
+      for (Replica r : this.replicas) {
+         if (!r.up || r.staleMillis > this.maxLagMillis)
+            continue;
+         fresh = true;
+         if (r.replayLsn < needed)
+            continue;
+         if (best == null || r.pool.getActive() < best.pool.getActive())
+            best = r;
+      }
+      if (best == null) {
+         this.primaryReads.incrementAndGet();
+         if (fresh)
+            this.ownWriteFallbacks.incrementAndGet();
+         else
+            this.staleFallbacks.incrementAndGet();
+         return null;
+      }
+      best.reads.incrementAndGet();
+      return best.pool;
+   }//end route
+
+   /**
+    * Keeps the primary's WAL position after a session's write, so its
+    * next reads see it.
+    *
+    * @param esql the primary handle the write ran on
+    * @param session the session that wrote
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public void noteWrite(Amazon esql, Session session) throws SQLException {
+      session.noteWriteLsn(parseLsn(esql.executeQueryAndReturnResult("SELECT pg_current_wal_lsn()").get(0).get(0)));
+   }//end noteWrite
+
+   // Takes a replica whose command failed out of routing until its next check succeeds.
+   public void failed(ConnectionPool pool) {
+      this.failures.incrementAndGet();
+      for (Replica r : this.replicas)
+         if (r.pool == pool)
+            r.up = false;
+   }//end failed
+
+   // Samples the primary's WAL position, then each replica's.
+   private void check() {
+      long now = System.currentTimeMillis();
+      try {
+         Amazon esql = this.primary.borrow();
+         try {
+            long lsn = parseLsn(esql.executeQueryAndReturnResult("SELECT pg_current_wal_lsn()").get(0).get(0));
+            this.samples.addLast(new long[] { now, lsn });
+         } finally {
+            this.primary.release(esql);
+         }
+      } catch (SQLException e) {
+         System.err.println("Replica check: primary: " + e.getMessage());
+         return;
+      }
+      while (this.samples.size() > 1 && this.samples.peekFirst()[0] < now - this.sampleWindowMillis)
+         this.samples.pollFirst();
+
+      for (Replica r : this.replicas) {
+         Amazon esql = null;
+         try {
+            esql = r.pool.borrow();
+            String lsn = esql.executeQueryAndReturnResult("SELECT pg_last_wal_replay_lsn()").get(0).get(0);
+            if (lsn == null)
+               throw new SQLException("not a replica");
+            r.replayLsn = parseLsn(lsn);
+            r.staleMillis = staleness(r.replayLsn, System.currentTimeMillis());
+            r.up = true;
+         } catch (SQLException e) {
+            if (r.up)
+               System.err.println("Replica check: " + r.url + ": " + e.getMessage());
+            r.up = false;
+         } finally {
+            r.pool.release(esql);
+         }
+      }
+   }//end check
+
+   // The age of the newest primary sample a replica has replayed, or MAX_VALUE when none is.
+   private long staleness(long replayLsn, long now) {
+      for (Iterator<long[]> it = this.samples.descendingIterator(); it.hasNext();) {
+         long[] sample = it.next();
+         if (sample[1] <= replayLsn)
+            return now - sample[0];
+      }
+      return Long.MAX_VALUE;
+   }//end staleness
+
+   // A WAL position such as 16/B374D848 as a number.
+   static long parseLsn(String lsn) {
+      int slash = lsn.indexOf('/');
+      return (Long.parseLong(lsn.substring(0, slash).trim(), 16) << 32) | Long.parseLong(lsn.substring(slash + 1).trim(), 16);
+   }//end parseLsn
+
+   // Stops the checks and closes the replicas' pools.
+   public void stop() {
+      this.checker.shutdownNow();
+      for (Replica r : this.replicas)
+         r.pool.close();
+   }//end stop
+
+   // One line summary of the routing metrics.
+   public String describe() {
+      StringBuilder out = new StringBuilder(String.format(
+         "replicas primaryReads=%d staleFallbacks=%d ownWriteFallbacks=%d failures=%d",
+         this.primaryReads.get(), this.staleFallbacks.get(), this.ownWriteFallbacks.get(), this.failures.get()));
+      for (Replica r : this.replicas)
+         out.append(String.format(" [%s %s lagMs=%s reads=%d]", r.url, r.up ? "up" : "down",
+                                  r.staleMillis == Long.MAX_VALUE ? "-" : String.valueOf(r.staleMillis), r.reads.get()));
+      return out.toString();
+   }//end describe
+}//end ReplicaRouter
@@ -0,0 +1,373 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This class exports orders, product updates and supply requests for a time
+ * range, e.g. a month for the finance reports, as one gzip compressed file
+ * per table in the output directory (orders.csv.gz, ...).
+ *
+ * The range of a table is cut into chunks that are read in parallel, each on
+ * its own pooled connection. A chunk is read in pages with keyset
+ * pagination on (time, key), e.g. (orderTime, orderNumber), so every page is
+ * an index range scan that starts where the last one stopped, however deep
+ * into the chunk it is. Each chunk is compressed into a part file of its
+ * own, and the parts are then joined in order: a gzip file may hold several
+ * compressed members, so joining needs no recompression.
+ *
+ * ProductSupplyRequests pages on (requestedOn, requestNumber) like the
+ * others. Its history rows, loaded before requests had a requestedOn, are
+ * in no time range; they are exported whole, chunked by requestNumber, with
+ * --tables requestHistory.
+ *
+ */
+public class ReportExporter {
+   /**
+    * A table to export: its file name, the columns and the keyset columns,
+    * by position in the select list.
+    */
+   static class Source {
+      final String name;
+      final String table;
+      final String[] columns;
+      final String select;
+      // the timestamp column of the range, or null to chunk by key alone
+      final String timeColumn;
+      final String keyColumn;
+      // a condition on the rows exported, or null for every row
+      String condition;
+
+      Source(String name, String table, String timeColumn, String keyColumn, String... columns) {
+         this.name = name;
+         this.table = table;
+         this.timeColumn = timeColumn;
+         this.keyColumn = keyColumn;
+         this.columns = columns;
+         StringBuilder select = new StringBuilder();
+         for (String column : columns) {
+            if (select.length() > 0)
+               select.append(", ");
+            // names loaded into v1 char(30) columns are exported without their padding
+            select.append(column.equals("productName") ? "rtrim(productName) AS productName" : column);
+         }
+         this.select = select.toString();
+      }
+
+      int columnIndex(String column) {
+         for (int i = 0; i < this.columns.length; ++i)
+            if (this.columns[i].equals(column))
+               return i + 1;
+         throw new IllegalArgumentException(column);
+      }
+
+      // Exports only the rows matching condition.
+      Source where(String condition) {
+         this.condition = condition;
+         return this;
+      }
+   }//end Source
+
+   static final Source ORDERS = new Source("orders", "Orders", "orderTime", "orderNumber",
+      "orderNumber", "customerID", "storeID", "productID", "unitsOrdered", "orderTime");
+   static final Source PRODUCT_UPDATES = new Source("productUpdates", "ProductUpdates", "updatedOn", "updateNumber",
+      "updateNumber", "managerID", "storeID", "productID", "updatedOn");
+   static final Source SUPPLY_REQUESTS = new Source("productSupplyRequests", "ProductSupplyRequests", "requestedOn", "requestNumber",
+      "requestNumber", "managerID", "warehouseID", "storeID", "productName", "unitsRequested", "status", "requestedOn",
+      "fulfilledOn");
+   static final Source SUPPLY_HISTORY = new Source("productSupplyRequestsHistory", "ProductSupplyRequests", null, "requestNumber",
+      "requestNumber", "managerID", "warehouseID", "storeID", "productName", "unitsRequested", "status", "requestedOn",
+      "fulfilledOn").where("requestedOn IS NULL");
+
+   private final ConnectionPool pool;
+   private final File outDir;
+   private final ResultWriter.Format format;
+   private final int pageSize;
+
+   // progress metrics
+   private final AtomicLong rows = new AtomicLong();
+   private final AtomicLong pages = new AtomicLong();
+   private final AtomicLong chunksDone = new AtomicLong();
+   private final AtomicLong chunksTotal = new AtomicLong();
+   private final AtomicLong bytes = new AtomicLong();
+   private final long startNanos = System.nanoTime();
+
+   public ReportExporter(ConnectionPool pool, File outDir, ResultWriter.Format format, int pageSize) {
+      this.pool = pool;
+      this.outDir = outDir;
+      this.format = format;
+      this.pageSize = pageSize;
+   }//end ReportExporter
+
+   /**
+    * Exports the rows of a table in [from, to), split into chunks.
+    *
+    * @param source the table
+    * @param from the start of the range
+    * @param to the end of the range, excluded
+    * @param chunks the number of chunks
+    * @param workers the threads reading chunks
+    * @return the exported file
+    * @throws java.lang.Exception when a chunk failed
+    */
+   public File export(final Source source, Timestamp from, Timestamp to, int chunks, ExecutorService workers) throws Exception {
+      List<Object[]> bounds = source.timeColumn != null ? timeChunks(from, to, chunks) : keyChunks(source, chunks);
+      this.chunksTotal.addAndGet(bounds.size());
+      String suffix = "." + this.format.name().toLowerCase() + ".gz";
+
+      List<Future<File>> parts = new ArrayList<Future<File>>();
+      for (int i = 0; i < bounds.size(); ++i) {
+         final Object[] range = bounds.get(i);
+         final File part = new File(this.outDir, source.name + suffix + ".part" + i);
+         parts.add(workers.submit(() -> exportChunk(source, range[0], range[1], part)));
+      }
+
+      File file = new File(this.outDir, source.name + suffix);
+      try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+         // the header is a gzip member of its own, before the parts
+         GZIPOutputStream header = new GZIPOutputStream(out) {
+            public void close() {
+               // finish the member without closing the file
+            }
+         };
+         ResultWriter writer = new ResultWriter(header, this.format);
+         writer.writeHeader(source.columns);
+         writer.flush();
+         header.finish();
+
+         byte[] buffer = new byte[1 << 16];
+         for (Future<File> future : parts) {
+            File part = future.get();
+            try (InputStream in = new FileInputStream(part)) {
+               int n;
+               while ((n = in.read(buffer)) > 0)
+                  out.write(buffer, 0, n);
+            }
+            part.delete();
+         }
+      }
+      return file;
+   }//end export
+
+   /**
+    * Writes one chunk to its part file, a page at a time.
+    *
+    * @return the part file
+    */
+   private File exportChunk(Source source, Object lower, Object upper, File part) throws Exception {
+      String range = source.timeColumn != null ? source.timeColumn : source.keyColumn;
+      String order = source.timeColumn != null ? source.timeColumn + ", " + source.keyColumn : source.keyColumn;
+      String base = "SELECT " + source.select + " FROM " + source.table + " WHERE " + range + " >= ? AND " + range + " < ?"
+                    + (source.condition != null ? " AND " + source.condition : "");
+      String firstPage = base + " ORDER BY " + order + " LIMIT ?";
+      String nextPage = base + " AND (" + order + ") > (" + (source.timeColumn != null ? "?, ?" : "?") + ")"
+                        + " ORDER BY " + order + " LIMIT ?";
+      int timeIndex = source.timeColumn != null ? source.columnIndex(source.timeColumn) : 0;
+      int keyIndex = source.columnIndex(source.keyColumn);
+
+      Amazon esql = this.pool.borrow();
+      try (OutputStream file = new FileOutputStream(part);
+           GZIPOutputStream out = new GZIPOutputStream(new CountingOutputStream(file, this.bytes), 1 << 16)) {
+         ResultWriter writer = new ResultWriter(out, this.format);
+         Timestamp lastTime = null;
+         int lastKey = 0;
+         boolean first = true;
+         while (true) {
+            Object[] params;
+            if (first)
+               params = new Object[] { lower, upper, this.pageSize };
+            else if (source.timeColumn != null)
+               params = new Object[] { lower, upper, lastTime, lastKey, this.pageSize };
+            else
+               params = new Object[] { lower, upper, lastKey, this.pageSize };
+
+            int n = 0;
+            try (RowCursor page = esql.openCursor(0, first ? firstPage : nextPage, params)) {
+               while (page.next()) {
+                  writer.writeRow(page);
+                  if (timeIndex > 0)
+                     lastTime = page.getTimestamp(timeIndex);
+                  lastKey = page.getInt(keyIndex);
+                  ++n;
+               }
+            }
+            first = false;
+            this.rows.addAndGet(n);
+            this.pages.incrementAndGet();
+            if (n < this.pageSize)
+               break;
+         }
+         writer.flush();
+      } finally {
+         this.pool.release(esql);
+      }
+      this.chunksDone.incrementAndGet();
+      return part;
+   }//end exportChunk
+
+   // [from, to) cut into equal time ranges.
+   static List<Object[]> timeChunks(Timestamp from, Timestamp to, int chunks) {
+      List<Object[]> bounds = new ArrayList<Object[]>();
+      long start = from.getTime();
+      long span = Math.max(0, to.getTime() - start);
+      chunks = (int) Math.max(1, Math.min(chunks, span));
+      for (int i = 0; i < chunks; ++i)
+         bounds.add(new Object[] { new Timestamp(start + span * i / chunks), new Timestamp(start + span * (i + 1) / chunks) });
+      return bounds;
+   }//end timeChunks
+
+   // The key range of the whole table cut into equal ranges.
+   private List<Object[]> keyChunks(Source source, int chunks) throws SQLException {
+      List<List<String>> minMax;
+      Amazon esql = this.pool.borrow();
+      try {
+         minMax = esql.executeQueryAndReturnResult(
+            "SELECT MIN(" + source.keyColumn + "), MAX(" + source.keyColumn + ") FROM " + source.table
+            + (source.condition != null ? " WHERE " + source.condition : ""));
+      } finally {
+         this.pool.release(esql);
+      }
+      List<Object[]> bounds = new ArrayList<Object[]>();
+      if (minMax.get(0).get(0) == null)
+         return bounds;
+      long lo = Long.parseLong(minMax.get(0).get(0).trim());
+      long span = Long.parseLong(minMax.get(0).get(1).trim()) + 1 - lo;
+      chunks = (int) Math.max(1, Math.min(chunks, span));
+      for (int i = 0; i < chunks; ++i)
+         bounds.add(new Object[] { (int) (lo + span * i / chunks), (int) (lo + span * (i + 1) / chunks) });
+      return bounds;
+   }//end keyChunks
+
+   // One line summary of the progress.
+   public String describe() {
+      double seconds = Math.max(1e-9, (System.nanoTime() - this.startNanos) / 1e9);
+      return String.format("export chunks=%d/%d rows=%d pages=%d compressedMB=%.1f rows/s=%.0f",
+                           this.chunksDone.get(), this.chunksTotal.get(), this.rows.get(), this.pages.get(),
+                           this.bytes.get() / 1048576.0, this.rows.get() / seconds);
+   }//end describe
+
+   // Counts the compressed bytes written, for the progress line.
+   static class CountingOutputStream extends java.io.FilterOutputStream {
+      private final AtomicLong count;
+
+      CountingOutputStream(OutputStream out, AtomicLong count) {
+         super(out);
+         this.count = count;
+      }
+
+      public void write(int b) throws java.io.IOException {
+         this.out.write(b);
+         this.count.incrementAndGet();
+      }
+
+      public void write(byte[] b, int off, int len) throws java.io.IOException {
+         this.out.write(b, off, len);
+         this.count.addAndGet(len);
+      }
+   }//end CountingOutputStream
+
+   /**
+    * The main execution method
+    *
+    * @param args <dbname> <port> <user> <outDir> --from yyyy-mm-dd --to yyyy-mm-dd [--tables orders,updates,requests,requestHistory]
+    *             [--chunks n] [--threads n] [--format csv|tsv|jsonl] [--page n]
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length < 4) {
+         System.err.println(
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            ReportExporter.class.getName() +
+            " <dbname> <port> <user> <outDir> --from <yyyy-mm-dd> --to <yyyy-mm-dd>" +
+            " [--tables orders,updates,requests,requestHistory] [--chunks <n>] [--threads <n>] [--format csv|tsv|jsonl] [--page <n>]");
+         return;
+      }
+      LocalDate from = LocalDate.now().withDayOfMonth(1).minusMonths(1);
+      LocalDate to = from.plusMonths(1);
+      String tables = "orders,updates,requests";
+      int threads = 4;
+      int chunks = 0;
+      String format = "csv";
+      int page = 10000;
+      for (int i = 4; i + 1 < args.length; i += 2) {
+         String value = args[i + 1];
+         switch (args[i]) {
+            case "--from": from = LocalDate.parse(value); break;
+            case "--to": to = LocalDate.parse(value); break;
+            case "--tables": tables = value; break;
+            case "--chunks": chunks = Integer.parseInt(value); break;
+            case "--threads": threads = Integer.parseInt(value); break;
+            case "--format": format = value; break;
+            case "--page": page = Integer.parseInt(value); break;
+            default: throw new IllegalArgumentException("Unknown option " + args[i]);
+         }
+      }
+      // by default one chunk per day of the range
+      if (chunks < 1)
+         chunks = (int) Math.max(1, to.toEpochDay() - from.toEpochDay());
+
+      // use postgres JDBC driver.
+      Class.forName("org.postgresql.Driver");
+      String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+      ConnectionPool pool = new ConnectionPool(url, args[2], "", threads);
+      File outDir = new File(args[3]);
+      outDir.mkdirs();
+      final ReportExporter exporter = new ReportExporter(pool, outDir, ResultWriter.Format.parse(format), page);
+
+      ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "export-progress");
+         t.setDaemon(true);
+         return t;
+      });
+      reporter.scheduleAtFixedRate(() -> System.err.println(exporter.describe()), 2, 2, TimeUnit.SECONDS);
+      ExecutorService workers = Executors.newFixedThreadPool(threads);
+      try {
+         Timestamp start = Timestamp.valueOf(from.atStartOfDay());
+         Timestamp end = Timestamp.valueOf(to.atStartOfDay());
+         for (String table : tables.split(",")) {
+            Source source;
+            switch (table.trim()) {
+               case "orders": source = ORDERS; break;
+               case "updates": source = PRODUCT_UPDATES; break;
+               case "requests": source = SUPPLY_REQUESTS; break;
+               case "requestHistory": source = SUPPLY_HISTORY; break;
+               default: throw new IllegalArgumentException("Unknown table " + table);
+            }
+            File file = exporter.export(source, start, end, chunks, workers);
+            System.out.println(file + " written");
+         }
+      } finally {
+         workers.shutdown();
+         reporter.shutdownNow();
+         pool.close();
+      }
+      System.out.println(exporter.describe());
+   }//end main
+}//end ReportExporter
@@ -0,0 +1,220 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * This class writes the rows of a RowCursor as they are read, through a
+ * buffered writer, in one of three formats:
+ *
+ *    TSV    a header line, then tab separated values; NULL is empty
+ *    CSV    RFC 4180: a header line, values quoted when needed; NULL is empty
+ *    JSONL  one JSON object per row, numbers unquoted, NULL as null
+ *
+ * Nothing but the current row is held in memory.
+ *
+ */
+public class ResultWriter {
+   /**
+    * The output formats.
+    */
+   public enum Format {
+      TSV, CSV, JSONL;
+
+      public static Format parse(String name) {
+         return valueOf(name.toUpperCase());
+      }
+   }//end Format
+
+   private final Writer out;
+   private final Format format;
+   private final StringBuilder line = new StringBuilder(256);
+
+   public ResultWriter(Writer out, Format format) {
+      this.out = out instanceof BufferedWriter ? out : new BufferedWriter(out, 1 << 16);
+      this.format = format;
+   }//end ResultWriter
+
+   public ResultWriter(OutputStream out, Format format) {
+      this(new OutputStreamWriter(out, StandardCharsets.UTF_8), format);
+   }//end ResultWriter
+
+   /**
+    * Writes every remaining row of the cursor, and the header line first
+    * for TSV and CSV, then flushes.
+    *
+    * @param rows the open cursor
+    * @return the number of rows written
+    * @throws java.sql.SQLException when reading a row failed
+    * @throws java.io.IOException when writing failed
+    */
+   public long writeAll(RowCursor rows) throws SQLException, IOException {
+      writeHeader(rows);
+      long count = 0;
+      while (rows.next()) {
+         writeRow(rows);
+         ++count;
+      }
+      this.out.flush();
+      return count;
+   }//end writeAll
+
+   // The header line of TSV and CSV; nothing for JSONL.
+   public void writeHeader(RowCursor rows) throws IOException {
+      String[] names = new String[rows.getColumnCount()];
+      for (int i = 0; i < names.length; ++i)
+         names[i] = rows.getColumnName(i + 1);
+      writeHeader(names);
+   }//end writeHeader
+
+   // The header line of TSV and CSV with the given column names.
+   public void writeHeader(String... names) throws IOException {
+      if (this.format == Format.JSONL)
+         return;
+      this.line.setLength(0);
+      for (int i = 0; i < names.length; ++i) {
+         if (i > 0)
+            this.line.append(this.format == Format.TSV ? '\t' : ',');
+         appendText(names[i]);
+      }
+      this.out.append(this.line).append('\n');
+   }//end writeHeader
+
+   // Writes the cursor's current row.
+   public void writeRow(RowCursor rows) throws SQLException, IOException {
+      this.line.setLength(0);
+      int numCol = rows.getColumnCount();
+      if (this.format == Format.JSONL)
+         this.line.append('{');
+      for (int i = 1; i <= numCol; ++i) {
+         String value = rows.getString(i);
+         if (this.format == Format.JSONL) {
+            if (i > 1)
+               this.line.append(',');
+            appendJsonString(rows.getColumnName(i));
+            this.line.append(':');
+            if (value == null)
+               this.line.append("null");
+            else if (isNumeric(rows.getColumnType(i)) && isJsonNumber(value))
+               this.line.append(value);
+            else
+               appendJsonString(value);
+         } else {
+            if (i > 1)
+               this.line.append(this.format == Format.TSV ? '\t' : ',');
+            if (value != null)
+               appendText(value);
+         }
+      }
+      if (this.format == Format.JSONL)
+         this.line.append('}');
+      this.out.append(this.line).append('\n');
+   }//end writeRow
+
+   public void flush() throws IOException {
+      this.out.flush();
+   }
+
+   private void appendText(String value) {
+      if (this.format == Format.TSV) {
+         // tabs and line breaks would split the value
+         for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            this.line.append(c == '\t' || c == '\n' || c == '\r' ? ' ' : c);
+         }
+      } else if (value.indexOf(',') >= 0 || value.indexOf('"') >= 0 || value.indexOf('\n') >= 0
+                 || value.indexOf('\r') >= 0 || value.isEmpty()) {
+         // an empty string is quoted so it is not read back as NULL
+         this.line.append('"').append(value.replace("\"", "\"\"")).append('"');
+      } else {
+         this.line.append(value);
+      }
+   }//end appendText
+
+   private void appendJsonString(String value) {
+      this.line.append('"');
+      for (int i = 0; i < value.length(); ++i) {
+         char c = value.charAt(i);
+         switch (c) {
+            case '"': this.line.append("\\\""); break;
+            case '\\': this.line.append("\\\\"); break;
+            case '\n': this.line.append("\\n"); break;
+            case '\r': this.line.append("\\r"); break;
+            case '\t': this.line.append("\\t"); break;
+            default:
+               if (c < 0x20)
+                  this.line.append(String.format("\\u%04x", (int) c));
+               else
+                  this.line.append(c);
+         }
+      }
+      this.line.append('"');
+   }//end appendJsonString
+
+   private static boolean isNumeric(int type) {
+      switch (type) {
+         case Types.SMALLINT: case Types.INTEGER: case Types.BIGINT:
+         case Types.REAL: case Types.FLOAT: case Types.DOUBLE:
+         case Types.NUMERIC: case Types.DECIMAL:
+            return true;
+         default:
+            return false;
+      }
+   }
+
+   // NaN and Infinity are valid SQL floats but not JSON numbers.
+   private static boolean isJsonNumber(String value) {
+      char c = value.isEmpty() ? 'x' : value.charAt(value.length() - 1);
+      return c >= '0' && c <= '9';
+   }
+
+   /**
+    * The main execution method: runs one query and streams its rows to
+    * standard output, e.g. all orders for the admin.
+    *
+    * @param args <dbname> <port> <user> <tsv|csv|jsonl> <query> [fetchSize]
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length < 5) {
+         System.err.println(
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            ResultWriter.class.getName() +
+            " <dbname> <port> <user> <tsv|csv|jsonl> <query> [fetchSize]");
+         return;
+      }
+      // use postgres JDBC driver.
+      Class.forName("org.postgresql.Driver");
+      ConnectionPool pool = new ConnectionPool("jdbc:postgresql://localhost:" + args[1] + "/" + args[0], args[2], "", 1);
+      int fetchSize = args.length > 5 ? Integer.parseInt(args[5]) : 1000;
+      try {
+         Amazon esql = pool.borrow();
+         try (RowCursor rows = esql.openCursor(fetchSize, args[4])) {
+            long start = System.nanoTime();
+            long count = new ResultWriter(System.out, Format.parse(args[3])).writeAll(rows);
+            System.err.printf("%d rows in %.2f s%n", count, (System.nanoTime() - start) / 1e9);
+         } finally {
+            pool.release(esql);
+         }
+      } finally {
+         pool.close();
+      }
+   }//end main
+}//end ResultWriter
@@ -0,0 +1,179 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class walks the rows of a query one at a time, so a result of any
+ * size is read in constant memory. With a fetch size the rows are read in
+ * batches of that size through a server side cursor, declared with DECLARE
+ * and read with FETCH, since the bundled pg73jdbc3 driver does not
+ * implement setFetchSize. Postgres only keeps the cursor open inside a
+ * transaction: it turns autocommit off while it is open and restores it on
+ * close.
+ *
+ * Use it in a try-with-resources block:
+ *
+ *    try (RowCursor rows = esql.openCursor(1000, "SELECT ...", params)) {
+ *       while (rows.next())
+ *          ... rows.getInt(1), rows.getString(2) ...
+ *    }
+ *
+ */
+public class RowCursor implements AutoCloseable {
+   // numbers the server side cursors, whose names must differ on a connection
+   private static final AtomicLong CURSORS = new AtomicLong();
+
+   private final Connection connection;
+   private final PreparedStatement stmt;
+   private final boolean restoreAutoCommit;
+   // the server side cursor and the statement fetching from it, or null without a fetch size
+   private final String cursor;
+   private final Statement fetch;
+   private final int fetchSize;
+   // the current batch and its rows so far
+   private ResultSet rs;
+   private int batchRows;
+   private final String[] names;
+   private final int[] types;
+
+   RowCursor(Connection connection, String query, int fetchSize, Object... params) throws SQLException {
+      this.connection = connection;
+      this.restoreAutoCommit = fetchSize > 0 && connection.getAutoCommit();
+      if (this.restoreAutoCommit)
+         connection.setAutoCommit(false);
+      this.fetchSize = fetchSize;
+      this.cursor = fetchSize > 0 ? "row_cursor_" + CURSORS.incrementAndGet() : null;
+      PreparedStatement stmt = null;
+      Statement fetch = null;
+      try {
+         if (this.cursor == null) {
+            // a statement of its own: the cached ones may be reused while this one is open
+            stmt = connection.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            Amazon.bind(stmt, params);
+            this.rs = stmt.executeQuery();
+         } else {
+            stmt = connection.prepareStatement("DECLARE " + this.cursor + " NO SCROLL CURSOR FOR " + query);
+            Amazon.bind(stmt, params);
+            stmt.executeUpdate();
+            fetch = connection.createStatement();
+            this.rs = fetch.executeQuery("FETCH FORWARD " + fetchSize + " FROM " + this.cursor);
+         }
+         this.stmt = stmt;
+         this.fetch = fetch;
+      } catch (SQLException e) {
+         if (stmt != null)
+            stmt.close();
+         if (fetch != null)
+            fetch.close();
+         if (this.restoreAutoCommit) {
+            connection.rollback();
+            connection.setAutoCommit(true);
+         }
+         throw e;
+      }
+
+      // the column names and types are read once, not for every row
+      ResultSetMetaData rsmd = this.rs.getMetaData();
+      int numCol = rsmd.getColumnCount();
+      this.names = new String[numCol];
+      this.types = new int[numCol];
+      for (int i = 0; i < numCol; ++i) {
+         this.names[i] = rsmd.getColumnName(i + 1);
+         this.types[i] = rsmd.getColumnType(i + 1);
+      }
+   }//end RowCursor
+
+   // Moves to the next row, fetching the next batch when one is used up; false after the last one.
+   public boolean next() throws SQLException {
+      if (this.rs.next()) {
+         ++this.batchRows;
+         return true;
+      }
+      // a short batch was the last
+      if (this.cursor == null || this.batchRows < this.fetchSize)
+         return false;
+      this.rs.close();
+      this.rs = this.fetch.executeQuery("FETCH FORWARD " + this.fetchSize + " FROM " + this.cursor);
+      this.batchRows = 0;
+      return next();
+   }//end next
+
+   public int getColumnCount() {
+      return this.names.length;
+   }
+
+   // Column indexes start at 1, like JDBC.
+   public String getColumnName(int column) {
+      return this.names[column - 1];
+   }
+
+   // The java.sql.Types code of a column.
+   public int getColumnType(int column) {
+      return this.types[column - 1];
+   }
+
+   public String getString(int column) throws SQLException {
+      return this.rs.getString(column);
+   }
+
+   public int getInt(int column) throws SQLException {
+      return this.rs.getInt(column);
+   }
+
+   public long getLong(int column) throws SQLException {
+      return this.rs.getLong(column);
+   }
+
+   public double getDouble(int column) throws SQLException {
+      return this.rs.getDouble(column);
+   }
+
+   public Timestamp getTimestamp(int column) throws SQLException {
+      return this.rs.getTimestamp(column);
+   }
+
+   // Whether the column last read was SQL NULL.
+   public boolean wasNull() throws SQLException {
+      return this.rs.wasNull();
+   }
+
+   /**
+    * Closes the result and its statements and the server side cursor,
+    * ending the cursor's transaction if it opened one.
+    */
+   public void close() throws SQLException {
+      try {
+         this.rs.close();
+         this.stmt.close();
+         if (this.fetch != null) {
+            // inside a caller's transaction the cursor would stay open until its end
+            this.fetch.executeUpdate("CLOSE " + this.cursor);
+            this.fetch.close();
+         }
+      } finally {
+         if (this.restoreAutoCommit) {
+            // the cursor only read, so there is nothing to commit
+            this.connection.rollback();
+            this.connection.setAutoCommit(true);
+         }
+      }
+   }//end close
+}//end RowCursor
@@ -0,0 +1,346 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class moves a database of the v1 schema (char names, roles and
+ * supply request statuses, float prices, orders and updates keyed by
+ * productName) to the v2 schema of create_tables.sql while the store keeps
+ * running, in three phases:
+ *
+ *    expand    adds the user_type enum, Product.productID with its
+ *              sequence, and the productID columns of Orders and
+ *              ProductUpdates; a trigger fills whichever of productName
+ *              and productID an insert leaves out, so the v1 and the v2
+ *              application can both write meanwhile
+ *    backfill  numbers the products and copies the productIDs into Orders
+ *              and ProductUpdates, in keyset batches of --batch rows, each
+ *              its own short transaction, pausing --pause-ms between them
+ *    contract  makes productID unique, NOT NULL and a foreign key without
+ *              long locks (constraints are added NOT VALID and validated
+ *              partition by partition), drops the productName columns of
+ *              Orders and ProductUpdates, then changes the column types
+ *
+ * Deploy the v2 application between backfill and contract. The type changes
+ * of contract rewrite Users, Product, ProductSupplyRequests and the
+ * popularity tables under an exclusive lock, so run it in a quiet hour.
+ * Their rtrim ends the trailing blanks of v1 names; once every database is
+ * contracted, ProductKey no longer needs to drop them.
+ *
+ * Every phase can be run again: it skips what is already done. The DDL
+ * waits at most LOCK_TIMEOUT for its locks, like PartitionManager's.
+ *
+ */
+public class SchemaMigrator {
+   private static final String LOCK_TIMEOUT = "5s";
+
+   private static final String SYNC_FUNCTION =
+      "CREATE OR REPLACE FUNCTION migrate_v2_product_id() RETURNS trigger LANGUAGE plpgsql AS $$ " +
+      "BEGIN " +
+      "IF NEW.productID IS NULL THEN " +
+      "SELECT productID INTO NEW.productID FROM Product WHERE storeID = NEW.storeID AND productName = NEW.productName; " +
+      "ELSIF NEW.productName IS NULL THEN " +
+      "SELECT productName INTO NEW.productName FROM Product WHERE productID = NEW.productID; " +
+      "END IF; " +
+      "RETURN NEW; " +
+      "END $$";
+
+   /**
+    * A table whose productID is backfilled: the batches walk its two key
+    * columns in order.
+    */
+   static class Backfill {
+      final String table;
+      final String key1;
+      final String key2;
+      final String update;
+
+      Backfill(String table, String key1, String key2, String update) {
+         this.table = table;
+         this.key1 = key1;
+         this.key2 = key2;
+         this.update = update;
+      }
+   }//end Backfill
+
+   static final Backfill[] BACKFILLS = {
+      new Backfill("Product", "storeID", "productName",
+                   "UPDATE Product t SET productID = nextval('product_productid_seq') WHERE t.productID IS NULL"),
+      new Backfill("Orders", "orderTime", "orderNumber",
+                   "UPDATE Orders t SET productID = p.productID FROM Product p " +
+                   "WHERE p.storeID = t.storeID AND p.productName = t.productName AND t.productID IS NULL"),
+      new Backfill("ProductUpdates", "updatedOn", "updateNumber",
+                   "UPDATE ProductUpdates t SET productID = p.productID FROM Product p " +
+                   "WHERE p.storeID = t.storeID AND p.productName = t.productName AND t.productID IS NULL")
+   };
+
+   // the partitioned tables that refer to a product by productID
+   private static final String[] REFERRING = { "Orders", "ProductUpdates" };
+
+   private final Amazon esql;
+
+   public SchemaMigrator(Amazon esql) {
+      this.esql = esql;
+   }//end SchemaMigrator
+
+   /**
+    * Adds the v2 types and columns next to the v1 ones. Adding a column
+    * without a default and a trigger only changes the catalog.
+    *
+    * @throws java.sql.SQLException when a statement failed
+    */
+   public void expand() throws SQLException {
+      if (this.esql.executeQuery("SELECT 1 FROM pg_type WHERE typname = 'user_type'") < 1)
+         ddl("CREATE TYPE user_type AS ENUM ('customer', 'manager', 'admin')");
+      ddl("ALTER TABLE Product ADD COLUMN IF NOT EXISTS productID integer",
+          "CREATE SEQUENCE IF NOT EXISTS product_productid_seq OWNED BY Product.productID",
+          "ALTER TABLE Product ALTER COLUMN productID SET DEFAULT nextval('product_productid_seq')",
+          SYNC_FUNCTION);
+      for (String table : REFERRING) {
+         String trigger = table.toLowerCase() + "_migrate_v2";
+         ddl("ALTER TABLE " + table + " ADD COLUMN IF NOT EXISTS productID integer",
+             // the v2 application writes productID only
+             "ALTER TABLE " + table + " ALTER COLUMN productName DROP NOT NULL",
+             "DROP TRIGGER IF EXISTS " + trigger + " ON " + table,
+             "CREATE TRIGGER " + trigger + " BEFORE INSERT ON " + table +
+             " FOR EACH ROW EXECUTE FUNCTION migrate_v2_product_id()");
+      }
+      System.out.println("Expanded: productID columns and triggers added");
+   }//end expand
+
+   /**
+    * Fills productID in every row without one, in key order. Rows inserted
+    * meanwhile get theirs from the trigger.
+    *
+    * @param batch the rows per transaction
+    * @param pauseMillis the pause between transactions
+    * @throws java.lang.Exception when an update failed
+    */
+   public void backfill(int batch, long pauseMillis) throws Exception {
+      for (Backfill b : BACKFILLS) {
+         long updated = 0;
+         // keys are read back as text; cast to the key's types they still match its index
+         String key = "(CAST(? AS " + columnType(b.table, b.key1) + "), CAST(? AS " + columnType(b.table, b.key2) + "))";
+         List<String> from = null;
+         while (true) {
+            // the last key of this batch, or none when it is the last batch
+            List<String> to = keyAfter(b, key, from, batch - 1);
+            List<Object> params = new ArrayList<Object>();
+            String sql = b.update + range(b, key, from, to, params);
+            updated += this.esql.executeUpdate(sql, params.toArray());
+            if (to == null)
+               break;
+            from = to;
+            Thread.sleep(pauseMillis);
+         }
+         System.out.println("Backfilled " + b.table + ": " + updated + " rows");
+      }
+   }//end backfill
+
+   // The key offset rows past from (or past the start), or null when there is none.
+   private List<String> keyAfter(Backfill b, String key, List<String> from, int offset) throws SQLException {
+      List<Object> params = new ArrayList<Object>();
+      String where = from == null ? "" : " WHERE (" + b.key1 + ", " + b.key2 + ") > " + key;
+      if (from != null)
+         params.addAll(from);
+      params.add(offset);
+      List<List<String>> rows = this.esql.executeQueryAndReturnResult(
+         "SELECT " + b.key1 + ", " + b.key2 + " FROM " + b.table + where +
+         " ORDER BY " + b.key1 + ", " + b.key2 + " OFFSET ? LIMIT 1", params.toArray());
+      return rows.isEmpty() ? null : rows.get(0);
+   }//end keyAfter
+
+   // The condition (from, to] on the key of the updated table t, key being the cast parameters.
+   private static String range(Backfill b, String key, List<String> from, List<String> to, List<Object> params) {
+      String columns = "(t." + b.key1 + ", t." + b.key2 + ")";
+      StringBuilder sql = new StringBuilder();
+      if (from != null) {
+         sql.append(" AND ").append(columns).append(" > ").append(key);
+         params.addAll(from);
+      }
+      if (to != null) {
+         sql.append(" AND ").append(columns).append(" <= ").append(key);
+         params.addAll(to);
+      }
+      return sql.toString();
+   }//end range
+
+   /**
+    * Turns the backfilled columns into the constraints of v2 and drops the
+    * v1 columns, then changes the column types.
+    *
+    * @throws java.sql.SQLException when a statement failed, e.g. a row left
+    *         without productID: run backfill again
+    */
+   public void contract() throws SQLException {
+      // a unique index built without blocking writes becomes the constraint
+      if (!constraintExists("product_productid_key")) {
+         this.esql.executeUpdate("CREATE UNIQUE INDEX CONCURRENTLY IF NOT EXISTS product_productid_key ON Product (productID)");
+         ddl("ALTER TABLE Product ADD CONSTRAINT product_productid_key UNIQUE USING INDEX product_productid_key");
+      }
+      setNotNull("Product", "productID");
+
+      for (String table : REFERRING) {
+         String fkey = table.toLowerCase() + "_productid_fkey";
+         if (!constraintExists(fkey)) {
+            // validated on each partition under a lock that allows writes;
+            // the parent's key then adopts them without a scan
+            for (String partition : partitions(table)) {
+               String name = partition + "_productid_fkey";
+               if (!constraintExists(name))
+                  ddl("ALTER TABLE " + partition + " ADD CONSTRAINT " + name +
+                      " FOREIGN KEY (productID) REFERENCES Product(productID) NOT VALID");
+               ddl("ALTER TABLE " + partition + " VALIDATE CONSTRAINT " + name);
+            }
+            ddl("ALTER TABLE " + table + " ADD CONSTRAINT " + fkey + " FOREIGN KEY (productID) REFERENCES Product(productID)");
+         }
+         for (String partition : partitions(table))
+            setNotNull(partition, "productID");
+         ddl("ALTER TABLE " + table + " ALTER COLUMN productID SET NOT NULL");
+
+         ddl("ALTER TABLE " + table + " DROP CONSTRAINT IF EXISTS " + table.toLowerCase() + "_storeid_productname_fkey",
+             "DROP TRIGGER IF EXISTS " + table.toLowerCase() + "_migrate_v2 ON " + table,
+             "ALTER TABLE " + table + " DROP COLUMN IF EXISTS productName");
+      }
+      ddl("DROP FUNCTION IF EXISTS migrate_v2_product_id()");
+      System.out.println("Contracted: productID is the product key of Orders and ProductUpdates");
+
+      changeTypes();
+   }//end contract
+
+   /**
+    * The v2 column types. Each change rewrites its table, so only those not
+    * yet changed are run; the supply requests' foreign key is dropped over
+    * the change of Product.productName and added back NOT VALID.
+    */
+   private void changeTypes() throws SQLException {
+      List<String> changes = new ArrayList<String>();
+      if (!columnType("Users", "type").equals("user_type"))
+         changes.add("ALTER TABLE Users ALTER COLUMN name TYPE varchar(50) USING rtrim(name), " +
+                     "ALTER COLUMN type TYPE user_type USING lower(trim(type))::user_type");
+      if (columnType("Product", "productName").startsWith("character("))
+         changes.add("ALTER TABLE Product ALTER COLUMN productName TYPE varchar(30) USING rtrim(productName), " +
+                     "ALTER COLUMN pricePerUnit TYPE numeric(10,2) USING round(pricePerUnit::numeric, 2)");
+      for (String table : new String[] { "ProductSupplyRequests", "ProductPopularity", "GlobalProductPopularity" })
+         if (columnType(table, "productName").startsWith("character("))
+            changes.add("ALTER TABLE " + table + " ALTER COLUMN productName TYPE varchar(30) USING rtrim(productName)");
+      if (columnType("ProductSupplyRequests", "status").startsWith("character("))
+         changes.add("ALTER TABLE ProductSupplyRequests ALTER COLUMN status TYPE varchar(10) USING rtrim(status)");
+      if (changes.isEmpty())
+         return;
+
+      String fkey = "productsupplyrequests_storeid_productname_fkey";
+      changes.add(0, "ALTER TABLE ProductSupplyRequests DROP CONSTRAINT IF EXISTS " + fkey);
+      changes.add("ALTER TABLE ProductSupplyRequests ADD CONSTRAINT " + fkey +
+                  " FOREIGN KEY (storeID, productName) REFERENCES Product(storeID, productName) NOT VALID");
+      ddl(changes.toArray(new String[0]));
+      ddl("ALTER TABLE ProductSupplyRequests VALIDATE CONSTRAINT " + fkey);
+      System.out.println("Changed to the v2 column types in " + (changes.size() - 2) + " statements");
+   }//end changeTypes
+
+   /**
+    * SET NOT NULL scans the table under an exclusive lock unless a valid
+    * CHECK constraint already proves it, so one is added NOT VALID and
+    * validated first, and dropped after.
+    */
+   private void setNotNull(String table, String column) throws SQLException {
+      String check = table.toLowerCase() + "_" + column.toLowerCase() + "_not_null";
+      ddl("ALTER TABLE " + table + " DROP CONSTRAINT IF EXISTS " + check,
+          "ALTER TABLE " + table + " ADD CONSTRAINT " + check + " CHECK (" + column + " IS NOT NULL) NOT VALID");
+      ddl("ALTER TABLE " + table + " VALIDATE CONSTRAINT " + check);
+      ddl("ALTER TABLE " + table + " ALTER COLUMN " + column + " SET NOT NULL",
+          "ALTER TABLE " + table + " DROP CONSTRAINT " + check);
+   }//end setNotNull
+
+   // Runs DDL statements in one transaction that waits at most LOCK_TIMEOUT for a lock.
+   private void ddl(final String... statements) throws SQLException {
+      this.esql.inTransaction(new Amazon.Transaction<Void>() {
+         public Void run(Amazon tx) throws SQLException {
+            tx.executeUpdate("SET LOCAL lock_timeout = '" + LOCK_TIMEOUT + "'");
+            for (String statement : statements)
+               tx.executeUpdate(statement);
+            return null;
+         }
+      });
+   }//end ddl
+
+   // The partitions of a partitioned table, e.g. orders_p2024_01 and orders_default.
+   private List<String> partitions(String table) throws SQLException {
+      List<String> names = new ArrayList<String>();
+      for (List<String> row : this.esql.executeQueryAndReturnResult(
+              "SELECT c.relname FROM pg_inherits h JOIN pg_class c ON c.oid = h.inhrelid " +
+              "JOIN pg_class p ON p.oid = h.inhparent WHERE p.relname = ? ORDER BY c.relname", table.toLowerCase()))
+         names.add(row.get(0).trim());
+      return names;
+   }//end partitions
+
+   private boolean constraintExists(String name) throws SQLException {
+      return this.esql.executeQuery("SELECT 1 FROM pg_constraint WHERE conname = ?", name) > 0;
+   }
+
+   // The declared type of a column, e.g. "character(30)".
+   private String columnType(String table, String column) throws SQLException {
+      List<List<String>> rows = this.esql.executeQueryAndReturnResult(
+         "SELECT format_type(a.atttypid, a.atttypmod) FROM pg_attribute a JOIN pg_class c ON c.oid = a.attrelid " +
+         "WHERE c.relname = ? AND a.attname = ? AND NOT a.attisdropped", table.toLowerCase(), column.toLowerCase());
+      if (rows.isEmpty())
+         throw new SQLException(table + " has no column " + column);
+      return rows.get(0).get(0).trim();
+   }//end columnType
+
+   /**
+    * The main execution method: runs one phase of the migration to v2.
+    *
+    * @param args <dbname> <port> <user> expand|backfill|contract [--batch n] [--pause-ms n]
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length < 4) {
+         System.err.println(
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            SchemaMigrator.class.getName() +
+            " <dbname> <port> <user> expand|backfill|contract [--batch <rows>] [--pause-ms <ms>]");
+         return;
+      }
+      int batch = 5000;
+      long pauseMillis = 100;
+      for (int i = 4; i + 1 < args.length; i += 2) {
+         String value = args[i + 1];
+         switch (args[i]) {
+            case "--batch": batch = Integer.parseInt(value); break;
+            case "--pause-ms": pauseMillis = Long.parseLong(value); break;
+            default: throw new IllegalArgumentException("Unknown option " + args[i]);
+         }
+      }
+
+      // use postgres JDBC driver.
+      Class.forName("org.postgresql.Driver");
+      ConnectionPool pool = new ConnectionPool("jdbc:postgresql://localhost:" + args[1] + "/" + args[0], args[2], "", 1);
+      Amazon esql = pool.borrow();
+      try {
+         SchemaMigrator migrator = new SchemaMigrator(esql);
+         switch (args[3]) {
+            case "expand": migrator.expand(); break;
+            case "backfill": migrator.backfill(Math.max(1, batch), pauseMillis); break;
+            case "contract": migrator.contract(); break;
+            default: throw new IllegalArgumentException("Unknown phase " + args[3]);
+         }
+      } finally {
+         pool.release(esql);
+         pool.close();
+      }
+   }//end main
+}//end SchemaMigrator
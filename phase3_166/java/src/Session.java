@@ -0,0 +1,155 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * This class holds the identity of the logged-in user: the userID, role and
+ * coordinates are loaded from Users once at login and read from here by every
+ * menu operation, instead of being looked up again by name and password.
+ *
+ */
+public class Session {
+   private final int userID;
+   private final String name;
+   private String type;
+   private double latitude;
+   private double longitude;
+
+   // set when the user's profile may have changed and the cached fields must
+   // be reloaded; read by the threads of every connection the session is on.
+   private volatile boolean stale = false;
+   // the token the session can be resumed under, see Authenticator.
+   private volatile String token;
+   // the primary's WAL position after the session's last write, see ReplicaRouter.
+   private volatile long writeLsn;
+
+   public Session(int userID, String name, String type, double latitude, double longitude) {
+      this.userID = userID;
+      this.name = name;
+      this.type = type.trim();
+      this.latitude = latitude;
+      this.longitude = longitude;
+   }//end Session
+
+   /**
+    * Loads the session of the user with the given credentials: one lookup
+    * on the unique index of the name, then the password is checked against
+    * its hash (PasswordHasher). A password stored as plain text or below
+    * the current cost is hashed again on the way.
+    *
+    * @param esql the database handle
+    * @param name the user name
+    * @param password the user password
+    * @return the session, or null when the credentials do not match a user
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public static Session load(Amazon esql, String name, String password) throws SQLException {
+      String query = "SELECT userID, type, latitude, longitude, password FROM Users WHERE name = ?";
+      List<List<String>> rows = esql.executeQueryAndReturnResult(query, name);
+      String stored = rows.isEmpty() ? null : rows.get(0).get(4);
+      if (!PasswordHasher.verify(password, stored))
+         return null;
+      List<String> row = rows.get(0);
+      int userID = Integer.parseInt(row.get(0).trim());
+      if (PasswordHasher.needsRehash(stored))
+         esql.executeUpdate("UPDATE Users SET password = ? WHERE userID = ?", PasswordHasher.hash(password), userID);
+      return new Session(userID, name, row.get(1), Double.parseDouble(row.get(2)), Double.parseDouble(row.get(3)));
+   }//end load
+
+   /**
+    * Marks the cached profile as out of date. Call this after any change to
+    * the user's row in Users, and when a session is resumed (its profile may
+    * have changed since); the next refresh reloads it.
+    */
+   public void invalidate() {
+      this.stale = true;
+   }//end invalidate
+
+   /**
+    * Reloads the role and coordinates if the session was invalidated. This is
+    * a no-op, with no database round trip, while the session is current.
+    *
+    * @param esql the database handle
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public synchronized void refresh(Amazon esql) throws SQLException {
+      if (!this.stale)
+         return;
+      String query = "SELECT type, latitude, longitude FROM Users WHERE userID = ?";
+      List<List<String>> rows = esql.executeQueryAndReturnResult(query, this.userID);
+      if (rows.isEmpty())
+         throw new SQLException("User " + this.userID + " no longer exists");
+      List<String> row = rows.get(0);
+      this.type = row.get(0).trim();
+      this.latitude = Double.parseDouble(row.get(1));
+      this.longitude = Double.parseDouble(row.get(2));
+      this.stale = false;
+   }//end refresh
+
+   public boolean isStale() {
+      return this.stale;
+   }
+
+   public long getWriteLsn() {
+      return this.writeLsn;
+   }
+
+   // Only moves forward; concurrent writes of one session keep the latest.
+   public synchronized void noteWriteLsn(long lsn) {
+      if (lsn > this.writeLsn)
+         this.writeLsn = lsn;
+   }
+
+   public int getUserID() {
+      return this.userID;
+   }
+
+   public String getName() {
+      return this.name;
+   }
+
+   public String getToken() {
+      return this.token;
+   }
+
+   public void setToken(String token) {
+      this.token = token;
+   }
+
+   public String getType() {
+      return this.type;
+   }
+
+   public double getLatitude() {
+      return this.latitude;
+   }
+
+   public double getLongitude() {
+      return this.longitude;
+   }
+
+   public boolean isAdmin() {
+      return this.type.equalsIgnoreCase("admin");
+   }
+
+   public boolean isManager() {
+      return this.type.equalsIgnoreCase("manager");
+   }
+
+   // managers and admins share the manager menu.
+   public boolean hasManagerPerms() {
+      return isManager() || isAdmin();
+   }
+}//end Session
@@ -0,0 +1,545 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntPredicate;
+
+/**
+ * This class spreads the stores over several databases (shards), each with
+ * the full schema of create_tables.sql:
+ *
+ *    store tables     Product, Orders, ProductSupplyRequests, ProductUpdates
+ *                     and the popularity counters hold the rows of the
+ *                     shard's stores only
+ *    reference tables Users, Store and Warehouse are copied to every shard,
+ *                     for the foreign keys and joins of the store tables;
+ *                     the first shard (the server's own database) is the
+ *                     master copy, and Store there is the directory
+ *                     viewStores searches
+ *
+ * A command of one store (Command.getStoreID) runs on that store's shard,
+ * every other one on the first shard, except the commands that span stores
+ * (Command.Sharded), i.e. the dashboards and the product search: they run
+ * on every shard at once and their results are merged, see latest, lowest
+ * and topK.
+ *
+ * -Damazon.shards lists the shards after the first as host:port (the
+ * first's database and login), host:port/dbname or JDBC URLs, separated by
+ * commas. Stores are hashed over the shards, or with
+ * -Damazon.shards.ranges=last1,last2,... shard i holds the storeIDs up to
+ * last(i+1) and the last shard the rest.
+ *
+ * Each shard numbers its orders, updates, supply requests and products
+ * from its own sequences; main --sequences interleaves them (shard i of n
+ * takes i+1, i+1+n, ...) so the numbers stay unique across shards. Group
+ * commit and stock reservations write through one connection and cannot be
+ * used with shards; supply requests are fulfilled by a fulfillment process
+ * per shard (scripts/fulfillment.sh). The replenishment planner reads the
+ * orders and stock of one database, so the server refuses it with shards
+ * too; run a planner process per shard instead (scripts/replenish.sh).
+ *
+ */
+public class ShardMap {
+   private static volatile ShardMap shared;
+
+   // the serial columns numbered per shard
+   private static final String[][] SERIALS = {
+      { "Product", "productID" },
+      { "Orders", "orderNumber" },
+      { "ProductSupplyRequests", "requestNumber" },
+      { "ProductUpdates", "updateNumber" }
+   };
+   // users copied to a shard per statement
+   private static final int COPY_ROWS = 1000;
+
+   /**
+    * A query run on every shard.
+    */
+   public interface Query {
+      OperationResult run(Amazon esql) throws SQLException;
+   }//end Query
+
+   /**
+    * A "top n" query run on every shard, n given.
+    */
+   public interface LimitedQuery {
+      OperationResult run(Amazon esql, int limit) throws SQLException;
+   }//end LimitedQuery
+
+   private final List<ConnectionPool> pools = new ArrayList<ConnectionPool>();
+   private final int[] rangeEnds;
+   private final ExecutorService gatherers;
+
+   /**
+    * Opens a pool per shard after the first, of the first pool's size.
+    *
+    * @param first the pool of the first shard
+    * @param urls the JDBC URLs of the other shards
+    * @param rangeEnds the last storeID of each shard but the last, or null to hash
+    */
+   public ShardMap(ConnectionPool first, List<String> urls, int[] rangeEnds) {
+      this.pools.add(first);
+      for (String url : urls)
+         this.pools.add(first.withUrl(url, first.getMaxSize()));
+      this.rangeEnds = rangeEnds;
+      this.gatherers = Executors.newCachedThreadPool(r -> {
+         Thread t = new Thread(r, "shard-gather");
+         t.setDaemon(true);
+         return t;
+      });
+   }//end ShardMap
+
+   // The shards of this process, or null when there is one database.
+   public static ShardMap shared() {
+      return shared;
+   }
+
+   /**
+    * Spreads the stores over the shards listed in -Damazon.shards.
+    *
+    * @param pool the pool of the first shard
+    * @throws java.lang.IllegalStateException when group commit or stock
+    *         reservations are on
+    */
+   public static synchronized void startIfEnabled(ConnectionPool pool) {
+      List<String> urls = configuredUrls(pool.getUrl());
+      if (shared != null || urls.isEmpty())
+         return;
+      if (OrderBatcher.shared() != null || StockReservations.shared() != null)
+         throw new IllegalStateException("Group commit and stock reservations cannot be used with shards");
+      if (ReplenishmentPlanner.shared() != null)
+         throw new IllegalStateException("The server's replenishment planner only sees the first shard; " +
+                                         "run scripts/replenish.sh per shard instead");
+      shared = new ShardMap(pool, urls, configuredRanges(urls.size() + 1));
+   }//end startIfEnabled
+
+   // The other shards of -Damazon.shards; host:port stands for the first's URL with that server.
+   private static List<String> configuredUrls(String firstUrl) {
+      List<String> urls = new ArrayList<String>();
+      for (String shard : System.getProperty("amazon.shards", "").split(",")) {
+         shard = shard.trim();
+         if (shard.isEmpty())
+            continue;
+         if (shard.startsWith("jdbc:"))
+            urls.add(shard);
+         else if (shard.contains("/"))
+            urls.add(firstUrl.replaceFirst("//.*$", "//" + shard));
+         else
+            urls.add(firstUrl.replaceFirst("//[^/]*/", "//" + shard + "/"));
+      }
+      return urls;
+   }//end configuredUrls
+
+   private static int[] configuredRanges(int shards) {
+      String ranges = System.getProperty("amazon.shards.ranges", "").trim();
+      if (ranges.isEmpty())
+         return null;
+      String[] ends = ranges.split(",");
+      if (ends.length != shards - 1)
+         throw new IllegalArgumentException("amazon.shards.ranges needs " + (shards - 1) + " values for " + shards + " shards");
+      int[] rangeEnds = new int[ends.length];
+      for (int i = 0; i < ends.length; ++i)
+         rangeEnds[i] = Integer.parseInt(ends[i].trim());
+      return rangeEnds;
+   }//end configuredRanges
+
+   /**
+    * Which storeIDs a shard holds under -Damazon.shards, without connecting,
+    * e.g. for BulkLoader.
+    *
+    * @param shard the shard, 0 for the first
+    * @return true for the storeIDs of the shard
+    */
+   public static IntPredicate storesOf(final int shard) {
+      final int shards = configuredUrls("jdbc:postgresql://localhost/").size() + 1;
+      final int[] rangeEnds = configuredRanges(shards);
+      if (shard < 0 || shard >= shards)
+         throw new IllegalArgumentException("Shard " + shard + " of " + shards);
+      return storeID -> shardOf(storeID, shards, rangeEnds) == shard;
+   }//end storesOf
+
+   private static int shardOf(int storeID, int shards, int[] rangeEnds) {
+      if (rangeEnds != null) {
+         for (int i = 0; i < rangeEnds.length; ++i)
+            if (storeID <= rangeEnds[i])
+               return i;
+         return rangeEnds.length;
+      }
+      // murmur3's finalizer, so consecutive stores spread over the shards
+      int h = storeID;
+      h ^= h >>> 16;
+      h *= 0x85ebca6b;
+      h ^= h >>> 13;
+      h *= 0xc2b2ae35;
+      h ^= h >>> 16;
+      return Math.floorMod(h, shards);
+   }//end shardOf
+
+   // The pool of the shard that holds a store.
+   public ConnectionPool poolOf(int storeID) {
+      return this.pools.get(shardOf(storeID, this.pools.size(), this.rangeEnds));
+   }
+
+   // The pools of the shards, the first shard's first.
+   public List<ConnectionPool> getPools() {
+      return Collections.unmodifiableList(this.pools);
+   }
+
+   public int size() {
+      return this.pools.size();
+   }
+
+   /**
+    * Runs a query on every shard at once.
+    *
+    * @param query the query
+    * @return the results, in shard order
+    * @throws java.sql.SQLException when the query failed on a shard
+    */
+   public List<OperationResult> each(final Query query) throws SQLException {
+      List<Future<OperationResult>> others = new ArrayList<Future<OperationResult>>();
+      for (final ConnectionPool pool : this.pools.subList(1, this.pools.size()))
+         others.add(this.gatherers.submit(() -> runOn(pool, query)));
+      List<OperationResult> results = new ArrayList<OperationResult>();
+      results.add(runOn(this.pools.get(0), query));
+      try {
+         for (Future<OperationResult> other : others)
+            results.add(other.get());
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while waiting for the shards");
+      } catch (ExecutionException e) {
+         if (e.getCause() instanceof SQLException)
+            throw (SQLException) e.getCause();
+         throw new SQLException(e.getCause());
+      }
+      return results;
+   }//end each
+
+   private static OperationResult runOn(ConnectionPool pool, Query query) throws SQLException {
+      Amazon esql = pool.borrow();
+      try {
+         return query.run(esql);
+      } finally {
+         pool.release(esql);
+      }
+   }//end runOn
+
+   /**
+    * Merges "latest n" results: each shard's n latest hold the n latest of
+    * all, so the merge is exact.
+    *
+    * @param results the result of every shard
+    * @param timeColumn the column ordered by, newest first
+    * @param keyColumn the numeric column that breaks ties, highest first
+    * @param limit n
+    * @return the merged rows, or the first result that is not OK
+    */
+   public static OperationResult latest(List<OperationResult> results, String timeColumn, String keyColumn, int limit) {
+      for (OperationResult result : results)
+         if (!result.isOk())
+            return result;
+      List<String> columns = results.get(0).getColumns();
+      final int time = columns.indexOf(timeColumn);
+      final int key = columns.indexOf(keyColumn);
+      List<List<String>> rows = new ArrayList<List<String>>();
+      for (OperationResult result : results)
+         rows.addAll(result.getRows());
+      // ISO timestamps order as text
+      Collections.sort(rows, (a, b) -> {
+         int c = b.get(time).trim().compareTo(a.get(time).trim());
+         return c != 0 ? c : Long.compare(Long.parseLong(b.get(key).trim()), Long.parseLong(a.get(key).trim()));
+      });
+      return OperationResult.rows(columns, new ArrayList<List<String>>(rows.subList(0, Math.min(limit, rows.size()))));
+   }//end latest
+
+   /**
+    * Merges "lowest n" results, such as the cheapest products: each shard's
+    * n lowest hold the n lowest of all, so the merge is exact.
+    *
+    * @param results the result of every shard
+    * @param valueColumn the numeric column ordered by, lowest first
+    * @param keyColumn the numeric column that breaks ties, lowest first
+    * @param limit n
+    * @return the merged rows, or the first result that is not OK
+    */
+   public static OperationResult lowest(List<OperationResult> results, String valueColumn, String keyColumn, int limit) {
+      for (OperationResult result : results)
+         if (!result.isOk())
+            return result;
+      List<String> columns = results.get(0).getColumns();
+      final int value = columns.indexOf(valueColumn);
+      final int key = columns.indexOf(keyColumn);
+      List<List<String>> rows = new ArrayList<List<String>>();
+      for (OperationResult result : results)
+         rows.addAll(result.getRows());
+      Collections.sort(rows, (a, b) -> {
+         int c = new BigDecimal(a.get(value).trim()).compareTo(new BigDecimal(b.get(value).trim()));
+         return c != 0 ? c : Long.compare(Long.parseLong(a.get(key).trim()), Long.parseLong(b.get(key).trim()));
+      });
+      return OperationResult.rows(columns, new ArrayList<List<String>>(rows.subList(0, Math.min(limit, rows.size()))));
+   }//end lowest
+
+   /**
+    * The k rows with the highest sums over the shards, for results whose
+    * last column is a count and whose other columns are the key. Each shard
+    * is asked for its top n, starting from n = k; a key missing from a
+    * shard's list counts at most that list's last count there, and a key
+    * missing from every list at most the sum of those. When some key could
+    * still rank higher or a sum shown may be short, n is raised and the
+    * shards asked again, until the answer is exact.
+    *
+    * @param k the number of rows
+    * @param query the query, given n
+    * @return the merged rows, or the first result that is not OK
+    * @throws java.sql.SQLException when the query failed on a shard
+    */
+   public OperationResult topK(int k, final LimitedQuery query) throws SQLException {
+      for (int limit = k; ; limit *= 4) {
+         final int n = limit;
+         List<OperationResult> results = each(esql -> query.run(esql, n));
+         for (OperationResult result : results)
+            if (!result.isOk())
+               return result;
+
+         // per key: { the sum seen, the bound of the shards that listed it }
+         Map<List<String>, long[]> sums = new HashMap<List<String>, long[]>();
+         long unseenBound = 0;
+         for (OperationResult result : results) {
+            List<List<String>> rows = result.getRows();
+            long last = rows.size() < n ? 0 : count(rows.get(rows.size() - 1));
+            unseenBound += last;
+            for (List<String> row : rows) {
+               long[] sum = sums.computeIfAbsent(row.subList(0, row.size() - 1), r -> new long[2]);
+               sum[0] += count(row);
+               sum[1] += last;
+            }
+         }
+
+         List<Map.Entry<List<String>, long[]>> ranked = new ArrayList<Map.Entry<List<String>, long[]>>(sums.entrySet());
+         Collections.sort(ranked, (a, b) -> {
+            int c = Long.compare(b.getValue()[0], a.getValue()[0]);
+            return c != 0 ? c : String.valueOf(a.getKey()).compareTo(String.valueOf(b.getKey()));
+         });
+         boolean exact = true;
+         long kth = ranked.size() < k ? 0 : ranked.get(k - 1).getValue()[0];
+         if (unseenBound > kth)
+            exact = false;
+         for (int i = 0; i < ranked.size() && exact; ++i) {
+            long[] sum = ranked.get(i).getValue();
+            long upper = sum[0] + unseenBound - sum[1];
+            exact = i < k ? upper == sum[0] : upper <= kth;
+         }
+         if (!exact)
+            continue;
+
+         List<List<String>> rows = new ArrayList<List<String>>();
+         for (Map.Entry<List<String>, long[]> e : ranked.subList(0, Math.min(k, ranked.size()))) {
+            List<String> row = new ArrayList<String>(e.getKey());
+            row.add(String.valueOf(e.getValue()[0]));
+            rows.add(row);
+         }
+         return OperationResult.rows(results.get(0).getColumns(), rows);
+      }
+   }//end topK
+
+   private static long count(List<String> row) {
+      return Long.parseLong(row.get(row.size() - 1).trim());
+   }
+
+   /**
+    * Copies a user of the first shard to the others, e.g. after createUser.
+    * A shard that fails is reported and left to main --sync-users.
+    *
+    * @param esql a handle of the first shard
+    * @param name the user's name
+    * @throws java.sql.SQLException when failed to read the user
+    */
+   public void copyUser(Amazon esql, String name) throws SQLException {
+      List<List<String>> rows = esql.executeQueryAndReturnResult(
+         "SELECT userID, name, password, latitude, longitude, type FROM Users WHERE name = ?", name);
+      if (rows.isEmpty())
+         return;
+      List<Object[]> users = new ArrayList<Object[]>();
+      users.add(userRow(rows.get(0)));
+      for (ConnectionPool pool : this.pools.subList(1, this.pools.size())) {
+         try {
+            insertUsers(pool, users);
+         } catch (SQLException e) {
+            System.err.println("Shard " + pool.getUrl() + ": user " + name + " not copied: " + e.getMessage());
+         }
+      }
+   }//end copyUser
+
+   /**
+    * Copies the users of the first shard missing from the others.
+    *
+    * @return the number of users copied
+    * @throws java.sql.SQLException when failed to read or copy the users
+    */
+   public long syncUsers() throws SQLException {
+      long copied = 0;
+      Amazon first = this.pools.get(0).borrow();
+      try {
+         for (ConnectionPool pool : this.pools.subList(1, this.pools.size())) {
+            BitSet present = new BitSet();
+            Amazon esql = pool.borrow();
+            try (RowCursor rows = esql.openCursor(10000, "SELECT userID FROM Users")) {
+               while (rows.next())
+                  present.set(rows.getInt(1));
+            } finally {
+               pool.release(esql);
+            }
+            List<Object[]> missing = new ArrayList<Object[]>();
+            try (RowCursor rows = first.openCursor(10000, "SELECT userID, name, password, latitude, longitude, type FROM Users")) {
+               while (rows.next()) {
+                  if (present.get(rows.getInt(1)))
+                     continue;
+                  List<String> row = new ArrayList<String>();
+                  for (int i = 1; i <= 6; ++i)
+                     row.add(rows.getString(i));
+                  missing.add(userRow(row));
+                  if (missing.size() == COPY_ROWS) {
+                     copied += insertUsers(pool, missing);
+                     missing.clear();
+                  }
+               }
+            }
+            copied += insertUsers(pool, missing);
+         }
+      } finally {
+         this.pools.get(0).release(first);
+      }
+      return copied;
+   }//end syncUsers
+
+   private static Object[] userRow(List<String> row) {
+      return new Object[] { Integer.valueOf(row.get(0).trim()), row.get(1), row.get(2), Double.valueOf(row.get(3).trim()),
+                            Double.valueOf(row.get(4).trim()), row.get(5).trim() };
+   }
+
+   private static int insertUsers(ConnectionPool pool, List<Object[]> users) throws SQLException {
+      if (users.isEmpty())
+         return 0;
+      Amazon esql = pool.borrow();
+      try {
+         return esql.executeUpdateRows("INSERT INTO Users (userID, name, password, latitude, longitude, type) VALUES ",
+                                       "(?, ?, ?, ?, ?, ?::user_type)", " ON CONFLICT (userID) DO NOTHING", users);
+      } finally {
+         pool.release(esql);
+      }
+   }//end insertUsers
+
+   /**
+    * Interleaves the serial sequences of the shards: shard i of n continues
+    * past the largest key of every shard with the numbers i+1 modulo n.
+    *
+    * @throws java.sql.SQLException when failed to read or set a sequence
+    */
+   public void interleaveSequences() throws SQLException {
+      int n = this.pools.size();
+      for (String[] serial : SERIALS) {
+         long max = 0;
+         for (ConnectionPool pool : this.pools) {
+            Amazon esql = pool.borrow();
+            try {
+               String value = esql.executeQueryAndReturnResult("SELECT COALESCE(MAX(" + serial[1] + "), 0) FROM " + serial[0]).get(0).get(0);
+               max = Math.max(max, Long.parseLong(value.trim()));
+            } finally {
+               pool.release(esql);
+            }
+         }
+         // the first number past max that is a multiple of n, plus i + 1
+         long base = (max / n + 1) * n;
+         for (int i = 0; i < n; ++i) {
+            Amazon esql = this.pools.get(i).borrow();
+            try {
+               String sequence = esql.executeQueryAndReturnResult("SELECT pg_get_serial_sequence(?, ?)",
+                                                                  serial[0].toLowerCase(), serial[1].toLowerCase()).get(0).get(0);
+               esql.executeUpdate("ALTER SEQUENCE " + sequence + " INCREMENT BY " + n + " RESTART WITH " + (base + i + 1));
+            } finally {
+               this.pools.get(i).release(esql);
+            }
+         }
+         System.out.println(serial[0] + "." + serial[1] + ": shard i continues at " + (base + 1) + " + i, step " + n);
+      }
+   }//end interleaveSequences
+
+   // Closes the pools of the shards after the first.
+   public void stop() {
+      this.gatherers.shutdownNow();
+      for (ConnectionPool pool : this.pools.subList(1, this.pools.size()))
+         pool.close();
+   }//end stop
+
+   // One line summary of the shards' pools.
+   public String describe() {
+      StringBuilder out = new StringBuilder("shards n=" + this.pools.size() + (this.rangeEnds == null ? " hashed" : " ranged"));
+      for (ConnectionPool pool : this.pools)
+         out.append(String.format(" [%s active=%d borrows=%d]", pool.getUrl(), pool.getActive(), pool.getBorrows()));
+      return out.toString();
+   }//end describe
+
+   /**
+    * The main execution method: prepares the shards listed in
+    * -Damazon.shards, the given database being the first.
+    *
+    * @param args <dbname> <port> <user> --sequences and/or --sync-users
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length < 4) {
+         System.err.println(
+            "Usage: " +
+            "java -Damazon.shards=<host:port>,... [-classpath <classpath>] " +
+            ShardMap.class.getName() +
+            " <dbname> <port> <user> [--sequences] [--sync-users]");
+         System.err.println("   --sequences   interleave the serial sequences of the shards");
+         System.err.println("   --sync-users  copy the users of the first shard missing from the others");
+         return;
+      }
+
+      // use postgres JDBC driver.
+      Class.forName("org.postgresql.Driver");
+      ConnectionPool pool = new ConnectionPool("jdbc:postgresql://localhost:" + args[1] + "/" + args[0], args[2], "", 2);
+      List<String> urls = configuredUrls(pool.getUrl());
+      if (urls.isEmpty()) {
+         System.err.println("No shards: set -Damazon.shards");
+         pool.close();
+         return;
+      }
+      ShardMap shards = new ShardMap(pool, urls, configuredRanges(urls.size() + 1));
+      try {
+         for (int i = 3; i < args.length; ++i) {
+            switch (args[i]) {
+               case "--sequences": shards.interleaveSequences(); break;
+               case "--sync-users": System.out.println(shards.syncUsers() + " users copied"); break;
+               default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+         }
+      } finally {
+         shards.stop();
+         pool.close();
+      }
+   }//end main
+}//end ShardMap
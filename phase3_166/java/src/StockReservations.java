@@ -0,0 +1,617 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class keeps the stock of every product in memory, so an order for a
+ * hot product reserves its units without waiting on the product's row
+ * lock in the database.
+ *
+ * The counters are loaded from Product.numberOfUnits on start. Every change
+ * (an order, a fulfilled supply request, a manager setting the units) is
+ * applied to its counter and appended to the StockWal under the lock of
+ * the counter's stripe, so the log holds each product's changes in the
+ * order they were made; the caller is answered once the log is on disk.
+ * A reconciler thread then writes the logged changes to the database in
+ * batches: the summed stock change of each product, the orders, their
+ * popularity counts and the checkpoint (the number of the last record
+ * written) in one transaction; a top-up's supply request is marked
+ * fulfilled in the same transaction. After a crash, start writes the records
+ * after the checkpoint before loading the counters, so nothing is lost or
+ * written twice. A record the database rejects on its own is never passed
+ * over: its counter change is taken back and it is parked in
+ * StockReservationDeadLetters, with the checkpoint moved past it, in one
+ * transaction (see deadLetter).
+ *
+ * The counters are the stock of record while this runs: Product rows lag
+ * them by the reconciler's delay, and every stock change must go through
+ * this class, so only one process may run it against a database. The
+ * reconciler's connection holds the advisory lock STOCK_LOCK meanwhile,
+ * which a second process fails to take, and which every process without
+ * reservations checks with stockInDatabase in the transaction that would
+ * change Product.numberOfUnits, refusing the change when it is held. A change
+ * whose log write fails is reported as an error; one whose log sync fails
+ * is taken back first (see undo), unless another sync made it durable.
+ *
+ * Enabled by -Damazon.reservations=true, with the log file
+ * -Damazon.reservations.wal (default stock.wal); see startIfEnabled.
+ *
+ */
+public class StockReservations {
+   private static volatile StockReservations shared;
+
+   private static final int STRIPES = 64;
+   private static final int BATCH = 1000;
+   // order numbers taken from the Orders sequence at a time
+   private static final int ORDER_NUMBER_BLOCK = 100;
+   // the advisory lock held while the counters are the stock of record ("STOCK")
+   static final long STOCK_LOCK = 0x53544f434bL;
+   // true unless another process holds STOCK_LOCK; in a transaction it
+   // keeps that process from starting until the commit
+   private static final String STOCK_IN_DATABASE = "SELECT 1 WHERE pg_try_advisory_xact_lock_shared(?)";
+   // the answer to a stock change refused by stockInDatabase
+   static final String STOCK_ELSEWHERE = "The stock is kept in memory by the server; change it through the server.";
+
+   private static final String CHECKPOINT_QUERY = "SELECT lastSeq FROM StockReservationCheckpoint WHERE id = 1";
+   private static final String CHECKPOINT_UPDATE =
+      "INSERT INTO StockReservationCheckpoint (id, lastSeq) VALUES (1, ?) ON CONFLICT (id) DO UPDATE SET lastSeq = EXCLUDED.lastSeq";
+   private static final String DEAD_LETTER_INSERT =
+      "INSERT INTO StockReservationDeadLetters (seq, type, storeID, productName, units, orderNumber, customerID, loggedOn, error) " +
+      "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?) ON CONFLICT (seq) DO NOTHING";
+
+   private final ConnectionPool pool;
+   private final Map<String, AtomicInteger> units = new ConcurrentHashMap<String, AtomicInteger>();
+   // the number of each product's last SET record
+   private final Map<String, Long> lastSets = new ConcurrentHashMap<String, Long>();
+   // the supply requests topped up but not yet marked fulfilled
+   private final Set<Integer> toppedUp = ConcurrentHashMap.newKeySet();
+   private final Object[] stripes = new Object[STRIPES];
+   private final StockWal wal;
+   private final LinkedBlockingQueue<StockWal.Record> pending = new LinkedBlockingQueue<StockWal.Record>();
+   private final Thread reconciler;
+   private volatile boolean running = true;
+   private Amazon esql;
+
+   // the block of order numbers being handed out
+   private int nextOrderNumber = 0;
+   private int endOrderNumber = 0;
+
+   // reservation metrics
+   private final AtomicLong reserved = new AtomicLong();
+   private final AtomicLong rejected = new AtomicLong();
+   private final AtomicLong topUps = new AtomicLong();
+   private final AtomicLong reconciledRecords = new AtomicLong();
+   private final AtomicLong reconcileBatches = new AtomicLong();
+   private final AtomicLong deadLetters = new AtomicLong();
+   private volatile long appliedSeq;
+
+   /**
+    * Writes the logged changes the database is missing, loads the counters
+    * and starts the reconciler.
+    *
+    * @param pool the pool the reconciler takes its connection from
+    * @param walFile the log file
+    * @throws java.sql.SQLException when the database could not be read
+    * @throws java.io.IOException when the log could not be read
+    * @throws java.lang.InterruptedException when interrupted while the database is away
+    */
+   public StockReservations(ConnectionPool pool, File walFile) throws SQLException, IOException, InterruptedException {
+      this.pool = pool;
+      for (int i = 0; i < STRIPES; ++i)
+         this.stripes[i] = new Object();
+      this.esql = pool.borrow();
+      lockStock(this.esql);
+
+      List<List<String>> checkpoint = this.esql.executeQueryAndReturnResult(CHECKPOINT_QUERY);
+      this.appliedSeq = checkpoint.isEmpty() ? 0 : Long.parseLong(checkpoint.get(0).get(0).trim());
+      this.wal = new StockWal(walFile, this.appliedSeq);
+      List<StockWal.Record> replay = this.wal.getRecovered();
+      for (int i = 0; i < replay.size(); i += BATCH)
+         reconcileWithRetries(new ArrayList<StockWal.Record>(replay.subList(i, Math.min(replay.size(), i + BATCH))));
+      if (!replay.isEmpty())
+         System.out.println("Stock log: replayed " + replay.size() + " records");
+
+      try (RowCursor rows = this.esql.openCursor(10000, "SELECT storeID, productName, numberOfUnits FROM Product")) {
+         while (rows.next())
+            this.units.put(ProductKey.of(rows.getInt(1), rows.getString(2)), new AtomicInteger(rows.getInt(3)));
+      }
+
+      this.reconciler = new Thread(this::reconcileLoop, "stock-reconciler");
+      this.reconciler.setDaemon(true);
+      this.reconciler.start();
+   }//end StockReservations
+
+   // The reservations of this process, or null when they are off.
+   public static StockReservations shared() {
+      return shared;
+   }
+
+   /**
+    * Tells whether Product.numberOfUnits is the stock of record, i.e. no
+    * process keeps the stock in memory. In the transaction that writes the
+    * stock, it keeps such a process from starting until the commit.
+    *
+    * @param tx the handle of the transaction, or an autocommit handle to only ask
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   static boolean stockInDatabase(Amazon tx) throws SQLException {
+      return tx.executeQuery(STOCK_IN_DATABASE, STOCK_LOCK) > 0;
+   }//end stockInDatabase
+
+   /**
+    * Starts the process' reservations when -Damazon.reservations=true.
+    *
+    * @param pool the pool the reconciler takes its connection from
+    * @throws java.lang.Exception when the log could not be replayed
+    */
+   public static synchronized void startIfEnabled(ConnectionPool pool) throws Exception {
+      if (shared != null || !Boolean.getBoolean("amazon.reservations"))
+         return;
+      shared = new StockReservations(pool, new File(System.getProperty("amazon.reservations.wal", "stock.wal")));
+   }//end startIfEnabled
+
+   /**
+    * Reserves the units of an order and logs it; the order row is written
+    * by the reconciler, with the number returned now.
+    *
+    * @param esql the caller's handle, used to take order numbers
+    * @return the result of placeOrder
+    * @throws java.sql.SQLException when no order number could be taken
+    */
+   public OperationResult placeOrder(Amazon esql, int customerID, int storeID, String productName, int numberOfUnits)
+         throws SQLException {
+      String key = ProductKey.of(storeID, productName);
+      AtomicInteger counter = this.units.get(key);
+      if (counter == null) {
+         this.rejected.incrementAndGet();
+         return OperationResult.fail(OperationResult.Status.UNAVAILABLE, "Product doesn't exist or you ordered too many.");
+      }
+      int orderNumber = nextOrderNumber(esql);
+      StockWal.Record record = new StockWal.Record(StockWal.ORDER, storeID, productName, numberOfUnits, orderNumber,
+                                                   customerID, System.currentTimeMillis());
+      long seq;
+      synchronized (stripe(key)) {
+         int left = counter.get();
+         if (left < numberOfUnits) {
+            this.rejected.incrementAndGet();
+            return OperationResult.fail(OperationResult.Status.UNAVAILABLE, "Product doesn't exist or you ordered too many.");
+         }
+         seq = log(record);
+         if (seq < 0)
+            return OperationResult.fail(OperationResult.Status.ERROR, "Order not placed: the stock log failed.");
+         counter.set(left - numberOfUnits);
+      }
+      if (!sync(seq) && undo(key, counter, record, 0))
+         return OperationResult.fail(OperationResult.Status.ERROR, "Order not placed: the stock log failed.");
+      this.reserved.incrementAndGet();
+      ProductCache.shared().adjustUnits(storeID, productName, -numberOfUnits);
+      return OperationResult.created(orderNumber, "Product ordered! Your order number is " + orderNumber + ".");
+   }//end placeOrder
+
+   /**
+    * What topUp or setUnits did with a stock change.
+    */
+   enum Change {
+      // the change was applied and logged now
+      APPLIED,
+      // the supply request was added before and is not written yet
+      ALREADY_APPLIED,
+      // the product is not in memory, e.g. added after the start
+      NOT_LOADED,
+      // the log write or sync failed; nothing changed
+      LOG_FAILED
+   }//end Change
+
+   /**
+    * Adds the units of a supply request to a product. The request stays
+    * pending until the reconciler writes the units and marks it fulfilled
+    * in one transaction; until then a request topped up again, e.g. by a
+    * retried batch or the next claim, is not added twice.
+    *
+    * @param requestNumber the supply request, which the caller holds locked
+    */
+   public Change topUp(int requestNumber, int storeID, String productName, int numberOfUnits) {
+      if (!this.toppedUp.add(requestNumber))
+         return Change.ALREADY_APPLIED;
+      Change change = change(StockWal.TOP_UP, storeID, productName, numberOfUnits, requestNumber);
+      if (change != Change.APPLIED) {
+         this.toppedUp.remove(requestNumber);
+         return change;
+      }
+      this.topUps.incrementAndGet();
+      ProductCache.shared().adjustUnits(storeID, productName, numberOfUnits);
+      return Change.APPLIED;
+   }//end topUp
+
+   /**
+    * Sets the units of a product, e.g. from updateProduct, which calls it
+    * before its transaction commits.
+    */
+   public Change setUnits(int storeID, String productName, int numberOfUnits) {
+      return change(StockWal.SET, storeID, productName, numberOfUnits, 0);
+   }//end setUnits
+
+   private Change change(byte type, int storeID, String productName, int value, int requestNumber) {
+      String key = ProductKey.of(storeID, productName);
+      AtomicInteger counter = this.units.get(key);
+      if (counter == null)
+         return Change.NOT_LOADED;
+      StockWal.Record record = new StockWal.Record(type, storeID, productName, value, requestNumber, 0, System.currentTimeMillis());
+      int previous;
+      synchronized (stripe(key)) {
+         long seq = log(record);
+         if (seq < 0)
+            return Change.LOG_FAILED;
+         previous = counter.get();
+         if (type == StockWal.SET) {
+            counter.set(value);
+            this.lastSets.put(key, seq);
+         } else {
+            counter.addAndGet(value);
+         }
+      }
+      return sync(record.seq) || !undo(key, counter, record, previous) ? Change.APPLIED : Change.LOG_FAILED;
+   }//end change
+
+   /**
+    * Takes back a change whose log sync failed: its counter is restored and
+    * the reconciler drops the record. The record may have reached the disk
+    * all the same, so a CANCEL record keeps a replay from applying it. A
+    * record that another thread's sync made durable meanwhile stands.
+    *
+    * @param previous the units of the counter before a SET
+    * @return true when the change was taken back, false when it stands
+    */
+   private boolean undo(String key, AtomicInteger counter, StockWal.Record record, int previous) {
+      synchronized (stripe(key)) {
+         // the reconciler only takes records that are on disk
+         if (this.wal.getSyncedSeq() >= record.seq || !this.pending.remove(record))
+            return false;
+         if (record.type == StockWal.ORDER)
+            counter.addAndGet(record.units);
+         else if (record.type == StockWal.TOP_UP)
+            counter.addAndGet(-record.units);
+         // the changes made since stay; a later SET replaced this one anyway
+         else if (this.lastSets.get(key) == record.seq)
+            counter.addAndGet(previous - record.units);
+         long seq = log(StockWal.Record.cancel(record));
+         if (seq < 0 || !sync(seq))
+            System.err.println("Stock log: the cancel of record " + record.seq + " is not on disk; a replay may apply it");
+      }
+      return true;
+   }//end undo
+
+   // The units in memory, or null for a product not loaded.
+   public Integer getUnits(int storeID, String productName) {
+      AtomicInteger counter = this.units.get(ProductKey.of(storeID, productName));
+      return counter == null ? null : counter.get();
+   }//end getUnits
+
+   // Appends a record and queues it for the reconciler, in log order; -1 when the log failed.
+   private long log(StockWal.Record record) {
+      try {
+         synchronized (this.wal) {
+            long seq = this.wal.append(record);
+            this.pending.add(record);
+            return seq;
+         }
+      } catch (IOException e) {
+         System.err.println("Stock log append failed: " + e.getMessage());
+         return -1;
+      }
+   }//end log
+
+   private boolean sync(long seq) {
+      try {
+         this.wal.sync(seq);
+         return true;
+      } catch (IOException e) {
+         System.err.println("Stock log sync failed: " + e.getMessage());
+         return false;
+      }
+   }//end sync
+
+   // Takes order numbers from the Orders sequence a block at a time.
+   private synchronized int nextOrderNumber(Amazon esql) throws SQLException {
+      if (this.nextOrderNumber == this.endOrderNumber) {
+         List<List<String>> numbers = esql.executeQueryAndReturnResult(
+            "SELECT nextval(pg_get_serial_sequence('orders', 'ordernumber')) FROM generate_series(1, ?)", ORDER_NUMBER_BLOCK);
+         // concurrent takers may interleave, so use the first consecutive run
+         int first = Integer.parseInt(numbers.get(0).get(0).trim());
+         int end = first + 1;
+         while (end - first < numbers.size() && Integer.parseInt(numbers.get(end - first).get(0).trim()) == end)
+            ++end;
+         this.nextOrderNumber = first;
+         this.endOrderNumber = end;
+      }
+      return this.nextOrderNumber++;
+   }//end nextOrderNumber
+
+   // Writes the durable records to the database in batches, until stopped.
+   private void reconcileLoop() {
+      List<StockWal.Record> batch = new ArrayList<StockWal.Record>(BATCH);
+      while (this.running || !this.pending.isEmpty()) {
+         try {
+            StockWal.Record first = this.pending.peek();
+            if (first == null || first.seq > this.wal.getSyncedSeq()) {
+               TimeUnit.MILLISECONDS.sleep(first == null ? 10 : 1);
+               continue;
+            }
+            long synced = this.wal.getSyncedSeq();
+            StockWal.Record next;
+            while (batch.size() < BATCH && (next = this.pending.peek()) != null && next.seq <= synced)
+               batch.add(this.pending.poll());
+            reconcileWithRetries(batch);
+            batch.clear();
+         } catch (InterruptedException e) {
+            // stop() interrupts the wait; the queued records are still written
+         }
+      }
+      try {
+         this.esql.executeQuery("SELECT pg_advisory_unlock(?)", STOCK_LOCK);
+      } catch (SQLException e) {
+         // a broken connection has lost the lock already
+      }
+      this.pool.release(this.esql);
+   }//end reconcileLoop
+
+   /**
+    * Takes STOCK_LOCK on the reconciler's connection, waiting out the
+    * batches supply fulfillment runs elsewhere.
+    *
+    * @throws java.sql.SQLException when another process holds it
+    */
+   private static void lockStock(Amazon esql) throws SQLException {
+      esql.executeUpdate("SET lock_timeout = '10s'");
+      try {
+         esql.executeQuery("SELECT pg_advisory_lock(?)", STOCK_LOCK);
+      } catch (SQLException e) {
+         throw new SQLException("Another process keeps the stock of this database in memory: " + e.getMessage());
+      } finally {
+         esql.executeUpdate("RESET lock_timeout");
+      }
+   }//end lockStock
+
+   /**
+    * Writes a batch, retrying while the database is unavailable. A batch
+    * that fails on a record is written one record at a time; a record the
+    * database rejects on its own is set aside by deadLetter.
+    */
+   private void reconcileWithRetries(List<StockWal.Record> batch) throws InterruptedException {
+      // a batch taken up again after an interrupt may hold records written since
+      batch.removeIf(r -> r.seq <= this.appliedSeq);
+      if (batch.isEmpty())
+         return;
+      for (int attempt = 0; ; ++attempt) {
+         try {
+            if (this.esql == null && !reconnect(attempt))
+               continue;
+            reconcile(batch);
+            return;
+         } catch (SQLException e) {
+            if (!reconnect(attempt))
+               continue;
+            if (batch.size() > 1) {
+               for (StockWal.Record record : batch) {
+                  List<StockWal.Record> single = new ArrayList<StockWal.Record>(1);
+                  single.add(record);
+                  reconcileWithRetries(single);
+               }
+               return;
+            }
+            deadLetter(batch.get(0), e);
+            return;
+         }
+      }
+   }//end reconcileWithRetries
+
+   /**
+    * After a failed transaction, keeps the reconciler's connection when it
+    * is still usable, or else waits and takes a new one.
+    *
+    * @return true when the connection is usable, false when the database is away
+    */
+   private boolean reconnect(int attempt) throws InterruptedException {
+      if (this.esql != null && this.esql.resetForReuse())
+         return true;
+      this.pool.release(this.esql);
+      this.esql = null;
+      // the database is away: wait and write the same records again
+      TimeUnit.MILLISECONDS.sleep(Math.min(5000, 100L << Math.min(attempt, 6)));
+      try {
+         this.esql = this.pool.borrow();
+         // the lock went with the old connection
+         lockStock(this.esql);
+      } catch (SQLException retry) {
+         // tried again on the next attempt
+      }
+      return false;
+   }//end reconnect
+
+   /**
+    * Sets aside a record the database rejected: the record goes to
+    * StockReservationDeadLetters and the checkpoint past it in one
+    * transaction, retried until it commits, and then its change to the
+    * counter is taken back. The number of a rejected order stays in the
+    * dead letter for an operator; the supply request of a rejected top-up
+    * is marked failed, like a request SupplyFulfillment fails alone, so it
+    * is not credited again. A rejected SET stands in memory: the units it
+    * replaced are gone.
+    */
+   private void deadLetter(final StockWal.Record record, final SQLException failure) throws InterruptedException {
+      System.err.println("Stock log record " + record.seq + " rejected, moved to StockReservationDeadLetters: "
+                         + failure.getMessage());
+      for (int attempt = 0; ; ++attempt) {
+         try {
+            if (this.esql == null && !reconnect(attempt))
+               continue;
+            this.esql.inTransaction(new Amazon.Transaction<Void>() {
+               public Void run(Amazon tx) throws SQLException {
+                  tx.executeUpdate(DEAD_LETTER_INSERT, record.seq, (int) record.type, record.storeID, record.productName,
+                                   record.units, record.orderNumber, record.customerID, new Timestamp(record.time),
+                                   String.valueOf(failure.getMessage()));
+                  if (record.type == StockWal.TOP_UP && record.orderNumber > 0)
+                     tx.executeUpdate("UPDATE ProductSupplyRequests SET status = 'failed', fulfilledOn = ? " +
+                                      "WHERE requestNumber = ? AND status = 'pending'", Amazon.getTime(), record.orderNumber);
+                  tx.executeUpdate(CHECKPOINT_UPDATE, record.seq);
+                  return null;
+               }
+            });
+            break;
+         } catch (SQLException e) {
+            System.err.println("Stock log record " + record.seq + " not set aside, the reconciler waits: " + e.getMessage());
+            if (reconnect(attempt))
+               TimeUnit.MILLISECONDS.sleep(Math.min(5000, 100L << Math.min(attempt, 6)));
+         }
+      }
+      this.appliedSeq = record.seq;
+      this.deadLetters.incrementAndGet();
+
+      // the counters are loaded from Product after a replay, so only undo a loaded one
+      String key = ProductKey.of(record.storeID, record.productName);
+      AtomicInteger counter = this.units.get(key);
+      int change = record.type == StockWal.ORDER ? record.units : record.type == StockWal.TOP_UP ? -record.units : 0;
+      if (counter != null && change != 0) {
+         synchronized (stripe(key)) {
+            counter.addAndGet(change);
+         }
+         ProductCache.shared().adjustUnits(record.storeID, record.productName, change);
+      }
+      List<StockWal.Record> single = new ArrayList<StockWal.Record>(1);
+      single.add(record);
+      settle(single);
+   }//end deadLetter
+
+   /**
+    * Writes records to the database in one transaction: each product's
+    * stock once, the orders and their popularity counts, and the checkpoint.
+    */
+   private void reconcile(final List<StockWal.Record> batch) throws SQLException {
+      long start = System.nanoTime();
+      Object token = Metrics.shared().begin("stockReconcile");
+      OperationResult.Status status = OperationResult.Status.ERROR;
+      try {
+         this.esql.inTransaction(new Amazon.Transaction<Void>() {
+            public Void run(Amazon tx) throws SQLException {
+               // per product, in log order: a SET replaces the stock, the others add to it
+               Map<String, Object[]> stock = new TreeMap<String, Object[]>();
+               List<Object[]> orders = new ArrayList<Object[]>();
+               List<Object[]> counted = new ArrayList<Object[]>();
+               List<Object[]> fulfilled = new ArrayList<Object[]>();
+               for (StockWal.Record r : batch) {
+                  // a cancel only moves the checkpoint past it
+                  if (r.type == StockWal.CANCEL)
+                     continue;
+                  String key = ProductKey.of(r.storeID, r.productName);
+                  Object[] change = stock.get(key);
+                  if (change == null)
+                     stock.put(key, change = new Object[] { r.storeID, r.productName, null, 0 });
+                  if (r.type == StockWal.SET) {
+                     change[2] = r.units;
+                     change[3] = 0;
+                  } else {
+                     change[3] = (Integer) change[3] + (r.type == StockWal.ORDER ? -r.units : r.units);
+                  }
+                  if (r.type == StockWal.ORDER) {
+                     orders.add(new Object[] { r.orderNumber, r.customerID, r.storeID, r.storeID, r.productName, r.units, new Timestamp(r.time) });
+                     counted.add(new Object[] { r.storeID, r.productName, r.customerID });
+                  } else if (r.type == StockWal.TOP_UP && r.orderNumber > 0) {
+                     fulfilled.add(new Object[] { new Timestamp(r.time), r.orderNumber });
+                  }
+               }
+
+               List<Object[]> sets = new ArrayList<Object[]>();
+               List<Object[]> adds = new ArrayList<Object[]>();
+               for (Object[] change : stock.values()) {
+                  if (change[2] != null)
+                     sets.add(new Object[] { (Integer) change[2] + (Integer) change[3], change[0], change[1] });
+                  else if ((Integer) change[3] != 0)
+                     adds.add(new Object[] { change[3], change[0], change[1] });
+               }
+               if (!sets.isEmpty())
+                  tx.executeBatch("UPDATE Product SET numberOfUnits = ? WHERE storeID = ? AND productName = ?", sets);
+               if (!adds.isEmpty())
+                  tx.executeBatch("UPDATE Product SET numberOfUnits = numberOfUnits + ? WHERE storeID = ? AND productName = ?", adds);
+               if (!orders.isEmpty()) {
+                  // the log names products; the rows refer to them by productID
+                  tx.executeUpdateRows("INSERT INTO Orders (orderNumber, customerID, storeID, productID, unitsOrdered, orderTime) VALUES ",
+                                       "(?, ?, ?, (SELECT productID FROM Product WHERE storeID = ? AND productName = ?), ?, ?)", "", orders);
+                  PopularityRollup.recordOrders(tx, counted);
+               }
+               if (!fulfilled.isEmpty())
+                  tx.executeBatch("UPDATE ProductSupplyRequests SET status = 'fulfilled', fulfilledOn = ? " +
+                                  "WHERE requestNumber = ? AND status = 'pending'", fulfilled);
+               tx.executeUpdate(CHECKPOINT_UPDATE, batch.get(batch.size() - 1).seq);
+               return null;
+            }
+         });
+         status = OperationResult.Status.OK;
+      } finally {
+         Metrics.shared().end(token, System.nanoTime() - start, status);
+      }
+      this.appliedSeq = batch.get(batch.size() - 1).seq;
+      settle(batch);
+      this.reconcileBatches.incrementAndGet();
+      this.reconciledRecords.addAndGet(batch.size());
+      try {
+         this.wal.truncateIfApplied(this.appliedSeq);
+      } catch (IOException e) {
+         System.err.println("Stock log truncate failed: " + e.getMessage());
+      }
+   }//end reconcile
+
+   // Forgets the top-ups written or set aside: the request of one is fulfilled, of the other failed.
+   private void settle(List<StockWal.Record> batch) {
+      for (StockWal.Record r : batch)
+         if (r.type == StockWal.TOP_UP)
+            this.toppedUp.remove(r.orderNumber);
+   }//end settle
+
+   private Object stripe(String key) {
+      return this.stripes[(key.hashCode() & 0x7fffffff) % STRIPES];
+   }
+
+   /**
+    * Stops the reconciler after it wrote every queued record, and closes
+    * the log.
+    */
+   public void stop() throws InterruptedException, IOException {
+      this.running = false;
+      this.reconciler.interrupt();
+      this.reconciler.join();
+      this.wal.close();
+   }//end stop
+
+   // One line summary of the reservation metrics.
+   public String describe() {
+      return String.format("stockReservations products=%d reserved=%d rejected=%d topUps=%d reconciled=%d batches=%d " +
+                           "deadLetters=%d lag=%d",
+                           this.units.size(), this.reserved.get(), this.rejected.get(), this.topUps.get(),
+                           this.reconciledRecords.get(), this.reconcileBatches.get(), this.deadLetters.get(),
+                           this.pending.size());
+   }//end describe
+}//end StockReservations
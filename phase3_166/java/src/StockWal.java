@@ -0,0 +1,239 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * This class is the write-ahead log of StockReservations: every stock
+ * change is appended here, and made durable, before the caller is told it
+ * happened; the reconciler writes it to the database later.
+ *
+ * A record is its length, its fields and a CRC32 of them, so a record torn
+ * by a crash is detected on open and cut off with everything after it.
+ * Records are numbered in append order; the number of the last record the
+ * database holds is the checkpoint, and once the database holds every
+ * record the file is emptied. A CANCEL record takes back an earlier record
+ * whose sync failed, which may have reached the disk all the same; the two
+ * are dropped from the records read on open.
+ *
+ * sync is a group fsync: of the threads waiting for their records, one
+ * forces the file for all records appended so far and the others find
+ * theirs already durable.
+ *
+ */
+public class StockWal implements AutoCloseable {
+   static final byte ORDER = 1;
+   static final byte TOP_UP = 2;
+   static final byte SET = 3;
+   static final byte CANCEL = 4;
+
+   // the file is emptied once applied and larger than this
+   private static final long TRUNCATE_SIZE = 64L << 20;
+
+   /**
+    * A stock change: an order taking units, a supply request adding units,
+    * or a manager setting the units of a product; or the cancel of one.
+    */
+   static class Record {
+      long seq;
+      // the record a CANCEL takes back
+      long cancelled;
+      final byte type;
+      final int storeID;
+      final String productName;
+      final int units;
+      // the order's number, or the supply request's of a TOP_UP
+      final int orderNumber;
+      final int customerID;
+      final long time;
+
+      Record(byte type, int storeID, String productName, int units, int orderNumber, int customerID, long time) {
+         this.type = type;
+         this.storeID = storeID;
+         this.productName = productName;
+         this.units = units;
+         this.orderNumber = orderNumber;
+         this.customerID = customerID;
+         this.time = time;
+      }
+
+      static Record cancel(Record record) {
+         Record cancel = new Record(CANCEL, record.storeID, record.productName, 0, 0, 0, System.currentTimeMillis());
+         cancel.cancelled = record.seq;
+         return cancel;
+      }
+   }//end Record
+
+   private final FileChannel channel;
+   private final List<Record> recovered;
+   private long lastSeq;
+   private final Object syncLock = new Object();
+   private volatile long syncedSeq;
+
+   /**
+    * Opens the log, reading the records after the checkpoint and cutting
+    * off a torn tail.
+    *
+    * @param file the log file, created when missing
+    * @param checkpoint the number of the last record the database holds
+    * @throws java.io.IOException when the file cannot be read
+    */
+   public StockWal(File file, long checkpoint) throws IOException {
+      this.channel = new RandomAccessFile(file, "rw").getChannel();
+      this.recovered = new ArrayList<Record>();
+      this.lastSeq = checkpoint;
+
+      long size = this.channel.size();
+      long valid = 0;
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+         while (size - valid >= 4) {
+            int length = in.readInt();
+            if (length <= 0 || size - valid - 4 < length + 8)
+               break;
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if (crc.getValue() != in.readLong())
+               break;
+            final Record record = decode(ByteBuffer.wrap(payload));
+            if (record.type == CANCEL)
+               this.recovered.removeIf(r -> r.seq == record.cancelled);
+            else if (record.seq > checkpoint)
+               this.recovered.add(record);
+            this.lastSeq = Math.max(this.lastSeq, record.seq);
+            valid += 4 + length + 8;
+         }
+      }
+      if (valid < size) {
+         System.err.println("Stock log " + file + ": cut off " + (size - valid) + " bytes of a torn record");
+         this.channel.truncate(valid);
+         this.channel.force(true);
+      }
+      this.channel.position(valid);
+      this.syncedSeq = this.lastSeq;
+   }//end StockWal
+
+   // The records after the checkpoint found on open, oldest first.
+   public List<Record> getRecovered() {
+      return this.recovered;
+   }
+
+   /**
+    * Numbers a record and writes it to the file, not yet durably.
+    *
+    * @return the record's number, to pass to sync
+    * @throws java.io.IOException when the write failed
+    */
+   public synchronized long append(Record record) throws IOException {
+      record.seq = this.lastSeq + 1;
+      ByteBuffer buffer = encode(record);
+      while (buffer.hasRemaining())
+         this.channel.write(buffer);
+      this.lastSeq = record.seq;
+      return record.seq;
+   }//end append
+
+   /**
+    * Waits until the record with the given number is on disk.
+    *
+    * @throws java.io.IOException when the fsync failed
+    */
+   public void sync(long seq) throws IOException {
+      synchronized (this.syncLock) {
+         if (this.syncedSeq >= seq)
+            return;
+         long upTo;
+         synchronized (this) {
+            upTo = this.lastSeq;
+         }
+         this.channel.force(false);
+         this.syncedSeq = upTo;
+      }
+   }//end sync
+
+   // The number of the last durable record.
+   public long getSyncedSeq() {
+      return this.syncedSeq;
+   }
+
+   /**
+    * Empties the file when the database holds every record in it and it
+    * has grown past TRUNCATE_SIZE.
+    *
+    * @param appliedSeq the number of the last record the database holds
+    * @throws java.io.IOException when the file could not be truncated
+    */
+   public synchronized void truncateIfApplied(long appliedSeq) throws IOException {
+      if (appliedSeq < this.lastSeq || this.channel.size() < TRUNCATE_SIZE)
+         return;
+      this.channel.truncate(0);
+      this.channel.position(0);
+      this.channel.force(true);
+   }//end truncateIfApplied
+
+   public void close() throws IOException {
+      this.channel.close();
+   }
+
+   private static ByteBuffer encode(Record record) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeLong(record.seq);
+      out.writeByte(record.type);
+      out.writeInt(record.storeID);
+      byte[] name = record.productName.getBytes(StandardCharsets.UTF_8);
+      out.writeShort(name.length);
+      out.write(name);
+      out.writeInt(record.units);
+      out.writeInt(record.orderNumber);
+      out.writeInt(record.customerID);
+      out.writeLong(record.time);
+      if (record.type == CANCEL)
+         out.writeLong(record.cancelled);
+      byte[] payload = bytes.toByteArray();
+      CRC32 crc = new CRC32();
+      crc.update(payload);
+      ByteBuffer buffer = ByteBuffer.allocate(4 + payload.length + 8);
+      buffer.putInt(payload.length).put(payload).putLong(crc.getValue());
+      buffer.flip();
+      return buffer;
+   }//end encode
+
+   private static Record decode(ByteBuffer in) {
+      long seq = in.getLong();
+      byte type = in.get();
+      int storeID = in.getInt();
+      byte[] name = new byte[in.getShort()];
+      in.get(name);
+      Record record = new Record(type, storeID, new String(name, StandardCharsets.UTF_8), in.getInt(), in.getInt(),
+                                 in.getInt(), in.getLong());
+      record.seq = seq;
+      if (type == CANCEL)
+         record.cancelled = in.getLong();
+      return record;
+   }//end decode
+}//end StockWal
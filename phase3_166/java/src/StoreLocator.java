@@ -0,0 +1,116 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * This class finds the stores near a location. Every lookup first restricts
+ * Store to the bounding box of the search circle, which the index on
+ * Store(latitude, longitude) answers without a full scan, and then applies
+ * the same euclidean distance as Amazon.calculateDistance, so the results
+ * are exactly those of the plain distance predicate.
+ *
+ */
+public class StoreLocator {
+   // the largest distance between two points with coordinates in [0, 100].
+   private static final double MAX_DISTANCE = 100 * Math.sqrt(2);
+   // the first radius tried by nearest; it doubles until k stores are found.
+   private static final double INITIAL_RADIUS = 1.0;
+
+   private static final String BOX_QUERY =
+      "SELECT storeID, latitude, longitude FROM Store " +
+      "WHERE latitude BETWEEN ? AND ? AND longitude BETWEEN ? AND ? " +
+      "AND (SQRT(POW(latitude - ?, 2) + POW(longitude - ?, 2)) < ?)";
+
+   /**
+    * A store and its distance from the searched location.
+    */
+   public static class NearbyStore {
+      public final int storeID;
+      public final double latitude;
+      public final double longitude;
+      public final double distance;
+
+      public NearbyStore(int storeID, double latitude, double longitude, double distance) {
+         this.storeID = storeID;
+         this.latitude = latitude;
+         this.longitude = longitude;
+         this.distance = distance;
+      }
+   }//end NearbyStore
+
+   // nearest first, ties broken by storeID so results are stable.
+   private static final Comparator<NearbyStore> BY_DISTANCE = new Comparator<NearbyStore>() {
+      public int compare(NearbyStore a, NearbyStore b) {
+         int c = Double.compare(a.distance, b.distance);
+         return c != 0 ? c : Integer.compare(a.storeID, b.storeID);
+      }
+   };
+
+   /**
+    * Finds the stores strictly closer than radius to the given location.
+    *
+    * @param esql the database handle
+    * @param latitude the latitude of the location
+    * @param longitude the longitude of the location
+    * @param radius the search radius
+    * @return the stores within the radius, nearest first
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public static List<NearbyStore> withinRadius(Amazon esql, double latitude, double longitude, double radius) throws SQLException {
+      List<List<String>> rows = esql.executeQueryAndReturnResult(BOX_QUERY,
+         latitude - radius, latitude + radius, longitude - radius, longitude + radius,
+         latitude, longitude, radius);
+
+      List<NearbyStore> stores = new ArrayList<NearbyStore>(rows.size());
+      for (List<String> row : rows) {
+         double storeLatitude = Double.parseDouble(row.get(1));
+         double storeLongitude = Double.parseDouble(row.get(2));
+         stores.add(new NearbyStore(Integer.parseInt(row.get(0).trim()), storeLatitude, storeLongitude,
+                                    esql.calculateDistance(latitude, longitude, storeLatitude, storeLongitude)));
+      }
+      Collections.sort(stores, BY_DISTANCE);
+      return stores;
+   }//end withinRadius
+
+   /**
+    * Finds the k stores nearest to the given location. The search radius
+    * starts small and doubles until it holds k stores, so each query only
+    * reads the index range around the location.
+    *
+    * @param esql the database handle
+    * @param latitude the latitude of the location
+    * @param longitude the longitude of the location
+    * @param k the number of stores wanted
+    * @return at most k stores, nearest first
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public static List<NearbyStore> nearest(Amazon esql, double latitude, double longitude, int k) throws SQLException {
+      if (k < 1)
+         return new ArrayList<NearbyStore>();
+      double radius = INITIAL_RADIUS;
+      while (true) {
+         // any store outside this circle is farther than every store inside it
+         List<NearbyStore> stores = withinRadius(esql, latitude, longitude, radius);
+         if (stores.size() >= k)
+            return new ArrayList<NearbyStore>(stores.subList(0, k));
+         if (radius > MAX_DISTANCE + Math.abs(latitude) + Math.abs(longitude))
+            return stores;
+         radius *= 2;
+      }
+   }//end nearest
+}//end StoreLocator
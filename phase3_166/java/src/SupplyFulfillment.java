@@ -0,0 +1,447 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class fulfills the supply requests: placeProductSupplyRequest only
+ * records a pending request, routed to the warehouse nearest the store
+ * unless the manager names one, and the workers here credit the store's
+ * stock later, off the manager's session.
+ *
+ * ProductSupplyRequests itself is the queue, so pending requests survive a
+ * restart and any process may place them. The warehouses with pending
+ * requests wait in an in-memory queue: placeProductSupplyRequest adds its
+ * warehouse when the workers run in its process, and a poller adds every
+ * warehouse the partial index on pending requests lists. A worker takes a
+ * warehouse and fulfills up to a batch of its oldest requests in one
+ * transaction:
+ *
+ *    one SELECT ... FOR UPDATE SKIP LOCKED claiming the requests, so
+ *    workers on the same warehouse take disjoint requests
+ *    one JDBC batch adding the summed units of each product, in key order
+ *    one JDBC batch marking the requests fulfilled
+ *
+ * A batch that fails is fulfilled again one request at a time, and a
+ * request that fails alone is marked failed. With StockReservations the
+ * units of each request go through its log instead, durably before the
+ * claim commits, and the requests stay pending until its reconciler writes
+ * the units and marks them fulfilled together. While another process keeps
+ * the stock in memory, its StockReservations.STOCK_LOCK tells the workers
+ * of a process without reservations to leave the requests to it, and main
+ * refuses to start.
+ *
+ * The workers run in every process that places requests unless
+ * -Damazon.fulfillment=false, with -Damazon.fulfillment.workers (default
+ * 4), -Damazon.fulfillment.batch (default 500) and
+ * -Damazon.fulfillment.pollMs (default 1000); see startIfEnabled. main runs
+ * them as a process of their own.
+ *
+ */
+public class SupplyFulfillment {
+   private static volatile SupplyFulfillment shared;
+
+   static final String PENDING = "pending";
+   static final String FULFILLED = "fulfilled";
+   static final String FAILED = "failed";
+
+   // the warehouse nearest a store, by the distance of Amazon.calculateDistance
+   private static final String ROUTE_QUERY =
+      "SELECT w.WarehouseID FROM Store s, Warehouse w WHERE s.storeID = ? " +
+      "ORDER BY SQRT(POW(w.latitude - s.latitude, 2) + POW(w.longitude - s.longitude, 2)), w.WarehouseID LIMIT 1";
+   private static final String PENDING_WAREHOUSES =
+      "SELECT DISTINCT warehouseID FROM ProductSupplyRequests WHERE status = 'pending'";
+   private static final String CLAIM_BATCH =
+      "SELECT requestNumber, storeID, productName, unitsRequested, requestedOn FROM ProductSupplyRequests " +
+      "WHERE warehouseID = ? AND status = 'pending' ORDER BY requestNumber LIMIT ? FOR UPDATE SKIP LOCKED";
+   private static final String CLAIM_ONE =
+      "SELECT requestNumber, storeID, productName, unitsRequested, requestedOn FROM ProductSupplyRequests " +
+      "WHERE requestNumber = ? AND status = 'pending' FOR UPDATE SKIP LOCKED";
+   private static final String CREDIT_UPDATE =
+      "UPDATE Product SET numberOfUnits = numberOfUnits + ? WHERE storeID = ? AND productName = ?";
+   private static final String STATUS_UPDATE =
+      "UPDATE ProductSupplyRequests SET status = ?, fulfilledOn = ? WHERE requestNumber = ?";
+
+   // the warehouse of each store routed so far; warehouses do not move
+   private static final Map<Integer, Integer> ROUTES = new ConcurrentHashMap<Integer, Integer>();
+
+   /**
+    * A claimed request.
+    */
+   static class Request {
+      final int requestNumber;
+      final int storeID;
+      final String productName;
+      final int units;
+      final Timestamp requestedOn;
+
+      Request(List<String> row) {
+         this.requestNumber = Integer.parseInt(row.get(0).trim());
+         this.storeID = Integer.parseInt(row.get(1).trim());
+         this.productName = row.get(2);
+         this.units = Integer.parseInt(row.get(3).trim());
+         this.requestedOn = row.get(4) == null ? null : Timestamp.valueOf(row.get(4).trim());
+      }
+   }//end Request
+
+   private final ConnectionPool pool;
+   private final int batchSize;
+   private final LinkedBlockingQueue<Integer> ready = new LinkedBlockingQueue<Integer>();
+   private final Set<Integer> queued = ConcurrentHashMap.newKeySet();
+   private final List<Thread> workers = new ArrayList<Thread>();
+   private final ScheduledExecutorService poller;
+   private volatile boolean running = true;
+
+   // fulfillment metrics
+   private final long startedAt = System.nanoTime();
+   private final AtomicLong batches = new AtomicLong();
+   private final AtomicLong fulfilled = new AtomicLong();
+   private final AtomicLong units = new AtomicLong();
+   private final AtomicLong failed = new AtomicLong();
+   private final AtomicLong retriedBatches = new AtomicLong();
+   private final Histogram batchSizes = new Histogram();
+   // from requestedOn to fulfilledOn, in ms
+   private final Histogram lag = new Histogram();
+
+   /**
+    * Starts the workers and the poller.
+    *
+    * @param pool the pool the workers borrow a connection from per batch
+    * @param workers the number of worker threads
+    * @param batchSize the most requests fulfilled in one transaction
+    * @param pollMillis how often the pending warehouses are looked up
+    */
+   public SupplyFulfillment(ConnectionPool pool, int workers, int batchSize, long pollMillis) {
+      this.pool = pool;
+      this.batchSize = batchSize;
+      for (int i = 0; i < workers; ++i) {
+         Thread worker = new Thread(this::workLoop, "supply-fulfillment-" + i);
+         worker.setDaemon(true);
+         this.workers.add(worker);
+         worker.start();
+      }
+      this.poller = Executors.newSingleThreadScheduledExecutor(r -> {
+         Thread t = new Thread(r, "supply-poller");
+         t.setDaemon(true);
+         return t;
+      });
+      this.poller.scheduleWithFixedDelay(this::poll, 0, pollMillis, TimeUnit.MILLISECONDS);
+   }//end SupplyFulfillment
+
+   // The fulfillment workers of this process, or null when they run elsewhere.
+   public static SupplyFulfillment shared() {
+      return shared;
+   }
+
+   /**
+    * Starts the process' workers unless -Damazon.fulfillment=false.
+    *
+    * @param pool the pool the workers borrow their connections from
+    */
+   public static synchronized void startIfEnabled(ConnectionPool pool) {
+      if (shared != null || !Boolean.parseBoolean(System.getProperty("amazon.fulfillment", "true")))
+         return;
+      shared = new SupplyFulfillment(pool, Integer.getInteger("amazon.fulfillment.workers", 4),
+                                     Integer.getInteger("amazon.fulfillment.batch", 500),
+                                     Long.getLong("amazon.fulfillment.pollMs", 1000L));
+   }//end startIfEnabled
+
+   /**
+    * Finds the warehouse nearest a store.
+    *
+    * @param esql the database handle
+    * @param storeID the store to supply
+    * @return the warehouse, or null when the store or every warehouse is missing
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public static Integer route(Amazon esql, int storeID) throws SQLException {
+      Integer warehouseID = ROUTES.get(storeID);
+      if (warehouseID != null)
+         return warehouseID;
+      List<List<String>> rows = esql.executeQueryAndReturnResult(ROUTE_QUERY, storeID);
+      if (rows.isEmpty())
+         return null;
+      warehouseID = Integer.valueOf(rows.get(0).get(0).trim());
+      ROUTES.put(storeID, warehouseID);
+      return warehouseID;
+   }//end route
+
+   // Queues a warehouse that has pending requests, unless it waits already.
+   public void wake(int warehouseID) {
+      if (this.queued.add(warehouseID))
+         this.ready.add(warehouseID);
+   }//end wake
+
+   // Queues every warehouse with pending requests, e.g. placed by other processes.
+   private void poll() {
+      Amazon esql = null;
+      try {
+         esql = this.pool.borrow();
+         for (List<String> row : esql.executeQueryAndReturnResult(PENDING_WAREHOUSES))
+            wake(Integer.parseInt(row.get(0).trim()));
+      } catch (SQLException e) {
+         System.err.println("Supply poller: " + e.getMessage());
+      } finally {
+         if (esql != null)
+            this.pool.release(esql);
+      }
+   }//end poll
+
+   // Takes the next warehouse and fulfills a batch of it, until stopped and none is queued.
+   private void workLoop() {
+      while (this.running || !this.ready.isEmpty()) {
+         Integer warehouseID;
+         try {
+            warehouseID = this.ready.poll(100, TimeUnit.MILLISECONDS);
+         } catch (InterruptedException e) {
+            continue;
+         }
+         if (warehouseID == null)
+            continue;
+         // requests placed from now on queue the warehouse again
+         this.queued.remove(warehouseID);
+         Amazon esql = null;
+         try {
+            esql = this.pool.borrow();
+            // a full batch may have left more behind
+            if (fulfillBatch(esql, warehouseID) >= this.batchSize)
+               wake(warehouseID);
+         } catch (SQLException e) {
+            System.err.println("Supply fulfillment of warehouse " + warehouseID + ": " + e.getMessage());
+         } catch (RuntimeException e) {
+            // the poller finds the warehouse again; the worker lives on
+            System.err.println("Supply fulfillment of warehouse " + warehouseID + ": " + e);
+         } finally {
+            if (esql != null)
+               this.pool.release(esql);
+         }
+      }
+   }//end workLoop
+
+   /**
+    * Fulfills the oldest pending requests of a warehouse; when the batch
+    * fails they are fulfilled one at a time.
+    *
+    * @return the number of requests credited, or claimed when the batch
+    *         was retried; requests topped up before and claimed again do
+    *         not count, so they do not queue the warehouse again at once
+    */
+   private int fulfillBatch(Amazon esql, int warehouseID) throws SQLException {
+      List<Request> claimed = new ArrayList<Request>();
+      try {
+         return fulfill(esql, claimed, CLAIM_BATCH, warehouseID, this.batchSize);
+      } catch (SQLException e) {
+         if (!esql.resetForReuse() || claimed.isEmpty())
+            throw e;
+         this.retriedBatches.incrementAndGet();
+         for (Request request : claimed) {
+            List<Request> single = new ArrayList<Request>(1);
+            try {
+               fulfill(esql, single, CLAIM_ONE, request.requestNumber);
+            } catch (SQLException failure) {
+               if (!esql.resetForReuse())
+                  throw failure;
+               markFailed(esql, request, failure);
+            }
+         }
+         return claimed.size();
+      }
+   }//end fulfillBatch
+
+   /**
+    * Claims requests with the given query and fulfills them in one
+    * transaction, or with stock reservations tops up their counters while
+    * they are claimed. The metrics count the requests credited: those
+    * committed, or those topped up now, since a request stays pending, and
+    * is claimed again, until the reconciler writes it.
+    *
+    * @param claimed filled with the requests claimed by the last attempt
+    * @return the number of requests credited
+    */
+   private int fulfill(Amazon esql, final List<Request> claimed, final String claimQuery, final Object... params)
+         throws SQLException {
+      long start = System.nanoTime();
+      Object token = Metrics.shared().begin("supplyFulfillment");
+      OperationResult.Status status = OperationResult.Status.ERROR;
+      final StockReservations reservations = StockReservations.shared();
+      final Timestamp now = Amazon.getTime();
+      final Map<String, Request> products = new TreeMap<String, Request>();
+      final Map<String, Integer> credits = new TreeMap<String, Integer>();
+      // a top-up is logged for good, so one made by a failed attempt counts too
+      final List<Request> credited = new ArrayList<Request>();
+      try {
+         esql.inTransaction(new Amazon.Transaction<Void>() {
+            public Void run(Amazon tx) throws SQLException {
+               claimed.clear();
+               products.clear();
+               credits.clear();
+               // Product is not the stock of record while another process keeps it in memory
+               if (reservations == null && !StockReservations.stockInDatabase(tx))
+                  return null;
+               for (List<String> row : tx.executeQueryAndReturnResult(claimQuery, params))
+                  claimed.add(new Request(row));
+               if (claimed.isEmpty())
+                  return null;
+
+               // the summed units of each product, added in key order
+               for (Request request : claimed) {
+                  String key = ProductKey.of(request.storeID, request.productName);
+                  products.put(key, request);
+                  Integer sum = credits.get(key);
+                  credits.put(key, (sum == null ? 0 : sum) + request.units);
+               }
+               if (reservations != null) {
+                  // logged and synced per request; the reconciler marks them fulfilled
+                  for (Request request : claimed) {
+                     StockReservations.Change topUp = reservations.topUp(request.requestNumber, request.storeID,
+                                                                         request.productName, request.units);
+                     if (topUp == StockReservations.Change.NOT_LOADED || topUp == StockReservations.Change.LOG_FAILED)
+                        throw new SQLException("Supply request " + request.requestNumber + " not added to the stock: "
+                                               + "the product is not loaded or the stock log failed");
+                     if (topUp == StockReservations.Change.APPLIED)
+                        credited.add(request);
+                  }
+                  return null;
+               }
+               List<Object[]> rows = new ArrayList<Object[]>();
+               for (Map.Entry<String, Request> e : products.entrySet())
+                  rows.add(new Object[] { credits.get(e.getKey()), e.getValue().storeID, e.getValue().productName });
+               tx.executeBatch(CREDIT_UPDATE, rows);
+
+               rows = new ArrayList<Object[]>();
+               for (Request request : claimed)
+                  rows.add(new Object[] { FULFILLED, now, request.requestNumber });
+               tx.executeBatch(STATUS_UPDATE, rows);
+               return null;
+            }
+         });
+         status = OperationResult.Status.OK;
+         // the reservations adjust the cache themselves
+         if (reservations == null) {
+            credited.addAll(claimed);
+            for (Map.Entry<String, Request> e : products.entrySet())
+               ProductCache.shared().adjustUnits(e.getValue().storeID, e.getValue().productName, credits.get(e.getKey()));
+         }
+      } finally {
+         Metrics.shared().end(token, System.nanoTime() - start, status);
+         count(credited, now);
+      }
+      return credited.size();
+   }//end fulfill
+
+   // Records a batch of requests credited in the fulfillment metrics.
+   private void count(List<Request> credited, Timestamp now) {
+      if (credited.isEmpty())
+         return;
+      this.batches.incrementAndGet();
+      this.batchSizes.record(credited.size());
+      this.fulfilled.addAndGet(credited.size());
+      for (Request request : credited) {
+         this.units.addAndGet(request.units);
+         if (request.requestedOn != null)
+            this.lag.record(Math.max(0, now.getTime() - request.requestedOn.getTime()));
+      }
+   }//end count
+
+   // Marks a request that cannot be fulfilled, so it no longer holds up its warehouse.
+   private void markFailed(Amazon esql, Request request, SQLException failure) throws SQLException {
+      System.err.println("Supply request " + request.requestNumber + " failed: " + failure.getMessage());
+      List<Object[]> rows = new ArrayList<Object[]>(1);
+      rows.add(new Object[] { FAILED, Amazon.getTime(), request.requestNumber });
+      esql.executeBatch(STATUS_UPDATE, rows);
+      this.failed.incrementAndGet();
+   }//end markFailed
+
+   /**
+    * Stops the poller and the workers, once they fulfilled the warehouses
+    * already queued, e.g. by the requests a batch run just placed.
+    */
+   public void stop() throws InterruptedException {
+      this.running = false;
+      this.poller.shutdownNow();
+      for (Thread worker : this.workers)
+         worker.join();
+   }//end stop
+
+   // One line summary of the fulfillment metrics.
+   public String describe() {
+      double seconds = Math.max(1e-3, (System.nanoTime() - this.startedAt) / 1e9);
+      long n = Math.max(1, this.batches.get());
+      return String.format("supplyFulfillment fulfilled=%d units=%d rate=%.1f/s batches=%d avgBatch=%.1f failed=%d " +
+                           "retriedBatches=%d lagP50=%dms lagP99=%dms queuedWarehouses=%d",
+                           this.fulfilled.get(), this.units.get(), this.fulfilled.get() / seconds, this.batches.get(),
+                           (double) this.fulfilled.get() / n, this.failed.get(), this.retriedBatches.get(),
+                           this.lag.getPercentile(0.5), this.lag.getPercentile(0.99), this.ready.size());
+   }//end describe
+
+   /**
+    * Runs the workers as a process of their own until it is killed,
+    * reporting once a minute. It refuses to start while stock reservations
+    * run in the server, since only the server may change the stock then.
+    */
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println(
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            SupplyFulfillment.class.getName() +
+            " <dbname> <port> <user> [--workers N] [--batch N] [--poll-ms N]");
+         return;
+      }
+      int workers = 4;
+      int batch = 500;
+      long pollMillis = 1000;
+      for (int i = 3; i + 1 < args.length; i += 2) {
+         switch (args[i]) {
+            case "--workers": workers = Integer.parseInt(args[i + 1]); break;
+            case "--batch": batch = Integer.parseInt(args[i + 1]); break;
+            case "--poll-ms": pollMillis = Long.parseLong(args[i + 1]); break;
+            default: throw new IllegalArgumentException("Unknown option " + args[i]);
+         }
+      }
+
+      // use postgres JDBC driver.
+      Class.forName("org.postgresql.Driver");
+      String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+      // one connection per worker and one for the poller
+      ConnectionPool pool = new ConnectionPool(url, args[2], "", workers + 1);
+      Amazon esql = pool.borrow();
+      try {
+         if (!StockReservations.stockInDatabase(esql)) {
+            System.err.println("Stock reservations run against this database: the server fulfills the supply requests "
+                               + "(FULFILLMENT=true in scripts/server.sh)");
+            System.exit(1);
+         }
+      } finally {
+         pool.release(esql);
+      }
+      Metrics.start();
+      shared = new SupplyFulfillment(pool, workers, batch, pollMillis);
+      while (true) {
+         Thread.sleep(60000);
+         System.err.println(shared.describe());
+      }
+   }//end main
+}//end SupplyFulfillment
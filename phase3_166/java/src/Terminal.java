@@ -0,0 +1,73 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * This class is the keyboard and screen of one interactive session. The
+ * console uses System.in and System.out; in server mode every client socket
+ * gets its own terminal, so menu operations never share input or output.
+ *
+ */
+public class Terminal {
+   // handling the keyboard inputs through a BufferedReader
+   private final BufferedReader in;
+   public final PrintStream out;
+   public final PrintStream err;
+
+   public Terminal(BufferedReader in, PrintStream out, PrintStream err) {
+      this.in = in;
+      this.out = out;
+      this.err = err;
+   }//end Terminal
+
+   public Terminal(InputStream in, OutputStream out) {
+      this(new BufferedReader(new InputStreamReader(in)), new PrintStream(out, true), new PrintStream(out, true));
+   }//end Terminal
+
+   // The terminal of the local console.
+   public static Terminal console() {
+      return new Terminal(new BufferedReader(new InputStreamReader(System.in)), System.out, System.err);
+   }//end console
+
+   /**
+    * Reads the next input line.
+    *
+    * @return the line, without its terminator
+    * @throws java.io.IOException when the input is closed
+    */
+   public String readLine() throws IOException {
+      String line = this.in.readLine();
+      if (line == null)
+         throw new IOException("Input closed");
+      return line;
+   }//end readLine
+
+   public void print(String s) {
+      this.out.print(s);
+      this.out.flush();
+   }
+
+   public void println(String s) {
+      this.out.println(s);
+   }
+
+   public void println() {
+      this.out.println();
+   }
+}//end Terminal
@@ -0,0 +1,62 @@
+#!/bin/bash
+# Checks the plan of every statement Amazon.java issues (src/check_plans.sql)
+# and fails when one of them reads a large table with a sequential scan.
+#
+#   check_plans.sh                  check the project database
+#   check_plans.sh --temp [<data>]  start a throwaway Postgres (initdb and
+#                                   pg_ctl on the PATH), load the CSVs of the
+#                                   <data> directory, by default a dataset
+#                                   DataGenerator writes at PLANCHECK_SCALE
+#                                   (default 500) times the sample data,
+#                                   check it and remove it
+#
+# A table is large when it holds at least MIN_ROWS rows (default 10000), so
+# run this against a scaled dataset: on the bundled sample data every table
+# is small and Postgres rightly prefers sequential scans.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+MIN_ROWS=${MIN_ROWS:-10000}
+
+if [ "$1" == "--temp" ]; then
+   TMP=$(mktemp -d)
+   PORT=${PLANCHECK_PORT:-54329}
+   initdb -D $TMP/db -A trust -U postgres > $TMP/initdb.log || exit 2
+   pg_ctl -D $TMP/db -o "-p $PORT -k $TMP" -l $TMP/server.log -w start > /dev/null || exit 2
+   trap "pg_ctl -D $TMP/db -m fast stop > /dev/null; rm -rf $TMP" EXIT
+   PSQL="psql -X -q -v ON_ERROR_STOP=1 -h $TMP -p $PORT -U postgres postgres"
+   CP=$TMP/classes:$DIR/../../java/lib/pg73jdbc3.jar
+
+   javac -d $TMP/classes $DIR/../../java/src/*.java || exit 2
+   if [ -n "$2" ]; then
+      DATA="$( cd "$2" && pwd )"
+   else
+      DATA=$TMP/data
+      java -cp $CP DataGenerator $DATA --scale ${PLANCHECK_SCALE:-500} > /dev/null || exit 2
+   fi
+   $PSQL -f $DIR/../src/create_tables.sql > /dev/null || exit 2
+   $PSQL -f $DIR/../src/create_indexes.sql > /dev/null || exit 2
+   # loads in foreign key order, then moves the orders and updates from the
+   # default partitions to monthly ones and rebuilds the popularity counters
+   java -cp $CP BulkLoader postgres $PORT postgres $DATA > /dev/null || exit 2
+else
+   PSQL="cs166_psql -X -q -v ON_ERROR_STOP=1 -p $PGPORT $USER"_project_phase_3_DB""
+fi
+
+$PSQL -c "ANALYZE" || exit 2
+LARGE=$($PSQL -At -c "SELECT lower(relname) FROM pg_class
+                      WHERE relkind IN ('r', 'p') AND relnamespace = 'public'::regnamespace
+                      AND reltuples >= $MIN_ROWS")
+echo "Large tables (>= $MIN_ROWS rows): ${LARGE:-none}" | tr '\n' ' '
+echo
+
+$PSQL -f $DIR/../src/check_plans.sql | awk -v large="$LARGE" '
+   BEGIN { n = split(large, names, "\n"); for (i = 1; i <= n; i++) big[names[i]] = 1 }
+   /^== / { name = substr($0, 4); checked = (name !~ /\(full scan\)$/); print; next }
+   { print }
+   checked && match($0, /Seq Scan on [A-Za-z0-9_]+/) {
+      table = tolower(substr($0, RSTART + 12, RLENGTH - 12))
+      if (table in big) { failures = failures "FAIL: " name ": sequential scan on " table "\n"; failed = 1 }
+   }
+   END {
+      if (failed) { printf "\n%s", failures; exit 1 }
+      print "\nAll plans use indexes on the large tables."
+   }'
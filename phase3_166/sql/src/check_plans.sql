@@ -0,0 +1,229 @@
+-- Query plans of every statement the application issues, with sample values
+-- in place of the '?' parameters; statements without a table are left out. Run by scripts/check_plans.sh, which fails
+-- when a plan reads a large table with a sequential scan.
+--
+-- Each statement is preceded by "\echo == <name>"; names ending in
+-- "(full scan)" aggregate a whole table by design and are not checked.
+
+\echo == Session.load
+EXPLAIN SELECT userID, type, latitude, longitude, password FROM Users WHERE name = 'Amy';
+
+\echo == Session.load password rehash
+EXPLAIN UPDATE Users SET password = 'x' WHERE userID = 2;
+
+\echo == Session.refresh
+EXPLAIN SELECT type, latitude, longitude FROM Users WHERE userID = 2;
+
+\echo == StoreLocator.withinRadius
+EXPLAIN SELECT storeID, latitude, longitude FROM Store
+   WHERE latitude BETWEEN 12.0 AND 72.0 AND longitude BETWEEN 28.0 AND 88.0
+   AND (SQRT(POW(latitude - 42.0, 2) + POW(longitude - 58.0, 2)) < 30);
+
+\echo == ProductCache catalog
+EXPLAIN SELECT p.productName, p.numberOFUnits, p.pricePerUnit FROM PRODUCT p WHERE p.storeID = 1;
+
+\echo == ProductCache stock
+EXPLAIN SELECT p.productName, p.numberOFUnits FROM PRODUCT p WHERE p.storeID = 1;
+
+\echo == ProductSearch
+EXPLAIN WITH RECURSIVE catalog(productName) AS (
+   (SELECT productName FROM Product ORDER BY productName LIMIT 1)
+   UNION ALL
+   SELECT (SELECT p.productName FROM Product p WHERE p.productName > c.productName ORDER BY p.productName LIMIT 1)
+   FROM catalog c WHERE c.productName IS NOT NULL),
+   names AS (SELECT productName FROM catalog WHERE lower(productName) LIKE 'pep%' OR lower(productName) % 'pep')
+   SELECT m.productID, m.storeID, m.productName, m.pricePerUnit, m.numberOfUnits, m.distance
+   FROM names n CROSS JOIN LATERAL (
+   SELECT p.productID, p.storeID, p.productName, p.pricePerUnit, p.numberOfUnits,
+   round(CAST(SQRT(POW(s.latitude - 42.0, 2) + POW(s.longitude - 58.0, 2)) AS numeric), 2) AS distance
+   FROM Product p JOIN Store s ON s.storeID = p.storeID
+   WHERE p.productName = n.productName AND p.numberOfUnits >= 1 AND (p.pricePerUnit, p.productID) > (-1, 0)
+   AND s.latitude BETWEEN 12.0 AND 72.0 AND s.longitude BETWEEN 28.0 AND 88.0
+   AND (SQRT(POW(s.latitude - 42.0, 2) + POW(s.longitude - 58.0, 2)) < 30)
+   ORDER BY p.pricePerUnit, p.productID LIMIT 11) m
+   ORDER BY m.pricePerUnit, m.productID LIMIT 11;
+
+\echo == placeOrder store location
+EXPLAIN SELECT latitude, longitude FROM Store Where storeID = 1;
+
+\echo == placeOrder stock decrement
+EXPLAIN UPDATE Product SET numberOfUnits = numberOfUnits - 1
+   WHERE storeID = 1 AND productName = 'Pepsi' and numberOfUnits >= 1 RETURNING productID;
+
+\echo == viewRecentOrders manager
+EXPLAIN SELECT o.orderNumber, u.name AS customerName, o.storeID, p.productName, o.orderTime
+   FROM Orders o JOIN Product p ON o.productID = p.productID
+   JOIN Users u ON o.customerID = u.userID JOIN Store s ON o.storeID = s.storeID
+   WHERE s.managerID = 25 AND o.orderTime >= now() - interval '31 days' ORDER BY o.orderTime DESC LIMIT 5;
+
+\echo == viewRecentOrders admin
+EXPLAIN SELECT o.orderNumber, o.customerID, o.storeID, p.productName, o.unitsOrdered, o.orderTime
+   FROM Orders o JOIN Product p ON o.productID = p.productID WHERE o.orderTime >= now() - interval '31 days'
+   ORDER BY o.orderTime DESC, o.orderNumber DESC LIMIT 5;
+
+\echo == viewRecentOrders customer
+EXPLAIN SELECT o.orderNumber, o.customerID, o.storeID, p.productName, o.unitsOrdered, o.orderTime
+   FROM Orders o JOIN Product p ON o.productID = p.productID WHERE o.customerID = 2 AND o.orderTime >= now() - interval '31 days'
+   ORDER BY o.orderTime DESC, o.orderNumber DESC LIMIT 5;
+
+\echo == updateProduct store check
+EXPLAIN SELECT s.storeID FROM Store s WHERE s.storeID = 1 AND s.managerID = 25;
+
+\echo == updateProduct price
+EXPLAIN UPDATE Product SET pricePerUnit = 2.5 WHERE storeID = 1 AND productName = 'Pepsi';
+
+\echo == updateProduct log
+EXPLAIN INSERT INTO ProductUpdates (managerID, storeID, productID, updatedOn)
+   SELECT 25, storeID, productID, now() FROM Product WHERE storeID = 1 AND productName = 'Pepsi';
+
+\echo == viewRecentUpdates manager
+EXPLAIN SELECT pu.updateNumber, pu.managerID, pu.storeID, p.productName, pu.updatedOn
+   FROM ProductUpdates pu JOIN Product p ON pu.productID = p.productID
+   WHERE pu.managerID = 25 AND pu.updatedOn >= now() - interval '31 days'
+   ORDER BY pu.updatedOn DESC, pu.updateNumber DESC LIMIT 5;
+
+\echo == viewRecentUpdates admin
+EXPLAIN SELECT pu.updateNumber, pu.managerID, pu.storeID, p.productName, pu.updatedOn
+   FROM ProductUpdates pu JOIN Product p ON pu.productID = p.productID WHERE pu.updatedOn >= now() - interval '31 days'
+   ORDER BY pu.updatedOn DESC, pu.updateNumber DESC LIMIT 5;
+
+\echo == viewPopularProducts manager
+EXPLAIN SELECT pp.productname, SUM(pp.orderCount) AS orderCount
+   FROM ProductPopularity pp JOIN Store s ON s.storeID = pp.storeID
+   WHERE s.managerID = 25 GROUP BY pp.productname ORDER BY orderCount DESC LIMIT 5;
+
+\echo == viewPopularProducts admin
+EXPLAIN SELECT productname, SUM(orderCount) AS orderCount
+   FROM GlobalProductPopularity GROUP BY productname ORDER BY orderCount DESC LIMIT 5;
+
+\echo == viewPopularCustomers manager
+EXPLAIN SELECT u.name AS customerName, SUM(cp.orderCount) AS orderCount
+   FROM CustomerPopularity cp JOIN Store s ON s.storeID = cp.storeID JOIN Users u ON u.userID = cp.customerID
+   WHERE s.managerID = 25 GROUP BY cp.customerID, u.name ORDER BY orderCount DESC LIMIT 5;
+
+\echo == viewPopularCustomers admin
+EXPLAIN SELECT u.name AS customerName, g.orderCount
+   FROM GlobalCustomerPopularity g JOIN Users u ON u.userID = g.customerID
+   ORDER BY g.orderCount DESC LIMIT 5;
+
+\echo == placeOrder popularity counters
+EXPLAIN WITH p AS (INSERT INTO ProductPopularity (storeID, productName, orderCount) VALUES (1, 'Pepsi', 1)
+   ON CONFLICT (storeID, productName) DO UPDATE SET orderCount = ProductPopularity.orderCount + 1 RETURNING 1),
+   c AS (INSERT INTO CustomerPopularity (storeID, customerID, orderCount) VALUES (1, 2, 1)
+   ON CONFLICT (storeID, customerID) DO UPDATE SET orderCount = CustomerPopularity.orderCount + 1 RETURNING 1),
+   gp AS (INSERT INTO GlobalProductPopularity (productName, slot, orderCount) VALUES ('Pepsi', 1, 1)
+   ON CONFLICT (productName, slot) DO UPDATE SET orderCount = GlobalProductPopularity.orderCount + 1 RETURNING 1),
+   gc AS (INSERT INTO GlobalCustomerPopularity (customerID, orderCount) VALUES (2, 1)
+   ON CONFLICT (customerID) DO UPDATE SET orderCount = GlobalCustomerPopularity.orderCount + 1 RETURNING 1)
+   SELECT 1;
+
+\echo == placeProductSupplyRequests nearest warehouse
+EXPLAIN SELECT w.WarehouseID FROM Store s, Warehouse w WHERE s.storeID = 1
+   ORDER BY SQRT(POW(w.latitude - s.latitude, 2) + POW(w.longitude - s.longitude, 2)), w.WarehouseID LIMIT 1;
+
+\echo == SupplyFulfillment pending warehouses
+EXPLAIN SELECT DISTINCT warehouseID FROM ProductSupplyRequests WHERE status = 'pending';
+
+\echo == SupplyFulfillment claim
+EXPLAIN SELECT requestNumber, storeID, productName, unitsRequested, requestedOn FROM ProductSupplyRequests
+   WHERE warehouseID = 1 AND status = 'pending' ORDER BY requestNumber LIMIT 500 FOR UPDATE SKIP LOCKED;
+
+\echo == SupplyFulfillment status
+EXPLAIN UPDATE ProductSupplyRequests SET status = 'fulfilled', fulfilledOn = now() WHERE requestNumber = 1;
+
+\echo == SupplyFulfillment stock
+EXPLAIN UPDATE Product SET numberOfUnits = numberOfUnits + 10 WHERE storeID = 1 AND productName = 'Pepsi';
+
+\echo == ReportExporter orders page
+EXPLAIN SELECT orderNumber, customerID, storeID, productID, unitsOrdered, orderTime
+   FROM Orders WHERE orderTime >= '2024-01-01' AND orderTime < '2024-01-02'
+   AND (orderTime, orderNumber) > ('2024-01-01 12:00', 1000) ORDER BY orderTime, orderNumber LIMIT 10000;
+
+\echo == ReportExporter product updates page
+EXPLAIN SELECT updateNumber, managerID, storeID, productID, updatedOn
+   FROM ProductUpdates WHERE updatedOn >= '2024-01-01' AND updatedOn < '2024-01-02'
+   AND (updatedOn, updateNumber) > ('2024-01-01 12:00', 1000) ORDER BY updatedOn, updateNumber LIMIT 10000;
+
+\echo == ReportExporter supply requests page
+EXPLAIN SELECT requestNumber, managerID, warehouseID, storeID, rtrim(productName) AS productName, unitsRequested, status,
+   requestedOn, fulfilledOn FROM ProductSupplyRequests WHERE requestedOn >= '2024-01-01' AND requestedOn < '2024-01-02'
+   AND (requestedOn, requestNumber) > ('2024-01-01 12:00', 1000) ORDER BY requestedOn, requestNumber LIMIT 10000;
+
+\echo == ReplenishmentPlanner new orders
+EXPLAIN SELECT o.orderNumber, o.storeID, p.productName, o.unitsOrdered, o.orderTime FROM Orders o
+   JOIN Product p ON o.productID = p.productID WHERE o.orderTime > '2024-01-01 12:00' ORDER BY o.orderTime, o.orderNumber;
+
+\echo == ReplenishmentPlanner stock
+EXPLAIN SELECT p.storeID, p.productName, p.numberOfUnits, s.managerID, s.latitude, s.longitude,
+   (SELECT COALESCE(SUM(r.unitsRequested), 0) FROM ProductSupplyRequests r
+    WHERE r.storeID = p.storeID AND r.productName = p.productName AND r.status = 'pending')
+   FROM Product p JOIN Store s ON s.storeID = p.storeID WHERE (p.storeID, p.productName) IN ((1, 'Pepsi'), (2, 'Lemonade'));
+
+\echo == ReplenishmentPlanner warehouses (full scan)
+EXPLAIN SELECT WarehouseID, area, latitude, longitude FROM Warehouse;
+
+\echo == ReplenishmentPlanner pending per warehouse
+EXPLAIN SELECT warehouseID, SUM(unitsRequested) FROM ProductSupplyRequests WHERE status = 'pending' GROUP BY warehouseID;
+
+\echo == ReplenishmentPlanner requests
+EXPLAIN INSERT INTO ProductSupplyRequests (managerID, warehouseID, storeID, productName, unitsRequested, status, requestedOn)
+   VALUES (25, 1, 1, 'Pepsi', 100, 'pending', now());
+
+\echo == OrderBatcher lock products
+EXPLAIN SELECT storeID, productName, numberOfUnits, productID FROM Product
+   WHERE (storeID, productName) IN ((1, 'Pepsi'), (2, 'Lemonade')) ORDER BY storeID, productName FOR UPDATE;
+
+\echo == OrderBatcher stock
+EXPLAIN UPDATE Product SET numberOfUnits = 5 WHERE storeID = 1 AND productName = 'Pepsi';
+
+\echo == OrderBatcher price
+EXPLAIN UPDATE Product SET pricePerUnit = 2.5 WHERE storeID = 1 AND productName = 'Pepsi';
+
+\echo == OrderBatcher orders
+EXPLAIN INSERT INTO Orders (orderNumber, customerID, storeID, productID, unitsOrdered, orderTime)
+   VALUES (100000, 2, 1, 1, 1, now()), (100001, 3, 2, 12, 2, now());
+
+\echo == OrderBatcher product updates
+EXPLAIN INSERT INTO ProductUpdates (managerID, storeID, productID, updatedOn) VALUES (25, 1, 1, now());
+
+\echo == StockReservations checkpoint
+EXPLAIN SELECT lastSeq FROM StockReservationCheckpoint WHERE id = 1;
+
+\echo == StockReservations checkpoint write
+EXPLAIN INSERT INTO StockReservationCheckpoint (id, lastSeq) VALUES (1, 10)
+   ON CONFLICT (id) DO UPDATE SET lastSeq = EXCLUDED.lastSeq;
+
+\echo == StockReservations dead letter
+EXPLAIN INSERT INTO StockReservationDeadLetters (seq, type, storeID, productName, units, orderNumber, customerID, loggedOn, error)
+   VALUES (10, 1, 1, 'Pepsi', 2, 100000, 2, now(), 'rejected') ON CONFLICT (seq) DO NOTHING;
+
+\echo == StockReservations stock load (full scan)
+EXPLAIN SELECT storeID, productName, numberOfUnits FROM Product;
+
+\echo == StockReservations write-back
+EXPLAIN UPDATE Product SET numberOfUnits = numberOfUnits + 3 WHERE storeID = 1 AND productName = 'Pepsi';
+
+\echo == ShardMap.copyUser
+EXPLAIN SELECT userID, name, password, latitude, longitude, type FROM Users WHERE name = 'Amy';
+
+\echo == ShardMap users insert
+EXPLAIN INSERT INTO Users (userID, name, password, latitude, longitude, type)
+   VALUES (1000000, 'Amy', 'x', 42.0, 58.0, 'customer'::user_type) ON CONFLICT (userID) DO NOTHING;
+
+\echo == ShardMap.syncUsers present (full scan)
+EXPLAIN SELECT userID FROM Users;
+
+\echo == ShardMap.syncUsers all (full scan)
+EXPLAIN SELECT userID, name, password, latitude, longitude, type FROM Users;
+
+\echo == ShardMap.interleaveSequences
+EXPLAIN SELECT COALESCE(MAX(orderNumber), 0) FROM Orders;
+
+\echo == PopularityRollup.rebuild products (full scan)
+EXPLAIN INSERT INTO ProductPopularity (storeID, productName, orderCount)
+   SELECT o.storeID, p.productName, COUNT(*) FROM Orders o JOIN Product p ON o.productID = p.productID
+   GROUP BY o.storeID, p.productName;
+
+\echo == PopularityRollup.rebuild customers (full scan)
+EXPLAIN INSERT INTO CustomerPopularity (storeID, customerID, orderCount)
+   SELECT storeID, customerID, COUNT(*) FROM Orders GROUP BY storeID, customerID;
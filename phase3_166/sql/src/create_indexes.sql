@@ -1 +1,58 @@
-
+-- Bounding box prefilter of the "stores within 30 miles" lookup
+-- (StoreLocator): a range on latitude, with longitude checked in the index.
+DROP INDEX IF EXISTS store_location_idx;
+CREATE INDEX store_location_idx ON Store (latitude, longitude);
+
+-- Login lookup (Session.load): names are unique, and the password is
+-- checked against its hash after the lookup.
+DROP INDEX IF EXISTS users_login_idx;
+DROP INDEX IF EXISTS users_name_idx;
+CREATE UNIQUE INDEX users_name_idx ON Users (name);
+
+-- Stores of a manager: ownership checks, recent orders and popularity.
+DROP INDEX IF EXISTS store_manager_idx;
+CREATE INDEX store_manager_idx ON Store (managerID);
+
+-- "View 5 recent orders" of a customer, newest first.
+DROP INDEX IF EXISTS orders_customer_idx;
+CREATE INDEX orders_customer_idx ON Orders (customerID, orderTime DESC, orderNumber DESC);
+
+-- Recent orders of a manager's stores, newest first.
+DROP INDEX IF EXISTS orders_store_time_idx;
+CREATE INDEX orders_store_time_idx ON Orders (storeID, orderTime DESC);
+
+-- "View 5 recent Product Updates" of a manager, newest first.
+DROP INDEX IF EXISTS productupdates_manager_idx;
+CREATE INDEX productupdates_manager_idx ON ProductUpdates (managerID, updatedOn DESC, updateNumber DESC);
+
+-- Top customers of all stores, read straight off the index.
+DROP INDEX IF EXISTS globalcustomerpopularity_count_idx;
+CREATE INDEX globalcustomerpopularity_count_idx ON GlobalCustomerPopularity (orderCount DESC);
+
+-- Time range exports (ReportExporter) of orders, updates and supply
+-- requests, and the admin's recent orders and updates: keyset pages on
+-- (time, number).
+DROP INDEX IF EXISTS orders_time_idx;
+CREATE INDEX orders_time_idx ON Orders (orderTime, orderNumber);
+DROP INDEX IF EXISTS productupdates_time_idx;
+CREATE INDEX productupdates_time_idx ON ProductUpdates (updatedOn, updateNumber);
+DROP INDEX IF EXISTS supplyrequests_time_idx;
+CREATE INDEX supplyrequests_time_idx ON ProductSupplyRequests (requestedOn, requestNumber);
+
+-- The queue of SupplyFulfillment: the oldest pending requests of a
+-- warehouse. Fulfilled requests leave the index.
+DROP INDEX IF EXISTS supplyrequests_pending_idx;
+CREATE INDEX supplyrequests_pending_idx ON ProductSupplyRequests (warehouseID, requestNumber) WHERE status = 'pending';
+
+-- The units still pending for a product (ReplenishmentPlanner).
+DROP INDEX IF EXISTS supplyrequests_pending_product_idx;
+CREATE INDEX supplyrequests_pending_product_idx ON ProductSupplyRequests (storeID, productName) WHERE status = 'pending';
+
+-- Product search (ProductSearch): the distinct names by a loose index scan,
+-- then the products of one name cheapest first. pg_trgm gives the %
+-- similarity operator names are matched with. There is no trigram index:
+-- every store sells the same names, so one over Product would return a row
+-- per store; the % filter only runs on the few distinct names.
+CREATE EXTENSION IF NOT EXISTS pg_trgm;
+DROP INDEX IF EXISTS product_search_idx;
+CREATE INDEX product_search_idx ON Product (productName, pricePerUnit, productID);
@@ -5,13 +5,25 @@ DROP TABLE IF EXISTS Warehouse CASCADE;
 DROP TABLE IF EXISTS Orders CASCADE;
 DROP TABLE IF EXISTS ProductSupplyRequests CASCADE;
 DROP TABLE IF EXISTS ProductUpdates CASCADE;
+DROP TABLE IF EXISTS ProductPopularity CASCADE;
+DROP TABLE IF EXISTS CustomerPopularity CASCADE;
+DROP TABLE IF EXISTS GlobalProductPopularity CASCADE;
+DROP TABLE IF EXISTS GlobalCustomerPopularity CASCADE;
+DROP TABLE IF EXISTS StockReservationCheckpoint CASCADE;
+DROP TABLE IF EXISTS StockReservationDeadLetters CASCADE;
+DROP TYPE IF EXISTS user_type;
+
+-- Schema v2: names are varchar, roles an enum, prices numeric, and Orders
+-- and ProductUpdates refer to a product by its productID. SchemaMigrator
+-- moves a v1 database here online.
+CREATE TYPE user_type AS ENUM ('customer', 'manager', 'admin');
 
 CREATE TABLE Users ( userID serial,
-                     name char(50) NOT NULL,
-                     password char(11) NOT NULL,    
+                     name varchar(50) NOT NULL,
+                     password varchar(100) NOT NULL,  -- PasswordHasher form, or plain text until the next login
 					 latitude decimal(8,6) NOT NULL,
                      longitude decimal(9,6) NOT NULL,
-                     type char(10) NOT NULL,  -- type can be 'customer', 'manager', 'admin' 
+                     type user_type NOT NULL,
                      PRIMARY KEY(userID)
 );
 
@@ -25,11 +37,13 @@ CREATE TABLE Store ( storeID integer,
                      FOREIGN KEY(managerID) REFERENCES Users(userID)
 );
 
-CREATE TABLE Product ( storeID integer NOT NULL, 
-                       productName char(30) NOT NULL,
+CREATE TABLE Product ( productID serial NOT NULL,
+                       storeID integer NOT NULL, 
+                       productName varchar(30) NOT NULL,
                        numberOfUnits integer NOT NULL,
-                       pricePerUnit float NOT NULL,
+                       pricePerUnit numeric(10,2) NOT NULL,
                        PRIMARY KEY(storeID, productName), 
+                       UNIQUE(productID),
                        FOREIGN KEY(storeID) REFERENCES Store(storeID)
 		               ON DELETE CASCADE
 );
@@ -43,22 +57,27 @@ CREATE TABLE Warehouse ( WarehouseID integer,
 CREATE TABLE Orders ( 
 					 orderNumber serial NOT NULL,       
 					 customerID integer NOT NULL,
-                     storeID integer NOT NULL,
-                     productName char(30) NOT NULL, 
+                     storeID integer NOT NULL,  -- the product's store, kept for the store indexes
+                     productID integer NOT NULL, 
                      unitsOrdered integer NOT NULL, 
                      orderTime timestamp NOT NULL,
-                     PRIMARY KEY(orderNumber),
+                     PRIMARY KEY(orderNumber, orderTime),
                      FOREIGN KEY(customerID) REFERENCES Users(userID),
-                     FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
-);
+                     FOREIGN KEY(productID) REFERENCES Product(productID)
+) PARTITION BY RANGE (orderTime);
 
 CREATE TABLE ProductSupplyRequests (  
 							   requestNumber serial NOT NULL,
 							   managerID integer NOT NULL,    --User ID of the Manager who makes the supply request
 							   warehouseID integer NOT NULL,
                                storeID integer NOT NULL,
-                               productName char(30) NOT NULL, 
+                               productName varchar(30) NOT NULL, 
 							   unitsRequested integer NOT NULL,
+                               -- 'pending', 'fulfilled' or 'failed'; rows loaded
+                               -- without one are history, their units in stock
+                               status varchar(10) NOT NULL DEFAULT 'fulfilled',
+                               requestedOn timestamp,
+                               fulfilledOn timestamp,
                                PRIMARY KEY(requestNumber),
 							   FOREIGN KEY(managerID) REFERENCES Users(userID), 
                                FOREIGN KEY(warehouseID) REFERENCES Warehouse(warehouseID),
@@ -69,9 +88,63 @@ CREATE TABLE ProductUpdates (
 	 						updateNumber serial,	
 							managerID integer NOT NULL,
                         	storeID integer NOT NULL,
-                       		productName char(30) NOT NULL, 
+                       		productID integer NOT NULL, 
                             updatedOn timestamp NOT NULL,
-                        	PRIMARY KEY(updateNumber),
+                        	PRIMARY KEY(updateNumber, updatedOn),
                         	FOREIGN KEY(managerID) REFERENCES Users(userID),
-                        	FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
+                        	FOREIGN KEY(productID) REFERENCES Product(productID)
+) PARTITION BY RANGE (updatedOn);
+
+-- Orders and ProductUpdates have a partition per month, e.g. orders_p2024_01,
+-- created ahead of time by PartitionManager. The default partitions hold rows
+-- of months without one until PartitionManager moves them.
+CREATE TABLE Orders_default PARTITION OF Orders DEFAULT;
+CREATE TABLE ProductUpdates_default PARTITION OF ProductUpdates DEFAULT;
+
+-- Order counts of the popularity dashboards, kept by placeOrder in the order
+-- transaction and recounted from Orders by PopularityRollup.rebuild.
+CREATE TABLE ProductPopularity ( storeID integer NOT NULL,
+                                 productName varchar(30) NOT NULL,
+                                 orderCount bigint NOT NULL,
+                                 PRIMARY KEY(storeID, productName)
+);
+
+CREATE TABLE CustomerPopularity ( storeID integer NOT NULL,
+                                  customerID integer NOT NULL,
+                                  orderCount bigint NOT NULL,
+                                  PRIMARY KEY(storeID, customerID)
+);
+
+-- slot = storeID mod 16, so one product's counter is spread over 16 rows.
+CREATE TABLE GlobalProductPopularity ( productName varchar(30) NOT NULL,
+                                       slot integer NOT NULL,
+                                       orderCount bigint NOT NULL,
+                                       PRIMARY KEY(productName, slot)
+);
+
+CREATE TABLE GlobalCustomerPopularity ( customerID integer NOT NULL,
+                                        orderCount bigint NOT NULL,
+                                        PRIMARY KEY(customerID)
+);
+
+-- The number of the last stock log record StockReservations has written
+-- to the database; one row, id = 1.
+CREATE TABLE StockReservationCheckpoint ( id integer NOT NULL,
+                                          lastSeq bigint NOT NULL,
+                                          PRIMARY KEY(id)
+);
+
+-- The stock log records the database rejected, set aside by StockReservations
+-- with their change to the in-memory stock taken back; an operator settles
+-- them, e.g. the customer of a rejected order.
+CREATE TABLE StockReservationDeadLetters ( seq bigint NOT NULL,
+                                           type smallint NOT NULL,  -- StockWal: 1 order, 2 top-up, 3 set
+                                           storeID integer NOT NULL,
+                                           productName varchar(30) NOT NULL,
+                                           units integer NOT NULL,
+                                           orderNumber integer NOT NULL,  -- or the supply request of a top-up
+                                           customerID integer NOT NULL,
+                                           loggedOn timestamp NOT NULL,
+                                           error text NOT NULL,
+                                           PRIMARY KEY(seq)
 );